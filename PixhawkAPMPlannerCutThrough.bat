@@ -0,0 +1,2 @@
+REM args are: Pixhawk_Port Pixhawk_baudrate APM_Planner_IP APM_Planner_port DThostname:port serialSourceName tcpSourceName
+java -cp JSimulink.jar edu.scu.engr.rsl.connections.SerialTCPCutThrough COM3 57600 127.0.0.1 9001 127.0.0.1:3333 Pixhawk APMPlanner
\ No newline at end of file
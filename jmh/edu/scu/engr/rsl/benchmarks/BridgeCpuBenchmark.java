@@ -0,0 +1,157 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.scu.engr.rsl.connections.ConnectionOptions;
+import edu.scu.engr.rsl.connections.TCPToDT;
+
+/**
+ * How much CPU a <code>TCPToDT</code> spends moving a steady stream of small frames
+ * from the device to DataTurbine, with the stream or the nio transport.
+ * 
+ * The benchmark thread plays the device and writes a 64 byte frame every 1/rate
+ * seconds, spinning in between, so the score is just the rate it kept up. What
+ * matters is the counter bridgeCpuMicros, the CPU time the bridge's own threads
+ * used per second, so 1000000 is one core. Divided by the score it is the CPU time
+ * per frame. The bridge's threads are those named after its source, which are its
+ * loops and its DataTurbine client's, and the scheduler's shared selector and 
+ * worker threads, which only this bridge uses here. The
+ * DataTurbine server runs in the same JVM but does the same work for both
+ * transports, so it isn't counted. Writes are batched so the server isn't what
+ * limits the rate. How many threads the bridge runs is printed at the end of each
+ * trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(2)
+public class BridgeCpuBenchmark {
+	protected static final int RECORD = 64;
+	protected static final String SOURCE = "BenchCpu";
+	// how often the counters are brought up to date, in frames
+	protected static final int SAMPLE = 1024;
+
+	@Param({"stream", "nio"})
+	public String transport;
+
+	@Param({"5000", "50000"})
+	public int rate;
+
+	protected ServerSocket server;
+	protected Socket socket;
+	protected TCPToDT bridge;
+	protected OutputStream device;
+	protected final byte[] frame = new byte[RECORD];
+	protected long interval, next;
+	protected final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	// CPU time of each bridge thread when the counters were last brought up to date
+	protected final Map<Long, Long> lastCpu = new HashMap<Long, Long>();
+	protected long sent;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Cpu {
+		public long bridgeCpuMicros;
+		protected long cpuNanos, frames;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bridgeCpuMicros = 0;
+			cpuNanos = 0;
+			frames = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void connect() throws Exception {
+		String dthostname = DataTurbine.address();
+		server = new ServerSocket(0);
+		ConnectionOptions options = ConnectionOptions.parse(new String[] {"tcpNoDelay=true", "transport=" + transport,
+				"flushBytes=65536", "flushLinger=5", "asyncFlush=true"}, 0);
+		bridge = new TCPToDT("127.0.0.1", server.getLocalPort(), dthostname, SOURCE, DataTurbine.NOTHING, false, options);
+		socket = server.accept();
+		socket.setTcpNoDelay(true);
+		device = socket.getOutputStream();
+		interval = 1000000000L / rate;
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws IOException {
+		int count = 0;
+		for(ThreadInfo t : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if(t != null && isBridgeThread(t.getThreadName())) {
+				count++;
+			}
+		}
+		System.out.println("bridge threads: " + count + ", frames published: " + bridge.getMetrics().getFramesPublished() + " of " + sent);
+		bridge.stop();
+		device.close();
+		server.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void start() {
+		sample(null);
+		next = System.nanoTime();
+	}
+
+	@Benchmark
+	public void send(Cpu cpu) throws IOException {
+		while(System.nanoTime() < next) {
+			// spin, since sleeping can't keep up with the rate
+		}
+		next += interval;
+		frame[0] = (byte) sent++;
+		device.write(frame);
+		if(++cpu.frames % SAMPLE == 0) {
+			sample(cpu);
+		}
+	}
+
+	// adds what the bridge's threads used since the last sample to the counters, if there are any
+	protected void sample(Cpu cpu) {
+		for(ThreadInfo t : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if(t == null || !isBridgeThread(t.getThreadName())) {
+				continue;
+			}
+			long now = threads.getThreadCpuTime(t.getThreadId());
+			Long before = lastCpu.put(t.getThreadId(), now);
+			if(cpu != null && before != null && now >= before) {
+				cpu.cpuNanos += now - before;
+			}
+		}
+		if(cpu != null) {
+			cpu.bridgeCpuMicros = cpu.cpuNanos / 1000;
+		}
+	}
+
+	protected static boolean isBridgeThread(String name) {
+		return name.startsWith(SOURCE) || name.endsWith("-selector") || name.startsWith("jsimulink-io-worker-");
+	}
+}
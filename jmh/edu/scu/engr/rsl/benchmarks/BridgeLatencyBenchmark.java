@@ -0,0 +1,169 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rbnb.sapi.SAPIException;
+
+import edu.scu.engr.rsl.connections.ConnectionOptions;
+import edu.scu.engr.rsl.connections.DTConnection;
+import edu.scu.engr.rsl.connections.FrameListener;
+import edu.scu.engr.rsl.connections.SerialToDT;
+import edu.scu.engr.rsl.connections.TCPToDT;
+import edu.scu.engr.rsl.connections.ThreadedDTConnection;
+
+/**
+ * The time from a frame being written to the device side of a bridge until a
+ * subscriber fetches it from DataTurbine. One frame is in flight at a time, so this
+ * is the latency of an idle bridge rather than of a loaded one. Frames are stamped
+ * to the millisecond, and a subscriber can miss a frame that follows the last one too
+ * closely, so each is sent a couple of milliseconds after the last arrived, outside
+ * the time measured. The subscriber monitors, which now and then skips a frame even
+ * so, mostly while the JVM is still warming up. A frame that hasn't arrived after a
+ * tenth of a second is sent again, which shows as an outlier at the top of the
+ * distribution, and how many were is printed at the end of each trial.
+ * 
+ * bridge=tcp goes through a <code>TCPToDT</code> over loopback, with the stream or the
+ * nio transport. bridge=serial goes through a <code>SerialToDT</code> on a pty pair,
+ * which has to be made beforehand, for example with
+ * <code>socat pty,raw,echo=0 pty,raw,echo=0</code>, and given with
+ * <code>-p bridge=serial -p transport=stream -p serialPort=/dev/pts/N -p serialPeer=/dev/pts/M</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class BridgeLatencyBenchmark {
+	// each frame starts with its sequence number
+	protected static final int RECORD = 64;
+	// how long to wait before taking a frame as missed and sending another
+	protected static final long RESEND = 100000000L;
+
+	@Param({"tcp"})
+	public String bridge;
+
+	@Param({"stream", "nio"})
+	public String transport;
+
+	@Param({""})
+	public String serialPort;
+
+	@Param({""})
+	public String serialPeer;
+
+	protected ServerSocket server;
+	protected Socket socket;
+	protected ThreadedDTConnection connection;
+	protected OutputStream device;
+	protected DTConnection reader;
+	protected final byte[] frame = new byte[RECORD];
+	protected final ByteBuffer stamp = ByteBuffer.wrap(frame);
+	protected long sequence;
+	protected long resent;
+	protected boolean arrived;
+	protected FrameListener listener = new FrameListener() {
+		@Override
+		public void onFrame(int channel, double time, byte[] data, int off, int len) {
+			// a read from the device can hold several frames
+			for(int i = off; i + RECORD <= off + len; i += RECORD) {
+				if(ByteBuffer.wrap(data, i, 8).getLong() == sequence) {
+					arrived = true;
+				}
+			}
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void connect() throws Exception {
+		String dthostname = DataTurbine.address();
+		String sourceName;
+		if(bridge.equals("serial")) {
+			if(serialPort.isEmpty() || serialPeer.isEmpty()) {
+				throw new IllegalArgumentException("bridge=serial needs serialPort and serialPeer");
+			}
+			new ProcessBuilder("stty", "-F", serialPeer, "raw", "-echo").inheritIO().start().waitFor();
+			sourceName = "BenchSerial";
+			ConnectionOptions options = ConnectionOptions.parse(new String[] {"serialTransport=linux"}, 0);
+			connection = new SerialToDT(serialPort, 115200, dthostname, sourceName, DataTurbine.NOTHING, false, options);
+			device = new FileOutputStream(new File(serialPeer));
+		} else {
+			server = new ServerSocket(0);
+			sourceName = "BenchTcp";
+			ConnectionOptions options = ConnectionOptions.parse(new String[] {"tcpNoDelay=true", "transport=" + transport}, 0);
+			connection = new TCPToDT("127.0.0.1", server.getLocalPort(), dthostname, sourceName, DataTurbine.NOTHING, false, options);
+			socket = server.accept();
+			socket.setTcpNoDelay(true);
+			device = socket.getOutputStream();
+		}
+		reader = new DTConnection(dthostname, "BenchLatencyReader", sourceName + "Source/" + sourceName + "Channel");
+		// the subscription only starts once the bridge has made its channel, so frames until then are lost
+		long deadline = System.nanoTime() + 10000000000L;
+		while(!arrived) {
+			if(System.nanoTime() > deadline) {
+				throw new IllegalStateException("no frame came through the bridge within 10 seconds");
+			}
+			send();
+			reader.read(100, listener);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws IOException {
+		System.out.println("frames sent again: " + resent);
+		reader.closeConnections();
+		connection.stop();
+		device.close();
+		if(server != null) {
+			server.close();
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void pace() throws InterruptedException {
+		Thread.sleep(2);
+	}
+
+	@Benchmark
+	public long roundTrip() throws IOException, SAPIException {
+		send();
+		long resend = System.nanoTime() + RESEND;
+		while(!arrived) {
+			reader.read(100, listener);
+			if(!arrived && System.nanoTime() > resend) {
+				resent++;
+				send();
+				resend = System.nanoTime() + RESEND;
+			}
+		}
+		return sequence;
+	}
+
+	protected void send() throws IOException {
+		stamp.putLong(0, ++sequence);
+		arrived = false;
+		device.write(frame);
+		device.flush();
+	}
+}
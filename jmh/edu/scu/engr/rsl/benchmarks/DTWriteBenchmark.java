@@ -0,0 +1,70 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rbnb.sapi.SAPIException;
+
+import edu.scu.engr.rsl.connections.ConnectionOptions;
+import edu.scu.engr.rsl.connections.DTConnection;
+
+/**
+ * How fast a <code>DTConnection</code> publishes small frames to DataTurbine, with
+ * a flush for every frame or batched by <code>flushBytes</code> and <code>flushLinger</code>.
+ * A batched iteration ends with a flush, so frames still in the batch are counted
+ * only once they are sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class DTWriteBenchmark {
+	@Param({"unbatched", "batched"})
+	public String mode;
+
+	@Param({"64"})
+	public int frameBytes;
+
+	protected DTConnection connection;
+	protected byte[] frame;
+	protected long writes;
+
+	@Setup(Level.Trial)
+	public void connect() throws Exception {
+		String[] options = mode.equals("batched") ? new String[] {"flushBytes=16384", "flushLinger=5"} : new String[0];
+		connection = new DTConnection(DataTurbine.address(), "BenchWrite", DataTurbine.NOTHING, false, ConnectionOptions.parse(options, 0));
+		frame = new byte[frameBytes];
+	}
+
+	@TearDown(Level.Iteration)
+	public void flush() throws SAPIException, InterruptedException {
+		connection.flush();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		connection.closeConnections();
+	}
+
+	@Benchmark
+	public void write() throws SAPIException {
+		// every frame differs from the one before, like real telemetry
+		frame[0] = (byte) writes++;
+		connection.write(frame, 0, frame.length);
+	}
+}
@@ -0,0 +1,54 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The DataTurbine server the connection benchmarks use. Unless one is given with
+ * <code>-Ddthostname=host:port</code>, a server is started in the benchmark's JVM on
+ * port 3399 the first time it is needed. JMH runs each fork in a JVM of its own, so
+ * every fork gets a fresh server.
+ */
+public class DataTurbine {
+	// a subscription that matches nothing, for connections that only publish
+	public static final String NOTHING = "BenchNothingSource/none";
+
+	private static String dthostname;
+
+	public static synchronized String address() {
+		if(dthostname == null) {
+			String given = System.getProperty("dthostname");
+			if(given != null) {
+				dthostname = given;
+			} else {
+				// the server prints a banner and every client it accepts
+				PrintStream old = System.out;
+				System.setOut(discard());
+				try {
+					com.rbnb.api.Server.launchNewServer(new String[] {"-a", "127.0.0.1:3399"});
+				} catch (Exception e) {
+					throw new IllegalStateException("Couldn't start a DataTurbine server on 127.0.0.1:3399", e);
+				} finally {
+					System.setOut(old);
+				}
+				dthostname = "127.0.0.1:3399";
+			}
+		}
+		return dthostname;
+	}
+
+	/**
+	 * @return a stream that throws away what is printed to it
+	 */
+	public static PrintStream discard() {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+	}
+}
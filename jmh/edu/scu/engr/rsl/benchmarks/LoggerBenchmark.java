@@ -0,0 +1,71 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.scu.engr.rsl.util.Logger;
+
+/**
+ * Lines per second through <code>Logger</code> from several threads at once. Every
+ * line the file gets is also printed, which would be all this measured, so standard
+ * out is thrown away while it runs.
+ * 
+ * With blockWhenFull=false a caller drops its line instead of waiting when the writer
+ * falls behind, so the score is how fast lines can be offered rather than written.
+ * The lines dropped are printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@Threads(4)
+public class LoggerBenchmark {
+	@Param({"true", "false"})
+	public boolean blockWhenFull;
+
+	protected File log;
+	protected PrintStream console;
+	protected long droppedBefore;
+
+	@Setup(Level.Trial)
+	public void open() throws IOException {
+		log = File.createTempFile("benchmark", ".log");
+		Logger.setLogLocation(log.getPath());
+		Logger.setBlockWhenFull(blockWhenFull);
+		console = System.out;
+		System.setOut(DataTurbine.discard());
+		droppedBefore = Logger.getDroppedLines();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws IOException, InterruptedException {
+		Logger.endLogger();
+		System.setOut(console);
+		System.out.println("dropped lines: " + (Logger.getDroppedLines() - droppedBefore));
+		log.delete();
+	}
+
+	@Benchmark
+	public void log() {
+		Logger.log("benchmark line", 3);
+	}
+}
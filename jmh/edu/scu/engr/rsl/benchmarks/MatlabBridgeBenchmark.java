@@ -0,0 +1,72 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.scu.engr.rsl.matlab.MatlabBridge;
+import edu.scu.engr.rsl.matlab.SimulatedEngine;
+
+/**
+ * What a call through <code>MatlabBridge</code> costs on top of the call itself, on a
+ * <code>SimulatedEngine</code> whose calls and hand-offs take no time. Four threads
+ * call at once, each waiting for its call to finish, one at a time with
+ * <code>fevalAsync</code> or in batches of 32 with <code>batch</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@Threads(4)
+public class MatlabBridgeBenchmark {
+	protected static final int BATCH = 32;
+
+	protected SimulatedEngine engine;
+	protected MatlabBridge bridge;
+
+	@Setup(Level.Trial)
+	public void start() {
+		engine = new SimulatedEngine(0, 0);
+		bridge = new MatlabBridge(engine, false, MatlabBridge.DEFAULT_QUEUE_CAPACITY);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		engine.shutdown();
+	}
+
+	@Benchmark
+	public Object feval() throws InterruptedException, ExecutionException {
+		return bridge.fevalAsync("f", new Object[] {1}).get();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public Object batch() throws InterruptedException, ExecutionException {
+		MatlabBridge.Batch batch = bridge.batch();
+		CompletableFuture<Object> last = null;
+		for(int i = 0; i < BATCH; i++) {
+			last = batch.feval("f", new Object[] {i});
+		}
+		batch.submit();
+		// the calls of a batch run in order
+		return last.get();
+	}
+}
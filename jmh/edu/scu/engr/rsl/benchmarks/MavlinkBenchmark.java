@@ -0,0 +1,119 @@
+package edu.scu.engr.rsl.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.scu.engr.rsl.mavlink.MAVLinkFields;
+import edu.scu.engr.rsl.mavlink.MAVLinkFramer;
+import edu.scu.engr.rsl.mavlink.MAVLinkMessages;
+import edu.scu.engr.rsl.mavlink.MAVLinkWriter;
+
+/**
+ * How long <code>MAVLinkFramer</code> takes to get through 1 MiB of telemetry made from
+ * the messages a Pixhawk sends most, in both versions, with a little line noise in it.
+ * <code>frame</code> feeds it in pieces of random size the way a serial port or socket
+ * hands it over. <code>decode</code> also reads every field of every packet, like a
+ * bridge with <code>decode=</code> does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MavlinkBenchmark {
+	protected byte[] stream;
+	// piece sizes like what available() returns on a busy port
+	protected int[] pieces;
+	// looked up once, like ThreadedDTConnection does, since fields() copies
+	protected MAVLinkFields.Field[][] fields;
+	protected MAVLinkFramer framer;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		stream = telemetry(1 << 20, new Random(1));
+		Random random = new Random(2);
+		pieces = new int[4096];
+		for(int i = 0; i < pieces.length; i++) {
+			pieces[i] = 1 + random.nextInt(256);
+		}
+		fields = new MAVLinkFields.Field[MAVLinkMessages.COUNT][];
+		for(int id = 0; id < fields.length; id++) {
+			fields[id] = MAVLinkFields.fields(id);
+		}
+		framer = new MAVLinkFramer();
+	}
+
+	@Benchmark
+	public void frame(Blackhole blackhole) {
+		int off = 0, piece = 0;
+		while(off < stream.length) {
+			int len = Math.min(pieces[piece++ & (pieces.length - 1)], stream.length - off);
+			framer.feed(stream, off, len);
+			while(framer.next()) {
+				blackhole.consume(framer.getMessageId());
+				blackhole.consume(framer.getPacketLength());
+			}
+			off += len;
+		}
+	}
+
+	@Benchmark
+	public void decode(Blackhole blackhole) {
+		for(int off = 0; off < stream.length; off += 256) {
+			framer.feed(stream, off, Math.min(256, stream.length - off));
+			while(framer.next()) {
+				int id = framer.getMessageId();
+				MAVLinkFields.Field[] f = id < fields.length ? fields[id] : null;
+				if(f == null) {
+					continue;
+				}
+				byte[] packet = framer.getPacket();
+				int payload = framer.getPayloadOffset(), len = framer.getPayloadLength();
+				for(int i = 0; i < f.length; i++) {
+					blackhole.consume(f[i].get(packet, payload, len));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes telemetry from heartbeats, system status, raw GPS and IMU, attitude,
+	 * position and VFR HUD, in both versions, with random bytes of line noise now and then.
+	 */
+	protected static byte[] telemetry(int size, Random random) {
+		int[] ids = {0, 1, 24, 27, 30, 33, 74};
+		MAVLinkWriter v1 = new MAVLinkWriter(1, 1, false);
+		MAVLinkWriter v2 = new MAVLinkWriter(1, 1, true);
+		byte[] stream = new byte[size];
+		byte[] payload = new byte[255];
+		int off = 0;
+		while(off < size - MAVLinkFramer.MAX_PACKET - 8) {
+			int id = ids[random.nextInt(ids.length)];
+			MAVLinkFields.Field[] f = MAVLinkFields.fields(id);
+			MAVLinkFields.Field last = f[f.length-1];
+			random.nextBytes(payload);
+			off += (random.nextBoolean() ? v1 : v2).write(id, payload, 0, last.offset + last.size(), stream, off);
+			if(random.nextInt(100) == 0) {
+				for(int i = random.nextInt(8); i >= 0; i--) {
+					stream[off++] = (byte) random.nextInt();
+				}
+			}
+		}
+		return Arrays.copyOf(stream, off);
+	}
+}
@@ -0,0 +1,15 @@
+package edu.scu.engr.rsl.connections;
+
+/**
+ * Decides what a bounded hand-off queue does with a new frame when it is full.
+ * 
+ * BLOCK makes the producer wait for room, which is lossless but lets a slow
+ * consumer stall the producer. DROP_OLDEST throws away the frame that has been
+ * waiting the longest so the freshest data always gets through. DROP_NEWEST
+ * throws away the frame being offered and leaves the queue alone.
+ */
+public enum BackPressurePolicy {
+	BLOCK,
+	DROP_OLDEST,
+	DROP_NEWEST
+}
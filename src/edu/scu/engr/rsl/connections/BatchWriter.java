@@ -0,0 +1,672 @@
+package edu.scu.engr.rsl.connections;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.rbnb.sapi.ChannelMap;
+import com.rbnb.sapi.SAPIException;
+import com.rbnb.sapi.Source;
+
+import edu.scu.engr.rsl.util.ArrayCache;
+
+/**
+ * Collects frames written to a DataTurbine <code>Source</code> into one
+ * <code>ChannelMap</code> and flushes them together, so the cost of a round trip
+ * to the server is paid once per batch instead of once per frame. Every frame
+ * keeps its own timestamp through <code>PutTime</code>.
+ * 
+ * A batch is flushed when it holds at least <code>flushBytes</code> bytes or when
+ * its first frame is <code>flushLinger</code> milliseconds old, whichever comes
+ * first. A threshold of 0 turns that trigger off, and if both are off every frame
+ * is flushed on its own.
+ * 
+ * With synchronous flushing the writer that fills a batch also flushes it. With
+ * asynchronous flushing a background loop does the flush while writers carry on
+ * filling the next batch. A batch holds at most <code>capacity</code> frames. If
+ * every other batch is waiting on the server when the current one is that full,
+ * the <code>BackPressurePolicy</code> decides whether the writer waits or a frame
+ * is dropped.
+ * 
+ * The frames of a batch are only put in its <code>ChannelMap</code> when it is
+ * sealed, so until then the oldest can still be dropped. The linger timer and the
+ * asynchronous flushes run on the workers of the shared <code>IOScheduler</code>,
+ * so a writer holds no thread while it has nothing to flush.
+ * 
+ * A flush that fails, on whatever thread, is thrown by the next <code>append</code>
+ * or <code>flush</code>, or found with <code>checkFailure</code>. With 
+ * <code>setKeepFailed</code> the batches that failed are held until the owner takes
+ * their frames with <code>spillPending</code>, so an outage loses nothing.
+ */
+public class BatchWriter {
+	protected static final int BATCHES = 4;
+
+	/**
+	 * One ChannelMap and the frames that go in it until it is flushed.
+	 */
+	protected static class Batch {
+		ChannelMap map;
+		// how many of the writer's channels have been added to map
+		int channels;
+		// the frames are first to end, with their channels, times and SpillBuffer types
+		final byte[][] frames;
+		final int[] frameChannels;
+		final double[] times;
+		final byte[] types;
+		int first, end, bytes;
+		long startNanos;
+
+		Batch(int capacity) {
+			frames = new byte[capacity][];
+			frameChannels = new int[capacity];
+			times = new double[capacity];
+			types = new byte[capacity];
+		}
+
+		int count() {
+			return end - first;
+		}
+
+		/**
+		 * Only call this with fewer than capacity frames in the batch.
+		 */
+		void add(int channel, byte[] frame, byte type, double time) {
+			if(end == frames.length) {
+				// frames were dropped from the front, so there is room there
+				int n = count();
+				System.arraycopy(frames, first, frames, 0, n);
+				System.arraycopy(frameChannels, first, frameChannels, 0, n);
+				System.arraycopy(times, first, times, 0, n);
+				System.arraycopy(types, first, types, 0, n);
+				Arrays.fill(frames, n, end, null);
+				first = 0;
+				end = n;
+			}
+			frames[end] = frame;
+			frameChannels[end] = channel;
+			times[end] = time;
+			types[end] = type;
+			end++;
+			bytes += frame.length;
+		}
+
+		/**
+		 * @return the array of the oldest frame, which is no longer in the batch
+		 */
+		byte[] removeOldest() {
+			byte[] frame = frames[first];
+			frames[first++] = null;
+			bytes -= frame.length;
+			return frame;
+		}
+	}
+
+	protected final Source source;
+	protected String[] channelNames;
+	protected final int flushBytes;
+	protected final long lingerNanos;
+	protected final boolean async;
+	protected final int capacity;
+	protected final BackPressurePolicy policy;
+	protected final ArrayCache frameArrays;
+	protected final String name;
+
+	protected final ReentrantLock lock = new ReentrantLock();
+	// signalled whenever a batch comes back from the server, or the writer closes
+	protected final Condition changed = lock.newCondition();
+	protected final ArrayBlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(BATCHES);
+	protected final ArrayBlockingQueue<Batch> sealed = new ArrayBlockingQueue<Batch>(BATCHES);
+	protected Batch current;
+	protected int inFlight = 0;
+	// true while a flush task is draining sealed
+	protected boolean flushing = false;
+	protected boolean running = true;
+	// a flush that failed, until it is thrown
+	protected volatile SAPIException failure;
+	protected boolean keepFailed = false;
+	// batches that failed to flush, oldest first, when keepFailed is on
+	protected final ArrayDeque<Batch> failed = new ArrayDeque<Batch>();
+	protected long droppedFrames = 0;
+	protected IOScheduler scheduler = IOScheduler.shared();
+	// null unless the connection owning this writer keeps metrics
+	protected volatile BridgeMetrics metrics;
+
+	/**
+	 * @param source an open connection to DataTurbine
+	 * @param channelNames the channels to publish to, in the order of the indices passed to append.
+	 * 		More can be added later with addChannel.
+	 * @param name what the writer's loops are called, like PixhawkSource
+	 * @param options where flushBytes, flushLinger, asyncFlush, slabSize, queueCapacity 
+	 * 		and backPressure are read from
+	 * @throws SAPIException if the channels can not be added
+	 */
+	public BatchWriter(Source source, String[] channelNames, String name, ConnectionOptions options) throws SAPIException {
+		this(source, channelNames, name, options.getFlushBytes(), options.getFlushLinger(), options.isAsyncFlush(), 
+				options.getSlabSize(), options.getQueueCapacity(), options.getBackPressurePolicy());
+	}
+
+	/**
+	 * @param flushBytes flush once this many bytes are waiting, or 0
+	 * @param flushLinger flush once the oldest frame has waited this many milliseconds, or 0
+	 * @param async true to flush on a background loop
+	 * @param slabSize the largest frame whose array is reused
+	 * @param capacity the most frames in a batch
+	 * @param policy what to do when the current batch is full and can't be sealed
+	 * @throws SAPIException if the channels can not be added
+	 */
+	public BatchWriter(Source source, String[] channelNames, String name, int flushBytes, long flushLinger, boolean async, 
+			int slabSize, int capacity, BackPressurePolicy policy) throws SAPIException {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.source = source;
+		this.channelNames = channelNames;
+		this.name = name;
+		this.flushBytes = flushBytes;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(flushLinger);
+		this.async = async;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.frameArrays = new ArrayCache(slabSize, 64);
+		current = newBatch();
+		for(int i = 1; i < BATCHES; i++) {
+			free.offer(newBatch());
+		}
+	}
+
+	/**
+	 * @param keepFailed true to hold the frames of batches that fail to flush for 
+	 * 		<code>spillPending</code>, false to drop them
+	 */
+	public void setKeepFailed(boolean keepFailed) {
+		lock.lock();
+		try {
+			this.keepFailed = keepFailed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param metrics where to count flushes and their latency
+	 */
+	public void setMetrics(BridgeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	protected Batch newBatch() throws SAPIException {
+		Batch b = new Batch(capacity);
+		b.map = new ChannelMap();
+		addMissingChannels(b);
+		return b;
+	}
+	
+	/**
+	 * Adds channels to a batch's map that were added to the writer after the map 
+	 * was made. Must be called with the lock held unless the batch is new.
+	 */
+	protected void addMissingChannels(Batch b) throws SAPIException {
+		while(b.channels < channelNames.length) {
+			b.map.Add(channelNames[b.channels++]);
+		}
+	}
+	
+	/**
+	 * Adds a channel to publish to. Batches that are waiting on the server get the 
+	 * channel when they come back.
+	 * 
+	 * @param name the name of the channel
+	 * @return the index to pass to append for this channel
+	 * @throws SAPIException
+	 */
+	public int addChannel(String name) throws SAPIException {
+		lock.lock();
+		try {
+			channelNames = Arrays.copyOf(channelNames, channelNames.length+1);
+			channelNames[channelNames.length-1] = name;
+			addMissingChannels(current);
+			for(Batch b : free) {
+				addMissingChannels(b);
+			}
+			return channelNames.length-1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a copy of a frame to the current batch, flushing if that fills it.
+	 * 
+	 * @param channel the index of the channel in the names given to the constructor or
+	 * 		returned by addChannel
+	 * @param time the time of the frame in seconds since the epoch
+	 * @return false if the frame was dropped by the back-pressure policy, or because the
+	 * 		thread was interrupted while waiting for room
+	 * @throws SAPIException if an earlier flush failed, in which case this frame was
+	 * 		not taken
+	 */
+	public boolean append(int channel, byte[] data, int off, int len, double time) throws SAPIException {
+		byte[] frame = frameArrays.take(len);
+		System.arraycopy(data, off, frame, 0, len);
+		return add(channel, frame, SpillBuffer.INT8, time);
+	}
+
+	/**
+	 * Adds a number to the current batch as a float64 sample, flushing if that fills it.
+	 * 
+	 * @param channel the index of the channel in the names given to the constructor or
+	 * 		returned by addChannel
+	 * @param time the time of the sample in seconds since the epoch
+	 * @return false if the sample was dropped, as for <code>append</code>
+	 * @throws SAPIException if an earlier flush failed, in which case this sample was
+	 * 		not taken
+	 */
+	public boolean appendFloat64(int channel, double value, double time) throws SAPIException {
+		byte[] frame = frameArrays.take(8);
+		DTConnection.float64Bytes(frame, value);
+		return add(channel, frame, SpillBuffer.FLOAT64, time);
+	}
+
+	protected boolean add(int channel, byte[] frame, byte type, double time) throws SAPIException {
+		lock.lock();
+		try {
+			checkFailure();
+			if(!makeRoom()) {
+				frameArrays.give(frame);
+				droppedFrames++;
+				return false;
+			}
+			Batch b = current;
+			b.add(channel, frame, type, time);
+			if(b.count() == 1) {
+				b.startNanos = System.nanoTime();
+				if(lingerNanos > 0) {
+					scheduler.schedule(name + " batch linger", lingerCheck, lingerNanos, TimeUnit.NANOSECONDS);
+				}
+			}
+			if(isFull(b)) {
+				seal();
+			}
+			return true;
+		} catch (SAPIException e) {
+			frameArrays.give(frame);
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the back-pressure policy until the current batch has room for a frame.
+	 * Must be called with the lock held.
+	 * 
+	 * @return false if the new frame should be dropped
+	 * @throws SAPIException if a flush failed while this waited
+	 */
+	protected boolean makeRoom() throws SAPIException {
+		while(current.count() >= capacity && !seal()) {
+			switch(policy) {
+				case BLOCK:
+					try {
+						changed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					// the batches that are out may have failed rather than come back
+					checkFailure();
+					break;
+				case DROP_OLDEST:
+					frameArrays.give(current.removeOldest());
+					droppedFrames++;
+					break;
+				case DROP_NEWEST:
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Flushes whatever has been written so far and, when flushing asynchronously,
+	 * waits for the server to take it.
+	 * 
+	 * @throws SAPIException
+	 * @throws InterruptedException
+	 */
+	public void flush() throws SAPIException, InterruptedException {
+		lock.lock();
+		try {
+			while(current.count() > 0 && !seal()) {
+				changed.await();
+			}
+			while(inFlight > 0) {
+				changed.await();
+			}
+			checkFailure();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes anything pending and stops the linger timer.
+	 */
+	public void close() {
+		try {
+			flush();
+		} catch (SAPIException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lock.lock();
+		try {
+			running = false;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the frames dropped because every batch was full
+	 */
+	public long getDroppedFrames() {
+		lock.lock();
+		try {
+			return droppedFrames;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected boolean isFull(Batch b) {
+		if(b.count() >= capacity) {
+			return true;
+		}
+		if(flushBytes > 0) {
+			return b.bytes >= flushBytes;
+		}
+		// with no size threshold and no linger every frame goes on its own
+		return lingerNanos == 0;
+	}
+
+	protected boolean isLingered(Batch b) {
+		return lingerNanos > 0 && System.nanoTime() - b.startNanos >= lingerNanos;
+	}
+
+	/**
+	 * Sends the current batch on its way. Must be called with the lock held.
+	 * 
+	 * A synchronous flush that fails is kept in <code>failure</code>.
+	 * 
+	 * @return false if the batch could not be sealed because every other batch is
+	 * 		still waiting on the server
+	 * @throws SAPIException if the batch's map can not be filled
+	 */
+	protected boolean seal() throws SAPIException {
+		if(current.count() == 0) {
+			return true;
+		}
+		if(!async) {
+			fillMap(current);
+			try {
+				long start = System.nanoTime();
+				source.Flush(current.map, true);
+				flushed(current, start);
+				recycle(current);
+			} catch (SAPIException e) {
+				Batch b = current;
+				current = keepFailed ? free.poll() : b;
+				if(current == null) {
+					current = newBatch();
+				}
+				failed(b, e);
+			}
+			return true;
+		}
+		Batch next = free.poll();
+		if(next == null) {
+			return false;
+		}
+		fillMap(current);
+		sealed.offer(current);
+		inFlight++;
+		current = next;
+		if(!flushing) {
+			flushing = true;
+			scheduler.submit(name + " batch flush", flusher);
+		}
+		return true;
+	}
+
+	/**
+	 * Puts the frames of a batch in its map. Must be called with the lock held.
+	 */
+	protected void fillMap(Batch b) throws SAPIException {
+		addMissingChannels(b);
+		for(int i = b.first; i < b.end; i++) {
+			b.map.PutTime(b.times[i], 0);
+			if(b.types[i] == SpillBuffer.FLOAT64) {
+				b.map.PutData(b.frameChannels[i], b.frames[i], ChannelMap.TYPE_FLOAT64, ChannelMap.MSB);
+			} else {
+				b.map.PutDataAsInt8(b.frameChannels[i], b.frames[i]);
+			}
+		}
+	}
+
+	protected void flushed(Batch b, long startNanos) {
+		BridgeMetrics m = metrics;
+		if(m != null) {
+			m.flushed(b.count(), startNanos);
+		}
+	}
+
+	/**
+	 * Gives a batch's arrays back and empties it. Must be called with the lock held.
+	 */
+	protected void recycle(Batch b) {
+		for(int i = b.first; i < b.end; i++) {
+			frameArrays.give(b.frames[i]);
+			b.frames[i] = null;
+		}
+		b.first = b.end = 0;
+		b.bytes = 0;
+	}
+
+	/**
+	 * Records a failed flush and holds on to the batch's frames if they are kept, or
+	 * empties it. Must be called with the lock held. A batch that is held is not 
+	 * returned to <code>free</code>.
+	 */
+	protected void failed(Batch b, SAPIException e) {
+		failure = e;
+		try {
+			discardMap(b);
+		} catch (SAPIException e1) {
+			e1.printStackTrace();
+		}
+		if(keepFailed) {
+			failed.add(b);
+		} else {
+			recycle(b);
+			if(b != current) {
+				free.offer(b);
+			}
+		}
+	}
+
+	/**
+	 * Moves every frame that has not reached the server to a spill buffer, oldest 
+	 * first: the frames of batches that failed, then those of the batch being filled.
+	 * Batches still out are waited for, so none is left behind. The failure that
+	 * started this is forgotten. Only call this from the thread that owns the spill buffer.
+	 */
+	public void spillPending(SpillBuffer spill) {
+		lock.lock();
+		try {
+			awaitInFlight();
+			Batch b;
+			while((b = failed.poll()) != null) {
+				spill(b, spill);
+				recycle(b);
+				free.offer(b);
+			}
+			spill(current, spill);
+			recycle(current);
+			failure = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets every frame that has not reached the server and the failure, for when
+	 * those frames are still held somewhere else.
+	 */
+	public void discardPending() {
+		lock.lock();
+		try {
+			awaitInFlight();
+			Batch b;
+			while((b = failed.poll()) != null) {
+				recycle(b);
+				free.offer(b);
+			}
+			recycle(current);
+			failure = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void awaitInFlight() {
+		while(inFlight > 0) {
+			try {
+				changed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	protected void spill(Batch b, SpillBuffer spill) {
+		for(int i = b.first; i < b.end; i++) {
+			byte[] frame = b.frames[i];
+			if(b.types[i] == SpillBuffer.FLOAT64) {
+				long bits = 0;
+				for(int j = 0; j < 8; j++) {
+					bits = bits << 8 | (frame[j] & 0xff);
+				}
+				spill.addFloat64(b.frameChannels[i], Double.longBitsToDouble(bits), b.times[i]);
+			} else {
+				spill.add(b.frameChannels[i], frame, 0, frame.length, b.times[i]);
+			}
+		}
+	}
+
+	/**
+	 * After a failed flush the map may still hold the data that failed, so the
+	 * batch starts over with a clean one.
+	 */
+	protected void discardMap(Batch b) throws SAPIException {
+		b.map = new ChannelMap();
+		b.channels = 0;
+		addMissingChannels(b);
+	}
+
+	/**
+	 * Throws the failure of a flush that has not been thrown yet, so an owner that
+	 * isn't writing can still notice the server went away.
+	 * 
+	 * @throws SAPIException
+	 */
+	public void checkFailure() throws SAPIException {
+		SAPIException e = failure;
+		if(e != null) {
+			failure = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Seals the current batch if its first frame has waited long enough. This is 
+	 * scheduled when a batch gets its first frame, so by the time it runs that batch
+	 * may already be gone and a newer one has its own check coming. If every batch
+	 * is out, the flusher seals it when one comes back.
+	 */
+	protected final Runnable lingerCheck = new Runnable() {
+		@Override
+		public void run() {
+			lock.lock();
+			try {
+				if(running && current.count() > 0 && isLingered(current)) {
+					seal();
+				}
+			} catch (SAPIException e) {
+				// thrown to the next writer, like a failure of a flush
+				failure = e;
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	/**
+	 * Flushes sealed batches so writers never wait on the server, and returns once
+	 * there are none, to be submitted again by the next <code>seal</code>.
+	 */
+	protected final Runnable flusher = new Runnable() {
+		@Override
+		public void run() {
+			while(true) {
+				Batch b;
+				lock.lock();
+				try {
+					b = sealed.poll();
+					if(b == null) {
+						flushing = false;
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				SAPIException error = null;
+				try {
+					long start = System.nanoTime();
+					source.Flush(b.map, true);
+					flushed(b, start);
+				} catch (SAPIException e) {
+					error = e;
+				}
+				lock.lock();
+				try {
+					inFlight--;
+					if(error != null) {
+						failed(b, error);
+					} else {
+						recycle(b);
+						free.offer(b);
+					}
+					// the current batch may have filled up or lingered while every batch was out
+					if(running && current.count() > 0 && (isFull(current) || isLingered(current))) {
+						seal();
+					}
+					changed.signalAll();
+				} catch (SAPIException e) {
+					e.printStackTrace();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	};
+}
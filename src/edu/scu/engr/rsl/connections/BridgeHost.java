@@ -0,0 +1,271 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs many serial and TCP bridges in one JVM. The bridges are described in a 
+ * properties file, share the <code>IOScheduler</code>, and can each be started and
+ * stopped on their own.
+ * 
+ * An example configuration:
+ * <pre>
+ * bridges=pixhawk,planner
+ * 
+ * # options every bridge gets unless it sets its own
+ * options.flushLinger=5
+ * 
+ * bridge.pixhawk.type=serial
+ * bridge.pixhawk.port=COM3
+ * bridge.pixhawk.baud=57600
+ * bridge.pixhawk.dthostname=127.0.0.1:3333
+ * bridge.pixhawk.sourceName=Pixhawk
+ * bridge.pixhawk.subscriptionHandle=APMPlannerSource/APMPlannerChannel
+ * 
+ * bridge.planner.type=tcp
+ * bridge.planner.ipaddr=127.0.0.1
+ * bridge.planner.port=9001
+ * bridge.planner.dthostname=127.0.0.1:3333
+ * bridge.planner.sourceName=APMPlanner
+ * bridge.planner.subscriptionHandle=PixhawkSource/PixhawkChannel
+ * bridge.planner.options.queueCapacity=64
+ * </pre>
+ * Any <code>ConnectionOptions</code> key can follow <code>options.</code>.
+ */
+public class BridgeHost {
+	protected final Properties config;
+	protected final LinkedHashMap<String, ThreadedDTConnection> bridges = new LinkedHashMap<String, ThreadedDTConnection>();
+	// held while a bridge is started or stopped, so two callers can't both create it
+	protected final HashMap<String, Object> nameLocks = new HashMap<String, Object>();
+	protected final CountDownLatch shutdown = new CountDownLatch(1);
+	
+	public BridgeHost(Properties config) {
+		this.config = config;
+	}
+	
+	/**
+	 * Reads a configuration file.
+	 * 
+	 * @param path the location of the properties file
+	 * @return the configuration
+	 * @throws IOException
+	 */
+	public static Properties load(String path) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(path);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		return p;
+	}
+	
+	/**
+	 * @return the names listed in the bridges property, in order
+	 */
+	public List<String> getBridgeNames() {
+		List<String> names = new ArrayList<String>();
+		for(String name : config.getProperty("bridges", "").split(",")) {
+			if(!name.trim().isEmpty()) {
+				names.add(name.trim());
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Creates and starts a bridge from its configuration. Does nothing if it is already
+	 * running, and stops one of that name that has died before replacing it. Starting
+	 * and stopping the same bridge from several threads at once is safe.
+	 * 
+	 * @param name the name of the bridge in the configuration
+	 * @return the running bridge
+	 * @throws IllegalArgumentException if the configuration for the bridge is missing or wrong
+	 */
+	public ThreadedDTConnection start(String name) {
+		synchronized(nameLock(name)) {
+			ThreadedDTConnection old = get(name);
+			if(old != null && old.isRunning()) {
+				return old;
+			}
+			if(old != null) {
+				// let go of its port before the new one opens it
+				stop(name);
+			}
+			ThreadedDTConnection bridge = create(name);
+			synchronized(bridges) {
+				bridges.put(name, bridge);
+			}
+			return bridge;
+		}
+	}
+	
+	/**
+	 * Stops a bridge. It can be started again with <code>start</code>.
+	 * 
+	 * @param name the name of the bridge in the configuration
+	 */
+	public void stop(String name) {
+		synchronized(nameLock(name)) {
+			ThreadedDTConnection bridge;
+			synchronized(bridges) {
+				bridge = bridges.remove(name);
+			}
+			if(bridge != null) {
+				bridge.stop();
+			}
+		}
+	}
+	
+	/**
+	 * Starts every configured bridge at the same time, so a slow device does not 
+	 * hold up the rest. Bridges that fail to start are reported and skipped.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void startAll() throws InterruptedException {
+		List<IOScheduler.Task> starting = new ArrayList<IOScheduler.Task>();
+		for(final String name : getBridgeNames()) {
+			starting.add(IOScheduler.shared().execute("starting " + name, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start(name);
+					} catch (RuntimeException e) {
+						System.out.println("Could not start bridge " + name + ": " + e.getMessage());
+					}
+				}
+			}));
+		}
+		for(IOScheduler.Task t : starting) {
+			t.join();
+		}
+	}
+	
+	/**
+	 * Stops every running bridge and releases anyone waiting in <code>awaitTermination</code>.
+	 */
+	public void stopAll() {
+		List<String> names;
+		synchronized(bridges) {
+			names = new ArrayList<String>(bridges.keySet());
+		}
+		for(String name : names) {
+			stop(name);
+		}
+		shutdown.countDown();
+	}
+	
+	/**
+	 * Waits until <code>stopAll</code> is called.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		shutdown.await();
+	}
+	
+	/**
+	 * @return the running bridge with that name, or null
+	 */
+	public ThreadedDTConnection get(String name) {
+		synchronized(bridges) {
+			return bridges.get(name);
+		}
+	}
+	
+	protected Object nameLock(String name) {
+		synchronized(nameLocks) {
+			Object lock = nameLocks.get(name);
+			if(lock == null) {
+				lock = new Object();
+				nameLocks.put(name, lock);
+			}
+			return lock;
+		}
+	}
+	
+	/**
+	 * Builds a bridge from the <code>bridge.name.*</code> properties.
+	 */
+	protected ThreadedDTConnection create(String name) {
+		String prefix = "bridge." + name + ".";
+		String type = required(prefix + "type");
+		String dthostname = required(prefix + "dthostname");
+		String sourceName = config.getProperty(prefix + "sourceName", name);
+		String subscriptionHandle = required(prefix + "subscriptionHandle");
+		boolean debug = Boolean.parseBoolean(config.getProperty(prefix + "debug", "false"));
+		ConnectionOptions options = options(prefix);
+		if(type.equals("tcp")) {
+			return new TCPToDT(required(prefix + "ipaddr"), Integer.parseInt(required(prefix + "port")), dthostname, sourceName, subscriptionHandle, debug, options);
+		} else if(type.equals("serial")) {
+			return new SerialToDT(required(prefix + "port"), Integer.parseInt(required(prefix + "baud")), dthostname, sourceName, subscriptionHandle, debug, options);
+		}
+		throw new IllegalArgumentException("Unknown bridge type " + type + " for " + name);
+	}
+	
+	/**
+	 * Collects the shared <code>options.*</code> properties and then the bridge's own,
+	 * so the bridge's win.
+	 */
+	protected ConnectionOptions options(String prefix) {
+		ConnectionOptions options = new ConnectionOptions();
+		for(String p : new String[] {"options.", prefix + "options."}) {
+			for(String key : config.stringPropertyNames()) {
+				if(key.startsWith(p)) {
+					options.set(key.substring(p.length()), config.getProperty(key).trim());
+				}
+			}
+		}
+		return options;
+	}
+	
+	protected String required(String key) {
+		String value = config.getProperty(key);
+		if(value == null) {
+			throw new IllegalArgumentException("Missing " + key);
+		}
+		return value.trim();
+	}
+	
+	/**
+	 * This function provides a command line interface for running the bridges in a configuration file
+	 * 
+	 * @param args The location of the configuration file. See the class documentation for its format.
+	 */
+	public static void main(String[] args) {
+		if(args.length != 1) {
+			System.out.println("Incorrect arguments.");
+			System.out.println("Usage:\n\tjava -cp JSimulink.jar edu.scu.engr.rsl.connections.BridgeHost config.properties");
+			System.exit(3);
+		}
+		final BridgeHost host;
+		try {
+			host = new BridgeHost(load(args[0]));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(2);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				host.stopAll();
+			}
+		});
+		try {
+			host.startAll();
+			host.awaitTermination();
+		} catch (InterruptedException e) {
+			host.stopAll();
+		}
+	}
+}
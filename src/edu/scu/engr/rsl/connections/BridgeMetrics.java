@@ -0,0 +1,245 @@
+package edu.scu.engr.rsl.connections;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.scu.engr.rsl.util.LatencyHistogram;
+
+/**
+ * Counters and latency histograms for one connection, updated on the hot path and
+ * read from JMX, from <code>getSnapshot</code>, or by a subscriber to the bridge's
+ * metrics channel.
+ * 
+ * Counters are <code>LongAdder</code>s, so the threads of a bridge updating them at
+ * once don't fight over one cache line, and the histograms are 
+ * <code>LatencyHistogram</code>s, so recording a frame never allocates. Queue depths
+ * and drops are already counted by whatever owns them, so they are read through 
+ * gauges the connection sets, which are only called when the metrics are read.
+ * 
+ * Flush latency is how long DataTurbine took to take a flush. Arrival to commit is
+ * from the time data arrived from the device until its flush was taken. When writes
+ * are batched, a frame counts as committed when it joins a batch, so the time the 
+ * batch waits to fill up is not included.
+ * 
+ * Reconnects counts every time a link to DataTurbine or the device came back after
+ * going away, and spilled frames is how many frames are waiting in the spill buffer
+ * for DataTurbine to come back.
+ */
+public class BridgeMetrics implements BridgeMetricsMBean {
+	protected static final LongSupplier ZERO = new LongSupplier() {
+		@Override
+		public long getAsLong() {
+			return 0;
+		}
+	};
+
+	public final LongAdder bytesFromDevice = new LongAdder(), framesFromDevice = new LongAdder();
+	public final LongAdder bytesToDevice = new LongAdder(), framesToDevice = new LongAdder();
+	public final LongAdder bytesPublished = new LongAdder(), framesPublished = new LongAdder();
+	// flushedFrames counts the frames that went out in the flushes, for frames per flush
+	public final LongAdder flushes = new LongAdder(), flushedFrames = new LongAdder();
+	public final LongAdder reconnects = new LongAdder();
+	public final LatencyHistogram flushLatency = new LatencyHistogram();
+	public final LatencyHistogram arrivalToCommit = new LatencyHistogram();
+	protected volatile LongSupplier sourceQueueDepth = ZERO, sinkQueueDepth = ZERO, sinkQueueBytes = ZERO;
+	protected volatile LongSupplier droppedFrames = ZERO, droppedBytes = ZERO;
+	protected volatile LongSupplier spilledFrames = ZERO;
+	protected ObjectName registeredAs;
+
+	/**
+	 * Counts one flush to DataTurbine.
+	 * 
+	 * @param frames how many frames went out in it
+	 * @param startNanos the <code>System.nanoTime</code> the flush started
+	 */
+	public void flushed(int frames, long startNanos) {
+		flushLatency.record(System.nanoTime() - startNanos);
+		flushes.increment();
+		flushedFrames.add(frames);
+	}
+
+	public void setSourceQueueDepth(LongSupplier gauge) {
+		sourceQueueDepth = gauge;
+	}
+
+	public void setSinkQueueDepth(LongSupplier gauge) {
+		sinkQueueDepth = gauge;
+	}
+
+	public void setSinkQueueBytes(LongSupplier gauge) {
+		sinkQueueBytes = gauge;
+	}
+
+	public void setDroppedFrames(LongSupplier gauge) {
+		droppedFrames = gauge;
+	}
+
+	public void setDroppedBytes(LongSupplier gauge) {
+		droppedBytes = gauge;
+	}
+
+	public void setSpilledFrames(LongSupplier gauge) {
+		spilledFrames = gauge;
+	}
+
+	/**
+	 * Makes the metrics visible over JMX as edu.scu.engr.rsl:type=Bridge,name=<code>name</code>.
+	 * A failure, like another bridge already having the name, is printed and otherwise ignored.
+	 */
+	public synchronized void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("edu.scu.engr.rsl:type=Bridge,name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+			registeredAs = objectName;
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void unregister() {
+		if(registeredAs == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		registeredAs = null;
+	}
+
+	public long getBytesFromDevice() {
+		return bytesFromDevice.sum();
+	}
+
+	public long getFramesFromDevice() {
+		return framesFromDevice.sum();
+	}
+
+	public long getBytesToDevice() {
+		return bytesToDevice.sum();
+	}
+
+	public long getFramesToDevice() {
+		return framesToDevice.sum();
+	}
+
+	public long getBytesPublished() {
+		return bytesPublished.sum();
+	}
+
+	public long getFramesPublished() {
+		return framesPublished.sum();
+	}
+
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	public double getFramesPerFlush() {
+		long n = flushes.sum();
+		return n == 0 ? 0 : (double) flushedFrames.sum() / n;
+	}
+
+	public double getFlushLatencyP50() {
+		return micros(flushLatency.percentile(0.5));
+	}
+
+	public double getFlushLatencyP99() {
+		return micros(flushLatency.percentile(0.99));
+	}
+
+	public double getFlushLatencyMax() {
+		return micros(flushLatency.getMax());
+	}
+
+	public double getArrivalToCommitP50() {
+		return micros(arrivalToCommit.percentile(0.5));
+	}
+
+	public double getArrivalToCommitP99() {
+		return micros(arrivalToCommit.percentile(0.99));
+	}
+
+	public double getArrivalToCommitMax() {
+		return micros(arrivalToCommit.getMax());
+	}
+
+	public long getSourceQueueDepth() {
+		return sourceQueueDepth.getAsLong();
+	}
+
+	public long getSinkQueueDepth() {
+		return sinkQueueDepth.getAsLong();
+	}
+
+	public long getSinkQueueBytes() {
+		return sinkQueueBytes.getAsLong();
+	}
+
+	public long getDroppedFrames() {
+		return droppedFrames.getAsLong();
+	}
+
+	public long getDroppedBytes() {
+		return droppedBytes.getAsLong();
+	}
+
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	public long getSpilledFrames() {
+		return spilledFrames.getAsLong();
+	}
+
+	/**
+	 * @return every metric as one line of key=value pairs, latencies in microseconds
+	 */
+	public String getSnapshot() {
+		return "time=" + System.currentTimeMillis()/1000.0
+				+ " bytesFromDevice=" + getBytesFromDevice()
+				+ " framesFromDevice=" + getFramesFromDevice()
+				+ " bytesToDevice=" + getBytesToDevice()
+				+ " framesToDevice=" + getFramesToDevice()
+				+ " bytesPublished=" + getBytesPublished()
+				+ " framesPublished=" + getFramesPublished()
+				+ " flushes=" + getFlushes()
+				+ " framesPerFlush=" + String.format("%.2f", getFramesPerFlush())
+				+ " flushP50=" + getFlushLatencyP50()
+				+ " flushP99=" + getFlushLatencyP99()
+				+ " flushMax=" + getFlushLatencyMax()
+				+ " arrivalToCommitP50=" + getArrivalToCommitP50()
+				+ " arrivalToCommitP99=" + getArrivalToCommitP99()
+				+ " arrivalToCommitMax=" + getArrivalToCommitMax()
+				+ " sourceQueueDepth=" + getSourceQueueDepth()
+				+ " sinkQueueDepth=" + getSinkQueueDepth()
+				+ " sinkQueueBytes=" + getSinkQueueBytes()
+				+ " droppedFrames=" + getDroppedFrames()
+				+ " droppedBytes=" + getDroppedBytes()
+				+ " reconnects=" + getReconnects()
+				+ " spilledFrames=" + getSpilledFrames();
+	}
+
+	/**
+	 * Zeroes the counters and histograms. Gauges belong to their owners and are left alone.
+	 */
+	public void reset() {
+		for(LongAdder a : new LongAdder[] {bytesFromDevice, framesFromDevice, bytesToDevice, framesToDevice, bytesPublished, framesPublished, flushes, flushedFrames, reconnects}) {
+			a.reset();
+		}
+		flushLatency.reset();
+		arrivalToCommit.reset();
+	}
+
+	protected static double micros(long nanos) {
+		return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+	}
+}
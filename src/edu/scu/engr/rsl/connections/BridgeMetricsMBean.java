@@ -0,0 +1,30 @@
+package edu.scu.engr.rsl.connections;
+
+/**
+ * What a <code>BridgeMetrics</code> shows over JMX. Latencies are in microseconds.
+ */
+public interface BridgeMetricsMBean {
+	public long getBytesFromDevice();
+	public long getFramesFromDevice();
+	public long getBytesToDevice();
+	public long getFramesToDevice();
+	public long getBytesPublished();
+	public long getFramesPublished();
+	public long getFlushes();
+	public double getFramesPerFlush();
+	public double getFlushLatencyP50();
+	public double getFlushLatencyP99();
+	public double getFlushLatencyMax();
+	public double getArrivalToCommitP50();
+	public double getArrivalToCommitP99();
+	public double getArrivalToCommitMax();
+	public long getSourceQueueDepth();
+	public long getSinkQueueDepth();
+	public long getSinkQueueBytes();
+	public long getDroppedFrames();
+	public long getDroppedBytes();
+	public long getReconnects();
+	public long getSpilledFrames();
+	public String getSnapshot();
+	public void reset();
+}
@@ -0,0 +1,65 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.comm.CommPortIdentifier;
+import javax.comm.NoSuchPortException;
+import javax.comm.PortInUseException;
+import javax.comm.SerialPort;
+import javax.comm.UnsupportedCommOperationException;
+
+import edu.scu.engr.rsl.util.SerialParameters;
+
+/**
+ * Opens a port through <code>javax.comm</code>, like <code>COM3</code>, and reads it
+ * with plain blocking streams instead of <code>serialEvent</code> callbacks.
+ * 
+ * A read blocks until there is at least one byte, with no timeout, so it returns
+ * as soon as data arrives. Closing the transport is what ends a blocked read.
+ */
+public class CommSerialTransport implements SerialTransport {
+	protected SerialPort serialPort;
+	protected InputStream iStream;
+	protected OutputStream oStream;
+
+	@Override
+	public void open(SerialParameters parameters, ConnectionOptions options) throws IOException {
+		System.loadLibrary("win32com");
+		try {
+			CommPortIdentifier portId = CommPortIdentifier.getPortIdentifier(parameters.getPortName());
+			serialPort = (SerialPort) portId.open("CommHandler", 2000);
+		} catch (NoSuchPortException | PortInUseException e) {
+			throw new IOException("Could not open " + parameters.getPortName(), e);
+		}
+		try {
+			serialPort.setSerialPortParams(parameters.getBaudRate(), parameters.getDatabits(), parameters.getStopbits(), parameters.getParity());
+			serialPort.setFlowControlMode(parameters.getFlowControlIn() | parameters.getFlowControlOut());
+			serialPort.disableReceiveTimeout();
+			serialPort.enableReceiveThreshold(1);
+			iStream = serialPort.getInputStream();
+			oStream = serialPort.getOutputStream();
+		} catch (UnsupportedCommOperationException | IOException e) {
+			serialPort.close();
+			throw new IOException("Could not configure " + parameters.getPortName(), e);
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return iStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return oStream;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(serialPort != null) {
+			serialPort.close();
+		}
+	}
+}
@@ -0,0 +1,954 @@
+package edu.scu.engr.rsl.connections;
+
+import java.util.Arrays;
+
+import edu.scu.engr.rsl.mavlink.MAVLinkFields;
+import edu.scu.engr.rsl.mavlink.MAVLinkMessages;
+
+/**
+ * Tunables for a connection to DataTurbine that are not part of the required 
+ * connection handles. Every option has a default, so a connection created without
+ * options behaves the same as one created with <code>new ConnectionOptions()</code>.
+ * 
+ * Options can be given on the command line as trailing <code>key=value</code>
+ * arguments. See <code>helpText</code> for the recognized keys.
+ */
+public class ConnectionOptions {
+	public static String helpText = "\toptions: Zero or more key=value pairs\n"
+			+ "\t\tqueueCapacity: Frames buffered between the device and DataTurbine in each direction, and in each batch of writes to DataTurbine (default 256)\n"
+			+ "\t\tbackPressure: What to do when a queue is full, one of block, drop_oldest, drop_newest (default block)\n"
+			+ "\t\treadTimeout: Milliseconds a blocking device read waits before checking for shutdown (default 100)\n"
+			+ "\t\tfetchTimeout: Milliseconds a DataTurbine fetch waits for data before checking for shutdown (default 100)\n"
+			+ "\t\tslabSize: Size in bytes of the pooled buffers used to move data (default 4096)\n"
+			+ "\t\tflushBytes: Batch writes to DataTurbine and flush once this many bytes are waiting (default 0, off)\n"
+			+ "\t\tflushLinger: Batch writes to DataTurbine and flush once the oldest has waited this many milliseconds (default 0, off)\n"
+			+ "\t\tasyncFlush: Flush batches on a background thread so writers never wait on the server (default false)\n"
+			+ "\t\ttransport: How TCP bridges talk to the socket, stream or nio (default stream)\n"
+			+ "\t\ttcpNoDelay: Turn off Nagle's algorithm on TCP sockets (default false)\n"
+			+ "\t\tsendBuffer: TCP send buffer size in bytes (default 0, the OS default)\n"
+			+ "\t\treceiveBuffer: TCP receive buffer size in bytes (default 0, the OS default)\n"
+			+ "\t\tgatherFrames: Most queued frames the nio transport or a TCP server writes to a socket at once (default 16)\n"
+			+ "\t\ttcpMode: Whether TCP bridges connect to the device or accept clients, client or server (default client)\n"
+			+ "\t\tmaxClients: Most clients a TCP server accepts at once (default 256)\n"
+			+ "\t\tfanOutFrames: Frames a TCP server keeps for clients that fall behind (default 1024)\n"
+			+ "\t\tslowClient: What a TCP server does with a client that falls too far behind, drop or disconnect (default drop)\n"
+			+ "\t\tserialTransport: How serial bridges open the port, comm for javax.comm, linux for a tty path configured with stty, or auto to pick by OS (default auto)\n"
+			+ "\t\tserialRingBytes: Bytes a javax.comm serial bridge buffers between the port and DataTurbine (default 65536)\n"
+			+ "\t\tframing: Publish only whole MAVLink packets from the device, none, mavlink for one packet per frame, or mavlink-batch for every whole packet of a read in one frame (default none)\n"
+			+ "\t\tdemux: Also publish MAVLink messages to a channel per message, none, all, or a comma separated list of names or IDs like GLOBAL_POSITION_INT,HEARTBEAT (default none)\n"
+			+ "\t\tdemuxRaw: Keep publishing the whole stream to the default channel when demux is on (default true)\n"
+			+ "\t\tdecode: Publish MAVLink fields as float64 to a channel per field, none or a comma separated list of MESSAGE.field or MESSAGE for all its fields, like GLOBAL_POSITION_INT.lat,GLOBAL_POSITION_INT.lon,ATTITUDE (default none)\n"
+			+ "\t\trecord: Record every frame to and from the device to memory-mapped segment files in this directory, or none (default none)\n"
+			+ "\t\trecordSegmentBytes: Size in bytes of each recording segment file (default 67108864)\n"
+			+ "\t\tmetricsInterval: Publish a snapshot of the bridge's metrics to its metrics channel every this many milliseconds (default 0, off)\n"
+			+ "\t\treconnect: Reconnect to DataTurbine and the device when they go away instead of giving up (default true)\n"
+			+ "\t\treconnectInitial: Milliseconds before the first reconnect attempt, doubled after each failure (default 250)\n"
+			+ "\t\treconnectMax: Most milliseconds between reconnect attempts (default 30000)\n"
+			+ "\t\tspillMemoryBytes: Bytes of frames held in memory while DataTurbine is unreachable (default 16777216)\n"
+			+ "\t\tspillFileBytes: Bytes of frames held in a memory-mapped file once the memory is full, or 0 for none (default 268435456)\n"
+			+ "\t\tspillDirectory: Directory for the spill file (default the java.io.tmpdir directory)\n"
+			+ "\t\tlocalRouting: Hand frames straight to subscribers in the same JVM and publish to DataTurbine in the background (default false)\n"
+			+ "\t\tlocalRingFrames: Frames each locally routed channel keeps for subscribers that fall behind (default 1024)\n"
+			+ "\t\tlanes: Queue data for the device in priority lanes, none or lanes separated by ; from highest to lowest, each a comma separated list of MAVLink message names or IDs or subscribed channels, like COMMAND_LONG,SET_MODE;PARAM_VALUE. Everything else goes in a last lane (default none)\n"
+			+ "\t\tlaneScheduling: How lanes take turns writing to the device, strict or weighted (default strict)\n"
+			+ "\t\tlaneWeights: Comma separated share of the link for each lane, including the last, when laneScheduling is weighted (default 1 each)\n"
+			+ "\t\tlinkBudget: Most bytes lanes other than the first may have waiting in the link, or 0 for no limit (default 0)\n"
+			+ "\t\tlinkRate: Bytes per second the device link carries, or 0 to work it out from the baud rate of a serial bridge (default 0)\n"
+			+ "\t\tshaping: Pace writes to the device at the linkRate instead of letting them pile up in the OS buffers, true or false (default false)\n"
+			+ "\t\tshapingBurst: Bytes that may be written at once without pacing when shaping (default 64)\n"
+			+ "\t\tshapingQueueMillis: Milliseconds of data at the linkRate that may wait for the device when shaping, past which backPressure applies (default 200)";
+	
+	private int queueCapacity = 256;
+	private BackPressurePolicy backPressurePolicy = BackPressurePolicy.BLOCK;
+	private int readTimeout = 100;
+	private long fetchTimeout = 100;
+	private int slabSize = 4096;
+	private int flushBytes = 0;
+	private long flushLinger = 0;
+	private boolean asyncFlush = false;
+	private boolean nioTransport = false;
+	private boolean tcpNoDelay = false;
+	private int sendBuffer = 0;
+	private int receiveBuffer = 0;
+	private int gatherFrames = 16;
+	private boolean tcpServer = false;
+	private int maxClients = 256;
+	private int fanOutFrames = 1024;
+	private SlowClientPolicy slowClientPolicy = SlowClientPolicy.DROP;
+	private String serialTransport = "auto";
+	private int serialRingBytes = 65536;
+	private String framing = "none";
+	private String demux = "none";
+	// null when every message is demultiplexed
+	private int[] demuxIds = null;
+	private boolean demuxRaw = true;
+	private String decode = "none";
+	private MAVLinkFields.Field[] decodeFields = new MAVLinkFields.Field[0];
+	private String record = "none";
+	private int recordSegmentBytes = 64*1024*1024;
+	private long metricsInterval = 0;
+	private boolean reconnect = true;
+	private long reconnectInitial = 250;
+	private long reconnectMax = 30000;
+	private int spillMemoryBytes = 16*1024*1024;
+	private long spillFileBytes = 256L*1024*1024;
+	private String spillDirectory = System.getProperty("java.io.tmpdir");
+	private boolean localRouting = false;
+	private int localRingFrames = 1024;
+	private String lanes = "none";
+	// the message IDs and channel names of each lane, empty when lanes is none
+	private int[][] laneMessageIds = new int[0][];
+	private String[][] laneChannels = new String[0][];
+	private boolean laneWeighted = false;
+	// null for a weight of 1 each
+	private int[] laneWeights = null;
+	private int linkBudget = 0;
+	private long linkRate = 0;
+	private boolean shaping = false;
+	private int shapingBurst = 64;
+	private long shapingQueueMillis = 200;
+	
+	/**
+	 * Parses trailing <code>key=value</code> arguments.
+	 * 
+	 * @param args the command line arguments
+	 * @param start the index of the first option in args
+	 * @return the parsed options
+	 * @throws IllegalArgumentException if an argument is malformed or the key is unknown
+	 */
+	public static ConnectionOptions parse(String[] args, int start) {
+		ConnectionOptions options = new ConnectionOptions();
+		for(int i = start; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if(eq <= 0) {
+				throw new IllegalArgumentException("Expected key=value but got " + args[i]);
+			}
+			options.set(args[i].substring(0, eq), args[i].substring(eq+1));
+		}
+		return options;
+	}
+	
+	/**
+	 * Sets an option by name.
+	 * 
+	 * @param key the name of the option
+	 * @param value the value as it would appear on the command line
+	 * @throws IllegalArgumentException if the key is unknown or the value can not be parsed
+	 */
+	public void set(String key, String value) {
+		switch(key) {
+			case "queueCapacity":
+				setQueueCapacity(Integer.parseInt(value));
+				break;
+			case "backPressure":
+				setBackPressurePolicy(BackPressurePolicy.valueOf(value.toUpperCase()));
+				break;
+			case "readTimeout":
+				setReadTimeout(Integer.parseInt(value));
+				break;
+			case "fetchTimeout":
+				setFetchTimeout(Long.parseLong(value));
+				break;
+			case "slabSize":
+				setSlabSize(Integer.parseInt(value));
+				break;
+			case "flushBytes":
+				setFlushBytes(Integer.parseInt(value));
+				break;
+			case "flushLinger":
+				setFlushLinger(Long.parseLong(value));
+				break;
+			case "asyncFlush":
+				setAsyncFlush(Boolean.parseBoolean(value));
+				break;
+			case "transport":
+				if(!value.equals("nio") && !value.equals("stream")) {
+					throw new IllegalArgumentException("transport must be stream or nio");
+				}
+				setNioTransport(value.equals("nio"));
+				break;
+			case "tcpNoDelay":
+				setTcpNoDelay(Boolean.parseBoolean(value));
+				break;
+			case "sendBuffer":
+				setSendBuffer(Integer.parseInt(value));
+				break;
+			case "receiveBuffer":
+				setReceiveBuffer(Integer.parseInt(value));
+				break;
+			case "gatherFrames":
+				setGatherFrames(Integer.parseInt(value));
+				break;
+			case "tcpMode":
+				if(!value.equals("client") && !value.equals("server")) {
+					throw new IllegalArgumentException("tcpMode must be client or server");
+				}
+				setTcpServer(value.equals("server"));
+				break;
+			case "maxClients":
+				setMaxClients(Integer.parseInt(value));
+				break;
+			case "fanOutFrames":
+				setFanOutFrames(Integer.parseInt(value));
+				break;
+			case "slowClient":
+				setSlowClientPolicy(SlowClientPolicy.valueOf(value.toUpperCase()));
+				break;
+			case "serialTransport":
+				setSerialTransport(value);
+				break;
+			case "serialRingBytes":
+				setSerialRingBytes(Integer.parseInt(value));
+				break;
+			case "framing":
+				setFraming(value);
+				break;
+			case "demux":
+				setDemux(value);
+				break;
+			case "demuxRaw":
+				setDemuxRaw(Boolean.parseBoolean(value));
+				break;
+			case "decode":
+				setDecode(value);
+				break;
+			case "record":
+				setRecord(value);
+				break;
+			case "recordSegmentBytes":
+				setRecordSegmentBytes(Integer.parseInt(value));
+				break;
+			case "metricsInterval":
+				setMetricsInterval(Long.parseLong(value));
+				break;
+			case "reconnect":
+				setReconnect(Boolean.parseBoolean(value));
+				break;
+			case "reconnectInitial":
+				setReconnectInitial(Long.parseLong(value));
+				break;
+			case "reconnectMax":
+				setReconnectMax(Long.parseLong(value));
+				break;
+			case "spillMemoryBytes":
+				setSpillMemoryBytes(Integer.parseInt(value));
+				break;
+			case "spillFileBytes":
+				setSpillFileBytes(Long.parseLong(value));
+				break;
+			case "spillDirectory":
+				setSpillDirectory(value);
+				break;
+			case "localRouting":
+				setLocalRouting(Boolean.parseBoolean(value));
+				break;
+			case "localRingFrames":
+				setLocalRingFrames(Integer.parseInt(value));
+				break;
+			case "lanes":
+				setLanes(value);
+				break;
+			case "laneScheduling":
+				if(!value.equals("strict") && !value.equals("weighted")) {
+					throw new IllegalArgumentException("laneScheduling must be strict or weighted");
+				}
+				setLaneWeighted(value.equals("weighted"));
+				break;
+			case "laneWeights":
+				String[] weights = value.split(",");
+				int[] w = new int[weights.length];
+				for(int i = 0; i < w.length; i++) {
+					w[i] = Integer.parseInt(weights[i].trim());
+				}
+				setLaneWeights(w);
+				break;
+			case "linkBudget":
+				setLinkBudget(Integer.parseInt(value));
+				break;
+			case "linkRate":
+				setLinkRate(Long.parseLong(value));
+				break;
+			case "shaping":
+				setShaping(Boolean.parseBoolean(value));
+				break;
+			case "shapingBurst":
+				setShapingBurst(Integer.parseInt(value));
+				break;
+			case "shapingQueueMillis":
+				setShapingQueueMillis(Long.parseLong(value));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + key);
+		}
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		if(queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be positive");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	public BackPressurePolicy getBackPressurePolicy() {
+		return backPressurePolicy;
+	}
+
+	public void setBackPressurePolicy(BackPressurePolicy backPressurePolicy) {
+		this.backPressurePolicy = backPressurePolicy;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param readTimeout milliseconds a blocking device read may wait, must be positive so
+	 * 		the reading thread gets a chance to notice it was interrupted
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if(readTimeout < 1) {
+			throw new IllegalArgumentException("readTimeout must be positive");
+		}
+		this.readTimeout = readTimeout;
+	}
+
+	public long getFetchTimeout() {
+		return fetchTimeout;
+	}
+
+	/**
+	 * @param fetchTimeout milliseconds a DataTurbine fetch may wait for data, must be positive
+	 * 		so the fetching thread gets a chance to notice it was interrupted
+	 */
+	public void setFetchTimeout(long fetchTimeout) {
+		if(fetchTimeout < 1) {
+			throw new IllegalArgumentException("fetchTimeout must be positive");
+		}
+		this.fetchTimeout = fetchTimeout;
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	public void setSlabSize(int slabSize) {
+		if(slabSize < 1) {
+			throw new IllegalArgumentException("slabSize must be positive");
+		}
+		this.slabSize = slabSize;
+	}
+
+	public int getFlushBytes() {
+		return flushBytes;
+	}
+
+	/**
+	 * @param flushBytes flush a batch once it holds this many bytes, or 0 to not flush by size
+	 */
+	public void setFlushBytes(int flushBytes) {
+		if(flushBytes < 0) {
+			throw new IllegalArgumentException("flushBytes can not be negative");
+		}
+		this.flushBytes = flushBytes;
+	}
+
+	public long getFlushLinger() {
+		return flushLinger;
+	}
+
+	/**
+	 * @param flushLinger flush a batch once its oldest frame has waited this many milliseconds,
+	 * 		or 0 to not flush by age
+	 */
+	public void setFlushLinger(long flushLinger) {
+		if(flushLinger < 0) {
+			throw new IllegalArgumentException("flushLinger can not be negative");
+		}
+		this.flushLinger = flushLinger;
+	}
+
+	public boolean isAsyncFlush() {
+		return asyncFlush;
+	}
+
+	public void setAsyncFlush(boolean asyncFlush) {
+		this.asyncFlush = asyncFlush;
+	}
+	
+	/**
+	 * @return true if writes to DataTurbine should go through a <code>BatchWriter</code>
+	 */
+	public boolean isBatching() {
+		return flushBytes > 0 || flushLinger > 0 || asyncFlush;
+	}
+
+	public boolean isNioTransport() {
+		return nioTransport;
+	}
+
+	public void setNioTransport(boolean nioTransport) {
+		this.nioTransport = nioTransport;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+	/**
+	 * @param sendBuffer the TCP send buffer size in bytes, or 0 to leave the OS default
+	 */
+	public void setSendBuffer(int sendBuffer) {
+		if(sendBuffer < 0) {
+			throw new IllegalArgumentException("sendBuffer can not be negative");
+		}
+		this.sendBuffer = sendBuffer;
+	}
+
+	public int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	/**
+	 * @param receiveBuffer the TCP receive buffer size in bytes, or 0 to leave the OS default
+	 */
+	public void setReceiveBuffer(int receiveBuffer) {
+		if(receiveBuffer < 0) {
+			throw new IllegalArgumentException("receiveBuffer can not be negative");
+		}
+		this.receiveBuffer = receiveBuffer;
+	}
+
+	public int getGatherFrames() {
+		return gatherFrames;
+	}
+
+	public void setGatherFrames(int gatherFrames) {
+		if(gatherFrames < 1) {
+			throw new IllegalArgumentException("gatherFrames must be positive");
+		}
+		this.gatherFrames = gatherFrames;
+	}
+
+	public boolean isTcpServer() {
+		return tcpServer;
+	}
+
+	public void setTcpServer(boolean tcpServer) {
+		this.tcpServer = tcpServer;
+	}
+
+	public int getMaxClients() {
+		return maxClients;
+	}
+
+	public void setMaxClients(int maxClients) {
+		if(maxClients < 1) {
+			throw new IllegalArgumentException("maxClients must be positive");
+		}
+		this.maxClients = maxClients;
+	}
+
+	public int getFanOutFrames() {
+		return fanOutFrames;
+	}
+
+	/**
+	 * @param fanOutFrames how many frames a TCP server keeps for its clients. It is 
+	 * 		rounded up to a power of two.
+	 */
+	public void setFanOutFrames(int fanOutFrames) {
+		if(fanOutFrames < 1) {
+			throw new IllegalArgumentException("fanOutFrames must be positive");
+		}
+		this.fanOutFrames = fanOutFrames;
+	}
+
+	public SlowClientPolicy getSlowClientPolicy() {
+		return slowClientPolicy;
+	}
+
+	public void setSlowClientPolicy(SlowClientPolicy slowClientPolicy) {
+		this.slowClientPolicy = slowClientPolicy;
+	}
+
+	public String getSerialTransport() {
+		return serialTransport;
+	}
+
+	/**
+	 * @param serialTransport comm, linux or auto
+	 */
+	public void setSerialTransport(String serialTransport) {
+		if(!serialTransport.equals("comm") && !serialTransport.equals("linux") && !serialTransport.equals("auto")) {
+			throw new IllegalArgumentException("serialTransport must be comm, linux or auto");
+		}
+		this.serialTransport = serialTransport;
+	}
+	
+	/**
+	 * @return true if serial bridges should use <code>LinuxSerialTransport</code> rather
+	 * 		than javax.comm. With auto that is anywhere but Windows.
+	 */
+	public boolean isLinuxSerialTransport() {
+		if(serialTransport.equals("auto")) {
+			return !System.getProperty("os.name").startsWith("Windows");
+		}
+		return serialTransport.equals("linux");
+	}
+
+	public int getSerialRingBytes() {
+		return serialRingBytes;
+	}
+
+	/**
+	 * @param serialRingBytes the size of the ring between a serial port's events and
+	 * 		the publisher, rounded up to a power of two
+	 */
+	public void setSerialRingBytes(int serialRingBytes) {
+		if(serialRingBytes < 1) {
+			throw new IllegalArgumentException("serialRingBytes must be positive");
+		}
+		this.serialRingBytes = serialRingBytes;
+	}
+
+	public String getFraming() {
+		return framing;
+	}
+
+	/**
+	 * @param framing none, mavlink or mavlink-batch. Framing a TCP server's clients 
+	 * 		only works well if each client's reads hold whole packets, since the reads
+	 * 		of all the clients are published in one stream.
+	 */
+	public void setFraming(String framing) {
+		if(!framing.equals("none") && !framing.equals("mavlink") && !framing.equals("mavlink-batch")) {
+			throw new IllegalArgumentException("framing must be none, mavlink or mavlink-batch");
+		}
+		this.framing = framing;
+	}
+	
+	/**
+	 * @return true if data from the device goes through a <code>MAVLinkFramer</code>,
+	 * 		which demux and decode need even if framing is none
+	 */
+	public boolean isFraming() {
+		return !framing.equals("none") || isDemux() || isDecode();
+	}
+	
+	public boolean isFramingBatched() {
+		return framing.equals("mavlink-batch");
+	}
+
+	public String getDemux() {
+		return demux;
+	}
+
+	/**
+	 * @param demux none, all, or a comma separated list of MAVLink message names or IDs
+	 * @throws IllegalArgumentException if a message in the list is unknown
+	 */
+	public void setDemux(String demux) {
+		if(demux.equals("none") || demux.equals("all")) {
+			demuxIds = null;
+		} else {
+			String[] names = demux.split(",");
+			int[] ids = new int[names.length];
+			for(int i = 0; i < names.length; i++) {
+				ids[i] = MAVLinkMessages.id(names[i]);
+			}
+			demuxIds = ids;
+		}
+		this.demux = demux;
+	}
+	
+	public boolean isDemux() {
+		return !demux.equals("none");
+	}
+	
+	/**
+	 * @return the IDs of the messages to give their own channels, or null if every 
+	 * 		message gets one
+	 */
+	public int[] getDemuxIds() {
+		return demuxIds == null ? null : demuxIds.clone();
+	}
+
+	public boolean isDemuxRaw() {
+		return demuxRaw;
+	}
+
+	/**
+	 * @param demuxRaw false to publish demultiplexed messages only to their own
+	 * 		channels, which halves what goes to DataTurbine when nothing needs the whole
+	 * 		stream
+	 */
+	public void setDemuxRaw(boolean demuxRaw) {
+		this.demuxRaw = demuxRaw;
+	}
+
+	public String getDecode() {
+		return decode;
+	}
+
+	/**
+	 * @param decode none or a comma separated list of MESSAGE.field or MESSAGE, see
+	 * 		<code>MAVLinkFields.parse</code>
+	 * @throws IllegalArgumentException if a message or field is unknown
+	 */
+	public void setDecode(String decode) {
+		decodeFields = decode.equals("none") ? new MAVLinkFields.Field[0] : MAVLinkFields.parse(decode);
+		this.decode = decode;
+	}
+	
+	public boolean isDecode() {
+		return decodeFields.length > 0;
+	}
+	
+	/**
+	 * @return the fields to decode, empty if decode is none
+	 */
+	public MAVLinkFields.Field[] getDecodeFields() {
+		return decodeFields.clone();
+	}
+
+	public String getRecord() {
+		return record;
+	}
+
+	/**
+	 * @param record the directory to record to, or none
+	 */
+	public void setRecord(String record) {
+		this.record = record;
+	}
+	
+	public boolean isRecording() {
+		return !record.equals("none");
+	}
+
+	public int getRecordSegmentBytes() {
+		return recordSegmentBytes;
+	}
+
+	/**
+	 * @param recordSegmentBytes the size of each segment file, which is made full size
+	 * 		when it is opened
+	 */
+	public void setRecordSegmentBytes(int recordSegmentBytes) {
+		if(recordSegmentBytes < 4096) {
+			throw new IllegalArgumentException("recordSegmentBytes must be at least 4096");
+		}
+		this.recordSegmentBytes = recordSegmentBytes;
+	}
+
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * @param metricsInterval milliseconds between snapshots published to the metrics
+	 * 		channel, or 0 to not publish them
+	 */
+	public void setMetricsInterval(long metricsInterval) {
+		if(metricsInterval < 0) {
+			throw new IllegalArgumentException("metricsInterval can not be negative");
+		}
+		this.metricsInterval = metricsInterval;
+	}
+
+	public boolean isReconnect() {
+		return reconnect;
+	}
+
+	/**
+	 * @param reconnect true to reconnect to DataTurbine and the device after they go
+	 * 		away, holding frames from the device in the spill buffer meanwhile
+	 */
+	public void setReconnect(boolean reconnect) {
+		this.reconnect = reconnect;
+	}
+
+	public long getReconnectInitial() {
+		return reconnectInitial;
+	}
+
+	/**
+	 * @param reconnectInitial milliseconds before the first reconnect attempt
+	 */
+	public void setReconnectInitial(long reconnectInitial) {
+		if(reconnectInitial < 1) {
+			throw new IllegalArgumentException("reconnectInitial must be positive");
+		}
+		this.reconnectInitial = reconnectInitial;
+	}
+
+	public long getReconnectMax() {
+		return reconnectMax;
+	}
+
+	/**
+	 * @param reconnectMax the most milliseconds between reconnect attempts
+	 */
+	public void setReconnectMax(long reconnectMax) {
+		if(reconnectMax < 1) {
+			throw new IllegalArgumentException("reconnectMax must be positive");
+		}
+		this.reconnectMax = reconnectMax;
+	}
+
+	public int getSpillMemoryBytes() {
+		return spillMemoryBytes;
+	}
+
+	/**
+	 * @param spillMemoryBytes bytes of frames held in memory during an outage, which
+	 * 		are only allocated once an outage starts
+	 */
+	public void setSpillMemoryBytes(int spillMemoryBytes) {
+		if(spillMemoryBytes < 0) {
+			throw new IllegalArgumentException("spillMemoryBytes can not be negative");
+		}
+		this.spillMemoryBytes = spillMemoryBytes;
+	}
+
+	public long getSpillFileBytes() {
+		return spillFileBytes;
+	}
+
+	/**
+	 * @param spillFileBytes bytes of frames held in the spill file once memory is
+	 * 		full, or 0 to drop frames instead. The file is only made once it is needed.
+	 */
+	public void setSpillFileBytes(long spillFileBytes) {
+		if(spillFileBytes < 0 || spillFileBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("spillFileBytes must be between 0 and " + Integer.MAX_VALUE);
+		}
+		this.spillFileBytes = spillFileBytes;
+	}
+
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public boolean isLocalRouting() {
+		return localRouting;
+	}
+
+	/**
+	 * @param localRouting true to register this connection's channels with the
+	 * 		<code>LocalFabric</code> and read subscriptions to sources in the same JVM
+	 * 		from it instead of the server
+	 */
+	public void setLocalRouting(boolean localRouting) {
+		this.localRouting = localRouting;
+	}
+
+	public int getLocalRingFrames() {
+		return localRingFrames;
+	}
+
+	/**
+	 * @param localRingFrames frames kept per locally routed channel, rounded up to a power of two
+	 */
+	public void setLocalRingFrames(int localRingFrames) {
+		if(localRingFrames < 1) {
+			throw new IllegalArgumentException("localRingFrames must be positive");
+		}
+		this.localRingFrames = localRingFrames;
+	}
+
+	public String getLanes() {
+		return lanes;
+	}
+
+	/**
+	 * @param lanes none, or lanes separated by ; from highest priority to lowest, each
+	 * 		a comma separated list of MAVLink message names or IDs, or of subscribed 
+	 * 		channels like MatlabSource/MatlabChannel
+	 * @throws IllegalArgumentException if a message in the list is unknown
+	 */
+	public void setLanes(String lanes) {
+		if(lanes.equals("none")) {
+			laneMessageIds = new int[0][];
+			laneChannels = new String[0][];
+		} else {
+			String[] specs = lanes.split(";");
+			int[][] ids = new int[specs.length][];
+			String[][] channels = new String[specs.length][];
+			for(int i = 0; i < specs.length; i++) {
+				String[] entries = specs[i].split(",");
+				int messages = 0;
+				for(String e : entries) {
+					if(e.indexOf('/') < 0) {
+						messages++;
+					}
+				}
+				ids[i] = new int[messages];
+				channels[i] = new String[entries.length - messages];
+				int m = 0, c = 0;
+				for(String e : entries) {
+					if(e.indexOf('/') < 0) {
+						ids[i][m++] = MAVLinkMessages.id(e);
+					} else {
+						channels[i][c++] = e.trim();
+					}
+				}
+			}
+			laneMessageIds = ids;
+			laneChannels = channels;
+		}
+		this.lanes = lanes;
+	}
+	
+	public boolean isLanes() {
+		return laneMessageIds.length > 0;
+	}
+	
+	/**
+	 * @return the number of lanes, counting the last one that takes everything else,
+	 * 		or 0 if lanes is none
+	 */
+	public int getLaneCount() {
+		return isLanes() ? laneMessageIds.length + 1 : 0;
+	}
+	
+	/**
+	 * @return the message IDs of each configured lane, highest priority first
+	 */
+	public int[][] getLaneMessageIds() {
+		return laneMessageIds.clone();
+	}
+	
+	/**
+	 * @return the channel names of each configured lane, highest priority first
+	 */
+	public String[][] getLaneChannels() {
+		return laneChannels.clone();
+	}
+
+	public boolean isLaneWeighted() {
+		return laneWeighted;
+	}
+
+	/**
+	 * @param laneWeighted true for lanes to share the link by weight, false for a
+	 * 		lane to only write when every lane above it is empty
+	 */
+	public void setLaneWeighted(boolean laneWeighted) {
+		this.laneWeighted = laneWeighted;
+	}
+
+	/**
+	 * @return the weight of each lane, including the last
+	 * @throws IllegalArgumentException if a different number of weights than lanes was given
+	 */
+	public int[] getLaneWeights() {
+		int[] weights = new int[getLaneCount()];
+		if(laneWeights == null) {
+			Arrays.fill(weights, 1);
+			return weights;
+		}
+		if(laneWeights.length != weights.length) {
+			throw new IllegalArgumentException("laneWeights needs " + weights.length + " weights, one for each lane and the last");
+		}
+		return laneWeights.clone();
+	}
+
+	/**
+	 * @param laneWeights the share of the link for each lane, including the last
+	 */
+	public void setLaneWeights(int[] laneWeights) {
+		for(int w : laneWeights) {
+			if(w < 1) {
+				throw new IllegalArgumentException("laneWeights must be positive");
+			}
+		}
+		this.laneWeights = laneWeights.clone();
+	}
+
+	public int getLinkBudget() {
+		return linkBudget;
+	}
+
+	/**
+	 * @param linkBudget the most bytes from lanes other than the first that may be 
+	 * 		waiting in the link, by the <code>linkRate</code>, before another is written.
+	 * 		A few milliseconds of the link, like 32 bytes at 57600 baud, keeps a command
+	 * 		from waiting behind bulk data. 0 for no limit.
+	 */
+	public void setLinkBudget(int linkBudget) {
+		if(linkBudget < 0) {
+			throw new IllegalArgumentException("linkBudget can't be negative");
+		}
+		this.linkBudget = linkBudget;
+	}
+
+	public long getLinkRate() {
+		return linkRate;
+	}
+
+	/**
+	 * @param linkRate bytes per second the device link carries, or 0 for serial 
+	 * 		bridges to work it out from the baud rate
+	 */
+	public void setLinkRate(long linkRate) {
+		if(linkRate < 0) {
+			throw new IllegalArgumentException("linkRate can't be negative");
+		}
+		this.linkRate = linkRate;
+	}
+
+	public boolean isShaping() {
+		return shaping;
+	}
+
+	/**
+	 * @param shaping true to pace writes to the device at the <code>linkRate</code>,
+	 * 		holding the backlog in the bridge where the back-pressure policy can see it
+	 */
+	public void setShaping(boolean shaping) {
+		this.shaping = shaping;
+	}
+
+	public int getShapingBurst() {
+		return shapingBurst;
+	}
+
+	public void setShapingBurst(int shapingBurst) {
+		if(shapingBurst < 1) {
+			throw new IllegalArgumentException("shapingBurst must be positive");
+		}
+		this.shapingBurst = shapingBurst;
+	}
+
+	public long getShapingQueueMillis() {
+		return shapingQueueMillis;
+	}
+
+	/**
+	 * @param shapingQueueMillis how long the data waiting for the device may take to
+	 * 		write at the <code>linkRate</code> before the back-pressure policy applies
+	 */
+	public void setShapingQueueMillis(long shapingQueueMillis) {
+		if(shapingQueueMillis < 1) {
+			throw new IllegalArgumentException("shapingQueueMillis must be positive");
+		}
+		this.shapingQueueMillis = shapingQueueMillis;
+	}
+}
\ No newline at end of file
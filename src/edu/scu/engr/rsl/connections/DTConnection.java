@@ -1,15 +1,34 @@
 package edu.scu.engr.rsl.connections;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import com.rbnb.sapi.ChannelMap;
 import com.rbnb.sapi.SAPIException;
 import com.rbnb.sapi.Sink;
 import com.rbnb.sapi.Source;
 
+import edu.scu.engr.rsl.util.ArrayCache;
+
 /**
  * This class provides a connection to DataTurbine.
- * It supports subscribing to only one channel and publishing to a single channel.
+ * By default it subscribes to one channel handle and publishes to a single channel.
+ * More output channels and subscriptions can be added to the same Source and Sink 
+ * with <code>addOutputChannel</code> and <code>addSubscription</code>.
  * Publishing and subscribing is required.
  * 
+ * Output channels are written by index. Channels that come back from a fetch are 
+ * also given an index the first time they are seen, so readers can tell frames
+ * apart without comparing names.
+ * 
+ * With the <code>localRouting</code> option the output channels are also registered
+ * with the <code>LocalFabric</code>, and subscriptions to sources registered there
+ * by other connections in the same JVM are read from it rather than the server.
+ * The server then only archives what is written, so it is written in the background.
+ * 
  * @author Ryan Cooper (ryanloringcooper@gmail.com)
  * @date September 19th, 2017
  */
@@ -18,24 +37,70 @@ public class DTConnection {
 	protected ChannelMap srcChannels;
 	protected Sink dtSink;
 	protected ChannelMap sinkChannels;
+	// reused for every fetch so reading does not allocate a map each time
+	protected ChannelMap fetchMap = new ChannelMap();
+	// exact length arrays for write(byte[], int, int), since DataTurbine can't take a slice
+	protected ArrayCache frameArrays;
+	// the arrays of a float64 write until its flush
+	protected byte[][] float64Frames = new byte[0][];
+	// null unless the options ask for batched writes
+	protected BatchWriter batchWriter;
+	// frames dropped by batch writers that were replaced when the Source was reconnected
+	protected long batchDropped = 0;
+	// every subscription handle, the first being subscriptionHandle
+	protected ArrayList<String> subscriptions = new ArrayList<String>();
+	// names of the channels fetched so far, indexed by the channel index handed to readers
+	protected ArrayList<String> inputChannels = new ArrayList<String>();
+	protected HashMap<String, Integer> inputChannelIds = new HashMap<String, Integer>();
+	// the input channel index of each position in the last fetch, so a repeat fetch needs no map lookups
+	protected String[] lastFetchNames = new String[0];
+	protected int[] lastFetchIds = new int[0];
+	// a second Sink for reads that ask for a span of time, since the first one monitors. Opened on first use.
+	protected Sink requestSink;
+	protected ChannelMap requestMap, requestFetchMap = new ChannelMap();
+	// a request duration longer than anything DataTurbine keeps, which it can still add to a time without overflowing
+	protected static final double FOREVER = 1e9;
+	protected String[] requestChannels;
+	protected final BridgeMetrics metrics = new BridgeMetrics();
+	// null unless the localRouting option is on
+	protected LocalFabric.Subscriber localSubscriber;
+	// the local channel of each output channel, or null where the source name was taken
+	protected LocalFabric.Channel[] localChannels;
+	protected byte[] localFloat64 = new byte[8];
+	// false when every subscription is read locally, so the Sink isn't monitoring anything
+	protected boolean remoteSubscriptions = true;
+	// how long a read waits on DataTurbine before looking for local frames again
+	protected static final long REMOTE_SLICE = 10;
 	protected String dthostname = "127.0.0.1:3333", subscriptionHandle = "*/*", sourceName = "defaultSource"; 
 	protected boolean debug = false;
+	protected ConnectionOptions options;
 	protected static String endOfHelpText = "\tdthostname: The connection handle for Dataturbine (probably 127.0.0.1:3333)\n"
 			+ "\tsourceName: The name you would like this program to have on Dataturbine\n" 
 			+ "\tsubscriptionHandle: The source name and channel you are connecting to on Dataturbine (something like MatlabSource/MatlabChannel or MatlabSource/*)";
 	
 	public DTConnection(String dthostname, String sourceName, String subscriptionHandle) {
-		this.dthostname = dthostname;
-		this.sourceName = sourceName;
-		this.subscriptionHandle = subscriptionHandle;
-		setupDTConnection();
+		this(dthostname, sourceName, subscriptionHandle, false);
 	}
 
 	public DTConnection(String dthostname, String sourceName, String subscriptionHandle, boolean debug) {
+		this(dthostname, sourceName, subscriptionHandle, debug, new ConnectionOptions());
+	}
+	
+	public DTConnection(String dthostname, String sourceName, String subscriptionHandle, boolean debug, ConnectionOptions options) {
 		this.dthostname = dthostname;
 		this.sourceName = sourceName;
 		this.subscriptionHandle = subscriptionHandle;
+		// a connection that only publishes has no subscription
+		if(subscriptionHandle != null) {
+			this.subscriptions.add(subscriptionHandle);
+		}
 		this.debug = debug;
+		this.options = options;
+		this.frameArrays = new ArrayCache(options.getSlabSize(), 4);
+		if(options.isLocalRouting()) {
+			localSubscriber = new LocalFabric.Subscriber();
+			LocalFabric.shared().addSubscriber(localSubscriber);
+		}
 		setupDTConnection();
 	}
 	
@@ -45,34 +110,245 @@ public class DTConnection {
 	}
 	
 	protected void setupSource() {
-		dtSource = new Source();
-		srcChannels = new ChannelMap();
 		try {
-			srcChannels.Add(sourceName+"Channel");
-			dtSource.OpenRBNBConnection(dthostname, sourceName+"Source"); 
+			openSource(new String[] {sourceName+"Channel"});
 		} catch (SAPIException e) {
 			e.printStackTrace();
 		} 
 	}
 	
+	/**
+	 * Opens the Source and registers its output channels.
+	 * 
+	 * @param channels the names of the output channels, in the order of their indices
+	 * @throws SAPIException
+	 */
+	protected void openSource(String[] channels) throws SAPIException {
+		dtSource = new Source();
+		srcChannels = new ChannelMap();
+		for(String name : channels) {
+			srcChannels.Add(name);
+		}
+		dtSource.OpenRBNBConnection(dthostname, sourceName+"Source"); 
+		// registered up front so wildcard subscribers can find it before the first write
+		dtSource.Register(srcChannels);
+		if(options.isBatching()) {
+			batchWriter = new BatchWriter(dtSource, channels, sourceName+"Source", options);
+			batchWriter.setMetrics(metrics);
+		} else if(options.isLocalRouting()) {
+			// local subscribers don't wait on the server, so it can take every frame in the background
+			batchWriter = new BatchWriter(dtSource, channels, sourceName+"Source", 0, 0, true, 
+					options.getSlabSize(), options.getQueueCapacity(), options.getBackPressurePolicy());
+			batchWriter.setMetrics(metrics);
+		}
+		if(options.isLocalRouting()) {
+			localChannels = new LocalFabric.Channel[channels.length];
+			for(int i = 0; i < channels.length; i++) {
+				localChannels[i] = LocalFabric.shared().register(sourceName+"Source", channels[i], this, options.getLocalRingFrames());
+			}
+		}
+	}
+	
 	protected void setupSink() {
-		dtSink = new Sink();
-		sinkChannels = new ChannelMap();
 		try {
-			sinkChannels.Add(subscriptionHandle);
-			dtSink.OpenRBNBConnection(dthostname, sourceName+"Sink"); 
-			dtSink.Monitor(sinkChannels, 0);
+			openSink();
 		} catch (SAPIException e) {
 			e.printStackTrace();
 		} 
 	}
+	
+	/**
+	 * Opens the Sink and starts monitoring every subscription.
+	 * 
+	 * @throws SAPIException
+	 */
+	protected void openSink() throws SAPIException {
+		dtSink = new Sink();
+		sinkChannels = new ChannelMap();
+		dtSink.OpenRBNBConnection(dthostname, sourceName+"Sink"); 
+		if(localSubscriber != null) {
+			localSubscriber.reset(subscriptions);
+		}
+		for(String handle : subscriptions) {
+			if(!bindLocal(handle)) {
+				addSinkChannels(handle);
+			}
+		}
+		remoteSubscriptions = sinkChannels.NumberOfChannels() > 0;
+		if(remoteSubscriptions) {
+			dtSink.Monitor(sinkChannels, 0);
+		}
+	}
+	
+	/**
+	 * Reads a subscription from the <code>LocalFabric</code> if it names a source
+	 * another connection in this JVM publishes.
+	 * 
+	 * @return true if the subscription is read locally
+	 */
+	protected boolean bindLocal(String handle) {
+		if(localSubscriber == null) {
+			return false;
+		}
+		List<LocalFabric.Channel> channels = LocalFabric.shared().channels(handle);
+		if(channels == null) {
+			return false;
+		}
+		for(LocalFabric.Channel c : channels) {
+			localSubscriber.add(c, inputChannelId(c.getName()));
+		}
+		return true;
+	}
+	
+	/**
+	 * Opens the Source again, for example after the DataTurbine server restarted.
+	 * The output channels keep their indices. Frames a batch writer had not flushed
+	 * when the connection was lost are gone, unless they were taken out with
+	 * <code>BatchWriter.spillPending</code> first.
+	 * 
+	 * @throws SAPIException if the server still can't be reached
+	 */
+	public synchronized void reconnectSource() throws SAPIException {
+		String[] channels = new String[srcChannels.NumberOfChannels()];
+		for(int i = 0; i < channels.length; i++) {
+			channels[i] = srcChannels.GetName(i);
+		}
+		if(batchWriter != null) {
+			batchWriter.close();
+			batchDropped += batchWriter.getDroppedFrames();
+			batchWriter = null;
+		}
+		dtSource.CloseRBNBConnection();
+		openSource(channels);
+	}
+	
+	/**
+	 * Opens the Sink again with the same subscriptions, for example after the
+	 * DataTurbine server restarted.
+	 * 
+	 * @throws SAPIException if the server still can't be reached
+	 */
+	public synchronized void reconnectSink() throws SAPIException {
+		dtSink.CloseRBNBConnection();
+		openSink();
+	}
 
+	/**
+	 * Adds another channel to publish to from this connection's Source. DataTurbine
+	 * won't flush a channel map that has grown since its first flush, so this has to
+	 * be done before the first write.
+	 * 
+	 * @param name the name of the channel, without the source name
+	 * @return the index to pass to <code>write(int, byte[], int, int)</code>
+	 * @throws SAPIException
+	 */
+	public int addOutputChannel(String name) throws SAPIException {
+		int index = srcChannels.Add(name);
+		// registered up front so wildcard subscribers can find it before the first write
+		ChannelMap registration = new ChannelMap();
+		registration.Add(name);
+		dtSource.Register(registration);
+		if(batchWriter != null) {
+			batchWriter.addChannel(name);
+		}
+		if(localChannels != null) {
+			localChannels = Arrays.copyOf(localChannels, index+1);
+			localChannels[index] = LocalFabric.shared().register(sourceName+"Source", name, this, options.getLocalRingFrames());
+		}
+		return index;
+	}
+	
+	/**
+	 * Subscribes this connection's Sink to another channel handle, which may contain
+	 * wildcards. DataTurbine won't change what a Sink is monitoring, so the Sink is
+	 * reconnected with every subscription. This should be done before reading starts.
+	 * Wildcards only match channels that exist when they are added, see 
+	 * <code>refreshSubscriptions</code>.
+	 * 
+	 * @param handle something like MatlabSource/MatlabChannel or MatlabSource/*
+	 * @return the index of the subscription
+	 */
+	public synchronized int addSubscription(String handle) {
+		subscriptions.add(handle);
+		refreshSubscriptions();
+		return subscriptions.size()-1;
+	}
+	
+	/**
+	 * @param channel an index handed out by a read
+	 * @return the full name of the channel, like PixhawkSource/PixhawkChannel
+	 */
+	public String getInputChannelName(int channel) {
+		return inputChannels.get(channel);
+	}
+	
+	/**
+	 * @param name the full name of a channel
+	 * @return the index readers see for that channel, or -1 if it has not been fetched yet
+	 */
+	public int getInputChannelId(String name) {
+		Integer id = inputChannelIds.get(name);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * Adds a subscription handle to the channels the Sink monitors. DataTurbine only
+	 * delivers the first frame when a wildcard matches more than one channel, so 
+	 * wildcards are expanded into the channels that exist right now. If nothing 
+	 * matches yet the wildcard is monitored as is.
+	 * 
+	 * @throws SAPIException
+	 */
+	protected void addSinkChannels(String handle) throws SAPIException {
+		if(handle.indexOf('*') >= 0) {
+			ChannelMap query = new ChannelMap();
+			query.Add(handle);
+			dtSink.RequestRegistration(query);
+			String[] names = dtSink.Fetch(options.getFetchTimeout()).GetChannelList();
+			int added = 0;
+			for(String name : names) {
+				// skip the server's own channels, like _Log
+				if(!name.startsWith("_")) {
+					sinkChannels.Add(name);
+					added++;
+				}
+			}
+			if(added > 0) {
+				return;
+			}
+		}
+		sinkChannels.Add(handle);
+	}
+	
+	/**
+	 * Reconnects the Sink so wildcard subscriptions pick up channels that were
+	 * created since they were last expanded.
+	 */
+	public synchronized void refreshSubscriptions() {
+		dtSink.CloseRBNBConnection();
+		setupSink();
+	}
+	
 	/**
 	 * This function is typically overridden and called in inherited classes.
 	 */
 	protected void exitGracefully() {
+		if(localChannels != null) {
+			LocalFabric.shared().unregister(sourceName+"Source", this);
+		}
+		if(localSubscriber != null) {
+			LocalFabric.shared().removeSubscriber(localSubscriber);
+		}
+		if(batchWriter != null) {
+			batchWriter.close();
+		}
 		dtSink.CloseRBNBConnection();
 		dtSource.CloseRBNBConnection();
+		synchronized(this) {
+			if(requestSink != null) {
+				requestSink.CloseRBNBConnection();
+			}
+		}
 	}
 
 	public void write(String data) throws SAPIException {
@@ -80,25 +356,476 @@ public class DTConnection {
 	}
 	
 	public void write(byte[] data) throws SAPIException {
+		write(data, 0, data.length);
+	}
+	
+	/**
+	 * Publishes <code>len</code> bytes of <code>data</code> starting at <code>off</code>. 
+	 * The caller may reuse <code>data</code> as soon as this returns.
+	 * 
+	 * DataTurbine only accepts whole arrays, so unless the slice is the whole array 
+	 * it is copied into a cached array of the right length. For lengths up to the 
+	 * slab size those arrays are reused, so writing does not allocate once warmed up.
+	 */
+	public void write(byte[] data, int off, int len) throws SAPIException {
+		write(data, off, len, System.currentTimeMillis()/1000.0);
+	}
+	
+	/**
+	 * Like <code>write(byte[], int, int)</code>, but with the time the data was 
+	 * received, which matters when writes are batched or queued and a frame can be
+	 * flushed well after it arrived.
+	 * 
+	 * @param time seconds since the epoch
+	 */
+	public void write(byte[] data, int off, int len, double time) throws SAPIException {
+		write(0, data, off, len, time);
+	}
+	
+	/**
+	 * Publishes to one of the output channels.
+	 * 
+	 * @param channel 0 for the default channel or an index from <code>addOutputChannel</code>
+	 */
+	public void write(int channel, byte[] data, int off, int len) throws SAPIException {
+		write(channel, data, off, len, System.currentTimeMillis()/1000.0);
+	}
+	
+	/**
+	 * Publishes to one of the output channels with the time the data was received.
+	 * 
+	 * @param channel 0 for the default channel or an index from <code>addOutputChannel</code>
+	 * @param time seconds since the epoch
+	 */
+	public void write(int channel, byte[] data, int off, int len, double time) throws SAPIException {
 		if(debug) {
-			System.out.print(data);
+			printHex(data, off, len);
 		}
-		srcChannels.PutDataAsInt8(0,  data);
+		if(localChannels != null && localChannels[channel] != null) {
+			localChannels[channel].publish(data, off, len, time);
+		}
+		writeToServer(channel, data, off, len, time);
+	}
+	
+	/**
+	 * The part of <code>write</code> that publishes to the DataTurbine server.
+	 */
+	protected void writeToServer(int channel, byte[] data, int off, int len, double time) throws SAPIException {
+		if(batchWriter != null) {
+			batchWriter.append(channel, data, off, len, time);
+		} else if(off == 0 && len == data.length) {
+			srcChannels.PutTime(time, 0);
+			srcChannels.PutDataAsInt8(channel,  data);
+			long start = System.nanoTime();
+			dtSource.Flush(srcChannels, true);
+			metrics.flushed(1, start);
+		} else {
+			srcChannels.PutTime(time, 0);
+			byte[] frame = frameArrays.take(len);
+			System.arraycopy(data, off, frame, 0, len);
+			srcChannels.PutDataAsInt8(channel,  frame);
+			long start = System.nanoTime();
+			dtSource.Flush(srcChannels, true);
+			metrics.flushed(1, start);
+			// only reuse the array once the flush has gone through and nothing refers to it
+			frameArrays.give(frame);
+		}
+		// counted once taken, so a frame that fails and is published again counts once
+		metrics.framesPublished.increment();
+		metrics.bytesPublished.add(len);
+	}
+	
+	/**
+	 * Publishes numbers as float64 samples, one to each of several output channels,
+	 * all with the same time and in one flush unless writes are batched.
+	 * 
+	 * @param channels the output channel of each value
+	 * @param values the values, which the caller may reuse as soon as this returns
+	 * @param count how many of channels and values to publish
+	 * @param time seconds since the epoch
+	 */
+	public void write(int[] channels, double[] values, int count, double time) throws SAPIException {
+		if(localChannels != null) {
+			for(int i = 0; i < count; i++) {
+				LocalFabric.Channel c = localChannels[channels[i]];
+				if(c != null) {
+					float64Bytes(localFloat64, values[i]);
+					c.publish(localFloat64, 0, 8, time);
+				}
+			}
+		}
+		writeToServer(channels, values, count, time);
+	}
+	
+	/**
+	 * The part of <code>write(int[], double[], int, double)</code> that publishes to the DataTurbine server.
+	 */
+	protected void writeToServer(int[] channels, double[] values, int count, double time) throws SAPIException {
+		if(batchWriter != null) {
+			for(int i = 0; i < count; i++) {
+				batchWriter.appendFloat64(channels[i], values[i], time);
+			}
+			metrics.framesPublished.add(count);
+			metrics.bytesPublished.add(8*count);
+			return;
+		}
+		if(float64Frames.length < count) {
+			float64Frames = new byte[count][];
+		}
+		srcChannels.PutTime(time, 0);
+		for(int i = 0; i < count; i++) {
+			float64Frames[i] = frameArrays.take(8);
+			putFloat64(srcChannels, channels[i], float64Frames[i], values[i]);
+		}
+		long start = System.nanoTime();
 		dtSource.Flush(srcChannels, true);
+		metrics.flushed(count, start);
+		for(int i = 0; i < count; i++) {
+			frameArrays.give(float64Frames[i]);
+			float64Frames[i] = null;
+		}
+		metrics.framesPublished.add(count);
+		metrics.bytesPublished.add(8*count);
+	}
+	
+	/**
+	 * Puts a number in a map as a float64 sample. DataTurbine holds on to the array
+	 * until the map is flushed, so the value goes in a reusable 8 byte array rather
+	 * than a new double[].
+	 */
+	static void putFloat64(ChannelMap map, int channel, byte[] frame, double value) throws SAPIException {
+		float64Bytes(frame, value);
+		map.PutData(channel, frame, ChannelMap.TYPE_FLOAT64, ChannelMap.MSB);
+	}
+	
+	/**
+	 * Writes a number into 8 bytes, most significant first, as a float64 sample is sent.
+	 */
+	static void float64Bytes(byte[] frame, double value) {
+		long bits = Double.doubleToLongBits(value);
+		for(int i = 7; i >= 0; i--) {
+			frame[i] = (byte) bits;
+			bits >>>= 8;
+		}
 	}
 	
 	public byte[] read() throws SAPIException {
-		ChannelMap m = dtSink.Fetch(0);
-		if(m.NumberOfChannels() > 0) {
+		return read(0);
+	}
+	
+	/**
+	 * @return the frames batched writes dropped because the server couldn't keep up
+	 */
+	public long getBatchDroppedFrames() {
+		BatchWriter w = batchWriter;
+		return batchDropped + (w == null ? 0 : w.getDroppedFrames());
+	}
+	
+	/**
+	 * Pushes any batched writes to DataTurbine and waits for them to be taken.
+	 * Does nothing if writes are not batched.
+	 * 
+	 * @throws SAPIException
+	 * @throws InterruptedException
+	 */
+	public void flush() throws SAPIException, InterruptedException {
+		if(batchWriter != null) {
+			batchWriter.flush();
+		}
+	}
+	
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for data on the subscription.
+	 * Unlike <code>read()</code>, which returns immediately, this lets a reading 
+	 * thread sleep while nothing is arriving.
+	 * 
+	 * @param timeout milliseconds to wait for data, 0 to poll, or -1 to wait forever
+	 * @return the data from the first channel fetched, or null if nothing arrived in time
+	 * @throws SAPIException
+	 */
+	public byte[] read(long timeout) throws SAPIException {
+		if(localSubscriber != null) {
+			final byte[][] first = new byte[1][];
+			readRouted(timeout, new FrameListener() {
+				@Override
+				public void onFrame(int channel, double time, byte[] data, int off, int len) {
+					if(first[0] == null) {
+						// the caller owns what read returns, and local frames are shared
+						first[0] = Arrays.copyOfRange(data, off, off + len);
+					}
+				}
+			}, 1);
+			return first[0];
+		}
+		ChannelMap m = fetch(timeout);
+		if(m != null) {
 			byte[] data = m.GetData(0);
 			if(debug) {
-				System.out.print(data);
+				printHex(data, 0, data.length);
 			}
 			return data;
 		}
 		return null;
 	}
 	
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for data and hands every channel
+	 * that had data to the listener. Nothing is allocated once every channel has 
+	 * been seen, apart from what DataTurbine allocates to decode the fetch.
+	 * 
+	 * @param timeout milliseconds to wait for data, 0 to poll, or -1 to wait forever
+	 * @return the number of frames handed to the listener
+	 * @throws SAPIException
+	 */
+	public int read(long timeout, FrameListener listener) throws SAPIException {
+		if(localSubscriber != null) {
+			return readRouted(timeout, listener, Integer.MAX_VALUE);
+		}
+		return deliver(fetch(timeout), listener);
+	}
+	
+	/**
+	 * Reads frames routed in this JVM and, if some subscriptions aren't, frames from
+	 * DataTurbine. A local frame can't wake a fetch, so when there are both this
+	 * waits on the server <code>REMOTE_SLICE</code> milliseconds at a time. If a 
+	 * local source came or went since the last read, the subscriptions are bound again first.
+	 * 
+	 * @param max the most local frames to hand over
+	 * @return the number of frames handed to the listener
+	 * @throws SAPIException
+	 */
+	protected int readRouted(long timeout, FrameListener listener, int max) throws SAPIException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while(true) {
+			if(localSubscriber.isStale()) {
+				refreshSubscriptions();
+			}
+			int n = localSubscriber.poll(listener, max);
+			if(n > 0) {
+				return n;
+			}
+			long left = timeout < 0 ? -1 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+			if(remoteSubscriptions) {
+				long slice = left;
+				if(localSubscriber.isBound()) {
+					slice = left < 0 ? REMOTE_SLICE : Math.min(left, REMOTE_SLICE);
+				}
+				n = deliver(fetch(slice), listener);
+				if(n > 0) {
+					return n;
+				}
+			} else {
+				localSubscriber.await(left);
+			}
+			if(left == 0) {
+				return localSubscriber.isStale() ? 0 : localSubscriber.poll(listener, max);
+			}
+		}
+	}
+	
+	/**
+	 * Hands every channel of a fetch to the listener.
+	 * 
+	 * @param m the fetched map, or null if nothing arrived
+	 * @return the number of frames handed over
+	 */
+	protected int deliver(ChannelMap m, FrameListener listener) {
+		if(m == null) {
+			return 0;
+		}
+		int n = m.NumberOfChannels();
+		for(int i = 0; i < n; i++) {
+			byte[] data = m.GetData(i);
+			if(debug) {
+				printHex(data, 0, data.length);
+			}
+			listener.onFrame(inputChannelId(m, i), m.GetTimeStart(i), data, 0, data.length);
+		}
+		return n;
+	}
+	
+	/**
+	 * Prints a frame for debugging as one line of hex bytes, since the frames are
+	 * mostly binary and printing the array itself only shows its reference.
+	 */
+	protected static void printHex(byte[] data, int off, int len) {
+		StringBuilder line = new StringBuilder(3*len);
+		for(int i = off; i < off + len; i++) {
+			if(i > off) {
+				line.append(' ');
+			}
+			line.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+			line.append(Character.forDigit(data[i] & 0xf, 16));
+		}
+		System.out.println(line);
+	}
+	
+	/**
+	 * Like <code>read(long, FrameListener)</code>, but collects the frames into a list.
+	 * 
+	 * @return the frames, which is empty if nothing arrived in time
+	 */
+	public List<Frame> readFrames(long timeout) throws SAPIException {
+		final ArrayList<Frame> frames = new ArrayList<Frame>();
+		read(timeout, new FrameListener() {
+			@Override
+			public void onFrame(int channel, double time, byte[] data, int off, int len) {
+				// a fetch's arrays can be handed out, but local frames are shared with other subscribers
+				if(localSubscriber != null || off != 0 || len != data.length) {
+					data = Arrays.copyOfRange(data, off, off + len);
+				}
+				frames.add(new Frame(channel, inputChannels.get(channel), time, data));
+			}
+		});
+		return frames;
+	}
+	
+	/**
+	 * Reads what one channel got since the last read into a series. Unlike the other
+	 * reads this does not go through the subscriptions, so it returns every sample
+	 * rather than only the newest one, and it does not wait for new data.
+	 * 
+	 * @param channel the full name of the channel, like PixhawkSource/GLOBAL_POSITION_INT.lat
+	 * @param into the series to fill, whose cursor and capacity say what to read
+	 * @param timeout milliseconds to wait for DataTurbine to answer, or -1 to wait forever
+	 * @return the number of samples read
+	 * @throws SAPIException
+	 */
+	public int read(String channel, TimeSeries into, long timeout) throws SAPIException {
+		return read(new String[] {channel}, new TimeSeries[] {into}, timeout);
+	}
+	
+	/**
+	 * Reads several channels into their series with one request, so a consumer that 
+	 * needs lat, lon and alt pays for one round trip instead of three. Passing the 
+	 * same array of names every time saves building the request again. DataTurbine
+	 * answers for each channel separately, so samples flushed together can still 
+	 * come back one read apart on different channels.
+	 * 
+	 * @param channels the full names of the channels
+	 * @param into a series for each channel
+	 * @param timeout milliseconds to wait for DataTurbine to answer, or -1 to wait forever
+	 * @return the number of samples read from all the channels
+	 * @throws SAPIException
+	 */
+	public synchronized int read(String[] channels, TimeSeries[] into, long timeout) throws SAPIException {
+		boolean latestOnly = true;
+		double start = Double.MAX_VALUE;
+		for(TimeSeries t : into) {
+			latestOnly &= t.isLatestOnly();
+			start = Math.min(start, t.getCursor());
+		}
+		if(latestOnly) {
+			request(channels, 0, 0, "newest");
+		} else {
+			// everything from the oldest cursor on, which each series trims to what is new to it
+			request(channels, start, FOREVER, "after");
+		}
+		return fillSeries(channels, into, timeout, true);
+	}
+	
+	/**
+	 * Reads a span of time from one channel into a series, see 
+	 * <code>readWindow(String[], double, double, TimeSeries[], long)</code>.
+	 */
+	public int readWindow(String channel, double start, double duration, TimeSeries into, long timeout) throws SAPIException {
+		return readWindow(new String[] {channel}, start, duration, new TimeSeries[] {into}, timeout);
+	}
+	
+	/**
+	 * Reads a span of time from each channel, for example the last few seconds of a 
+	 * log, whatever the series' cursors say. A series still only keeps its newest
+	 * <code>capacity</code> samples.
+	 * 
+	 * @param start the start of the span in seconds since the epoch
+	 * @param duration the length of the span in seconds. Samples at both ends are included.
+	 * @param timeout milliseconds to wait for DataTurbine to answer, or -1 to wait forever
+	 * @return the number of samples read from all the channels
+	 * @throws SAPIException
+	 */
+	public synchronized int readWindow(String[] channels, double start, double duration, TimeSeries[] into, long timeout) throws SAPIException {
+		request(channels, start, duration, "absolute");
+		return fillSeries(channels, into, timeout, false);
+	}
+	
+	protected void request(String[] channels, double start, double duration, String reference) throws SAPIException {
+		if(requestSink == null) {
+			requestSink = new Sink();
+			requestSink.OpenRBNBConnection(dthostname, sourceName+"Reader");
+		}
+		if(channels != requestChannels) {
+			requestMap = new ChannelMap();
+			for(String c : channels) {
+				requestMap.Add(c);
+			}
+			requestChannels = channels;
+		}
+		requestSink.Request(requestMap, start, duration, reference);
+	}
+	
+	protected int fillSeries(String[] channels, TimeSeries[] into, long timeout, boolean afterCursor) throws SAPIException {
+		ChannelMap m = requestSink.Fetch(timeout, requestFetchMap);
+		int total = 0;
+		for(int i = 0; i < channels.length; i++) {
+			total += into[i].fill(m, m.GetIndex(channels[i]), afterCursor);
+		}
+		return total;
+	}
+	
+	/**
+	 * Finds the input channel index for position <code>i</code> of a fetch.
+	 * Fetches from the same subscriptions usually return the same channels in the 
+	 * same order, so this first checks what was at that position last time.
+	 */
+	protected int inputChannelId(ChannelMap m, int i) {
+		String name = m.GetName(i);
+		if(i < lastFetchNames.length && name.equals(lastFetchNames[i])) {
+			return lastFetchIds[i];
+		}
+		int id = inputChannelId(name);
+		if(i >= lastFetchNames.length) {
+			lastFetchNames = Arrays.copyOf(lastFetchNames, i+1);
+			lastFetchIds = Arrays.copyOf(lastFetchIds, i+1);
+		}
+		lastFetchNames[i] = name;
+		lastFetchIds[i] = id;
+		return id;
+	}
+	
+	/**
+	 * @return the input channel index for a channel name, handing out the next one
+	 * 		if the name is new
+	 */
+	protected int inputChannelId(String name) {
+		Integer id = inputChannelIds.get(name);
+		if(id == null) {
+			id = inputChannels.size();
+			inputChannels.add(name);
+			inputChannelIds.put(name, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Fetches into a map that is reused between calls, so the result is only 
+	 * valid until the next fetch.
+	 * 
+	 * @param timeout milliseconds to wait for data, 0 to poll, or -1 to wait forever
+	 * @return the fetched map, or null if no channels had data
+	 * @throws SAPIException
+	 */
+	protected ChannelMap fetch(long timeout) throws SAPIException {
+		ChannelMap m = dtSink.Fetch(timeout, fetchMap);
+		return m.NumberOfChannels() > 0 ? m : null;
+	}
+	
+	/**
+	 * @return the counters and latencies of this connection
+	 */
+	public BridgeMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * This function provides a public interface for shutting down the
 	 * connections to DataTurbine.
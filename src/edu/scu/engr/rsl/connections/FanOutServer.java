@@ -0,0 +1,386 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.scu.engr.rsl.util.BufferPool;
+import edu.scu.engr.rsl.util.Slab;
+
+/**
+ * Serves the frames a bridge fetches from DataTurbine to every TCP client that
+ * connects to it, and queues whatever the clients send for publishing.
+ * 
+ * Fetched frames go into a ring of slabs shared by all the clients. A frame is
+ * copied out of DataTurbine once and each client writes it to its socket straight
+ * from the same slab, so adding a client does not add a fetch or a copy. Every
+ * client has a cursor into the ring. A client that falls a whole ring behind is
+ * slow, and the <code>SlowClientPolicy</code> decides whether it skips ahead to the
+ * oldest frame still in the ring or is disconnected, so one slow client can't
+ * hold up the others. A client skipped ahead in the middle of a frame loses the
+ * rest of that frame.
+ * 
+ * Everything here runs on the scheduler's <code>SelectorLoop</code> thread, so the
+ * ring and the clients need no locking. Other threads only call
+ * <code>framesQueued</code> and <code>sourceQueueTaken</code>, which hand work to
+ * that thread.
+ */
+public class FanOutServer {
+	/**
+	 * One connected client and how far it has got through the ring.
+	 */
+	protected class Client implements SelectorLoop.Handler {
+		final SocketChannel channel;
+		SelectionKey key;
+		// the sequence number of the next frame to send and how much of it has been sent
+		long cursor;
+		int offset;
+		// a frame read from the client that did not fit in the received queue
+		Slab pendingRead;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void ready(SelectionKey key) {
+			try {
+				if(key.isReadable()) {
+					read(this);
+				}
+				if(key.isValid() && key.isWritable()) {
+					send(this);
+				}
+			} catch (IOException e) {
+				// the client went away
+				disconnect(this);
+			}
+		}
+	}
+
+	protected final ServerSocketChannel server;
+	protected final SelectorLoop loop;
+	protected final FrameQueue frames, received;
+	protected final BufferPool pool;
+	protected final ConnectionOptions options;
+	protected final SlowClientPolicy policy;
+
+	protected final Slab[] ring;
+	protected final int mask;
+	// the sequence number the next frame will get
+	protected long head = 0;
+	protected final ArrayList<Client> clients = new ArrayList<Client>();
+	protected final ByteBuffer[] gather;
+	protected final ByteBuffer readBuffer;
+	protected SelectionKey acceptKey;
+
+	protected final AtomicBoolean drainScheduled = new AtomicBoolean();
+	protected final AtomicBoolean resumeScheduled = new AtomicBoolean();
+	protected volatile boolean readsPaused = false;
+	protected volatile int clientCount = 0;
+	protected volatile long droppedFrames = 0, slowDisconnects = 0, rejectedClients = 0;
+
+	/**
+	 * @param server a bound server channel
+	 * @param loop the selector loop to run on
+	 * @param frames where the frames to send to the clients are taken from
+	 * @param received where the data read from clients is put
+	 * @param pool the pool the slabs in both queues come from
+	 * @param options where maxClients, fanOutFrames, slowClient, gatherFrames and the
+	 * 		socket options for clients are read from
+	 */
+	public FanOutServer(ServerSocketChannel server, SelectorLoop loop, FrameQueue frames, FrameQueue received, BufferPool pool, ConnectionOptions options) {
+		this.server = server;
+		this.loop = loop;
+		this.frames = frames;
+		this.received = received;
+		this.pool = pool;
+		this.options = options;
+		this.policy = options.getSlowClientPolicy();
+		// a power of two so a sequence number maps to a slot with a mask, and at least
+		// as big as a gathering write so one write never uses a slot twice
+		int size = Integer.highestOneBit(Math.max(options.getFanOutFrames(), options.getGatherFrames()) - 1) << 1;
+		ring = new Slab[Math.max(size, 1)];
+		mask = ring.length - 1;
+		gather = new ByteBuffer[options.getGatherFrames()];
+		readBuffer = ByteBuffer.allocateDirect(pool.getSlabSize());
+	}
+
+	/**
+	 * Starts accepting clients.
+	 * 
+	 * @throws IOException if the server channel can not be registered
+	 */
+	public void start() throws IOException {
+		acceptKey = loop.register(server, SelectionKey.OP_ACCEPT, new SelectorLoop.Handler() {
+			@Override
+			public void ready(SelectionKey key) throws IOException {
+				accept();
+			}
+		}).join();
+	}
+
+	/**
+	 * Tells the server there are new frames in the frame queue. Can be called from
+	 * any thread.
+	 */
+	public void framesQueued() {
+		if(drainScheduled.compareAndSet(false, true)) {
+			loop.execute(drain);
+		}
+	}
+
+	/**
+	 * Tells the server there is room in the received queue again, so clients that
+	 * were paused can be read. Can be called from any thread.
+	 */
+	public void sourceQueueTaken() {
+		if(readsPaused && resumeScheduled.compareAndSet(false, true)) {
+			loop.execute(resumeReads);
+		}
+	}
+
+	/**
+	 * Disconnects every client, stops accepting new ones and releases the ring.
+	 * Waits up to a second for the selector thread to do it.
+	 */
+	public void close() {
+		final CountDownLatch done = new CountDownLatch(1);
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(acceptKey != null) {
+					acceptKey.cancel();
+				}
+				try {
+					server.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				while(!clients.isEmpty()) {
+					disconnect(clients.get(clients.size()-1));
+				}
+				for(int i = 0; i < ring.length; i++) {
+					if(ring[i] != null) {
+						ring[i].release();
+						ring[i] = null;
+					}
+				}
+				done.countDown();
+			}
+		});
+		try {
+			done.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the number of connected clients
+	 */
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	/**
+	 * @return the number of frames slow clients have skipped
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * @return the number of clients disconnected for being slow
+	 */
+	public long getSlowDisconnects() {
+		return slowDisconnects;
+	}
+
+	/**
+	 * @return the number of clients turned away because maxClients were connected
+	 */
+	public long getRejectedClients() {
+		return rejectedClients;
+	}
+
+	// moves queued frames into the ring and sends them to every client
+	protected final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drainScheduled.set(false);
+			boolean any = false;
+			Slab s;
+			while((s = frames.poll()) != null) {
+				append(s);
+				any = true;
+			}
+			if(!any) {
+				return;
+			}
+			for(int i = clients.size()-1; i >= 0; i--) {
+				Client c = clients.get(i);
+				// a client waiting for room in its socket is sent to when the socket is writable
+				if((c.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+					try {
+						send(c);
+					} catch (IOException e) {
+						disconnect(c);
+					}
+				}
+			}
+		}
+	};
+
+	// queues the frames held by paused clients and reads them again if there is room
+	protected final Runnable resumeReads = new Runnable() {
+		@Override
+		public void run() {
+			resumeScheduled.set(false);
+			boolean stillPaused = false;
+			for(Client c : clients) {
+				if(c.pendingRead == null) {
+					continue;
+				}
+				if(stillPaused || !received.tryOffer(c.pendingRead)) {
+					stillPaused = true;
+					continue;
+				}
+				c.pendingRead = null;
+				c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+			}
+			readsPaused = stillPaused;
+		}
+	};
+
+	protected void accept() throws IOException {
+		SocketChannel ch;
+		while((ch = server.accept()) != null) {
+			if(clients.size() >= options.getMaxClients()) {
+				rejectedClients++;
+				ch.close();
+				continue;
+			}
+			if(options.getSendBuffer() > 0) {
+				ch.socket().setSendBufferSize(options.getSendBuffer());
+			}
+			ch.socket().setTcpNoDelay(options.isTcpNoDelay());
+			Client c = new Client(ch);
+			// a new client starts with the next frame rather than the backlog
+			c.cursor = head;
+			// this is the selector thread, so the registration happens right away
+			c.key = loop.register(ch, SelectionKey.OP_READ, c).join();
+			clients.add(c);
+			clientCount = clients.size();
+		}
+	}
+
+	/**
+	 * Puts a frame in the ring, overwriting the oldest one. A client still waiting
+	 * to send the overwritten frame is handled by the slow client policy.
+	 */
+	protected void append(Slab s) {
+		int slot = (int) (head & mask);
+		if(ring[slot] != null) {
+			long overwritten = head - ring.length;
+			for(int i = clients.size()-1; i >= 0; i--) {
+				Client c = clients.get(i);
+				if(c.cursor <= overwritten) {
+					if(policy == SlowClientPolicy.DISCONNECT) {
+						slowDisconnects++;
+						disconnect(c);
+					} else {
+						droppedFrames += overwritten + 1 - c.cursor;
+						c.cursor = overwritten + 1;
+						c.offset = 0;
+					}
+				}
+			}
+			ring[slot].release();
+		}
+		ring[slot] = s;
+		head++;
+	}
+
+	/**
+	 * Writes as much of the ring as the client's socket takes, and watches for the
+	 * socket to become writable if it does not take everything.
+	 */
+	protected void send(Client c) throws IOException {
+		while(c.cursor < head) {
+			int count = (int) Math.min(gather.length, head - c.cursor);
+			for(int i = 0; i < count; i++) {
+				gather[i] = ring[(int) ((c.cursor + i) & mask)].contents();
+			}
+			gather[0].position(c.offset);
+			long end = c.cursor + count;
+			long written = c.channel.write(gather, 0, count) + c.offset;
+			// move the cursor past every frame that was completely written
+			int len;
+			while(c.cursor < end && written >= (len = ring[(int) (c.cursor & mask)].length)) {
+				written -= len;
+				c.cursor++;
+			}
+			c.offset = (int) written;
+			if(c.cursor < end) {
+				// the socket is full
+				c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		if((c.key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads what the client sent and queues it. When the received queue's policy is
+	 * BLOCK and it is full, the client is not read again until there is room, which
+	 * lets TCP push back on it.
+	 */
+	protected void read(Client c) throws IOException {
+		readBuffer.clear();
+		int readBytes = c.channel.read(readBuffer);
+		if(readBytes < 0) {
+			disconnect(c);
+			return;
+		}
+		if(readBytes == 0) {
+			return;
+		}
+		readBuffer.flip();
+		Slab s = pool.acquire();
+		readBuffer.get(s.data, 0, readBytes);
+		s.length = readBytes;
+		s.time = System.currentTimeMillis()/1000.0;
+		s.arrivalNanos = System.nanoTime();
+		if(!received.tryOffer(s)) {
+			c.pendingRead = s;
+			readsPaused = true;
+			c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	protected void disconnect(Client c) {
+		if(!clients.remove(c)) {
+			return;
+		}
+		clientCount = clients.size();
+		c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			// it is going away anyway
+		}
+		if(c.pendingRead != null) {
+			c.pendingRead.release();
+			c.pendingRead = null;
+		}
+	}
+}
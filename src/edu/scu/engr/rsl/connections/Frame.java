@@ -0,0 +1,20 @@
+package edu.scu.engr.rsl.connections;
+
+/**
+ * Data fetched from one DataTurbine channel, tagged with the channel it came
+ * from and when it was published. This is the allocating, easy to use form of
+ * <code>FrameListener</code>, meant for callers like Matlab.
+ */
+public class Frame {
+	public final int channel;
+	public final String channelName;
+	public final double time;
+	public final byte[] data;
+	
+	public Frame(int channel, String channelName, double time, byte[] data) {
+		this.channel = channel;
+		this.channelName = channelName;
+		this.time = time;
+		this.data = data;
+	}
+}
@@ -0,0 +1,20 @@
+package edu.scu.engr.rsl.connections;
+
+/**
+ * Receives the frames from a fetch, one call per channel that had data.
+ * 
+ * The data array belongs to DataTurbine's fetch result and is only valid for the 
+ * duration of the call. Copy it if it needs to be kept. A frame routed through the
+ * <code>LocalFabric</code> is shared with every other subscriber in the JVM, so the
+ * array must not be changed either.
+ */
+public interface FrameListener {
+	/**
+	 * @param channel the index of the channel, see <code>DTConnection.getInputChannelName</code>
+	 * @param time the time of the first byte in seconds since the epoch
+	 * @param data the array holding the frame
+	 * @param off where the frame starts in data
+	 * @param len the number of bytes in the frame
+	 */
+	void onFrame(int channel, double time, byte[] data, int off, int len);
+}
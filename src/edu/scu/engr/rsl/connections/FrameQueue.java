@@ -0,0 +1,248 @@
+package edu.scu.engr.rsl.connections;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.scu.engr.rsl.util.Slab;
+
+/**
+ * A bounded queue used to hand chunks of data from one pump thread to another.
+ * When the queue is full the configured <code>BackPressurePolicy</code> decides
+ * whether the producer waits or a frame is dropped.
+ * 
+ * The backing store is an array, so once the queue is constructed moving frames
+ * through it does not allocate. Frames dropped by the policy are released back to
+ * their pool.
+ * 
+ * A queue can also be limited to a number of bytes with <code>setByteCapacity</code>,
+ * for a consumer like a slow serial link where a count of frames says little about
+ * how long the last one will wait. Going over it is handled by the same policy. A
+ * frame bigger than the limit still goes in once the queue is empty. The limit is
+ * checked before the frame goes in, so each of several producers can overshoot it
+ * by a frame.
+ */
+public class FrameQueue {
+	protected final ArrayBlockingQueue<Slab> frames;
+	protected final BackPressurePolicy policy;
+	protected final AtomicLong droppedFrames = new AtomicLong();
+	protected final AtomicLong queuedBytes = new AtomicLong();
+	protected volatile long byteCapacity = Long.MAX_VALUE;
+	// producers blocked on the byte capacity wait on this
+	protected final Object room = new Object();
+	// how long a blocked producer waits before looking at the byte count again
+	protected static final long ROOM_WAIT = 10;
+	
+	public FrameQueue(int capacity, BackPressurePolicy policy) {
+		this.frames = new ArrayBlockingQueue<Slab>(capacity);
+		this.policy = policy;
+	}
+	
+	/**
+	 * For subclasses that keep their frames some other way and override every method.
+	 */
+	protected FrameQueue(BackPressurePolicy policy) {
+		this.frames = null;
+		this.policy = policy;
+	}
+	
+	/**
+	 * Hands a frame to the consumer, applying the back-pressure policy if the 
+	 * queue is full.
+	 * 
+	 * @param frame the data to queue
+	 * @return true if the frame was queued, false if it was dropped
+	 * @throws InterruptedException if the policy is BLOCK and the thread is interrupted while waiting
+	 */
+	public boolean offer(Slab frame) throws InterruptedException {
+		if(!makeRoom(frame)) {
+			return false;
+		}
+		// counted before it goes in, since the consumer may take and release it at once
+		int length = frame.length;
+		queuedBytes.addAndGet(length);
+		switch(policy) {
+			case BLOCK:
+				try {
+					frames.put(frame);
+				} catch (InterruptedException e) {
+					queuedBytes.addAndGet(-length);
+					throw e;
+				}
+				return true;
+			case DROP_OLDEST:
+				while(!frames.offer(frame)) {
+					dropOldest();
+				}
+				return true;
+			case DROP_NEWEST:
+			default:
+				if(frames.offer(frame)) {
+					return true;
+				}
+				queuedBytes.addAndGet(-length);
+				frame.release();
+				droppedFrames.incrementAndGet();
+				return false;
+		}
+	}
+	
+	/**
+	 * Like <code>offer</code> but never waits. When the policy is BLOCK and the queue
+	 * is full the frame is left with the caller, who should stop producing until 
+	 * there is room.
+	 * 
+	 * @param frame the data to queue
+	 * @return true if the frame was queued or dropped by the policy, false if the 
+	 * 		caller still owns it
+	 */
+	public boolean tryOffer(Slab frame) {
+		if(policy == BackPressurePolicy.BLOCK) {
+			int length = frame.length;
+			if(isOverBytes(length)) {
+				return false;
+			}
+			queuedBytes.addAndGet(length);
+			if(!frames.offer(frame)) {
+				queuedBytes.addAndGet(-length);
+				return false;
+			}
+			return true;
+		}
+		try {
+			offer(frame);
+		} catch (InterruptedException e) {
+			// the drop policies never wait
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies the back-pressure policy until the frame fits in the byte capacity.
+	 * 
+	 * @return false if the frame was dropped
+	 * @throws InterruptedException if the policy is BLOCK and the thread is interrupted while waiting
+	 */
+	protected boolean makeRoom(Slab frame) throws InterruptedException {
+		while(isOverBytes(frame.length)) {
+			switch(policy) {
+				case BLOCK:
+					synchronized(room) {
+						if(isOverBytes(frame.length)) {
+							room.wait(ROOM_WAIT);
+						}
+					}
+					break;
+				case DROP_OLDEST:
+					dropOldest();
+					break;
+				case DROP_NEWEST:
+				default:
+					frame.release();
+					droppedFrames.incrementAndGet();
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if a frame of <code>length</code> bytes has to wait for room
+	 */
+	protected boolean isOverBytes(int length) {
+		long queued = queuedBytes.get();
+		return queued > 0 && queued + length > byteCapacity;
+	}
+	
+	protected void dropOldest() {
+		Slab oldest = taken(frames.poll());
+		if(oldest != null) {
+			oldest.release();
+			droppedFrames.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Counts a frame that left the queue.
+	 * 
+	 * @return the frame
+	 */
+	protected Slab taken(Slab s) {
+		if(s != null) {
+			queuedBytes.addAndGet(-s.length);
+			if(byteCapacity != Long.MAX_VALUE) {
+				synchronized(room) {
+					room.notifyAll();
+				}
+			}
+		}
+		return s;
+	}
+	
+	/**
+	 * @return the next frame without waiting, or null if the queue is empty
+	 */
+	public Slab poll() {
+		return taken(frames.poll());
+	}
+	
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for a frame.
+	 * 
+	 * @param timeout the longest time to wait in milliseconds
+	 * @return the next frame, or null if none arrived in time. The caller is responsible for releasing it.
+	 * @throws InterruptedException
+	 */
+	public Slab poll(long timeout) throws InterruptedException {
+		return taken(frames.poll(timeout, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Releases every frame still waiting in the queue.
+	 */
+	public void clear() {
+		Slab s;
+		while((s = taken(frames.poll())) != null) {
+			s.release();
+		}
+	}
+	
+	/**
+	 * @return the number of frames waiting to be consumed
+	 */
+	public int size() {
+		return frames.size();
+	}
+	
+	/**
+	 * @return the number of frames thrown away by the back-pressure policy so far
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+	
+	/**
+	 * @return the number of bytes in the frames waiting to be consumed
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+	
+	public long getByteCapacity() {
+		return byteCapacity;
+	}
+	
+	/**
+	 * @param byteCapacity the most bytes the queue holds, or <code>Long.MAX_VALUE</code> for no limit
+	 */
+	public void setByteCapacity(long byteCapacity) {
+		if(byteCapacity < 1) {
+			throw new IllegalArgumentException("byteCapacity must be positive");
+		}
+		this.byteCapacity = byteCapacity;
+	}
+	
+	public BackPressurePolicy getPolicy() {
+		return policy;
+	}
+}
@@ -0,0 +1,233 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the pump loops of every bridge in the JVM on one shared pool of threads.
+ * 
+ * The pool threads are daemons with a small stack, and a thread whose loop ends
+ * goes back to the pool for the next bridge that starts, so starting and stopping
+ * bridges does not create threads once the pool has grown to fit. Each loop is
+ * handed back as a <code>Task</code> that can be interrupted and waited on like
+ * a thread. A loop holds its thread until it returns, so the pool is capped at
+ * <code>maxLoops</code> and starting a loop past that fails rather than letting a 
+ * runaway configuration exhaust the JVM.
+ * 
+ * Work that only runs now and then, like flushing a batch or a timer, is
+ * <code>submit</code>ted or <code>schedule</code>d instead and shares a few worker
+ * threads, so it holds no thread while it waits. Channels that can be driven by 
+ * readiness instead of a blocked thread share one <code>SelectorLoop</code>, see 
+ * <code>selector</code>.
+ */
+public class IOScheduler {
+	public static final int DEFAULT_MAX_LOOPS = 512;
+
+	private static IOScheduler shared;
+
+	protected final ThreadPoolExecutor pool;
+	protected final ScheduledThreadPoolExecutor workers;
+	protected final String name;
+	protected SelectorLoop selector;
+
+	/**
+	 * @return the scheduler every bridge uses unless told otherwise
+	 */
+	public static synchronized IOScheduler shared() {
+		if(shared == null) {
+			shared = new IOScheduler("jsimulink-io", 256*1024);
+		}
+		return shared;
+	}
+
+	/**
+	 * Caps the loops at <code>DEFAULT_MAX_LOOPS</code> with a worker for each processor.
+	 * 
+	 * @param name the prefix for the names of the pool's threads
+	 * @param stackSize the stack size of the pool's threads in bytes, or 0 for the JVM default
+	 */
+	public IOScheduler(String name, long stackSize) {
+		this(name, stackSize, DEFAULT_MAX_LOOPS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @param name the prefix for the names of the pool's threads
+	 * @param stackSize the stack size of the pool's threads in bytes, or 0 for the JVM default
+	 * @param maxLoops the most loops that can run at once
+	 * @param workerCount the threads shared by submitted and scheduled work
+	 */
+	public IOScheduler(String name, long stackSize, int maxLoops, int workerCount) {
+		this.name = name;
+		// loops run until they are stopped, so the pool hands each one its own thread
+		pool = new ThreadPoolExecutor(0, maxLoops, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), factory(name + "-", stackSize));
+		workers = new ScheduledThreadPoolExecutor(workerCount, factory(name + "-worker-", stackSize));
+		workers.setKeepAliveTime(60, TimeUnit.SECONDS);
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	protected static ThreadFactory factory(final String prefix, final long stackSize) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(null, r, prefix + count.incrementAndGet(), stackSize);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Starts a loop on a pool thread. The loop should return when its thread is interrupted.
+	 * 
+	 * @param name what to call the thread while it runs the loop, to make thread dumps readable
+	 * @param loop the work to do
+	 * @return a handle for interrupting and waiting on the loop
+	 * @throws RejectedExecutionException if <code>maxLoops</code> loops are already running
+	 */
+	public Task execute(String name, Runnable loop) {
+		Task t = new Task(name, loop);
+		try {
+			pool.execute(t);
+		} catch (RejectedExecutionException e) {
+			throw new RejectedExecutionException("Could not start " + name + ", " + pool.getMaximumPoolSize() + " loops are already running", e);
+		}
+		return t;
+	}
+
+	/**
+	 * Runs a short piece of work on a worker. It must not wait for long, since it
+	 * holds up the other work queued for the workers while it does.
+	 * 
+	 * @param name what to call the thread while it runs the work
+	 * @param task the work to do
+	 * @return a handle for interrupting and waiting on the work
+	 */
+	public Task submit(String name, Runnable task) {
+		Task t = new Task(name, task);
+		workers.execute(t);
+		return t;
+	}
+
+	/**
+	 * Like <code>submit</code> but only once <code>delay</code> has passed.
+	 */
+	public Task schedule(String name, Runnable task, long delay, TimeUnit unit) {
+		Task t = new Task(name, task);
+		workers.schedule(t, delay, unit);
+		return t;
+	}
+
+	/**
+	 * @return the selector loop shared by every non-blocking channel on this scheduler,
+	 * 		started the first time it is asked for
+	 * @throws IOException if the selector can not be opened
+	 */
+	public synchronized SelectorLoop selector() throws IOException {
+		if(selector == null) {
+			selector = new SelectorLoop(name + "-selector");
+		}
+		return selector;
+	}
+	
+	/**
+	 * @return the number of pool threads running a loop
+	 */
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * @return the number of threads in the pool, busy or not
+	 */
+	public int getPoolSize() {
+		return pool.getPoolSize();
+	}
+
+	/**
+	 * A loop running on the scheduler.
+	 */
+	public static class Task implements Runnable {
+		protected final String name;
+		protected final Runnable loop;
+		protected final CountDownLatch done = new CountDownLatch(1);
+		protected Thread runner;
+		protected boolean interrupted = false;
+
+		Task(String name, Runnable loop) {
+			this.name = name;
+			this.loop = loop;
+		}
+
+		@Override
+		public void run() {
+			Thread t = Thread.currentThread();
+			String poolName = t.getName();
+			synchronized(this) {
+				if(interrupted) {
+					done.countDown();
+					return;
+				}
+				runner = t;
+			}
+			t.setName(name);
+			try {
+				loop.run();
+			} finally {
+				synchronized(this) {
+					runner = null;
+					// don't let an interrupt aimed at this loop leak into the next one
+					Thread.interrupted();
+				}
+				t.setName(poolName);
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Interrupts the thread running the loop, or stops the loop from running if it
+		 * has not started yet.
+		 */
+		public synchronized void interrupt() {
+			interrupted = true;
+			if(runner != null) {
+				runner.interrupt();
+			}
+		}
+
+		/**
+		 * Waits for the loop to return.
+		 * 
+		 * @throws InterruptedException
+		 */
+		public void join() throws InterruptedException {
+			done.await();
+		}
+
+		/**
+		 * Waits up to <code>millis</code> milliseconds for the loop to return.
+		 * 
+		 * @return true if the loop returned
+		 * @throws InterruptedException
+		 */
+		public boolean join(long millis) throws InterruptedException {
+			return done.await(millis, TimeUnit.MILLISECONDS);
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
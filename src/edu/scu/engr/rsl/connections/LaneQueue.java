@@ -0,0 +1,370 @@
+package edu.scu.engr.rsl.connections;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.scu.engr.rsl.util.Slab;
+
+/**
+ * A <code>FrameQueue</code> split into lanes, so urgent frames like MAVLink commands
+ * are written to the device before bulk data like a parameter download that was
+ * queued first. Lane 0 is the most urgent.
+ * 
+ * With strict scheduling a frame is only taken from a lane when every lane above
+ * it is empty. With weighted scheduling the lanes take turns by deficit round robin,
+ * each getting a share of the bytes in proportion to its weight, so a busy upper
+ * lane can't starve the ones below it.
+ * 
+ * A consumer can also say how many bytes it has room for with
+ * <code>poll(long, int)</code>, which holds back frames from every lane but the first
+ * that don't fit. This is how a writer keeps the link from filling with bulk data
+ * that a command would have to wait behind.
+ * 
+ * Each lane holds up to the capacity on its own and applies the back-pressure
+ * policy on its own, so a full bulk lane never drops a command. The byte capacity
+ * is shared, but a frame never pays for it with a more urgent one. When going over
+ * it drops the oldest frame, that frame comes from the lowest lane at or below the
+ * offered one that holds any, and if they are all empty the offered frame is dropped.
+ * When going over it blocks, a producer only waits for its own lane to drain, never
+ * behind frames in other lanes, so the capacity can be overshot by a frame per lane.
+ * Frames offered through the plain <code>offer</code> go in the last lane.
+ */
+public class LaneQueue extends FrameQueue {
+	protected final ArrayDeque<Slab>[] lanes;
+	protected final int capacity;
+	protected final boolean weighted;
+	// bytes each lane may write per turn, and what it has left, when weighted
+	protected final long[] quantum, deficit;
+	protected int turn = 0;
+	protected boolean credited = false;
+	protected final long[] laneFrames;
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition notEmpty = lock.newCondition();
+	protected final Condition notFull = lock.newCondition();
+	protected int size = 0;
+	protected long dropped = 0;
+
+	/**
+	 * @param capacity frames each lane holds
+	 * @param weights the weight of each lane, or null for strict scheduling
+	 * @param lanes the number of lanes
+	 * @param slabSize the most bytes in a frame, which a lane with a weight of 1 gets per turn
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public LaneQueue(int capacity, BackPressurePolicy policy, int lanes, int[] weights, int slabSize) {
+		super(policy);
+		if(lanes < 1) {
+			throw new IllegalArgumentException("need at least one lane");
+		}
+		this.lanes = new ArrayDeque[lanes];
+		for(int i = 0; i < lanes; i++) {
+			this.lanes[i] = new ArrayDeque<Slab>(capacity);
+		}
+		this.capacity = capacity;
+		this.weighted = weights != null;
+		this.quantum = new long[lanes];
+		this.deficit = new long[lanes];
+		for(int i = 0; weighted && i < lanes; i++) {
+			quantum[i] = (long) weights[i] * slabSize;
+		}
+		this.laneFrames = new long[lanes];
+	}
+
+	/**
+	 * Queues a frame in the last lane.
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public boolean offer(Slab frame) throws InterruptedException {
+		return offer(lanes.length - 1, frame);
+	}
+
+	/**
+	 * Queues a frame in a lane, applying the back-pressure policy if that lane is full.
+	 * 
+	 * @param lane 0 for the most urgent
+	 * @return true if the frame was queued, false if it was dropped
+	 * @throws InterruptedException if the policy is BLOCK and the thread is interrupted while waiting
+	 */
+	public boolean offer(int lane, Slab frame) throws InterruptedException {
+		ArrayDeque<Slab> q = lanes[lane];
+		lock.lockInterruptibly();
+		try {
+			while(isFull(lane, frame.length)) {
+				switch(policy) {
+					case BLOCK:
+						notFull.await();
+						break;
+					case DROP_OLDEST:
+						ArrayDeque<Slab> victim = q;
+						if(q.size() < capacity) {
+							// over the byte capacity, which the least urgent lane no more
+							// urgent than this one pays for
+							victim = null;
+							for(int i = lanes.length - 1; i >= lane && victim == null; i--) {
+								if(!lanes[i].isEmpty()) {
+									victim = lanes[i];
+								}
+							}
+							if(victim == null) {
+								frame.release();
+								dropped++;
+								return false;
+							}
+						}
+						Slab oldest = victim.poll();
+						queuedBytes.addAndGet(-oldest.length);
+						oldest.release();
+						size--;
+						dropped++;
+						break;
+					case DROP_NEWEST:
+					default:
+						frame.release();
+						dropped++;
+						return false;
+				}
+			}
+			q.offer(frame);
+			queuedBytes.addAndGet(frame.length);
+			size++;
+			laneFrames[lane]++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Only call this holding the lock.
+	 * 
+	 * @return true if a frame of <code>length</code> bytes can't go in a lane without
+	 * 		the policy being applied
+	 */
+	protected boolean isFull(int lane, int length) {
+		ArrayDeque<Slab> q = lanes[lane];
+		if(q.size() >= capacity) {
+			return true;
+		}
+		if(!isOverBytes(length)) {
+			return false;
+		}
+		// a blocked producer waits for its own lane to drain but not for another's
+		return policy != BackPressurePolicy.BLOCK || !q.isEmpty();
+	}
+
+	/**
+	 * Like <code>offer(int, Slab)</code> but never waits.
+	 * 
+	 * @return true if the frame was queued or dropped by the policy, false if the
+	 * 		caller still owns it
+	 */
+	public boolean tryOffer(int lane, Slab frame) {
+		lock.lock();
+		try {
+			if(policy == BackPressurePolicy.BLOCK && isFull(lane, frame.length)) {
+				return false;
+			}
+			// the drop policies never wait
+			offer(lane, frame);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public boolean tryOffer(Slab frame) {
+		return tryOffer(lanes.length - 1, frame);
+	}
+
+	/**
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public Slab poll() {
+		lock.lock();
+		try {
+			return take(Integer.MAX_VALUE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public Slab poll(long timeout) throws InterruptedException {
+		return poll(timeout, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for a frame the consumer has room for.
+	 * 
+	 * @param room the most bytes a frame from any lane but the first may hold
+	 * @return the next frame, or null if none arrived in time. The caller is responsible for releasing it.
+	 * @throws InterruptedException
+	 */
+	public Slab poll(long timeout, int room) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while(true) {
+				Slab s = take(room);
+				if(s != null || nanos <= 0) {
+					return s;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next frame by the scheduling. Only call this holding the lock.
+	 * 
+	 * @return the frame, or null if there is none or it doesn't fit in room
+	 */
+	protected Slab take(int room) {
+		if(size == 0) {
+			return null;
+		}
+		Slab s = weighted ? takeWeighted(room) : takeStrict(room);
+		if(s == null && room < Integer.MAX_VALUE) {
+			// the first lane doesn't wait for room
+			s = lanes[0].poll();
+		}
+		if(s != null) {
+			queuedBytes.addAndGet(-s.length);
+			size--;
+			notFull.signalAll();
+		}
+		return s;
+	}
+
+	protected Slab takeStrict(int room) {
+		for(int i = 0; i < lanes.length; i++) {
+			Slab head = lanes[i].peek();
+			if(head != null) {
+				if(i > 0 && head.length > room) {
+					// a lower lane mustn't go ahead of this one
+					return null;
+				}
+				return lanes[i].poll();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deficit round robin: on its turn a lane is credited its quantum and writes
+	 * frames while its credit covers them, then the turn moves on. An empty lane
+	 * loses its credit, so it can't save up for a burst.
+	 */
+	protected Slab takeWeighted(int room) {
+		// every lane gets a turn, and the quantum covers any frame, so this finds one if there is one
+		for(int visits = 0; visits <= 2*lanes.length; visits++) {
+			ArrayDeque<Slab> q = lanes[turn];
+			Slab head = q.peek();
+			if(head == null) {
+				deficit[turn] = 0;
+				nextTurn();
+				continue;
+			}
+			if(!credited) {
+				deficit[turn] += quantum[turn];
+				credited = true;
+			}
+			if(head.length > deficit[turn]) {
+				nextTurn();
+				continue;
+			}
+			if(turn > 0 && head.length > room) {
+				// keep the turn until there is room
+				return null;
+			}
+			deficit[turn] -= head.length;
+			return q.poll();
+		}
+		return null;
+	}
+
+	protected void nextTurn() {
+		turn = (turn + 1) % lanes.length;
+		credited = false;
+	}
+
+	/**
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			for(ArrayDeque<Slab> q : lanes) {
+				Slab s;
+				while((s = q.poll()) != null) {
+					s.release();
+				}
+			}
+			size = 0;
+			queuedBytes.set(0);
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This is initially defined in FrameQueue.
+	 */
+	@Override
+	public long getDroppedFrames() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * @return the number of frames ever queued in a lane
+	 */
+	public long getLaneFrames(int lane) {
+		lock.lock();
+		try {
+			return laneFrames[lane];
+		} finally {
+			lock.unlock();
+		}
+	}
+}
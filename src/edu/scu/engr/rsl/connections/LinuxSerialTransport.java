@@ -0,0 +1,160 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.comm.SerialPort;
+
+import edu.scu.engr.rsl.util.SerialParameters;
+
+/**
+ * Opens a tty or pty device by its path (like <code>/dev/ttyACM0</code>) and 
+ * configures the line with <code>stty</code>, so no native serial library is needed.
+ * 
+ * The line is put in raw mode with reads that block until at least one byte is
+ * there. The device is read and written through separate <code>FileChannel</code>s,
+ * which are interruptible: interrupting the reading thread ends its read with a
+ * <code>ClosedByInterruptException</code> without closing the write side first.
+ */
+public class LinuxSerialTransport implements SerialTransport {
+	protected FileChannel readChannel, writeChannel;
+	protected InputStream iStream;
+	protected OutputStream oStream;
+	
+	@Override
+	public void open(SerialParameters parameters, ConnectionOptions options) throws IOException {
+		String path = parameters.getPortName();
+		stty(path, sttySettings(parameters));
+		readChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		writeChannel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE);
+		iStream = Channels.newInputStream(readChannel);
+		oStream = Channels.newOutputStream(writeChannel);
+	}
+	
+	/**
+	 * Translates the <code>javax.comm</code> style settings into <code>stty</code> arguments.
+	 * 
+	 * @throws IOException if a setting has no termios equivalent
+	 */
+	protected List<String> sttySettings(SerialParameters parameters) throws IOException {
+		List<String> settings = new ArrayList<String>();
+		settings.add(Integer.toString(parameters.getBaudRate()));
+		// raw mode, no echo, and a read returns as soon as there is one byte
+		settings.add("raw");
+		settings.add("-echo");
+		settings.add("clocal");
+		settings.add("min");
+		settings.add("1");
+		settings.add("time");
+		settings.add("0");
+		switch(parameters.getDatabits()) {
+			case SerialPort.DATABITS_5:
+			case SerialPort.DATABITS_6:
+			case SerialPort.DATABITS_7:
+			case SerialPort.DATABITS_8:
+				settings.add("cs" + parameters.getDatabits());
+				break;
+			default:
+				throw new IOException("Unsupported data bits " + parameters.getDatabits());
+		}
+		switch(parameters.getStopbits()) {
+			case SerialPort.STOPBITS_1:
+				settings.add("-cstopb");
+				break;
+			case SerialPort.STOPBITS_2:
+				settings.add("cstopb");
+				break;
+			default:
+				throw new IOException("Unsupported stop bits " + parameters.getStopbits());
+		}
+		switch(parameters.getParity()) {
+			case SerialPort.PARITY_NONE:
+				settings.add("-parenb");
+				break;
+			case SerialPort.PARITY_EVEN:
+				settings.add("parenb");
+				settings.add("-parodd");
+				settings.add("-cmspar");
+				break;
+			case SerialPort.PARITY_ODD:
+				settings.add("parenb");
+				settings.add("parodd");
+				settings.add("-cmspar");
+				break;
+			case SerialPort.PARITY_MARK:
+				settings.add("parenb");
+				settings.add("parodd");
+				settings.add("cmspar");
+				break;
+			case SerialPort.PARITY_SPACE:
+				settings.add("parenb");
+				settings.add("-parodd");
+				settings.add("cmspar");
+				break;
+			default:
+				throw new IOException("Unsupported parity " + parameters.getParity());
+		}
+		int flow = parameters.getFlowControlIn() | parameters.getFlowControlOut();
+		boolean rtscts = (flow & (SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT)) != 0;
+		settings.add(rtscts ? "crtscts" : "-crtscts");
+		settings.add((flow & SerialPort.FLOWCONTROL_XONXOFF_IN) != 0 ? "ixoff" : "-ixoff");
+		settings.add((flow & SerialPort.FLOWCONTROL_XONXOFF_OUT) != 0 ? "ixon" : "-ixon");
+		return settings;
+	}
+	
+	/**
+	 * Runs <code>stty -F path settings...</code>.
+	 * 
+	 * @throws IOException if stty can not be run or fails
+	 */
+	protected void stty(String path, List<String> settings) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add("stty");
+		command.add("-F");
+		command.add(path);
+		command.addAll(settings);
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int n;
+		while((n = p.getInputStream().read(buffer)) > 0) {
+			output.write(buffer, 0, n);
+		}
+		try {
+			if(p.waitFor() != 0) {
+				throw new IOException("stty failed on " + path + ": " + output.toString().trim());
+			}
+		} catch (InterruptedException e) {
+			p.destroy();
+			throw new IOException("Interrupted configuring " + path);
+		}
+	}
+	
+	@Override
+	public InputStream getInputStream() {
+		return iStream;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() {
+		return oStream;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(readChannel != null) {
+			readChannel.close();
+		}
+		if(writeChannel != null) {
+			writeChannel.close();
+		}
+	}
+}
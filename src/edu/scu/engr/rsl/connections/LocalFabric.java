@@ -0,0 +1,427 @@
+package edu.scu.engr.rsl.connections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Hands frames between connections in the same JVM without a round trip through
+ * the DataTurbine server. With the <code>localRouting</code> option a connection
+ * registers its output channels here, and a subscription naming a source that is
+ * registered here is read from that source's channels instead of from the server.
+ * The server still gets every frame, so subscribers in other processes and the
+ * archive see the same data.
+ * 
+ * Each channel has a ring of the most recent frames, written only by the
+ * connection that owns it. A frame is copied once when it is published, since the
+ * writer may reuse its array, and every local subscriber is then handed that same
+ * array. Each subscriber keeps its own position in the ring, and one that falls
+ * more than a ring behind skips ahead and counts what it missed.
+ * 
+ * Sources come and go: when a source is registered or unregistered, subscribers
+ * with a subscription naming it are marked stale and sort out which channels are
+ * local the next time they read.
+ */
+public class LocalFabric {
+	protected static final LocalFabric shared = new LocalFabric();
+
+	// source name, like PixhawkSource, to the source
+	protected final ConcurrentHashMap<String, LocalSource> sources = new ConcurrentHashMap<String, LocalSource>();
+	protected final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	/**
+	 * @return the fabric every connection in this JVM uses
+	 */
+	public static LocalFabric shared() {
+		return shared;
+	}
+
+	protected static class LocalSource {
+		final String name;
+		final Object owner;
+		final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+
+		LocalSource(String name, Object owner) {
+			this.name = name;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * One output channel of a registered source and the ring of its recent frames.
+	 */
+	public static class Channel {
+		protected final String name;
+		protected final byte[][] frames;
+		protected final double[] times;
+		protected final int mask;
+		// the number of frames ever published, only written by the owner
+		protected volatile long head = 0;
+		// replaced rather than changed, so publishing doesn't need a lock or an iterator
+		protected volatile Subscriber[] readers = new Subscriber[0];
+
+		/**
+		 * @param capacity the number of frames kept, rounded up to a power of two
+		 */
+		protected Channel(String name, int capacity) {
+			this.name = name;
+			int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+			this.frames = new byte[size][];
+			this.times = new double[size];
+			this.mask = size - 1;
+		}
+
+		/**
+		 * Copies a frame into the ring and wakes the subscribers. Does nothing if
+		 * nobody in this JVM subscribes to the channel. Only the owner may call this.
+		 */
+		public void publish(byte[] data, int off, int len, double time) {
+			Subscriber[] r = readers;
+			if(r.length == 0) {
+				return;
+			}
+			long h = head;
+			int i = (int) h & mask;
+			frames[i] = Arrays.copyOfRange(data, off, off + len);
+			times[i] = time;
+			head = h + 1;
+			for(Subscriber s : r) {
+				s.wake();
+			}
+		}
+
+		/**
+		 * @return the full name of the channel, like PixhawkSource/PixhawkChannel
+		 */
+		public String getName() {
+			return name;
+		}
+
+		protected synchronized void addReader(Subscriber s) {
+			Subscriber[] r = Arrays.copyOf(readers, readers.length + 1);
+			r[r.length - 1] = s;
+			readers = r;
+		}
+
+		protected synchronized void removeReader(Subscriber s) {
+			List<Subscriber> r = new ArrayList<Subscriber>(Arrays.asList(readers));
+			r.remove(s);
+			readers = r.toArray(new Subscriber[r.size()]);
+		}
+	}
+
+	/**
+	 * Registers an output channel of a source owned by a connection. A source name
+	 * owned by another connection is left alone, since the server will have given
+	 * the second one a different name.
+	 * 
+	 * @param sourceName like PixhawkSource
+	 * @param channelName like PixhawkChannel
+	 * @param owner the connection publishing to the source
+	 * @param capacity frames kept for subscribers that fall behind
+	 * @return the channel to publish to, or null if another connection owns the source
+	 */
+	public Channel register(String sourceName, String channelName, Object owner, int capacity) {
+		LocalSource source = sources.get(sourceName);
+		boolean added = false;
+		if(source == null) {
+			LocalSource mine = new LocalSource(sourceName, owner);
+			source = sources.putIfAbsent(sourceName, mine);
+			if(source == null) {
+				source = mine;
+				added = true;
+			}
+		}
+		if(source.owner != owner) {
+			return null;
+		}
+		Channel c = source.channels.get(channelName);
+		if(c == null) {
+			c = new Channel(sourceName + "/" + channelName, capacity);
+			source.channels.put(channelName, c);
+			added = true;
+		}
+		if(added) {
+			changed(sourceName);
+		}
+		return c;
+	}
+
+	/**
+	 * Removes a source and every channel of it. Its subscribers go back to the server.
+	 * 
+	 * @param owner the connection that registered it
+	 */
+	public void unregister(String sourceName, Object owner) {
+		LocalSource source = sources.get(sourceName);
+		if(source != null && source.owner == owner && sources.remove(sourceName, source)) {
+			changed(sourceName);
+		}
+	}
+
+	/**
+	 * Finds the local channels a subscription handle means.
+	 * 
+	 * @param handle like PixhawkSource/PixhawkChannel or PixhawkSource/*
+	 * @return the matching channels, or null if the handle doesn't name a source in this JVM
+	 */
+	public List<Channel> channels(String handle) {
+		String source = sourceOf(handle);
+		LocalSource s = source == null ? null : sources.get(source);
+		if(s == null) {
+			return null;
+		}
+		String channel = handle.substring(source.length() + 1);
+		List<Channel> matches = new ArrayList<Channel>();
+		if(channel.indexOf('*') < 0) {
+			Channel c = s.channels.get(channel);
+			if(c != null) {
+				matches.add(c);
+			}
+			return matches;
+		}
+		Pattern p = Pattern.compile(Pattern.quote(channel).replace("*", "\\E.*\\Q"));
+		for(Channel c : s.channels.values()) {
+			if(p.matcher(c.name.substring(source.length() + 1)).matches()) {
+				matches.add(c);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the source a handle names, or null if it has a wildcard in the source
+	 * 		or no channel part, since those can't be known to be local
+	 */
+	protected static String sourceOf(String handle) {
+		int slash = handle.indexOf('/');
+		if(slash <= 0) {
+			return null;
+		}
+		String source = handle.substring(0, slash);
+		return source.indexOf('*') >= 0 ? null : source;
+	}
+
+	public void addSubscriber(Subscriber s) {
+		subscribers.add(s);
+	}
+
+	/**
+	 * Stops routing to a subscriber, for when its connection closes.
+	 */
+	public void removeSubscriber(Subscriber s) {
+		subscribers.remove(s);
+		s.clear();
+	}
+
+	protected void changed(String sourceName) {
+		for(Subscriber s : subscribers) {
+			if(s.isInterestedIn(sourceName)) {
+				s.stale = true;
+				s.wake();
+			}
+		}
+	}
+
+	/**
+	 * The local side of one connection's subscriptions. Only the thread reading the
+	 * connection may poll or change it; publishers only wake it.
+	 */
+	public static class Subscriber {
+		protected static class Cursor {
+			final Channel channel;
+			final int inputChannel;
+			long next;
+
+			Cursor(Channel channel, int inputChannel) {
+				this.channel = channel;
+				this.inputChannel = inputChannel;
+				// like a DataTurbine monitor, only frames published from now on
+				this.next = channel.head;
+			}
+		}
+
+		protected Cursor[] cursors = new Cursor[0];
+		// the sources named by the connection's subscriptions, local or not
+		protected volatile String[] interests = new String[0];
+		protected volatile boolean stale = false;
+		protected volatile Thread waiter;
+		protected volatile long droppedFrames = 0;
+		// where the next poll starts, so a busy channel doesn't starve the others
+		protected int nextCursor = 0;
+
+		/**
+		 * Forgets every channel, before the subscriptions are bound again.
+		 * 
+		 * @param handles the connection's subscription handles
+		 */
+		public void reset(List<String> handles) {
+			clear();
+			List<String> names = new ArrayList<String>();
+			for(String h : handles) {
+				String source = sourceOf(h);
+				if(source != null) {
+					names.add(source);
+				}
+			}
+			interests = names.toArray(new String[names.size()]);
+			stale = false;
+		}
+
+		protected void clear() {
+			for(Cursor c : cursors) {
+				c.channel.removeReader(this);
+			}
+			cursors = new Cursor[0];
+		}
+
+		/**
+		 * Starts reading a channel.
+		 * 
+		 * @param inputChannel the index readers of the connection see for it
+		 */
+		public void add(Channel channel, int inputChannel) {
+			for(Cursor c : cursors) {
+				if(c.channel == channel) {
+					return;
+				}
+			}
+			cursors = Arrays.copyOf(cursors, cursors.length + 1);
+			cursors[cursors.length - 1] = new Cursor(channel, inputChannel);
+			channel.addReader(this);
+		}
+
+		protected boolean isInterestedIn(String sourceName) {
+			for(String s : interests) {
+				if(s.equals(sourceName)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if a source this subscribes to came or went since the last reset
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+
+		/**
+		 * @return true if any channel is read locally
+		 */
+		public boolean isBound() {
+			return cursors.length > 0;
+		}
+
+		/**
+		 * Hands frames that arrived since the last poll to the listener, going round
+		 * the channels one frame at a time so they are interleaved fairly. The arrays
+		 * are shared with the other subscribers and must not be changed.
+		 * 
+		 * @param max the most frames to hand over
+		 * @return the number of frames handed over
+		 */
+		public int poll(FrameListener listener, int max) {
+			Cursor[] cs = cursors;
+			int delivered = 0;
+			boolean more = true;
+			while(more && delivered < max) {
+				more = false;
+				for(int k = 0; k < cs.length && delivered < max; k++) {
+					Cursor c = cs[(nextCursor + k) % cs.length];
+					Channel ch = c.channel;
+					long h = ch.head;
+					if(c.next >= h) {
+						continue;
+					}
+					int size = ch.frames.length;
+					if(h - c.next > size) {
+						droppedFrames += h - c.next - size;
+						c.next = h - size;
+					}
+					int i = (int) c.next & ch.mask;
+					byte[] frame = ch.frames[i];
+					double time = ch.times[i];
+					// the owner may have come round to this slot while it was read
+					if(ch.head - c.next >= size) {
+						droppedFrames++;
+						c.next++;
+						more = true;
+						continue;
+					}
+					c.next++;
+					listener.onFrame(c.inputChannel, time, frame, 0, frame.length);
+					delivered++;
+					more |= c.next < ch.head;
+				}
+				if(cs.length > 0) {
+					nextCursor = (nextCursor + 1) % cs.length;
+				}
+			}
+			return delivered;
+		}
+
+		/**
+		 * @return true if a poll would hand over a frame
+		 */
+		public boolean hasData() {
+			for(Cursor c : cursors) {
+				if(c.next < c.channel.head) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Waits until a frame arrives, the subscriber goes stale, or the timeout passes.
+		 * 
+		 * @param timeout milliseconds to wait, or -1 to wait forever
+		 * @return true if there is a frame to poll
+		 */
+		public boolean await(long timeout) {
+			if(hasData()) {
+				return true;
+			}
+			waiter = Thread.currentThread();
+			try {
+				// a publisher may have added a frame before it could see the waiter
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+				while(!hasData() && !stale && !Thread.currentThread().isInterrupted()) {
+					if(timeout < 0) {
+						LockSupport.park(this);
+						continue;
+					}
+					long left = deadline - System.nanoTime();
+					if(left <= 0) {
+						break;
+					}
+					LockSupport.parkNanos(this, left);
+				}
+				return hasData();
+			} finally {
+				waiter = null;
+			}
+		}
+
+		protected void wake() {
+			Thread t = waiter;
+			if(t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		/**
+		 * @return the number of frames skipped because this fell more than a ring behind
+		 */
+		public long getDroppedFrames() {
+			return droppedFrames;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread waiting on a <code>Selector</code> for every non-blocking channel
+ * registered with it, and calling the channel's <code>Handler</code> when it is ready.
+ * 
+ * Handlers run on the selector thread, so they must never block: a handler that
+ * can't hand off its data should turn off its interest and be resumed later with
+ * <code>execute</code>. Anything that touches a key from another thread should
+ * also go through <code>execute</code>.
+ */
+public class SelectorLoop implements Runnable {
+	/**
+	 * Called on the selector thread when a channel is ready.
+	 */
+	public interface Handler {
+		/**
+		 * @param key the key of the ready channel, whose readyOps say what it is ready for
+		 * @throws IOException which cancels the key and closes the channel
+		 */
+		void ready(SelectionKey key) throws IOException;
+	}
+
+	protected final Selector selector;
+	protected final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	protected final Thread thread;
+
+	public SelectorLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs a task on the selector thread, right away if this is the selector thread.
+	 */
+	public void execute(Runnable task) {
+		if(Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Registers a channel. The channel is switched to non-blocking mode.
+	 * 
+	 * @param channel the channel to watch
+	 * @param ops the operations to watch for, like <code>SelectionKey.OP_READ</code>
+	 * @param handler what to call when the channel is ready
+	 * @return the key, once the selector thread has registered the channel
+	 */
+	public CompletableFuture<SelectionKey> register(final SelectableChannel channel, final int ops, final Handler handler) {
+		final CompletableFuture<SelectionKey> key = new CompletableFuture<SelectionKey>();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					key.complete(channel.register(selector, ops, handler));
+				} catch (IOException e) {
+					key.completeExceptionally(e);
+				}
+			}
+		});
+		return key;
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				task.run();
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid()) {
+					continue;
+				}
+				try {
+					((Handler) key.attachment()).ready(key);
+				} catch (IOException e) {
+					if(!(e instanceof ClosedChannelException)) {
+						e.printStackTrace();
+					}
+					key.cancel();
+					try {
+						key.channel().close();
+					} catch (IOException e1) {
+						// already broken
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,509 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import javax.comm.SerialPort;
+
+import com.rbnb.sapi.SAPIException;
+
+import edu.scu.engr.rsl.util.Backoff;
+import edu.scu.engr.rsl.util.ByteRing;
+import edu.scu.engr.rsl.util.SerialParameters;
+
+/**
+ * Wires a serial port straight to a TCP socket in one process, for control loops
+ * like a Pixhawk and Mission Planner that would otherwise go through a
+ * <code>SerialToDT</code>, the DataTurbine server and a <code>TCPToDT</code> with
+ * two server round trips for every command.
+ * 
+ * Each direction has its own pump thread that reads into one buffer and writes
+ * that same buffer to the other end, so bytes are only ever held in the buffer
+ * between a read returning and the write. The pumps are dedicated threads at the
+ * highest priority rather than pool threads, and both sockets have Nagle's
+ * algorithm off.
+ * 
+ * DataTurbine gets a tap of both directions for recording and monitoring. After
+ * each write the pump copies what it wrote into a <code>ByteRing</code>, which
+ * never waits, and a publisher drains the ring into <code>serialSourceName</code>Source
+ * or <code>tcpSourceName</code>Source, the same channels the two bridges would have
+ * published. If DataTurbine falls behind or goes away the tap drops bytes and
+ * counts them, and the control loop carries on.
+ * 
+ * With the <code>reconnect</code> option an end that fails or closes is opened
+ * again on the reconnect backoff, and in the meantime the other direction waits.
+ * The TCP end is a client, or with <code>tcpMode=server</code> accepts one client
+ * at a time.
+ */
+public class SerialTCPCutThrough {
+	/**
+	 * One side of the cut-through. <code>generation</code> goes up every time it is
+	 * opened again, so the pumps can tell whether someone already reopened it.
+	 */
+	protected abstract class End {
+		protected final String name;
+		protected volatile InputStream in;
+		protected volatile OutputStream out;
+		protected volatile int generation = 0;
+
+		End(String name) {
+			this.name = name;
+		}
+
+		abstract void open() throws IOException;
+
+		abstract void close();
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	protected class SerialEnd extends End {
+		final SerialTransport transport;
+
+		SerialEnd(String name, SerialTransport transport) {
+			super(name);
+			this.transport = transport;
+		}
+
+		@Override
+		void open() throws IOException {
+			transport.open(serialParameters, options);
+			in = transport.getInputStream();
+			out = transport.getOutputStream();
+		}
+
+		@Override
+		void close() {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	protected class TcpEnd extends End {
+		final InetSocketAddress address;
+		volatile ServerSocket server;
+		volatile Socket sock;
+
+		TcpEnd(String name, InetSocketAddress address) {
+			super(name);
+			this.address = address;
+		}
+
+		@Override
+		void open() throws IOException {
+			Socket s;
+			if(options.isTcpServer()) {
+				if(server == null) {
+					ServerSocket listening = new ServerSocket();
+					listening.setReuseAddress(true);
+					listening.bind(address);
+					server = listening;
+				}
+				if(!running) {
+					// stop may have looked for the server before it was there
+					closeServer();
+					throw new IOException("Stopped");
+				}
+				s = server.accept();
+			} else {
+				s = new Socket();
+				try {
+					configure(s);
+					s.connect(address);
+				} catch (IOException e) {
+					s.close();
+					throw e;
+				}
+			}
+			// set again, since an accepted socket only inherits the receive buffer
+			configure(s);
+			sock = s;
+			in = s.getInputStream();
+			out = s.getOutputStream();
+		}
+
+		void configure(Socket s) throws IOException {
+			if(options.getSendBuffer() > 0) {
+				s.setSendBufferSize(options.getSendBuffer());
+			}
+			if(options.getReceiveBuffer() > 0) {
+				s.setReceiveBufferSize(options.getReceiveBuffer());
+			}
+			// every command is latency critical, whatever the tcpNoDelay option says
+			s.setTcpNoDelay(true);
+		}
+
+		@Override
+		void close() {
+			try {
+				if(sock != null) {
+					sock.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Not synchronized, since the pump holding the end may be waiting in accept.
+		 */
+		void closeServer() {
+			try {
+				ServerSocket listening = server;
+				if(listening != null) {
+					listening.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	protected final ConnectionOptions options;
+	protected final SerialParameters serialParameters;
+	protected final SerialEnd serial;
+	protected final TcpEnd tcp;
+	// publish only, null if there is no tap
+	protected DTConnection serialTap, tcpTap;
+	protected ByteRing serialTapRing, tcpTapRing;
+	protected Thread toTcp, toSerial;
+	protected IOScheduler.Task serialTapTask, tcpTapTask;
+	protected volatile boolean running = true;
+	protected final CountDownLatch stopped = new CountDownLatch(1);
+	// each only written by its pump
+	protected volatile long bytesToTcp = 0, bytesToSerial = 0;
+	protected volatile long reconnects = 0;
+
+	/**
+	 * Opens both ends and starts pumping.
+	 * 
+	 * @param port the serial port, like COM3 or /dev/ttyACM0
+	 * @param baud the baud rate of the serial port
+	 * @param ipaddr the address to connect to, or in server mode to listen on
+	 * @param tcpPort the TCP port to connect to or listen on
+	 * @param dthostname the DataTurbine server for the tap, or null for no tap
+	 * @param serialSourceName what the tap publishes serial data as, like Pixhawk
+	 * @param tcpSourceName what the tap publishes TCP data as, like APMPlanner
+	 * @param options the connection options
+	 * @throws IllegalStateException if an end can't be opened and won't be retried
+	 */
+	public SerialTCPCutThrough(String port, int baud, String ipaddr, int tcpPort, String dthostname, String serialSourceName, String tcpSourceName, ConnectionOptions options) {
+		this.options = options;
+		this.serialParameters = new SerialParameters(port, baud, SerialPort.FLOWCONTROL_NONE, SerialPort.FLOWCONTROL_NONE, 8, 1, 0);
+		this.serial = new SerialEnd(port, options.isLinuxSerialTransport() ? new LinuxSerialTransport() : new CommSerialTransport());
+		this.tcp = new TcpEnd(ipaddr + ":" + tcpPort, new InetSocketAddress(ipaddr, tcpPort));
+		if(dthostname != null) {
+			serialTap = new DTConnection(dthostname, serialSourceName, null, false, options);
+			tcpTap = new DTConnection(dthostname, tcpSourceName, null, false, options);
+			serialTapRing = new ByteRing(options.getSerialRingBytes());
+			tcpTapRing = new ByteRing(options.getSerialRingBytes());
+		}
+		openOrDefer(serial);
+		if(!options.isTcpServer()) {
+			openOrDefer(tcp);
+		}
+		// in server mode the first pump to need the socket waits for a client
+		toTcp = pump(serial.name + " to " + tcp.name, serial, tcp, serialTapRing, true);
+		toSerial = pump(tcp.name + " to " + serial.name, tcp, serial, tcpTapRing, false);
+		if(dthostname != null) {
+			serialTapTask = IOScheduler.shared().execute(serialSourceName + " tap", tapLoop(serialTap, serialTapRing));
+			tcpTapTask = IOScheduler.shared().execute(tcpSourceName + " tap", tapLoop(tcpTap, tcpTapRing));
+		}
+		toTcp.start();
+		toSerial.start();
+	}
+
+	/**
+	 * Opens an end, leaving it for the pumps to retry if it fails and the reconnect option is on.
+	 */
+	protected void openOrDefer(End end) {
+		try {
+			end.open();
+			System.out.println("Connected to " + end);
+		} catch (IOException e) {
+			if(!options.isReconnect()) {
+				stop();
+				throw new IllegalStateException("Could not open " + end, e);
+			}
+			System.out.println("Could not open " + end + ", will keep trying: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes a pump thread that copies everything read from one end to the other.
+	 * 
+	 * @param tapRing where to copy what was written for the tap, or null
+	 * @param toTcp which byte count to add to
+	 */
+	protected Thread pump(String name, final End from, final End to, final ByteRing tapRing, final boolean toTcp) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[options.getSlabSize()];
+				while(running) {
+					int generation = from.generation;
+					InputStream in = from.in;
+					int n;
+					try {
+						n = in == null ? -1 : in.read(buffer);
+					} catch (IOException e) {
+						n = -1;
+					}
+					if(n < 0) {
+						if(!reopen(from, generation)) {
+							return;
+						}
+						continue;
+					}
+					while(true) {
+						generation = to.generation;
+						OutputStream out = to.out;
+						try {
+							if(out == null) {
+								throw new IOException(to + " is not open");
+							}
+							out.write(buffer, 0, n);
+							out.flush();
+							break;
+						} catch (IOException e) {
+							// written again once the end is back, so a command isn't lost
+							if(!reopen(to, generation)) {
+								return;
+							}
+						}
+					}
+					if(toTcp) {
+						bytesToTcp += n;
+					} else {
+						bytesToSerial += n;
+					}
+					if(tapRing != null) {
+						tapRing.write(buffer, 0, n);
+					}
+				}
+			}
+		}, name);
+		t.setDaemon(true);
+		t.setPriority(Thread.MAX_PRIORITY);
+		return t;
+	}
+
+	/**
+	 * Opens an end again after it failed, unless another pump already did.
+	 * 
+	 * @param generation the generation of the end when it failed
+	 * @return false if the cut-through is stopping
+	 */
+	protected boolean reopen(End end, int generation) {
+		synchronized(end) {
+			if(end.generation != generation) {
+				return running;
+			}
+			if(!running) {
+				return false;
+			}
+			if(!options.isReconnect()) {
+				System.out.println("Lost " + end + ", stopping");
+				stop();
+				return false;
+			}
+			end.close();
+			Backoff backoff = new Backoff(options.getReconnectInitial(), options.getReconnectMax());
+			while(running) {
+				try {
+					end.open();
+					end.generation++;
+					reconnects++;
+					System.out.println("Reconnected to " + end);
+					return true;
+				} catch (IOException e) {
+					if(!running) {
+						return false;
+					}
+					System.out.println("Could not reopen " + end + ": " + e.getMessage());
+				}
+				try {
+					backoff.sleep();
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Drains a tap ring into DataTurbine. While DataTurbine can't be reached the
+	 * ring fills and the pump drops what doesn't fit.
+	 */
+	protected Runnable tapLoop(final DTConnection tap, final ByteRing ring) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				byte[] data = new byte[options.getSlabSize()];
+				Backoff backoff = new Backoff(options.getReconnectInitial(), options.getReconnectMax());
+				boolean down = false;
+				while(running && !Thread.currentThread().isInterrupted()) {
+					try {
+						if(down) {
+							backoff.sleep();
+							tap.reconnectSource();
+							down = false;
+							backoff.reset();
+						}
+						if(!ring.awaitData(options.getFetchTimeout())) {
+							continue;
+						}
+						// the ring doesn't keep arrival times, so this is when the tap saw the data
+						double time = System.currentTimeMillis()/1000.0;
+						int n = ring.read(data, 0, data.length);
+						tap.write(0, data, 0, n, time);
+					} catch (SAPIException e) {
+						if(!options.isReconnect()) {
+							e.printStackTrace();
+							return;
+						}
+						down = true;
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Stops both pumps and the tap and closes everything. Can be called from a pump.
+	 */
+	public void stop() {
+		synchronized(this) {
+			if(!running && stopped.getCount() == 0) {
+				return;
+			}
+			running = false;
+		}
+		// closing is what ends a blocked read or accept
+		serial.close();
+		tcp.close();
+		tcp.closeServer();
+		for(Thread t : new Thread[] {toTcp, toSerial}) {
+			if(t != null && t != Thread.currentThread()) {
+				t.interrupt();
+			}
+		}
+		for(IOScheduler.Task t : new IOScheduler.Task[] {serialTapTask, tcpTapTask}) {
+			if(t != null) {
+				t.interrupt();
+			}
+		}
+		for(DTConnection tap : new DTConnection[] {serialTap, tcpTap}) {
+			if(tap != null) {
+				tap.closeConnections();
+			}
+		}
+		stopped.countDown();
+	}
+
+	/**
+	 * Waits until the cut-through stops.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		stopped.await();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the number of bytes from the serial port written to the socket
+	 */
+	public long getBytesToTcp() {
+		return bytesToTcp;
+	}
+
+	/**
+	 * @return the number of bytes from the socket written to the serial port
+	 */
+	public long getBytesToSerial() {
+		return bytesToSerial;
+	}
+
+	/**
+	 * @return the number of times an end was opened again
+	 */
+	public long getReconnects() {
+		return reconnects;
+	}
+
+	/**
+	 * @return the number of bytes the tap dropped because DataTurbine was behind or away
+	 */
+	public long getTapDroppedBytes() {
+		if(serialTapRing == null) {
+			return 0;
+		}
+		return serialTapRing.getDroppedBytes() + tcpTapRing.getDroppedBytes();
+	}
+
+	/**
+	 * @return the tap publishing what came from the serial port, or null if there is no tap
+	 */
+	public DTConnection getSerialTap() {
+		return serialTap;
+	}
+
+	/**
+	 * @return the tap publishing what came from the socket, or null if there is no tap
+	 */
+	public DTConnection getTcpTap() {
+		return tcpTap;
+	}
+
+	/**
+	 * This function provides a command line interface for running a cut-through
+	 * 
+	 * @param args The command line arguments describing the connection. See the help text for description about usage.
+	 */
+	public static void main(String[] args) {
+		if(args.length < 7) {
+			System.out.println("Incorrect arguments.");
+			System.out.println("Usage:\n\tjava -cp JSimulink.jar edu.scu.engr.rsl.connections.SerialTCPCutThrough port baud ipaddr tcpPort dthostname serialSourceName tcpSourceName [options]");
+			System.out.println("\tport: The serial port, like COM3 on Windows or /dev/ttyACM0 on Linux");
+			System.out.println("\tbaud: The baud rate of the serial port");
+			System.out.println("\tipaddr: The address of the TCP server, or to listen on with tcpMode=server");
+			System.out.println("\ttcpPort: The TCP port");
+			System.out.println("\tdthostname: The host name and port of the DataTurbine server for the tap, or none for no tap");
+			System.out.println("\tserialSourceName: What the tap publishes serial data as (something like Pixhawk)");
+			System.out.println("\ttcpSourceName: What the tap publishes TCP data as (something like APMPlanner)");
+			System.out.println(ConnectionOptions.helpText);
+			System.exit(3);
+		}
+		String dthostname = args[4].equals("none") ? null : args[4];
+		final SerialTCPCutThrough cutThrough = new SerialTCPCutThrough(args[0], Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]), dthostname, args[5], args[6], ConnectionOptions.parse(args, 7));
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				cutThrough.stop();
+			}
+		});
+		try {
+			cutThrough.awaitTermination();
+		} catch (InterruptedException e) {
+			cutThrough.stop();
+		}
+	}
+}
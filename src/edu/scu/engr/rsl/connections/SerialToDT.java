@@ -2,6 +2,7 @@ package edu.scu.engr.rsl.connections;
 
 import java.io.IOException;
 import java.util.TooManyListenersException;
+import java.util.function.LongSupplier;
 
 import javax.comm.CommPortIdentifier;
 import javax.comm.NoSuchPortException;
@@ -13,15 +14,29 @@ import javax.comm.UnsupportedCommOperationException;
 
 import com.rbnb.sapi.SAPIException;
 
+import edu.scu.engr.rsl.util.ByteRing;
 import edu.scu.engr.rsl.util.SerialConnectionException;
 import edu.scu.engr.rsl.util.SerialParameters;
 
 /**
  * This class provides a serial connection a connection to DataTurbine.
- * It supports subscribing to only one channel and publishing to a single channel.
+ * What the port receives is published, and what the subscriptions fetch is written
+ * to the port, as <code>ThreadedDTConnection</code> describes.
  * 
- * This has only been tested to work on Windows and was intended to be used on 
- * Windows.
+ * On Windows the port is opened through javax.comm and data arrives in 
+ * <code>serialEvent</code>. Elsewhere, or with <code>serialTransport=linux</code>, 
+ * the port is a tty path opened by a <code>LinuxSerialTransport</code> and read by 
+ * the usual source loop, so it can also be pointed at a pseudo-terminal for testing.
+ * 
+ * <code>serialEvent</code> runs on the driver's event thread, and while it runs the
+ * driver can't deliver more data, so it only copies what the port has into a 
+ * <code>ByteRing</code>. A publisher loop drains the ring to DataTurbine. If 
+ * DataTurbine falls so far behind that the ring fills, the newest bytes are dropped
+ * and counted rather than letting the UART overrun.
+ * 
+ * With the <code>reconnect</code> option a tty opened by a transport is opened again
+ * whenever it fails or reports end of file, for example when a USB adapter is pulled
+ * out and plugged back in.
  * 
  * @author Ryan Cooper (ryanloringcooper@gmail.com)
  * @date September 19th, 2017
@@ -31,6 +46,14 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 	protected int stop = 1;
 	protected int parity = 0;
 	protected SerialPort serialPort;
+	// set instead of serialPort when the port is opened without javax.comm
+	protected SerialTransport transport;
+	protected SerialParameters serialParameters;
+	// serialEvent reads into this, and the publisher takes from it
+	protected ByteRing serialRing;
+	// serialEvent reads into this when the ring is full, to keep the port drained
+	protected byte[] serialBuffer;
+	protected volatile long uartOverruns = 0;
 	
 	public SerialToDT(String port, int baud, String dthostname, String sourceName, String subscriptionHandle) {
 		super(dthostname, sourceName, subscriptionHandle);
@@ -44,15 +67,45 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 		start();
 	}
 	
+	public SerialToDT(String port, int baud, String dthostname, String sourceName, String subscriptionHandle, boolean debug, ConnectionOptions options) {
+		super(dthostname, sourceName, subscriptionHandle, debug, options);
+		setupSerialPort(port, baud);
+		start();
+	}
+	
 	/**
 	 * Sets up the serial connection on the specified port at the specified baud rate.
 	 * This is initially defined in ThreadedDTConnection
 	 * @param port
 	 * @param baud
+	 * @throws IllegalStateException if the port can't be opened and won't be retried
 	 */
 	protected void setupSerialPort(String port, int baud) {
+		serialBuffer = new byte[options.getSlabSize()];
+		serialRing = new ByteRing(options.getSerialRingBytes());
+		metrics.setDroppedBytes(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return serialRing.getDroppedBytes();
+			}
+		});
+		serialParameters = new SerialParameters(port, baud, SerialPort.FLOWCONTROL_NONE, SerialPort.FLOWCONTROL_NONE, databits, stop, parity);
+		if(options.isLinuxSerialTransport()) {
+			transport = new LinuxSerialTransport();
+			try {
+				transport.open(serialParameters, options);
+				System.out.println("Serial connection established!");
+			} catch (IOException e) {
+				if(!options.isReconnect()) {
+					exitGracefully();
+					throw new IllegalStateException("Could not open " + port, e);
+				}
+				System.out.println("Could not open " + port + ", will keep trying: " + e.getMessage());
+				deviceConnected = false;
+			}
+			return;
+		}
 		System.loadLibrary("win32com");
-		SerialParameters serialParameters = new SerialParameters(port, baud, SerialPort.FLOWCONTROL_NONE, SerialPort.FLOWCONTROL_NONE, databits, stop, parity);
 		try {
 			CommPortIdentifier portId = CommPortIdentifier.getPortIdentifier(serialParameters.getPortName());
 			serialPort = (SerialPort) portId.open("CommHandler", 2000);
@@ -62,6 +115,7 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 			serialPort.addEventListener(this);
 			serialPort.notifyOnDataAvailable(true);
 			serialPort.notifyOnBreakInterrupt(true);
+			serialPort.notifyOnOverrunError(true);
 			serialPort.enableReceiveTimeout(30);
 			serialPort.notifyOnOutputEmpty(true);
 
@@ -69,8 +123,8 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 			serialPort.notifyOnCTS(true);
 			serialPort.notifyOnDSR(true);
 		} catch (SerialConnectionException | NoSuchPortException | PortInUseException | TooManyListenersException | UnsupportedCommOperationException e1) {
-			e1.printStackTrace();
-			System.exit(2);
+			exitGracefully();
+			throw new IllegalStateException("Could not open " + port, e1);
 		}
 	}
 	
@@ -120,9 +174,8 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 
 	/**
 	 * Implements the <code>serialEvent</code> function of the <code>SerialPortListener</code> 
-	 * interface. When data is available on the COM port, it is read until the 
-	 * transmission is complete, packed up, and <code>Observer</code> are notified 
-	 * of the receipt of data. 
+	 * interface. When data is available on the COM port, it is read into the ring
+	 * for the publisher loop. This never waits on DataTurbine.
 	 * @param evt The <code>SerialPortEvent</code> provided by the underlying object 
 	 * 		responsible for event notification. 
 	 */
@@ -132,19 +185,27 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 			case SerialPortEvent.DATA_AVAILABLE:
 				try {
 					int readableBytes = iStream.available();
-					if(readableBytes > 0) {
-						byte[] data = new byte[readableBytes];
-						iStream.read(data, 0, readableBytes);
-						if(debug) {
-							System.out.print(data);
+					while(readableBytes > 0) {
+						int readBytes = serialRing.readFrom(iStream, readableBytes);
+						if(readBytes == 0) {
+							// the ring is full, throw the data away so the port doesn't overrun
+							readBytes = iStream.read(serialBuffer, 0, Math.min(readableBytes, serialBuffer.length));
+							if(readBytes > 0) {
+								serialRing.dropped(readBytes);
+							}
 						}
-						srcChannels.PutDataAsInt8(0,  data);
-						dtSource.Flush(srcChannels, true);
+						if(readBytes <= 0) {
+							break;
+						}
+						readableBytes -= readBytes;
 					}
-				} catch (SAPIException | IOException e) {
+				} catch (IOException e) {
 					e.printStackTrace();
 				}
 				break;
+			case SerialPortEvent.OE:
+				uartOverruns++;
+				break;
 			default:
 				break;
 			/*	These are left here for future reference if somebody wants more functionality.
@@ -159,14 +220,114 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 	}
 	
 	/**
-	 * This function is overriden because the serial connection delivers data 
-	 * using a callback (see serialEvent). 
+	 * This function is overriden because the javax.comm connection delivers data 
+	 * using a callback (see serialEvent). A <code>SerialTransport</code> is read by
+	 * the usual loop.
 	 */
 	@Override
-	protected Thread sourceThread() {
+	protected Runnable sourceLoop() {
+		if(transport != null) {
+			return super.sourceLoop();
+		}
 		return null;
 	}
 	
+	@Override
+	protected boolean canReconnectDevice() {
+		return transport != null;
+	}
+	
+	/**
+	 * Closes the transport and opens the port again.
+	 * This is initially defined in ThreadedDTConnection.
+	 */
+	@Override
+	protected void reconnectDevice() throws IOException {
+		transport.close();
+		transport.open(serialParameters, options);
+		setupStreams();
+	}
+	
+	/**
+	 * Takes what serialEvent put in the ring and publishes it to DataTurbine, and
+	 * reconnects to DataTurbine like the usual publisher loop.
+	 */
+	protected Runnable ringPublisherLoop() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				byte[] data = new byte[options.getSlabSize()];
+				try {
+					while(running && !Thread.currentThread().isInterrupted()) {
+						superviseSource();
+						publishMetricsIfDue();
+						if(!serialRing.awaitData(publisherWait())) {
+							continue;
+						}
+						// the ring doesn't keep arrival times, so this is when the publisher saw the data
+						long arrival = System.nanoTime();
+						double time = System.currentTimeMillis()/1000.0;
+						int n = serialRing.read(data, 0, data.length);
+						publish(data, 0, n, time);
+						if(isCommitted()) {
+							metrics.arrivalToCommit.record(System.nanoTime() - arrival);
+						}
+					}
+				} catch (SAPIException e) {
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					// shutting down
+				}
+			}
+		};
+	}
+	
+	/**
+	 * With javax.comm there is no source loop, so the ring publisher is started here.
+	 * This is initially defined in ThreadedDTConnection.
+	 */
+	@Override
+	protected void setupTasks() {
+		super.setupTasks();
+		if(transport == null) {
+			publisherTask = scheduler.execute(sourceName + " ring publisher", ringPublisherLoop());
+		}
+	}
+	
+	/**
+	 * The link is the serial line, so unless the <code>linkRate</code> option says
+	 * otherwise it carries what the baud rate and framing allow.
+	 * This is initially defined in ThreadedDTConnection.
+	 */
+	@Override
+	protected long linkRate() {
+		if(options.getLinkRate() > 0) {
+			return options.getLinkRate();
+		}
+		return serialParameters.getBytesPerSecond();
+	}
+	
+	/**
+	 * @return the number of bytes from the port dropped because the publisher was behind
+	 */
+	public long getDroppedBytes() {
+		return serialRing.getDroppedBytes();
+	}
+	
+	/**
+	 * @return the number of serial events that had to drop bytes
+	 */
+	public long getRingOverruns() {
+		return serialRing.getOverruns();
+	}
+	
+	/**
+	 * @return the number of overrun errors the port reported
+	 */
+	public long getUartOverruns() {
+		return uartOverruns;
+	}
+	
 	/**
 	 * Sets up the necessary streams for this application to pipe data to and from
 	 * DataTurbine to the serial connection.
@@ -174,6 +335,11 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 	 */
 	@Override
 	protected void setupStreams() throws IOException {
+		if(transport != null) {
+			oStream = transport.getOutputStream();
+			iStream = transport.getInputStream();
+			return;
+		}
 		oStream = serialPort.getOutputStream();
 		iStream = serialPort.getInputStream();	
 	}
@@ -186,7 +352,17 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 	@Override
 	protected void exitGracefully() {
 		super.exitGracefully();
-		serialPort.close();
+		if(transport != null) {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		if(serialPort != null) {
+			serialPort.close();
+		}
 	}
 	
 	/**
@@ -195,13 +371,22 @@ public class SerialToDT extends ThreadedDTConnection implements SerialPortEventL
 	 * @param args The command line arguments describing the connection. See the help text for description about usage.
 	 */
 	public static void main(String[] args) {
-		if(args.length != 5) {
+		if(args.length < 5) {
 			System.out.println("Incorrect arguments.");
-			System.out.println("Usage:\n\tjava -jar PixhawkDTConnector.jar port baud dthostname sourceName subscriptionHandle");
+			System.out.println("Usage:\n\tjava -jar PixhawkDTConnector.jar port baud dthostname sourceName subscriptionHandle [options]");
+			System.out.println("\tport: The serial port, like COM3 on Windows or /dev/ttyACM0 on Linux");
+			System.out.println("\tbaud: The baud rate of the serial port");
 			System.out.println(endOfHelpText);
+			System.out.println(ConnectionOptions.helpText);
 			System.out.println("\nWARING: THERE IS NO PARAMETER CHECKING, SO IF THE ARGUMENTS ARE WRONG BAD THINGS MAY HAPPEN.");
 			System.exit(3);
 		}
-		new SerialToDT(args[0], Integer.parseInt(args[1]), args[2], args[3], args[4]);
+		SerialToDT bridge = new SerialToDT(args[0], Integer.parseInt(args[1]), args[2], args[3], args[4], false, ConnectionOptions.parse(args, 5));
+		bridge.stopOnShutdown();
+		try {
+			bridge.awaitTermination();
+		} catch (InterruptedException e) {
+			bridge.stop();
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import edu.scu.engr.rsl.util.SerialParameters;
+
+/**
+ * A way of opening a serial port that hands back plain blocking streams, so 
+ * <code>SerialToDT</code> can pump it with the same loops as any other stream 
+ * instead of through <code>javax.comm</code> events.
+ * 
+ * Reads on the input stream should end with an exception when the reading thread
+ * is interrupted or the transport is closed, so the source loop can stop.
+ */
+public interface SerialTransport {
+	/**
+	 * Opens and configures the port.
+	 * 
+	 * @param parameters the port name and line settings
+	 * @param options the connection options
+	 * @throws IOException if the port can not be opened or configured
+	 */
+	void open(SerialParameters parameters, ConnectionOptions options) throws IOException;
+	
+	InputStream getInputStream();
+	
+	OutputStream getOutputStream();
+	
+	void close() throws IOException;
+}
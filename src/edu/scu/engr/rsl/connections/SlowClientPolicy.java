@@ -0,0 +1,13 @@
+package edu.scu.engr.rsl.connections;
+
+/**
+ * Decides what a <code>FanOutServer</code> does with a client that has fallen so
+ * far behind that the frame it is waiting to send is about to be overwritten.
+ * 
+ * DROP skips the client ahead to the oldest frame still kept, so it loses the
+ * frames in between but stays connected. DISCONNECT closes the client's connection.
+ */
+public enum SlowClientPolicy {
+	DROP,
+	DISCONNECT
+}
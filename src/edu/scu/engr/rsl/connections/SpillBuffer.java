@@ -0,0 +1,314 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds frames for DataTurbine while it can't be reached, so an outage neither loses
+ * them nor holds up the device. Frames go into a buffer in memory and, once that is
+ * full, into a memory-mapped file, and come back out in the order they went in.
+ * When both are full new frames are dropped and counted. Neither is allocated until
+ * the first frame needs it.
+ * 
+ * A frame is only removed once it is known to be published: <code>next</code> walks
+ * forward from the oldest frame, <code>commit</code> removes everything walked over
+ * and <code>rewind</code> goes back to the oldest after a failed publish.
+ * 
+ * Each frame is stored as its length, channel, type and time followed by its data.
+ * The memory only takes frames while the file is empty, so everything in memory is
+ * older than everything in the file, and each of them starts over from the beginning
+ * whenever it empties.
+ * 
+ * Only one thread may use a spill buffer, which for a bridge is its publisher.
+ */
+public class SpillBuffer {
+	public static final byte INT8 = 0, FLOAT64 = 1;
+	protected static final int HEADER = 4 + 4 + 1 + 8;
+
+	/**
+	 * One of the two buffers. Frames from <code>read</code> to <code>write</code> are
+	 * held, and <code>peek</code> is how far <code>next</code> got.
+	 */
+	protected static class Region {
+		final ByteBuffer buffer;
+		int read, peek, write;
+
+		Region(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		boolean isEmpty() {
+			return read == write;
+		}
+
+		boolean fits(int size) {
+			return buffer.capacity() - write >= size;
+		}
+
+		void commit() {
+			read = peek;
+			if(read == write) {
+				read = peek = write = 0;
+			}
+		}
+	}
+
+	protected final int memoryBytes;
+	protected final int fileBytes;
+	protected final File file;
+	protected Region memory, mapped;
+	// volatile so the metrics can read them from another thread
+	protected volatile long frames = 0, droppedFrames = 0;
+	protected long bytes = 0, peekedFrames = 0, peekedBytes = 0, spilledFrames = 0;
+	// the frame next stopped at
+	protected Region current;
+	protected int channel, length, dataPosition;
+	protected byte type;
+	protected double time;
+
+	/**
+	 * @param memoryBytes bytes of frames to hold in memory
+	 * @param fileBytes bytes of frames to hold in the file once memory is full, or 0 for no file
+	 * @param file where to map the file, which is deleted when the buffer is closed
+	 */
+	public SpillBuffer(int memoryBytes, int fileBytes, File file) {
+		this.memoryBytes = memoryBytes;
+		this.fileBytes = fileBytes;
+		this.file = file;
+	}
+
+	/**
+	 * Holds a frame of bytes, or drops it if there is no room.
+	 * 
+	 * @return false if the frame was dropped
+	 */
+	public boolean add(int channel, byte[] data, int off, int len, double time) {
+		Region r = place(HEADER + len);
+		if(r == null) {
+			return false;
+		}
+		ByteBuffer b = putHeader(r, channel, INT8, len, time);
+		b.position(r.write + HEADER);
+		b.put(data, off, len);
+		added(r, len);
+		return true;
+	}
+
+	/**
+	 * Holds a float64 sample, or drops it if there is no room.
+	 * 
+	 * @return false if the sample was dropped
+	 */
+	public boolean addFloat64(int channel, double value, double time) {
+		Region r = place(HEADER + 8);
+		if(r == null) {
+			return false;
+		}
+		putHeader(r, channel, FLOAT64, 8, time).putDouble(r.write + HEADER, value);
+		added(r, 8);
+		return true;
+	}
+
+	protected ByteBuffer putHeader(Region r, int channel, byte type, int len, double time) {
+		ByteBuffer b = r.buffer;
+		b.putInt(r.write, len);
+		b.putInt(r.write + 4, channel);
+		b.put(r.write + 8, type);
+		b.putDouble(r.write + 9, time);
+		return b;
+	}
+
+	protected void added(Region r, int len) {
+		r.write += HEADER + len;
+		frames++;
+		bytes += len;
+		spilledFrames++;
+	}
+
+	/**
+	 * Picks the region a frame of <code>size</code> bytes goes in, making it if this
+	 * is the first frame to need it.
+	 * 
+	 * @return the region, or null if the frame has to be dropped
+	 */
+	protected Region place(int size) {
+		if(mapped == null || mapped.isEmpty()) {
+			if(memory == null && memoryBytes >= size) {
+				memory = new Region(ByteBuffer.allocate(memoryBytes));
+			}
+			if(memory != null && memory.fits(size)) {
+				return memory;
+			}
+		}
+		if(mapped == null && fileBytes >= size) {
+			try {
+				mapped = new Region(map());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if(mapped != null && mapped.fits(size)) {
+			return mapped;
+		}
+		droppedFrames++;
+		return null;
+	}
+
+	protected ByteBuffer map() throws IOException {
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(fileBytes);
+			// the mapping stays valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Moves to the next frame that has not been walked over since the last commit or rewind.
+	 * 
+	 * @return false if there are no more
+	 */
+	public boolean next() {
+		Region r;
+		if(memory != null && memory.peek < memory.write) {
+			r = memory;
+		} else if(mapped != null && mapped.peek < mapped.write) {
+			r = mapped;
+		} else {
+			return false;
+		}
+		ByteBuffer b = r.buffer;
+		length = b.getInt(r.peek);
+		channel = b.getInt(r.peek + 4);
+		type = b.get(r.peek + 8);
+		time = b.getDouble(r.peek + 9);
+		dataPosition = r.peek + HEADER;
+		r.peek = dataPosition + length;
+		current = r;
+		peekedFrames++;
+		peekedBytes += length;
+		return true;
+	}
+
+	/**
+	 * Removes every frame walked over by <code>next</code>.
+	 */
+	public void commit() {
+		if(memory != null) {
+			memory.commit();
+		}
+		if(mapped != null) {
+			mapped.commit();
+		}
+		frames -= peekedFrames;
+		bytes -= peekedBytes;
+		peekedFrames = peekedBytes = 0;
+		current = null;
+	}
+
+	/**
+	 * Goes back to the oldest frame, keeping everything.
+	 */
+	public void rewind() {
+		if(memory != null) {
+			memory.peek = memory.read;
+		}
+		if(mapped != null) {
+			mapped.peek = mapped.read;
+		}
+		peekedFrames = peekedBytes = 0;
+		current = null;
+	}
+
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return INT8 or FLOAT64
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return the time of the frame in seconds since the epoch
+	 */
+	public double getTime() {
+		return time;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return a new array with the data of the frame <code>next</code> stopped at.
+	 * 		Draining an outage is the only time these are made, so they aren't pooled.
+	 */
+	public byte[] copyData() {
+		byte[] data = new byte[length];
+		ByteBuffer b = current.buffer;
+		b.position(dataPosition);
+		b.get(data);
+		return data;
+	}
+
+	/**
+	 * @return the value of the float64 sample <code>next</code> stopped at
+	 */
+	public double getFloat64() {
+		return current.buffer.getDouble(dataPosition);
+	}
+
+	public boolean isEmpty() {
+		return frames == 0;
+	}
+
+	/**
+	 * @return the number of frames held
+	 */
+	public long size() {
+		return frames;
+	}
+
+	/**
+	 * @return the number of bytes of frame data held
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of frames ever held
+	 */
+	public long getSpilledFrames() {
+		return spilledFrames;
+	}
+
+	/**
+	 * @return the number of frames dropped because there was no room
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Throws away everything held and deletes the file.
+	 */
+	public void close() {
+		memory = null;
+		mapped = null;
+		current = null;
+		frames = bytes = peekedFrames = peekedBytes = 0;
+		if(file.exists() && !file.delete()) {
+			System.out.println("Could not delete " + file);
+		}
+	}
+}
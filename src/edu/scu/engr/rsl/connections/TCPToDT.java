@@ -1,19 +1,62 @@
 package edu.scu.engr.rsl.connections;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import edu.scu.engr.rsl.util.BufferPool;
+import edu.scu.engr.rsl.util.Slab;
 
 /**
  * This class provides a TCP connection a connection to DataTurbine.
- * It supports subscribing to only one channel and publishing to a single channel.
+ * What the socket receives is published, and what the subscriptions fetch is written
+ * to the socket, as <code>ThreadedDTConnection</code> describes.
+ * 
+ * This class acts as a TCP client, unless the <code>tcpMode=server</code> option is 
+ * given. Then it listens on the address and port and serves the same subscription to 
+ * every client that connects through a <code>FanOutServer</code>, publishing whatever 
+ * the clients send.
  * 
- * This class acts as a TCP client.
+ * With the <code>transport=nio</code> option the socket is a non-blocking 
+ * <code>SocketChannel</code> driven by the scheduler's shared selector instead of
+ * a source loop and a device writer loop. Reads go into a direct buffer, and
+ * several queued frames are handed to the socket in one gathering write.
+ * 
+ * As a client, with the <code>reconnect</code> option the socket is connected again
+ * whenever the device closes it or it fails, including when the device isn't there
+ * yet when the bridge starts.
  * 
  * @author Ryan Cooper (ryanloringcooper@gmail.com)
  * @date September 19th, 2017
  */
 public class TCPToDT extends ThreadedDTConnection {
 	protected Socket sock;
+	// the device, in client mode
+	protected InetSocketAddress deviceAddress;
+	// only set for the nio transport
+	protected SocketChannel channel;
+	protected SelectionKey readKey;
+	protected ByteBuffer readBuffer;
+	// a frame the selector read but could not queue, held until the publisher makes room
+	protected Slab pendingRead;
+	protected volatile boolean readPaused = false;
+	// frames being written to the channel, only touched on the selector thread
+	protected Slab[] writeFrames;
+	protected ByteBuffer[] writeBuffers;
+	protected int writeCount = 0;
+	// the socket is full, or the shaper said to come back later
+	protected boolean writeBlocked = false, writeDelayed = false;
+	// the frames being written were already paid for with the shaper
+	protected boolean writeShaped = false;
+	// only set in server mode
+	protected FanOutServer fanOut;
 	// regex to determine if args contains an IPv4 address 
 	static String ipaddrRegex = "^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)";
 	
@@ -29,34 +72,435 @@ public class TCPToDT extends ThreadedDTConnection {
 		start();
 	}
 	
+	public TCPToDT(String ipaddr, int port, String dthostname, String sourceName, String subscriptionHandle, boolean debug, ConnectionOptions options) {
+		super(dthostname, sourceName, subscriptionHandle, debug, options);
+		setupSock(ipaddr, port);
+		start();
+	}
+	
 	/**
 	 * Sets up a client TCP socket connection on the specified IPv4 address and port. 
-	 * A TCP server shoudl be listening on the specified ipaddr and port.
+	 * A TCP server shoudl be listening on the specified ipaddr and port. If it isn't
+	 * and the reconnect option is on, the bridge starts anyway and keeps trying.
 	 * 
 	 * @param ipaddr the ip address of the device that TCP server is listening on
 	 * @param port the port that the TCP server is listening on
+	 * @throws IllegalStateException if the socket can't be set up and won't be retried
 	 */
 	protected void setupSock(String ipaddr, int port) {
+		if(options.isTcpServer()) {
+			try {
+				setupServer(ipaddr, port);
+			} catch (IOException e) {
+				exitGracefully();
+				throw new IllegalStateException("Could not listen on " + ipaddr + ":" + port, e);
+			}
+			return;
+		}
+		deviceAddress = new InetSocketAddress(ipaddr, port);
 		try {
-			sock = new Socket(ipaddr, port);
+			connect();
 		} 
 		catch (IOException e) {
-			e.printStackTrace();
-			System.exit(2);
+			if(!options.isReconnect()) {
+				exitGracefully();
+				throw new IllegalStateException("Could not connect to " + ipaddr + ":" + port, e);
+			}
+			System.out.println("Could not connect to " + ipaddr + ":" + port + ", will keep trying: " + e.getMessage());
+			deviceConnected = false;
+		}
+	}
+	
+	/**
+	 * Opens a socket to the device with the socket options.
+	 * 
+	 * @throws IOException if the device can't be reached, in which case the socket is closed
+	 */
+	protected void connect() throws IOException {
+		if(options.isNioTransport()) {
+			channel = SocketChannel.open();
+			sock = channel.socket();
+		} else {
+			sock = new Socket();
+		}
+		try {
+			// buffer sizes have to be set before connecting to affect the TCP window
+			if(options.getSendBuffer() > 0) {
+				sock.setSendBufferSize(options.getSendBuffer());
+			}
+			if(options.getReceiveBuffer() > 0) {
+				sock.setReceiveBufferSize(options.getReceiveBuffer());
+			}
+			sock.setTcpNoDelay(options.isTcpNoDelay());
+			sock.connect(deviceAddress);
+		} catch (IOException e) {
+			sock.close();
+			throw e;
+		}
+		if(channel != null) {
+			channel.configureBlocking(false);
+			if(readBuffer == null) {
+				readBuffer = ByteBuffer.allocateDirect(options.getSlabSize());
+				writeFrames = new Slab[options.getGatherFrames()];
+				writeBuffers = new ByteBuffer[writeFrames.length];
+			}
 		}
 	}
 	
+	@Override
+	protected boolean canReconnectDevice() {
+		return fanOut == null;
+	}
+	
+	/**
+	 * Closes the old socket and connects a new one. With the nio transport the new
+	 * channel is handed to the selector, which goes on writing where the old one 
+	 * stopped, otherwise the streams are set up again.
+	 * This is initially defined in ThreadedDTConnection.
+	 */
+	@Override
+	protected void reconnectDevice() throws IOException {
+		if(sock != null) {
+			sock.close();
+		}
+		connect();
+		if(channel == null) {
+			setupStreams();
+			return;
+		}
+		// reads stay paused if the publisher was behind when the device went away
+		int ops = readPaused ? 0 : SelectionKey.OP_READ;
+		readKey = scheduler.selector().register(channel, ops, channelHandler()).join();
+		scheduler.selector().execute(resumeWrites);
+	}
+	
+	/**
+	 * Listens for clients on the specified address and port. 
+	 * 
+	 * @param ipaddr the local address to listen on
+	 * @param port the port to listen on
+	 * @throws IOException if the port can not be bound
+	 */
+	protected void setupServer(String ipaddr, int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		if(options.getReceiveBuffer() > 0) {
+			// accepted sockets inherit this, and it has to be set before binding to affect the TCP window
+			server.socket().setReceiveBufferSize(options.getReceiveBuffer());
+		}
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(ipaddr, port));
+		// the ring holds on to fanOutFrames slabs on top of what the queues hold
+		bufferPool = new BufferPool(options.getSlabSize(), 2*options.getQueueCapacity() + options.getFanOutFrames() + 16);
+		fanOut = new FanOutServer(server, scheduler.selector(), sinkQueue, sourceQueue, bufferPool, options);
+		// clients that fell behind lose frames in the fan out ring rather than the queues
+		metrics.setDroppedFrames(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return sourceQueue.getDroppedFrames() + sinkQueue.getDroppedFrames() + fanOut.getDroppedFrames() + getPublishDropped();
+			}
+		});
+	}
+	
+	/**
+	 * @return the server handing data to clients, or null if this is not in server mode
+	 */
+	public FanOutServer getFanOutServer() {
+		return fanOut;
+	}
+	
 	/**
 	 * Sets up the necessary streams for this application to pipe data to and from
-	 * DataTurbine to the TCP connection.
+	 * DataTurbine to the TCP connection. Reads on the socket time out so the source
+	 * thread can notice when it is interrupted.
 	 * This is initially defined in ThreadedDTConnection.
 	 */
 	@Override
 	protected void setupStreams() throws IOException {
+		if(channel != null || fanOut != null) {
+			// the nio transport and server mode use channels directly
+			return;
+		}
+		sock.setSoTimeout(options.getReadTimeout());
 		oStream = sock.getOutputStream();
 		iStream = sock.getInputStream();	
 	}
 	
+	/**
+	 * With the nio transport or in server mode the selector reads and writes the
+	 * sockets, so there is no source loop or device writer, but the publisher loop
+	 * still has to run.
+	 * This is initially defined in ThreadedDTConnection.
+	 */
+	@Override
+	protected void setupTasks() {
+		super.setupTasks();
+		if(fanOut != null) {
+			publisherTask = scheduler.execute(sourceName + " publisher", publisherLoop());
+			try {
+				fanOut.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else if(channel != null) {
+			publisherTask = scheduler.execute(sourceName + " publisher", publisherLoop());
+			if(!deviceConnected) {
+				// reconnectDevice registers the channel once there is one
+				return;
+			}
+			try {
+				readKey = scheduler.selector().register(channel, SelectionKey.OP_READ, channelHandler()).join();
+				// the sink loop may have queued frames before there was a key to write them with
+				scheduler.selector().execute(resumeWrites);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	@Override
+	protected Runnable sourceLoop() {
+		if(channel != null || fanOut != null) {
+			return null;
+		}
+		return super.sourceLoop();
+	}
+	
+	/**
+	 * Writes what is waiting for the socket when it has room, then reads whatever
+	 * it has.
+	 */
+	protected SelectorLoop.Handler channelHandler() {
+		return new SelectorLoop.Handler() {
+			@Override
+			public void ready(SelectionKey key) throws IOException {
+				if(key.isWritable()) {
+					writeBlocked = false;
+					updateInterest();
+					drainWrites.run();
+				}
+				if(key.isValid() && key.isReadable()) {
+					read(key);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads whatever the socket has into a slab and queues it for the publisher.
+	 * This runs on the selector thread, so when the policy is BLOCK and the queue is
+	 * full it stops reading the socket instead of waiting, which lets TCP push back 
+	 * on the sender until <code>sourceQueueTaken</code> resumes it. If the device
+	 * goes away the reconnect is started here and done on another thread.
+	 */
+	protected void read(SelectionKey key) throws IOException {
+		readBuffer.clear();
+		int readBytes;
+		try {
+			readBytes = channel.read(readBuffer);
+		} catch (IOException e) {
+			key.cancel();
+			if(!deviceLost(e, deviceGeneration)) {
+				throw e;
+			}
+			return;
+		}
+		if(readBytes < 0) {
+			// the other end closed the connection
+			key.cancel();
+			deviceLost(new EOFException("the device closed the connection"), deviceGeneration);
+			return;
+		}
+		if(readBytes == 0) {
+			return;
+		}
+		readBuffer.flip();
+		Slab s = bufferPool.acquire();
+		readBuffer.get(s.data, 0, readBytes);
+		s.length = readBytes;
+		s.time = System.currentTimeMillis()/1000.0;
+		s.arrivalNanos = System.nanoTime();
+		if(!sourceQueue.tryOffer(s)) {
+			pendingRead = s;
+			readPaused = true;
+			updateInterest();
+		}
+	}
+
+	/**
+	 * Sets what the selector watches the channel for from whether reads are paused
+	 * and whether the socket is full. Only call this on the selector thread.
+	 */
+	protected void updateInterest() {
+		if(readKey != null && readKey.isValid()) {
+			readKey.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+		}
+	}
+
+	// runs on the selector thread to queue the held frame and start reading again
+	protected final Runnable resumeReads = new Runnable() {
+		@Override
+		public void run() {
+			if(pendingRead != null) {
+				if(!sourceQueue.tryOffer(pendingRead)) {
+					return;
+				}
+				pendingRead = null;
+			}
+			readPaused = false;
+			updateInterest();
+		}
+	};
+	
+	@Override
+	protected void sourceQueueTaken() {
+		if(fanOut != null) {
+			fanOut.sourceQueueTaken();
+		} else if(readPaused) {
+			try {
+				scheduler.selector().execute(resumeReads);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	@Override
+	protected void sinkQueued() {
+		if(fanOut != null) {
+			fanOut.framesQueued();
+		} else if(channel != null) {
+			try {
+				scheduler.selector().execute(drainWrites);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * In server mode the fan out server sends the fetched frames, and with the nio
+	 * transport the selector does, so there is no device writer.
+	 * This is initially defined in ThreadedDTConnection.
+	 */
+	@Override
+	protected Runnable deviceWriterLoop() {
+		if(fanOut != null || channel != null) {
+			return null;
+		}
+		return super.deviceWriterLoop();
+	}
+
+	/**
+	 * Takes up to <code>gatherFrames</code> queued frames at a time and writes them
+	 * with one gathering write, until the queue is empty or the socket is full, in
+	 * which case the selector calls this again once the socket has room. With 
+	 * shaping, each gathering write is paced as a whole by coming back once the 
+	 * shaper allows it. If the device goes away the frame that was cut off, and the 
+	 * rest, are written again once <code>reconnectDevice</code> is done.
+	 * This runs on the selector thread.
+	 */
+	protected final Runnable drainWrites = new Runnable() {
+		@Override
+		public void run() {
+			if(!running) {
+				releaseWrites();
+				return;
+			}
+			while(!writeBlocked && !writeDelayed) {
+				if(writeCount == 0) {
+					Slab s;
+					while(writeCount < writeFrames.length && (s = sinkQueue.poll()) != null) {
+						writeFrames[writeCount] = s;
+						writeBuffers[writeCount] = s.contents();
+						writeCount++;
+					}
+					if(writeCount == 0) {
+						return;
+					}
+				}
+				if(!deviceConnected || readKey == null || !readKey.isValid()) {
+					// reconnectDevice comes back here
+					return;
+				}
+				long remaining = 0;
+				for(int i = 0; i < writeCount; i++) {
+					remaining += writeBuffers[i].remaining();
+				}
+				if(shaper != null && !writeShaped) {
+					if(!shaper.tryAcquire((int) remaining)) {
+						writeDelayed = true;
+						writeLater(shaper.delayNanos((int) remaining));
+						return;
+					}
+					writeShaped = true;
+				}
+				int generation = deviceGeneration;
+				try {
+					remaining -= channel.write(writeBuffers, 0, writeCount);
+				} catch (IOException e) {
+					readKey.cancel();
+					for(int i = 0; i < writeCount; i++) {
+						if(writeBuffers[i].hasRemaining()) {
+							writeBuffers[i].rewind();
+						}
+					}
+					if(!deviceLost(e, generation)) {
+						e.printStackTrace();
+						releaseWrites();
+					}
+					return;
+				}
+				if(remaining > 0) {
+					writeBlocked = true;
+					updateInterest();
+					return;
+				}
+				releaseWrites();
+			}
+		}
+	};
+
+	// runs on the selector thread to start writing again on a new channel or after a delay
+	protected final Runnable resumeWrites = new Runnable() {
+		@Override
+		public void run() {
+			writeBlocked = false;
+			writeDelayed = false;
+			updateInterest();
+			drainWrites.run();
+		}
+	};
+
+	/**
+	 * Comes back to <code>drainWrites</code> after <code>delay</code> nanoseconds.
+	 */
+	protected void writeLater(long delay) {
+		scheduler.schedule(sourceName + " shaping", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scheduler.selector().execute(resumeWrites);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gives back the frames taken by <code>drainWrites</code>. Only call this on the
+	 * selector thread.
+	 */
+	protected void releaseWrites() {
+		for(int i = 0; i < writeCount; i++) {
+			writeFrames[i].release();
+			writeFrames[i] = null;
+			writeBuffers[i] = null;
+		}
+		writeCount = 0;
+		writeShaped = false;
+	}
+	
 	/**
 	 * This cleans up the socket connection and does what the parent class does.
 	 * This is initially defined in DTConnection, but is overriden in 
@@ -65,11 +509,29 @@ public class TCPToDT extends ThreadedDTConnection {
 	@Override
 	protected void exitGracefully() {
 		super.exitGracefully();
+		if(fanOut != null) {
+			fanOut.close();
+			return;
+		}
 		try {
-			sock.close();
+			if(sock != null) {
+				sock.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if(pendingRead != null) {
+			pendingRead.release();
+			pendingRead = null;
+		}
+		if(channel != null) {
+			try {
+				// with running off this lets go of the frames being written
+				scheduler.selector().execute(drainWrites);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
 	/**
@@ -78,14 +540,21 @@ public class TCPToDT extends ThreadedDTConnection {
 	 * @param args The command line arguments describing the connection. See the help text for description about usage.
 	 */
 	public static void main(String[] args) {
-		if(args.length == 5 && args[0].matches(ipaddrRegex)) {
-			new TCPToDT(args[0], Integer.parseInt(args[1]), args[2], args[3], args[4]);
+		if(args.length >= 5 && args[0].matches(ipaddrRegex)) {
+			TCPToDT bridge = new TCPToDT(args[0], Integer.parseInt(args[1]), args[2], args[3], args[4], false, ConnectionOptions.parse(args, 5));
+			bridge.stopOnShutdown();
+			try {
+				bridge.awaitTermination();
+			} catch (InterruptedException e) {
+				bridge.stop();
+			}
 		} else {
 			System.out.println("\nIncorrect arguments.");
-			System.out.println("Usage:\n\tjava -jar TCPToDT.jar ipaddr port dthostname sourceName subscriptionHandle");
-			System.out.println("\tipaddr: The IP address of the socket the program you are connecting to Dataturbine is on");
-			System.out.println("\tport: The port number of the socket the program you are connecting to Dataturbine is on");
+			System.out.println("Usage:\n\tjava -jar TCPToDT.jar ipaddr port dthostname sourceName subscriptionHandle [options]");
+			System.out.println("\tipaddr: The IP address of the socket the program you are connecting to Dataturbine is on, or the address to listen on with tcpMode=server");
+			System.out.println("\tport: The port number of the socket the program you are connecting to Dataturbine is on, or the port to listen on with tcpMode=server");
 			System.out.println(endOfHelpText);
+			System.out.println(ConnectionOptions.helpText);
 			System.exit(3);
 		}
 	}
@@ -0,0 +1,180 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Reads back the segments written by a <code>TelemetryRecorder</code>, one frame
+ * at a time and in the order they were recorded.
+ * 
+ * <pre>
+ * TelemetryReader reader = new TelemetryReader(new File("flight"), "Pixhawk");
+ * while(reader.next()) {
+ *     use(reader.getChannelName(reader.getChannel()), reader.getData(), reader.getLength());
+ * }
+ * </pre>
+ * 
+ * Channel definitions are taken care of here and never returned by <code>next</code>.
+ * The data array is reused by the next call to <code>next</code>.
+ */
+public class TelemetryReader {
+	protected final File[] files;
+	protected int fileIndex = -1;
+	protected MappedByteBuffer segment;
+	protected final ArrayList<String> channelNames = new ArrayList<String>();
+	protected byte direction;
+	protected int channel;
+	protected long time;
+	protected byte[] data = new byte[4096];
+	protected int length;
+
+	/**
+	 * @param directory the directory the recorder wrote to
+	 * @param prefix the prefix the recorder was given
+	 * @throws IOException if there are no segments
+	 */
+	public TelemetryReader(File directory, String prefix) throws IOException {
+		files = segments(directory, prefix);
+		if(files.length == 0) {
+			throw new IOException("No " + prefix + " segments in " + directory);
+		}
+	}
+
+	/**
+	 * @return the segments a recorder with this prefix wrote to the directory, in order
+	 */
+	public static File[] segments(File directory, final String prefix) {
+		File[] found = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.matches(Pattern.quote(prefix) + "-\\d{6}" + Pattern.quote(TelemetryRecorder.SUFFIX));
+			}
+		});
+		if(found == null) {
+			return new File[0];
+		}
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * Moves to the next frame.
+	 * 
+	 * @return false at the end of the recording
+	 * @throws IOException if a segment can not be read or is not a recording
+	 */
+	public boolean next() throws IOException {
+		while(true) {
+			if(segment == null || segment.remaining() < TelemetryRecorder.FRAME_HEADER) {
+				if(!nextSegment()) {
+					return false;
+				}
+				continue;
+			}
+			int len = segment.getInt();
+			if(len <= 0 || segment.remaining() < TelemetryRecorder.FRAME_HEADER - 4 + len) {
+				// the end of what was recorded in this segment
+				segment = null;
+				continue;
+			}
+			time = segment.getLong();
+			direction = segment.get();
+			channel = segment.getShort();
+			if(data.length < len) {
+				data = new byte[Math.max(len, 2*data.length)];
+			}
+			segment.get(data, 0, len);
+			length = len;
+			if(direction == TelemetryRecorder.CHANNEL) {
+				String name = new String(data, 0, len, StandardCharsets.UTF_8);
+				while(channelNames.size() <= channel) {
+					channelNames.add(null);
+				}
+				channelNames.set(channel, name);
+				continue;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Goes back to the start of the recording.
+	 */
+	public void rewind() {
+		fileIndex = -1;
+		segment = null;
+	}
+
+	protected boolean nextSegment() throws IOException {
+		if(fileIndex + 1 >= files.length) {
+			segment = null;
+			return false;
+		}
+		File f = files[++fileIndex];
+		try(RandomAccessFile file = new RandomAccessFile(f, "r")) {
+			segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		if(segment.remaining() < TelemetryRecorder.SEGMENT_HEADER || segment.getInt() != TelemetryRecorder.MAGIC) {
+			throw new IOException(f + " is not a telemetry recording");
+		}
+		int version = segment.getInt();
+		if(version != TelemetryRecorder.VERSION) {
+			throw new IOException(f + " is version " + version + ", not " + TelemetryRecorder.VERSION);
+		}
+		return true;
+	}
+
+	/**
+	 * @return FROM_DEVICE or TO_DEVICE, see <code>TelemetryRecorder</code>
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return the channel tag of the frame
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the name of a channel tag, or null if no frame read so far defined it
+	 */
+	public String getChannelName(int channel) {
+		return channel < channelNames.size() ? channelNames.get(channel) : null;
+	}
+
+	/**
+	 * @return when the frame was recorded, in nanoseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the frame's bytes, starting at index 0
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of segment files in the recording
+	 */
+	public int getSegmentCount() {
+		return files.length;
+	}
+}
@@ -0,0 +1,346 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Records every frame that crosses a bridge to memory-mapped segment files, so a
+ * flight can be looked at or replayed afterwards with <code>TelemetryReader</code>
+ * and <code>TelemetryReplayer</code>.
+ * 
+ * A segment is named like Pixhawk-000003.rec and starts with a magic number
+ * and a version. After that every frame is its length, the time it was recorded in
+ * nanoseconds since the epoch, its direction, its channel tag and its bytes, all big
+ * endian. A channel tag is defined by a CHANNEL frame holding the channel's name, and
+ * every segment defines the tags it uses before using them, so a segment can be read
+ * on its own. A length of 0 ends the segment.
+ * 
+ * Segments are made full size and every page is touched before they are used, so
+ * recording a frame is a copy into memory that is already mapped, and never waits
+ * on the disk. The length of a frame is written last, so a frame that was cut off by
+ * a crash reads as the end of the segment. When a frame does not fit the recorder
+ * rolls over to the next segment, which a loop on the <code>IOScheduler</code> has
+ * made ahead of time, so rolling over only swaps buffers. The loop also writes the
+ * segment that was left to the disk. A recorder numbers its segments after the
+ * highest one in the directory, so it never overwrites segments left by an earlier one.
+ */
+public class TelemetryRecorder {
+	public static final int MAGIC = 0x44545243;
+	public static final int VERSION = 1;
+	public static final int SEGMENT_HEADER = 8;
+	// length, time, direction and channel
+	public static final int FRAME_HEADER = 4 + 8 + 1 + 2;
+	public static final byte FROM_DEVICE = 0, TO_DEVICE = 1, CHANNEL = 2;
+	public static final String SUFFIX = ".rec";
+	protected static final int PAGE = 4096;
+
+	protected final File directory;
+	protected final String prefix;
+	protected final int segmentBytes;
+	protected MappedByteBuffer segment;
+	protected int segmentNumber;
+	// the next segment once it has been made, and whether it is being made
+	protected MappedByteBuffer spare;
+	protected File spareFile;
+	protected boolean preparing = false;
+	// the segment that was left, until the preparer has written it to the disk
+	protected MappedByteBuffer retired;
+	protected IOScheduler scheduler = IOScheduler.shared();
+	protected final HashMap<String, Integer> channels = new HashMap<String, Integer>();
+	protected final ArrayList<String> channelNames = new ArrayList<String>();
+	// epoch nanoseconds are the nanoTime clock moved to line up with the wall clock once
+	protected final long epochOffset;
+	protected boolean closed = false;
+	protected long frames = 0, bytes = 0, droppedFrames = 0, segments = 0;
+
+	/**
+	 * Opens the first segment.
+	 * 
+	 * @param directory where the segments go, which is made if it doesn't exist
+	 * @param prefix the start of every segment's name, like the bridge's source name
+	 * @param segmentBytes the size of each segment
+	 * @throws IOException if the first segment can not be made
+	 */
+	public TelemetryRecorder(File directory, String prefix, int segmentBytes) throws IOException {
+		if(segmentBytes < SEGMENT_HEADER + FRAME_HEADER + 1) {
+			throw new IllegalArgumentException("segmentBytes is too small to hold a frame");
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentBytes = segmentBytes;
+		this.epochOffset = System.currentTimeMillis()*1000000L - System.nanoTime();
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not make " + directory);
+		}
+		segmentNumber = nextSegmentNumber(directory, prefix);
+		segment = makeSegment(segmentFile(segmentNumber));
+		startSegment();
+		preparing = true;
+		scheduler.execute(prefix + " recorder", preparerLoop());
+	}
+
+	/**
+	 * @return one more than the number of the last segment with this prefix in the directory, or 0
+	 */
+	protected static int nextSegmentNumber(File directory, String prefix) {
+		File[] found = TelemetryReader.segments(directory, prefix);
+		if(found.length == 0) {
+			return 0;
+		}
+		String last = found[found.length-1].getName();
+		return Integer.parseInt(last.substring(prefix.length() + 1, last.length() - SUFFIX.length())) + 1;
+	}
+
+	/**
+	 * Finds the tag of a channel, defining it the first time the name is seen.
+	 * 
+	 * @param name the channel's name
+	 * @return the tag to pass to <code>record</code>
+	 */
+	public synchronized int channel(String name) {
+		Integer tag = channels.get(name);
+		if(tag == null) {
+			tag = channelNames.size();
+			if(tag > Short.MAX_VALUE) {
+				throw new IllegalStateException("Too many channels");
+			}
+			channels.put(name, tag);
+			channelNames.add(name);
+			define(tag);
+		}
+		return tag;
+	}
+
+	/**
+	 * Appends a frame. A frame too big for a segment, or one that comes after the
+	 * recorder failed to open a segment, is dropped and counted.
+	 * 
+	 * @param direction FROM_DEVICE or TO_DEVICE
+	 * @param channel a tag from <code>channel</code>
+	 */
+	public synchronized void record(byte direction, int channel, byte[] data, int off, int len) {
+		if(len == 0 || closed) {
+			return;
+		}
+		if(segment == null || !append(direction, channel, data, off, len)) {
+			if(segment == null || !rollOver() || !append(direction, channel, data, off, len)) {
+				droppedFrames++;
+				return;
+			}
+		}
+		frames++;
+		bytes += len;
+	}
+
+	/**
+	 * Writes what is left to the disk. Frames recorded after this are ignored.
+	 */
+	public synchronized void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		if(segment != null) {
+			segment.force();
+			segment = null;
+		}
+		// a spare that is still being made is deleted when it is done
+		if(spare != null) {
+			spare = null;
+			spareFile.delete();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the frames recorded, not counting channel definitions
+	 */
+	public synchronized long getFrames() {
+		return frames;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the frames that were too big for a segment or came when no segment could be opened
+	 */
+	public synchronized long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * @return the number of segments this recorder has opened
+	 */
+	public synchronized long getSegments() {
+		return segments;
+	}
+
+	// the length goes in last so a reader never sees half a frame
+	protected boolean append(byte direction, int channel, byte[] data, int off, int len) {
+		int start = segment.position();
+		if(segment.remaining() < FRAME_HEADER + len) {
+			return false;
+		}
+		segment.position(start + 4);
+		segment.putLong(System.nanoTime() + epochOffset);
+		segment.put(direction);
+		segment.putShort((short) channel);
+		segment.put(data, off, len);
+		segment.putInt(start, len);
+		return true;
+	}
+
+	protected void define(int tag) {
+		if(segment == null) {
+			return;
+		}
+		byte[] name = channelNames.get(tag).getBytes(StandardCharsets.UTF_8);
+		if(!append(CHANNEL, tag, name, 0, name.length)) {
+			// the new segment defines every channel again
+			rollOver();
+		}
+	}
+
+	/**
+	 * Moves on to the next segment. This only waits if the spare is still being made,
+	 * which happens when segments fill faster than they can be made.
+	 * 
+	 * @return false if it could not be opened
+	 */
+	protected boolean rollOver() {
+		while(preparing && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		if(closed) {
+			return false;
+		}
+		MappedByteBuffer left = segment;
+		segmentNumber++;
+		if(spare != null) {
+			segment = spare;
+			spare = null;
+		} else {
+			// making the spare failed, so try again here
+			try {
+				segment = makeSegment(segmentFile(segmentNumber));
+			} catch (IOException e) {
+				e.printStackTrace();
+				segment = null;
+				return false;
+			}
+		}
+		startSegment();
+		// the preparer took the last retired segment before it finished the spare
+		retired = left;
+		preparing = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Makes the segment after the current one whenever a rollover asks for it, then
+	 * writes the segment that was left to the disk, until the recorder is closed.
+	 */
+	protected Runnable preparerLoop() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				TelemetryRecorder r = TelemetryRecorder.this;
+				try {
+					while(true) {
+						File f = null;
+						MappedByteBuffer left;
+						synchronized(r) {
+							while(!preparing && retired == null && !closed) {
+								r.wait();
+							}
+							if(closed) {
+								preparing = false;
+								r.notifyAll();
+							} else if(preparing) {
+								f = segmentFile(segmentNumber + 1);
+							}
+							left = retired;
+							retired = null;
+						}
+						if(f != null) {
+							MappedByteBuffer made = null;
+							try {
+								made = makeSegment(f);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+							synchronized(r) {
+								preparing = false;
+								if(closed) {
+									f.delete();
+								} else {
+									spare = made;
+									spareFile = f;
+								}
+								r.notifyAll();
+							}
+						}
+						// after the spare is ready, so a recorder filling segments fast never waits on the disk
+						if(left != null) {
+							left.force();
+						}
+						if(f == null && left == null) {
+							// closed with nothing left to do
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					// shutting down
+				}
+			}
+		};
+	}
+
+	protected File segmentFile(int number) {
+		return new File(directory, String.format("%s-%06d%s", prefix, number, SUFFIX));
+	}
+
+	/**
+	 * Makes a full size segment file, maps it, touches every page and writes the header.
+	 */
+	protected MappedByteBuffer makeSegment(File f) throws IOException {
+		MappedByteBuffer made;
+		try(RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+			file.setLength(segmentBytes);
+			// the mapping stays valid after the file is closed
+			made = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		}
+		// fault every page in now rather than on the first frame that lands on it
+		for(int i = 0; i < segmentBytes; i += PAGE) {
+			made.put(i, (byte) 0);
+		}
+		made.putInt(MAGIC);
+		made.putInt(VERSION);
+		return made;
+	}
+
+	/**
+	 * Defines every channel at the start of a segment that was just switched to.
+	 */
+	protected void startSegment() {
+		segments++;
+		for(int tag = 0; tag < channelNames.size(); tag++) {
+			byte[] name = channelNames.get(tag).getBytes(StandardCharsets.UTF_8);
+			append(CHANNEL, tag, name, 0, name.length);
+		}
+	}
+}
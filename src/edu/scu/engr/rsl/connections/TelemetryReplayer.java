@@ -0,0 +1,179 @@
+package edu.scu.engr.rsl.connections;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rbnb.sapi.SAPIException;
+
+/**
+ * Publishes a recording made by a <code>TelemetryRecorder</code> through a 
+ * <code>DTConnection</code>, for load tests and for running a flight again.
+ * 
+ * Frames are published to channels with the names they were recorded under, so
+ * replaying with the source name of the bridge that made the recording puts them
+ * back on the same channels. At a speed of 1 frames are published as far apart as
+ * they were recorded, at a speed of N they are N times closer together, and with
+ * <code>MAX_SPEED</code> they are published as fast as the connection takes them.
+ * Each frame is published with the time it is replayed, not the time it was recorded.
+ */
+public class TelemetryReplayer {
+	public static final double MAX_SPEED = 0;
+
+	protected final TelemetryReader reader;
+	protected final DTConnection connection;
+	protected final double speed;
+	protected boolean fromDevice = true, toDevice = false;
+	protected long frames = 0, bytes = 0, maxLateNanos = 0;
+
+	/**
+	 * @param speed how many times faster than recorded to replay, or <code>MAX_SPEED</code>
+	 */
+	public TelemetryReplayer(TelemetryReader reader, DTConnection connection, double speed) {
+		if(speed < 0) {
+			throw new IllegalArgumentException("speed can not be negative");
+		}
+		this.reader = reader;
+		this.connection = connection;
+		this.speed = speed;
+	}
+
+	/**
+	 * Chooses which frames to replay. By default only the frames the device sent are,
+	 * which is what the bridge published.
+	 */
+	public void setDirections(boolean fromDevice, boolean toDevice) {
+		this.fromDevice = fromDevice;
+		this.toDevice = toDevice;
+	}
+
+	/**
+	 * Replays the whole recording.
+	 * 
+	 * @return the number of frames published
+	 * @throws IOException if the recording can not be read
+	 * @throws SAPIException
+	 * @throws InterruptedException
+	 */
+	public long replay() throws IOException, SAPIException, InterruptedException {
+		// DataTurbine won't take new channels after the first flush, so find them all first
+		int[] outputs = new int[0];
+		reader.rewind();
+		while(reader.next()) {
+			if(!replays(reader.getDirection())) {
+				continue;
+			}
+			int tag = reader.getChannel();
+			if(tag >= outputs.length) {
+				int[] grown = new int[tag + 1];
+				Arrays.fill(grown, -1);
+				System.arraycopy(outputs, 0, grown, 0, outputs.length);
+				outputs = grown;
+			}
+			if(outputs[tag] < 0) {
+				outputs[tag] = outputChannel(reader.getChannelName(tag));
+			}
+		}
+		reader.rewind();
+		long first = -1;
+		long start = System.nanoTime();
+		while(reader.next()) {
+			if(!replays(reader.getDirection())) {
+				continue;
+			}
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if(first < 0) {
+				first = reader.getTime();
+			}
+			if(speed != MAX_SPEED) {
+				long due = start + (long) ((reader.getTime() - first) / speed);
+				long wait = due - System.nanoTime();
+				if(wait > 0) {
+					LockSupport.parkNanos(wait);
+				} else {
+					maxLateNanos = Math.max(maxLateNanos, -wait);
+				}
+			}
+			connection.write(outputs[reader.getChannel()], reader.getData(), 0, reader.getLength(), System.currentTimeMillis()/1000.0);
+			frames++;
+			bytes += reader.getLength();
+		}
+		if(connection.batchWriter != null) {
+			connection.flush();
+		}
+		return frames;
+	}
+
+	protected boolean replays(byte direction) {
+		return direction == TelemetryRecorder.FROM_DEVICE ? fromDevice : toDevice;
+	}
+
+	// the connection's default channel if the names match, otherwise a new one
+	protected int outputChannel(String name) throws SAPIException {
+		int index = connection.srcChannels.GetIndex(name);
+		return index >= 0 ? index : connection.addOutputChannel(name);
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return how far behind schedule the latest frame was published, in nanoseconds,
+	 * 		which stays near 0 unless the connection can't keep up with the speed
+	 */
+	public long getMaxLateNanos() {
+		return maxLateNanos;
+	}
+
+	/**
+	 * This function provides a command line interface for replaying a recording.
+	 * 
+	 * @param args The command line arguments. See the help text for description about usage.
+	 */
+	public static void main(String[] args) {
+		if(args.length < 4) {
+			System.out.println("Incorrect arguments.");
+			System.out.println("Usage:\n\tjava -cp JSimulink.jar edu.scu.engr.rsl.connections.TelemetryReplayer directory prefix dthostname sourceName [speed] [options]");
+			System.out.println("\tdirectory: The directory given to the record option");
+			System.out.println("\tprefix: The name the segments start with, which is the source name of the recorded bridge");
+			System.out.println("\tdthostname: The connection handle for Dataturbine (probably 127.0.0.1:3333)");
+			System.out.println("\tsourceName: The name to publish the recording under on Dataturbine");
+			System.out.println("\tspeed: 1 to replay in real time, a number of times faster like 10, or max (default 1)");
+			System.out.println(ConnectionOptions.helpText);
+			System.exit(3);
+		}
+		double speed = 1;
+		int optionStart = 4;
+		if(args.length > 4 && args[4].indexOf('=') < 0) {
+			speed = args[4].equals("max") ? MAX_SPEED : Double.parseDouble(args[4]);
+			optionStart = 5;
+		}
+		DTConnection connection = new DTConnection(args[2], args[3], args[3] + "Source/" + args[3] + "Channel", false, ConnectionOptions.parse(args, optionStart));
+		try {
+			TelemetryReplayer replayer = new TelemetryReplayer(new TelemetryReader(new File(args[0]), args[1]), connection, speed);
+			long start = System.nanoTime();
+			replayer.replay();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println("replay=" + args[1]
+					+ " speed=" + (speed == MAX_SPEED ? "max" : String.valueOf(speed))
+					+ " frames=" + replayer.getFrames()
+					+ " bytes=" + replayer.getBytes()
+					+ " seconds=" + String.format("%.3f", seconds)
+					+ " framesPerSecond=" + String.format("%.0f", replayer.getFrames() / seconds)
+					+ " megabytesPerSecond=" + String.format("%.2f", replayer.getBytes() / seconds / 1e6)
+					+ " maxLateMillis=" + String.format("%.3f", replayer.getMaxLateNanos() / 1e6));
+		} catch (IOException | SAPIException | InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			connection.closeConnections();
+		}
+	}
+}
@@ -1,14 +1,34 @@
 package edu.scu.engr.rsl.connections;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
+import com.rbnb.sapi.ChannelMap;
 import com.rbnb.sapi.SAPIException;
 
+import edu.scu.engr.rsl.mavlink.MAVLinkFields;
+import edu.scu.engr.rsl.mavlink.MAVLinkFramer;
+import edu.scu.engr.rsl.mavlink.MAVLinkMessages;
+import edu.scu.engr.rsl.util.Backoff;
+import edu.scu.engr.rsl.util.BufferPool;
+import edu.scu.engr.rsl.util.Slab;
+import edu.scu.engr.rsl.util.TokenBucket;
+
 /**
  * This abstract class provides a threaded connection to DataTurbine.
- * It supports subscribing to only one channel and publishing to a single channel.
+ * Everything fetched from its subscriptions, of which there can be several as with
+ * any <code>DTConnection</code>, is written to the device. What the device sends is
+ * published to the default channel, and with the options below to more channels of
+ * the same Source as well.
  * 
  * The abstract method should be implemented to setup the InputStream and OutputStream 
  * used in the threads.
@@ -16,20 +36,156 @@ import com.rbnb.sapi.SAPIException;
  * This class is useful because it acts as a glue for communication methods to connect
  * to DataTurbine.
  * 
+ * Each direction is a pump made of two loops joined by a bounded <code>FrameQueue</code>.
+ * The device side blocks on the stream and the DataTurbine side blocks on a fetch, both
+ * with bounded timeouts, so an idle connection does not use any CPU. What happens when a
+ * queue fills up is decided by the <code>BackPressurePolicy</code> in the options.
+ * Data moves through the queues in <code>Slab</code>s from a pool owned by the connection,
+ * so once the pool has warmed up forwarding data does not allocate.
+ * 
+ * With the <code>framing</code> option, data from the device goes through a 
+ * <code>MAVLinkFramer</code> before it is published, so every DataTurbine frame holds 
+ * whole MAVLink packets no matter how the reads split them. With <code>demux</code>, 
+ * each packet is also published to a channel named after its message, like 
+ * PixhawkSource/GLOBAL_POSITION_INT, so a subscriber can monitor just the messages
+ * it needs. With <code>decode</code>, chosen fields are read out of each packet and
+ * published as float64 samples to a channel per field, like 
+ * PixhawkSource/GLOBAL_POSITION_INT.lat, so a consumer can fetch numbers instead of
+ * unpacking messages itself. With <code>record</code>, everything read from the device
+ * and fetched for it is also appended to a <code>TelemetryRecorder</code>.
+ * 
+ * With <code>lanes</code>, data for the device waits in a <code>LaneQueue</code> 
+ * instead, so commands are written ahead of bulk data that was fetched first. A 
+ * frame from a channel named in a lane goes in that lane whole. Anything else goes
+ * through a <code>MAVLinkFramer</code> if a lane names messages, and each packet
+ * goes in the lane of its message, so a slab has to hold a whole packet. Bytes that
+ * aren't MAVLink packets go in the last lane. With <code>linkBudget</code> the device
+ * writer also keeps track of what it has written that the link hasn't carried yet, by
+ * <code>linkRate</code>, and only writes from lanes other than the first while that is
+ * under the budget.
+ * 
+ * With <code>shaping</code>, the device writer paces itself with a 
+ * <code>TokenBucket</code> filled at the <code>linkRate</code>, so data for the 
+ * device waits in the bridge rather than in the OS and serial driver buffers, where
+ * nothing can be dropped or put ahead of it. The queue to the device is then also
+ * held to <code>shapingQueueMillis</code> worth of bytes at that rate, and past that
+ * the back-pressure policy applies, so what is written is never older than that. 
+ * 
+ * Every connection keeps <code>BridgeMetrics</code>, which are registered over JMX
+ * under the source name. With <code>metricsInterval</code> a snapshot of them is also
+ * published now and then to a channel named metrics, like PixhawkSource/metrics.
+ * 
+ * With <code>reconnect</code>, which is on by default, a link that goes away is 
+ * opened again, waiting longer after each failed attempt as a <code>Backoff</code>
+ * says. While DataTurbine is unreachable the publisher keeps taking frames from the
+ * device and holds them in a <code>SpillBuffer</code>, and once the Source is back
+ * it publishes them many to a flush before anything newer, so an outage neither 
+ * loses telemetry nor stalls the device. The frame being flushed when the server 
+ * went away may be published twice. With batched writes, the frames of batches that
+ * failed and of the batch being filled are held too, ahead of anything newer. The
+ * sink loop subscribes again the same way. Child classes that can open the device
+ * again, like TCPToDT and SerialToDT, do so when its stream fails, and the device
+ * loops wait for it to come back.
+ * 
+ * The loops run on the shared <code>IOScheduler</code>, so starting a connection does
+ * not block and many connections can live in one JVM. A connection runs from 
+ * <code>start</code> until <code>stop</code>; <code>awaitTermination</code> waits for that.
+ * 
  * @author Ryan Cooper (ryanloringcooper@gmail.com)
  * @date September 19th, 2017
  */
 public abstract class ThreadedDTConnection extends DTConnection {
 	protected InputStream iStream = null;
 	protected OutputStream oStream = null;
-	protected Thread sinkThread = null, sourceThread = null;
+	protected IOScheduler.Task sinkTask = null, sourceTask = null;
+	protected IOScheduler.Task publisherTask = null, deviceWriterTask = null;
+	// sourceQueue carries device data to DataTurbine, sinkQueue carries DataTurbine data to the device
+	protected FrameQueue sourceQueue, sinkQueue;
+	protected BufferPool bufferPool;
+	protected IOScheduler scheduler = IOScheduler.shared();
+	protected volatile boolean running = false;
+	protected boolean closed = false;
+	protected final CountDownLatch terminated = new CountDownLatch(1);
+	// null unless the framing option is on
+	protected MAVLinkFramer framer;
+	// packets are gathered here when framing is batched
+	protected byte[] framedBatch;
+	// the output channel of each message ID, or NOT_ROUTED. Null unless the demux option is on.
+	protected int[] demuxChannels;
+	protected static final int NOT_ROUTED = -1;
+	// the fields to decode from each message ID and the output channel of each. Null unless the decode option is on.
+	protected MAVLinkFields.Field[][] decodeFields;
+	protected int[][] decodeChannels;
+	protected double[] decodedValues;
+	// null unless the record option is on
+	protected TelemetryRecorder recorder;
+	protected int recordChannel;
+	// the output channel for metrics snapshots, or NO_METRICS if the metricsInterval option is 0
+	protected int metricsChannel = NO_METRICS;
+	protected static final int NO_METRICS = -1;
+	protected long lastMetricsNanos;
+	// null unless the reconnect option is on. Frames wait here while the Source is down.
+	protected SpillBuffer spill;
+	protected boolean sourceDown = false;
+	protected Backoff sourceBackoff;
+	protected long nextSourceAttempt;
+	// most held frames published in one flush, so the queue from the device keeps moving
+	protected static final int DRAIN_FRAMES = 256;
+	// guards deviceConnected and deviceGeneration, which counts the times the device was reconnected
+	protected final Object deviceLock = new Object();
+	protected volatile boolean deviceConnected = true;
+	protected volatile int deviceGeneration = 0;
+	protected volatile IOScheduler.Task deviceReconnectTask = null;
+	// null unless the lanes option is on, in which case it is also the sinkQueue
+	protected LaneQueue lanes;
+	// the lane of each message ID
+	protected int[] messageLanes;
+	// the lane of each input channel, BY_MESSAGE if the channel isn't in a lane, or UNKNOWN_LANE until it is looked up
+	protected int[] channelLanes = new int[0];
+	protected static final int BY_MESSAGE = -1, UNKNOWN_LANE = -2;
+	// frames data for the device by message. Null unless a lane names messages.
+	protected MAVLinkFramer sinkFramer;
+	// bytes the device writer has written that the link hasn't carried yet, as of linkBacklogNanos
+	protected long linkBacklog = 0, linkBacklogNanos = 0;
+	// paces the device writer. Null unless the shaping option is on and the link rate is known.
+	protected TokenBucket shaper;
 	
 	public ThreadedDTConnection(String dthostname, String sourceName, String subscriptionHandle) {
-		super(dthostname, sourceName, subscriptionHandle);
+		this(dthostname, sourceName, subscriptionHandle, false);
 	}
 	
 	public ThreadedDTConnection(String dthostname, String sourceName, String subscriptionHandle, boolean debug) {
-		super(dthostname, sourceName, subscriptionHandle, debug);
+		this(dthostname, sourceName, subscriptionHandle, debug, new ConnectionOptions());
+	}
+	
+	public ThreadedDTConnection(String dthostname, String sourceName, String subscriptionHandle, boolean debug, ConnectionOptions options) {
+		super(dthostname, sourceName, subscriptionHandle, debug, options);
+		sourceQueue = new FrameQueue(options.getQueueCapacity(), options.getBackPressurePolicy());
+		sinkQueue = new FrameQueue(options.getQueueCapacity(), options.getBackPressurePolicy());
+		// enough slabs to fill both queues with some to spare for the loops holding one
+		bufferPool = new BufferPool(options.getSlabSize(), 2*options.getQueueCapacity() + 16);
+		if(options.isLanes()) {
+			setupLanes();
+		}
+		if(options.isFraming()) {
+			framer = new MAVLinkFramer();
+			if(options.isFramingBatched()) {
+				framedBatch = new byte[options.getSlabSize() + MAVLinkFramer.MAX_PACKET];
+			}
+		}
+		if(options.isDemux()) {
+			setupDemux();
+		}
+		if(options.isDecode()) {
+			setupDecode();
+		}
+		if(options.isRecording()) {
+			setupRecorder();
+		}
+		if(options.isReconnect()) {
+			setupSpill();
+		}
+		setupMetrics();
 	}
 	
 	/** 
@@ -40,105 +196,1068 @@ public abstract class ThreadedDTConnection extends DTConnection {
 	protected abstract void setupStreams() throws IOException;
 	
 	/**
-	 * Begins the communication over streams to and from DataTurbine
+	 * Begins the communication over streams to and from DataTurbine. This returns 
+	 * as soon as the loops are running.
 	 */
 	protected void start() { 
 		try {
-			setupStreams();
+			if(deviceConnected) {
+				setupStreams();
+			}
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
-		setupThreads();
-		startThreads();
+		if(options.isShaping() && shaper == null) {
+			// after setupStreams, since a child class may only learn its link rate there
+			setupShaping();
+		}
+		running = true;
 		try {
-			waitForThreads();
-		} catch (InterruptedException e) {
-			// Ctrl-c was probably entered
+			setupTasks();
+		} catch (RejectedExecutionException e) {
+			// the scheduler is full, so stop the loops that did start
+			exitGracefully();
+			throw e;
+		}
+		synchronized(deviceLock) {
+			// a child class could not reach the device in its constructor
+			if(!deviceConnected) {
+				deviceReconnectTask = scheduler.execute(sourceName + " device reconnect", deviceReconnectLoop());
+			}
 		}
+	}
+	
+	/**
+	 * Stops the loops and closes the streams and the connections to DataTurbine.
+	 * Calling this more than once does nothing.
+	 */
+	public void stop() {
 		exitGracefully();
 	}
 	
-	protected Thread sinkThread() {
-		return new Thread() {
+	/**
+	 * Waits until the connection is stopped.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+	
+	/**
+	 * Stops the connection when the JVM exits, for example on Ctrl-c, so the 
+	 * connections to DataTurbine are closed properly.
+	 */
+	public void stopOnShutdown() {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				ThreadedDTConnection.this.stop();
+			}
+		});
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Fetches data from DataTurbine, or from the <code>LocalFabric</code> for sources in
+	 * this JVM, and queues it for the device writer loop.
+	 */
+	protected Runnable sinkLoop() {
+		final FrameListener queuer = new FrameListener() {
+			@Override
+			public void onFrame(int channel, double time, byte[] data, int off, int len) {
+				if(recorder != null) {
+					recorder.record(TelemetryRecorder.TO_DEVICE, recorder.channel(getInputChannelName(channel)), data, off, len);
+				}
+				metrics.framesToDevice.increment();
+				metrics.bytesToDevice.add(len);
+				try {
+					if(lanes != null) {
+						queueInLanes(channel, data, off, len);
+						return;
+					}
+					// a frame can be more than fits in one slab
+					for(int end = off + len; off < end; off += bufferPool.getSlabSize()) {
+						int n = Math.min(bufferPool.getSlabSize(), end - off);
+						sinkQueue.offer(bufferPool.acquire().fill(data, off, n));
+					}
+				} catch (InterruptedException e) {
+					// the loop sees this and stops
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(running && !Thread.currentThread().isInterrupted()) {
+						int frames;
+						try {
+							frames = read(options.getFetchTimeout(), queuer);
+						} catch (SAPIException e) {
+							if(!options.isReconnect() || !running) {
+								throw e;
+							}
+							resubscribe(e);
+							continue;
+						} catch (IllegalStateException e) {
+							// what a Sink throws when the server went away while it was waiting
+							if(!options.isReconnect() || !running) {
+								throw e;
+							}
+							resubscribe(e);
+							continue;
+						}
+						if(frames > 0) {
+							sinkQueued();
+						}
+					}
+				} catch (SAPIException e) {
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					// shutting down
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Takes data queued by the sink loop and writes it to the device.
+	 */
+	protected Runnable deviceWriterLoop() {
+		return new Runnable() {
 			@Override
 			public void run() {
 				try {
-					while(!isInterrupted()) {
-						byte[] data = read();
-						if(data != null) {
-							oStream.write(data);
+					while(running && !Thread.currentThread().isInterrupted()) {
+						Slab s = lanes == null ? sinkQueue.poll(options.getFetchTimeout()) : pollLanes();
+						if(s != null) {
+							try {
+								while(true) {
+									int generation = deviceGeneration;
+									if(!deviceConnected && !awaitDevice(null, generation)) {
+										return;
+									}
+									try {
+										if(shaper != null) {
+											shaper.acquire(s.length);
+										}
+										oStream.write(s.data, 0, s.length);
+										oStream.flush();
+										if(lanes != null) {
+											addToLink(s.length);
+										}
+										break;
+									} catch (IOException e) {
+										// the frame is written again once the device is back
+										if(!awaitDevice(e, generation)) {
+											throw e;
+										}
+									}
+								}
+							} finally {
+								s.release();
+							}
 						}
 					}
-				} catch (SAPIException | IOException e) {
+				} catch (IOException e) {
 					e.printStackTrace();
+				} catch (InterruptedException e) {
+					// shutting down
 				}
 			}
 		};
 	}
 	
 	/** 
+	 * Blocks on the device stream and queues whatever arrives for the publisher loop.
+	 * The stream should be set up so reads time out after <code>options.getReadTimeout()</code>,
+	 * otherwise this loop only notices it was interrupted when data arrives or the
+	 * stream is closed.
+	 * 
 	 * If a child class needs something special (like a connection driven by callbacks)
 	 * then this should be overridden. See SerialToDT for an example.
 	 */
-	protected Thread sourceThread() {
-		return new Thread() {
+	protected Runnable sourceLoop() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Slab s = bufferPool.acquire();
+				try {
+					while(running && !Thread.currentThread().isInterrupted()) {
+						int generation = deviceGeneration;
+						if(!deviceConnected && !awaitDevice(null, generation)) {
+							break;
+						}
+						int readBytes;
+						try {
+							readBytes = iStream.read(s.data, 0, s.capacity());
+						} catch(InterruptedIOException e) {
+							// the read timed out, go check if we were interrupted
+							continue;
+						} catch(IOException e) {
+							if(running && awaitDevice(e, generation)) {
+								continue;
+							}
+							throw e;
+						}
+						if(readBytes < 0) {
+							// the other end closed the stream
+							if(running && awaitDevice(new EOFException("the device closed the connection"), generation)) {
+								continue;
+							}
+							break;
+						}
+						if(readBytes > 0) {
+							s.length = readBytes;
+							s.time = System.currentTimeMillis()/1000.0;
+							s.arrivalNanos = System.nanoTime();
+							sourceQueue.offer(s);
+							s = bufferPool.acquire();
+						}
+					}
+				} catch (IOException e) {
+					if(running) {
+						e.printStackTrace();
+					}
+				} catch (InterruptedException e) {
+					// shutting down
+				} finally {
+					s.release();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Takes data queued by the source loop and publishes it to DataTurbine.
+	 */
+	protected Runnable publisherLoop() {
+		return new Runnable() {
 			@Override
 			public void run() {
 				try {
-					while(!isInterrupted()) {
-						int readableBytes = iStream.available();
-						if(readableBytes > 0) {
-							byte[] data = new byte[readableBytes];
-							iStream.read(data, 0, readableBytes);
-							write(data);
+					while(running && !Thread.currentThread().isInterrupted()) {
+						Slab s = sourceQueue.poll(publisherWait());
+						if(s != null) {
+							sourceQueueTaken();
+							try {
+								publish(s.data, 0, s.length, s.time);
+								if(isCommitted()) {
+									metrics.arrivalToCommit.record(System.nanoTime() - s.arrivalNanos);
+								}
+							} finally {
+								s.release();
+							}
 						}
+						superviseSource();
+						publishMetricsIfDue();
 					}
-				} catch (SAPIException | IOException e) {
+				} catch (SAPIException e) {
 					/* If a SAPIException happens here, I figure DataTurbine is
 					 * down and it won't be pleasant to see the same error over
 					 * and over.
 					 */
 					e.printStackTrace();
+				} catch (InterruptedException e) {
+					// shutting down
 				}
 			}
 		};
 	}
 	
 	/**
-	 * Since the threads could have been redefined in a child class, the threads are
-	 * actually set here to allow for the redefinitions to take effect.
+	 * Makes the spill buffer, which holds nothing and allocates nothing until an
+	 * outage starts. The file is named after the source, like PixhawkSource.spill.
 	 */
-	protected void setupThreads() {
-		sinkThread = sinkThread();
-		sourceThread = sourceThread();
+	protected void setupSpill() {
+		spill = new SpillBuffer(options.getSpillMemoryBytes(), (int) options.getSpillFileBytes(), 
+				new File(options.getSpillDirectory(), sourceName + "Source.spill"));
+		sourceBackoff = new Backoff(options.getReconnectInitial(), options.getReconnectMax());
+		if(batchWriter != null) {
+			batchWriter.setKeepFailed(true);
+		}
 	}
 	
 	/**
-	 * Will only start the threads if they are not null. This is important because
-	 * if a child process wants to disable one of the threads because it is handling
-	 * the source or sink differently, then it will set one of the threads to null.
-	 * See SerialToDT for an example.
+	 * Has the batch writer hold on to batches that fail, so an outage can spill them.
+	 * This is initially defined in DTConnection.
 	 */
-	protected void startThreads() {
-		if(sinkThread != null) {
-			sinkThread.start();
+	@Override
+	protected void openSource(String[] channels) throws SAPIException {
+		super.openSource(channels);
+		if(spill != null && batchWriter != null) {
+			batchWriter.setKeepFailed(true);
 		}
-		if(sourceThread != null) {
-			sourceThread.start();
+	}
+	
+	/**
+	 * Publishes to DataTurbine, unless it is unreachable or frames from an outage are
+	 * still waiting, in which case the frame waits in the spill buffer behind them.
+	 * Local subscribers are handed the frame either way. Only the publisher loop 
+	 * should call this.
+	 * This is initially defined in DTConnection.
+	 */
+	@Override
+	protected void writeToServer(int channel, byte[] data, int off, int len, double time) throws SAPIException {
+		if(spill == null) {
+			super.writeToServer(channel, data, off, len, time);
+			return;
+		}
+		if(!sourceDown && spill.isEmpty()) {
+			try {
+				super.writeToServer(channel, data, off, len, time);
+				return;
+			} catch (SAPIException e) {
+				sourceLost(e);
+			}
 		}
+		spill.add(channel, data, off, len, time);
 	}
 	
 	/**
-	 * Will wait for the threads to finish executing before moving on.
+	 * Like <code>writeToServer(int, byte[], int, int, double)</code> for float64 samples.
+	 * This is initially defined in DTConnection.
+	 */
+	@Override
+	protected void writeToServer(int[] channels, double[] values, int count, double time) throws SAPIException {
+		if(spill == null) {
+			super.writeToServer(channels, values, count, time);
+			return;
+		}
+		if(!sourceDown && spill.isEmpty()) {
+			try {
+				super.writeToServer(channels, values, count, time);
+				return;
+			} catch (SAPIException e) {
+				sourceLost(e);
+			}
+		}
+		for(int i = 0; i < count; i++) {
+			spill.addFloat64(channels[i], values[i], time);
+		}
+	}
+	
+	/**
+	 * @return true if the last frame published went to DataTurbine rather than the spill buffer
+	 */
+	protected boolean isCommitted() {
+		return spill == null || (!sourceDown && spill.isEmpty());
+	}
+	
+	/**
+	 * Starts an outage: frames go to the spill buffer until <code>superviseSource</code>
+	 * gets the Source back.
+	 */
+	protected void sourceLost(SAPIException cause) {
+		if(sourceDown) {
+			return;
+		}
+		System.out.println(sourceName + " lost DataTurbine, holding frames until it is back: " + cause.getMessage());
+		if(batchWriter != null) {
+			// what the writer never got to the server goes ahead of anything newer
+			batchWriter.spillPending(spill);
+		}
+		sourceDown = true;
+		sourceBackoff.reset();
+		nextSourceAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sourceBackoff.nextDelay());
+	}
+	
+	/**
+	 * Called by the publisher loop between frames. During an outage this tries to 
+	 * reconnect the Source once the backoff says it is time. Once connected, frames 
+	 * held in the spill buffer are published a flush at a time.
+	 * 
+	 * @throws InterruptedException
+	 */
+	protected void superviseSource() throws InterruptedException {
+		if(spill == null) {
+			return;
+		}
+		if(!sourceDown && batchWriter != null) {
+			// a background flush can fail while nothing is being written
+			try {
+				batchWriter.checkFailure();
+			} catch (SAPIException e) {
+				sourceLost(e);
+			}
+		}
+		if(sourceDown) {
+			if(System.nanoTime() - nextSourceAttempt < 0) {
+				return;
+			}
+			try {
+				reconnectSource();
+			} catch (SAPIException e) {
+				nextSourceAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sourceBackoff.nextDelay());
+				return;
+			}
+			sourceDown = false;
+			metrics.reconnects.increment();
+			System.out.println(sourceName + " reconnected to DataTurbine after " + sourceBackoff.getAttempts() 
+					+ " attempts, publishing " + spill.size() + " held frames");
+		}
+		if(spill.isEmpty()) {
+			return;
+		}
+		try {
+			drainSpill(DRAIN_FRAMES);
+		} catch (SAPIException e) {
+			spill.rewind();
+			if(batchWriter != null) {
+				// the frames it had are still in the spill buffer
+				batchWriter.discardPending();
+			}
+			sourceLost(e);
+		}
+	}
+	
+	/**
+	 * Publishes up to <code>maxFrames</code> of the oldest held frames in one flush
+	 * and removes them from the spill buffer once the flush has gone through.
 	 * 
+	 * @throws SAPIException if the flush fails, in which case the frames are still held
 	 * @throws InterruptedException
 	 */
-	protected void waitForThreads() throws InterruptedException {
-		if(sinkThread != null) {
-			sinkThread.join();
+	protected void drainSpill(int maxFrames) throws SAPIException, InterruptedException {
+		int frames = 0;
+		long bytes = 0;
+		long start = System.nanoTime();
+		while(frames < maxFrames && spill.next()) {
+			int channel = spill.getChannel();
+			double time = spill.getTime();
+			if(batchWriter != null) {
+				if(spill.getType() == SpillBuffer.FLOAT64) {
+					batchWriter.appendFloat64(channel, spill.getFloat64(), time);
+				} else {
+					byte[] data = spill.copyData();
+					batchWriter.append(channel, data, 0, data.length, time);
+				}
+			} else {
+				srcChannels.PutTime(time, 0);
+				if(spill.getType() == SpillBuffer.FLOAT64) {
+					putFloat64(srcChannels, channel, new byte[8], spill.getFloat64());
+				} else {
+					srcChannels.PutDataAsInt8(channel, spill.copyData());
+				}
+			}
+			frames++;
+			bytes += spill.getLength();
 		}
-		if(sourceThread != null) {
-			sourceThread.join();
+		if(batchWriter != null) {
+			batchWriter.flush();
+		} else {
+			dtSource.Flush(srcChannels, true);
+			metrics.flushed(frames, start);
+		}
+		spill.commit();
+		metrics.framesPublished.add(frames);
+		metrics.bytesPublished.add(bytes);
+	}
+	
+	/**
+	 * @return how long the publisher should wait for a frame: not at all while held
+	 * 		frames can be published, and only until the next reconnect attempt during an outage
+	 */
+	protected long publisherWait() {
+		if(spill == null || (!sourceDown && spill.isEmpty())) {
+			return options.getFetchTimeout();
+		}
+		if(!sourceDown) {
+			return 0;
+		}
+		long untilAttempt = TimeUnit.NANOSECONDS.toMillis(nextSourceAttempt - System.nanoTime());
+		return Math.max(0, Math.min(options.getFetchTimeout(), untilAttempt));
+	}
+	
+	/**
+	 * @return the frames held during an outage, or null if the reconnect option is off
+	 */
+	public SpillBuffer getSpillBuffer() {
+		return spill;
+	}
+	
+	/**
+	 * Subscribes again after a fetch failed, waiting longer after each failed attempt,
+	 * until it works or the connection stops.
+	 * 
+	 * @throws InterruptedException
+	 */
+	protected void resubscribe(Exception cause) throws InterruptedException {
+		System.out.println(sourceName + " lost its DataTurbine subscription, reconnecting: " + cause.getMessage());
+		Backoff backoff = new Backoff(options.getReconnectInitial(), options.getReconnectMax());
+		while(running) {
+			backoff.sleep();
+			try {
+				reconnectSink();
+			} catch (SAPIException e) {
+				continue;
+			}
+			metrics.reconnects.increment();
+			System.out.println(sourceName + " subscribed again after " + backoff.getAttempts() + " attempts");
+			return;
+		}
+	}
+	
+	/**
+	 * @return true if a child class can open the device again with <code>reconnectDevice</code>
+	 */
+	protected boolean canReconnectDevice() {
+		return false;
+	}
+	
+	/**
+	 * Opens the device again after its stream failed and sets up the streams, for 
+	 * example by connecting a new socket. Only called when <code>canReconnectDevice</code>
+	 * is true. See TCPToDT for an example.
+	 * 
+	 * @throws IOException if the device still can't be reached
+	 */
+	protected void reconnectDevice() throws IOException {
+		throw new IOException("the device can not be reconnected");
+	}
+	
+	/**
+	 * Called when the device stream failed. Unless the stream was already replaced,
+	 * this starts reconnecting in the background. It never waits, so the selector
+	 * thread can call it.
+	 * 
+	 * @param generation <code>deviceGeneration</code> from before the read or write
+	 * 		that failed, so a failure on a stream that was already replaced doesn't
+	 * 		start another reconnect
+	 * @return false if the device can't be reconnected
+	 */
+	protected boolean deviceLost(IOException cause, int generation) {
+		synchronized(deviceLock) {
+			if(!deviceConnected || generation != deviceGeneration) {
+				return true;
+			}
+			if(!options.isReconnect() || !canReconnectDevice()) {
+				return false;
+			}
+			System.out.println(sourceName + " lost the device, reconnecting: " + cause.getMessage());
+			deviceConnected = false;
+			deviceReconnectTask = scheduler.execute(sourceName + " device reconnect", deviceReconnectLoop());
+			return true;
+		}
+	}
+	
+	/**
+	 * Called by a loop whose device stream failed, or that found the device is not
+	 * connected. The first loop to see a failure starts reconnecting, then every 
+	 * loop waits until the device is back.
+	 * 
+	 * @param cause what went wrong, or null to only wait
+	 * @param generation see <code>deviceLost</code>
+	 * @return true if the device is connected and the loop should carry on, false if
+	 * 		it can't be reconnected or the connection is stopping
+	 */
+	protected boolean awaitDevice(IOException cause, int generation) {
+		if(cause != null && !deviceLost(cause, generation)) {
+			return false;
+		}
+		synchronized(deviceLock) {
+			try {
+				while(running && !deviceConnected) {
+					deviceLock.wait(options.getReadTimeout());
+				}
+			} catch (InterruptedException e) {
+				// shutting down
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return running && deviceConnected;
+		}
+	}
+	
+	/**
+	 * Calls <code>reconnectDevice</code> until it works or the connection stops, 
+	 * waiting longer after each failed attempt, then wakes the loops waiting in 
+	 * <code>awaitDevice</code>.
+	 */
+	protected Runnable deviceReconnectLoop() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Backoff backoff = new Backoff(options.getReconnectInitial(), options.getReconnectMax());
+				try {
+					while(running && !Thread.currentThread().isInterrupted()) {
+						try {
+							reconnectDevice();
+						} catch (IOException e) {
+							backoff.sleep();
+							continue;
+						}
+						synchronized(deviceLock) {
+							deviceConnected = true;
+							deviceGeneration++;
+							deviceLock.notifyAll();
+						}
+						metrics.reconnects.increment();
+						System.out.println(sourceName + " reconnected to the device after " + backoff.getAttempts() + " failed attempts");
+						return;
+					}
+				} catch (InterruptedException e) {
+					// shutting down
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Builds the table that maps a message ID to its output channel, so routing a 
+	 * packet is one array lookup. DataTurbine won't take new channels once the Source
+	 * has flushed, so every channel is added now, which with demux=all means one for
+	 * each message in <code>MAVLinkMessages</code>.
+	 */
+	protected void setupDemux() {
+		demuxChannels = new int[MAVLinkMessages.COUNT];
+		Arrays.fill(demuxChannels, NOT_ROUTED);
+		int[] ids = options.getDemuxIds();
+		try {
+			if(ids == null) {
+				for(int id = 0; id < MAVLinkMessages.COUNT; id++) {
+					if(MAVLinkMessages.isNamed(id)) {
+						demuxChannels[id] = addOutputChannel(MAVLinkMessages.name(id));
+					}
+				}
+				return;
+			}
+			for(int id : ids) {
+				if(demuxChannels[id] == NOT_ROUTED) {
+					demuxChannels[id] = addOutputChannel(MAVLinkMessages.name(id));
+				}
+			}
+		} catch (SAPIException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Builds the tables of fields to decode for each message ID and adds a channel
+	 * for every field, named like GLOBAL_POSITION_INT.lat.
+	 */
+	protected void setupDecode() {
+		decodeFields = new MAVLinkFields.Field[MAVLinkMessages.COUNT][];
+		decodeChannels = new int[MAVLinkMessages.COUNT][];
+		MAVLinkFields.Field[] fields = options.getDecodeFields();
+		decodedValues = new double[fields.length];
+		int[] counts = new int[MAVLinkMessages.COUNT];
+		for(MAVLinkFields.Field f : fields) {
+			counts[f.messageId]++;
+		}
+		try {
+			for(MAVLinkFields.Field f : fields) {
+				int id = f.messageId;
+				if(decodeFields[id] == null) {
+					decodeFields[id] = new MAVLinkFields.Field[counts[id]];
+					decodeChannels[id] = new int[counts[id]];
+					counts[id] = 0;
+				}
+				int i = counts[id]++;
+				decodeFields[id][i] = f;
+				decodeChannels[id][i] = addOutputChannel(f.toString());
+			}
+		} catch (SAPIException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Replaces the queue to the device with a <code>LaneQueue</code> and works out
+	 * the lane of each message ID. A message named in more than one lane goes in the
+	 * highest.
+	 */
+	protected void setupLanes() {
+		int[] weights = options.isLaneWeighted() ? options.getLaneWeights() : null;
+		lanes = new LaneQueue(options.getQueueCapacity(), options.getBackPressurePolicy(), options.getLaneCount(), weights, options.getSlabSize());
+		sinkQueue = lanes;
+		// every lane can fill up on its own
+		bufferPool = new BufferPool(options.getSlabSize(), (options.getLaneCount() + 1)*options.getQueueCapacity() + 16);
+		messageLanes = new int[MAVLinkMessages.COUNT];
+		Arrays.fill(messageLanes, options.getLaneCount() - 1);
+		int[][] ids = options.getLaneMessageIds();
+		for(int lane = ids.length - 1; lane >= 0; lane--) {
+			for(int id : ids[lane]) {
+				messageLanes[id] = lane;
+				if(sinkFramer == null) {
+					sinkFramer = new MAVLinkFramer();
+					// bytes that aren't packets go in the last lane rather than being lost
+					sinkFramer.setPassUnframed(true);
+				}
+			}
+		}
+		if(sinkFramer != null && options.getSlabSize() < MAVLinkFramer.MAX_PACKET) {
+			throw new IllegalArgumentException("lanes that name messages need a slabSize of at least " 
+					+ MAVLinkFramer.MAX_PACKET + " to hold a whole packet");
+		}
+	}
+	
+	/**
+	 * Queues fetched data in the lane of its channel, or packet by packet in the 
+	 * lanes of their messages. Only the sink loop calls this.
+	 * 
+	 * @throws InterruptedException if the back-pressure policy is BLOCK and the thread is interrupted while waiting
+	 */
+	protected void queueInLanes(int channel, byte[] data, int off, int len) throws InterruptedException {
+		int last = lanes.getLaneCount() - 1;
+		int lane = channelLane(channel);
+		if(lane == BY_MESSAGE && sinkFramer != null) {
+			sinkFramer.feed(data, off, len);
+			while(sinkFramer.next()) {
+				int id = sinkFramer.getMessageId();
+				// one packet a slab, so a command never waits for the rest of a slab to go out
+				lanes.offer(id >= 0 && id < messageLanes.length ? messageLanes[id] : last, 
+						bufferPool.acquire().fill(sinkFramer.getPacket(), 0, sinkFramer.getPacketLength()));
+			}
+			return;
+		}
+		if(lane == BY_MESSAGE) {
+			lane = last;
+		}
+		for(int end = off + len; off < end; off += bufferPool.getSlabSize()) {
+			int n = Math.min(bufferPool.getSlabSize(), end - off);
+			lanes.offer(lane, bufferPool.acquire().fill(data, off, n));
+		}
+	}
+	
+	/**
+	 * @param channel an input channel index
+	 * @return the lane the channel is named in, or BY_MESSAGE
+	 */
+	protected int channelLane(int channel) {
+		if(channel >= channelLanes.length) {
+			int known = channelLanes.length;
+			channelLanes = Arrays.copyOf(channelLanes, channel + 1);
+			Arrays.fill(channelLanes, known, channelLanes.length, UNKNOWN_LANE);
+		}
+		if(channelLanes[channel] == UNKNOWN_LANE) {
+			String name = getInputChannelName(channel);
+			String[][] named = options.getLaneChannels();
+			int lane = BY_MESSAGE;
+			for(int i = 0; i < named.length && lane == BY_MESSAGE; i++) {
+				for(String c : named[i]) {
+					if(c.equals(name)) {
+						lane = i;
+						break;
+					}
+				}
+			}
+			channelLanes[channel] = lane;
+		}
+		return channelLanes[channel];
+	}
+	
+	/**
+	 * Takes the next frame for the device from the lanes. With a link budget, frames
+	 * from lanes other than the first only come out once what is waiting in the link
+	 * and the frame fit in the budget, or the link is empty.
+	 * 
+	 * @return the frame, or null if there was nothing to write in time
+	 * @throws InterruptedException
+	 */
+	protected Slab pollLanes() throws InterruptedException {
+		long rate = linkRate();
+		if(options.getLinkBudget() == 0 || rate == 0) {
+			return lanes.poll(options.getFetchTimeout());
+		}
+		long backlog = linkBacklog(rate);
+		if(backlog == 0) {
+			return lanes.poll(options.getFetchTimeout());
+		}
+		int room = (int) Math.max(0, options.getLinkBudget() - backlog);
+		// until the link is empty only a command, or bulk data that fits, can be written
+		long drain = Math.max(1, (backlog*1000 + rate - 1)/rate);
+		return lanes.poll(Math.min(options.getFetchTimeout(), drain), room);
+	}
+	
+	/**
+	 * @return bytes written to the device that the link hasn't carried yet
+	 */
+	protected long linkBacklog(long rate) {
+		long now = System.nanoTime();
+		// capped so an idle link doesn't overflow this
+		long carried = Math.min(now - linkBacklogNanos, 1000000000L)*rate/1000000000L;
+		if(carried > 0) {
+			linkBacklog = Math.max(0, linkBacklog - carried);
+			linkBacklogNanos = now;
+		}
+		return linkBacklog;
+	}
+	
+	/**
+	 * Counts bytes written to the device as waiting in the link.
+	 */
+	protected void addToLink(int bytes) {
+		long rate = linkRate();
+		if(rate > 0) {
+			linkBacklog = linkBacklog(rate) + bytes;
+		}
+	}
+	
+	/**
+	 * @return bytes per second the device link carries, or 0 if unknown. Child classes
+	 * 		that know their link, like SerialToDT, override this.
+	 */
+	protected long linkRate() {
+		return options.getLinkRate();
+	}
+	
+	/**
+	 * Paces the device writer at the link rate and bounds the queue to the device by 
+	 * <code>shapingQueueMillis</code> at that rate. Shaping is left off if the rate isn't known.
+	 */
+	protected void setupShaping() {
+		long rate = linkRate();
+		if(rate == 0) {
+			System.err.println(sourceName + ": shaping needs a linkRate, writing to the device unshaped");
+			return;
+		}
+		shaper = new TokenBucket(rate, options.getShapingBurst());
+		sinkQueue.setByteCapacity(Math.max(1, rate*options.getShapingQueueMillis()/1000));
+	}
+	
+	/**
+	 * @return what paces the device writer, or null if the shaping option is off
+	 */
+	public TokenBucket getShaper() {
+		return shaper;
+	}
+	
+	/**
+	 * @return the queue to the device when the lanes option is on, or null
+	 */
+	public LaneQueue getLanes() {
+		return lanes;
+	}
+	
+	/**
+	 * Points the metrics' gauges at the queues, registers them over JMX and adds the
+	 * metrics channel if snapshots are published.
+	 */
+	protected void setupMetrics() {
+		metrics.setSourceQueueDepth(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return sourceQueue.size();
+			}
+		});
+		metrics.setSinkQueueDepth(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return sinkQueue.size();
+			}
+		});
+		metrics.setSinkQueueBytes(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return sinkQueue.getQueuedBytes();
+			}
+		});
+		metrics.setDroppedFrames(new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return sourceQueue.getDroppedFrames() + sinkQueue.getDroppedFrames() + getPublishDropped();
+			}
+		});
+		if(spill != null) {
+			metrics.setSpilledFrames(new LongSupplier() {
+				@Override
+				public long getAsLong() {
+					return spill.size();
+				}
+			});
+		}
+		metrics.register(sourceName);
+		if(options.getMetricsInterval() > 0) {
+			try {
+				metricsChannel = addOutputChannel("metrics");
+			} catch (SAPIException e) {
+				e.printStackTrace();
+			}
+			lastMetricsNanos = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * @return the frames the spill buffer or the batch writer had no room for
+	 */
+	protected long getPublishDropped() {
+		return getBatchDroppedFrames() + (spill == null ? 0 : spill.getDroppedFrames());
+	}
+	
+	/**
+	 * Publishes a snapshot of the metrics if <code>metricsInterval</code> has passed
+	 * since the last one. Only the publisher loop calls this, so it never writes at
+	 * the same time as <code>publish</code>.
+	 * 
+	 * @throws SAPIException
+	 */
+	protected void publishMetricsIfDue() throws SAPIException {
+		if(metricsChannel == NO_METRICS) {
+			return;
+		}
+		long now = System.nanoTime();
+		if(now - lastMetricsNanos < TimeUnit.MILLISECONDS.toNanos(options.getMetricsInterval())) {
+			return;
+		}
+		lastMetricsNanos = now;
+		byte[] snapshot = metrics.getSnapshot().getBytes();
+		write(metricsChannel, snapshot, 0, snapshot.length);
+	}
+	
+	/**
+	 * Opens the recorder, with the segments named after this connection's source.
+	 */
+	protected void setupRecorder() {
+		try {
+			recorder = new TelemetryRecorder(new File(options.getRecord()), sourceName, options.getRecordSegmentBytes());
+			recordChannel = recorder.channel(sourceName+"Channel");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return the recorder, or null if the record option is off
+	 */
+	public TelemetryRecorder getRecorder() {
+		return recorder;
+	}
+	
+	/**
+	 * Publishes the decoded fields of the packet the framer just found, if it is a
+	 * message with fields to decode.
+	 */
+	protected void decode(double time) throws SAPIException {
+		int id = framer.getMessageId();
+		MAVLinkFields.Field[] fields = id < decodeFields.length ? decodeFields[id] : null;
+		if(fields == null) {
+			return;
+		}
+		byte[] packet = framer.getPacket();
+		int off = framer.getPayloadOffset(), len = framer.getPayloadLength();
+		for(int i = 0; i < fields.length; i++) {
+			decodedValues[i] = fields[i].get(packet, off, len);
+		}
+		write(decodeChannels[id], decodedValues, fields.length, time);
+	}
+	
+	/**
+	 * Publishes data read from the device to DataTurbine, through the framing stage
+	 * if there is one, and records it if the record option is on. With framing, a
+	 * packet that is not complete yet is held until the rest of it is published, and
+	 * the time of a packet is the time of the read that completed it. Only call this
+	 * from one thread.
+	 * 
+	 * @param time the time the data was read in seconds since the epoch
+	 * @throws SAPIException
+	 */
+	protected void publish(byte[] data, int off, int len, double time) throws SAPIException {
+		metrics.framesFromDevice.increment();
+		metrics.bytesFromDevice.add(len);
+		if(recorder != null) {
+			recorder.record(TelemetryRecorder.FROM_DEVICE, recordChannel, data, off, len);
+		}
+		if(framer == null) {
+			write(data, off, len, time);
+			return;
+		}
+		framer.feed(data, off, len);
+		int batched = 0;
+		while(framer.next()) {
+			int n = framer.getPacketLength();
+			if(decodeFields != null) {
+				decode(time);
+			}
+			if(demuxChannels != null) {
+				int id = framer.getMessageId();
+				int channel = id < demuxChannels.length ? demuxChannels[id] : NOT_ROUTED;
+				if(channel != NOT_ROUTED) {
+					write(channel, framer.getPacket(), 0, n, time);
+					if(!options.isDemuxRaw()) {
+						continue;
+					}
+				}
+			}
+			if(framedBatch == null) {
+				write(framer.getPacket(), 0, n, time);
+				continue;
+			}
+			if(batched + n > framedBatch.length) {
+				write(framedBatch, 0, batched, time);
+				batched = 0;
+			}
+			System.arraycopy(framer.getPacket(), 0, framedBatch, batched, n);
+			batched += n;
+		}
+		if(batched > 0) {
+			write(framedBatch, 0, batched, time);
+		}
+	}
+	
+	/**
+	 * @return the framing stage, or null if the framing option is off
+	 */
+	public MAVLinkFramer getFramer() {
+		return framer;
+	}
+	
+	/**
+	 * Called by the publisher loop each time it takes a frame, so a producer that 
+	 * stopped because the queue was full knows there is room again. Does nothing
+	 * unless a child class needs it. See TCPToDT for an example.
+	 */
+	protected void sourceQueueTaken() {
+	}
+	
+	/**
+	 * Called by the sink loop after it queues a fetch, for a child class that takes
+	 * frames off the sink queue without a device writer loop. Does nothing unless a 
+	 * child class needs it. See TCPToDT for an example.
+	 */
+	protected void sinkQueued() {
+	}
+	
+	/**
+	 * Since the loops could have been redefined in a child class, the loops are
+	 * actually created here to allow for the redefinitions to take effect.
+	 * A loop is only scheduled if it is not null. This is important because if a 
+	 * child class wants to disable one of the loops because it is handling the 
+	 * source or sink differently, then it will return null for it. See SerialToDT
+	 * for an example. The publisher and device writer are only scheduled if the 
+	 * loop feeding them exists, and the device writer can be turned off the same way.
+	 */
+	protected void setupTasks() {
+		Runnable sink = sinkLoop();
+		Runnable source = sourceLoop();
+		if(sink != null) {
+			Runnable writer = deviceWriterLoop();
+			if(writer != null) {
+				deviceWriterTask = scheduler.execute(sourceName + " device writer", writer);
+			}
+			sinkTask = scheduler.execute(sourceName + " sink", sink);
+		}
+		if(source != null) {
+			publisherTask = scheduler.execute(sourceName + " publisher", publisherLoop());
+			sourceTask = scheduler.execute(sourceName + " source", source);
+		}
+	}
+	
+	/**
+	 * Will wait for the loops to finish executing before moving on.
+	 * 
+	 * @throws InterruptedException
+	 */
+	protected void waitForTasks() throws InterruptedException {
+		for(IOScheduler.Task t : new IOScheduler.Task[] {sinkTask, sourceTask, deviceWriterTask, publisherTask, deviceReconnectTask}) {
+			if(t != null) {
+				t.join();
+			}
 		}
 	}
 	
@@ -157,36 +1276,55 @@ public abstract class ThreadedDTConnection extends DTConnection {
 	}
 	
 	/** 
-	 * Will attempt to end the threads in a respectful manner.
+	 * Will attempt to end the loops in a respectful manner.
 	 */
-	protected void interruptThreads() {
-		if(sinkThread != null) {
-			sinkThread.interrupt();
-		}
-		if(sourceThread != null) {
-			sourceThread.interrupt();
+	protected void interruptTasks() {
+		running = false;
+		for(IOScheduler.Task t : new IOScheduler.Task[] {sinkTask, sourceTask, deviceWriterTask, publisherTask, deviceReconnectTask}) {
+			if(t != null) {
+				t.interrupt();
+			}
 		}
 		try {
-			waitForThreads();
+			waitForTasks();
 		} catch (InterruptedException e1) {
-			// somebody is getting a little excited with Ctrl-c
-			System.exit(-1);
+			// somebody is getting a little excited with Ctrl-c, so stop waiting and close up
+			Thread.currentThread().interrupt();
 		}
 	}
 	
 	/**
-	 * This will clean up the threads and close the streams in addtion to doing what
-	 * the parent class does.
+	 * This will clean up the loops and close the streams in addtion to doing what
+	 * the parent class does. It only does this the first time it is called.
 	 * This is initially defined in DTConnection.
 	 */
 	@Override
 	protected void exitGracefully() {
-		interruptThreads();
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+		}
+		interruptTasks();
 		super.exitGracefully();
 		try {
 			closeStreams();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		sourceQueue.clear();
+		sinkQueue.clear();
+		if(recorder != null) {
+			recorder.close();
+		}
+		if(spill != null) {
+			if(!spill.isEmpty()) {
+				System.out.println(sourceName + " stopped with " + spill.size() + " frames never published");
+			}
+			spill.close();
+		}
+		metrics.unregister();
+		terminated.countDown();
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,227 @@
+package edu.scu.engr.rsl.connections;
+
+import com.rbnb.sapi.ChannelMap;
+
+/**
+ * A reusable buffer for the samples of one DataTurbine channel and the times they
+ * were published, filled by <code>DTConnection.read(String, TimeSeries, long)</code>.
+ * 
+ * Numeric channels, like the ones the decode option publishes, fill the values as
+ * doubles. Int8 channels, like the raw stream from a bridge, fill the bytes instead,
+ * with one time per byte. Either way <code>getCount</code> says how much of the
+ * arrays a read filled and the rest is left over from earlier reads.
+ * 
+ * A series holds at most <code>capacity</code> samples, so it also is a "latest N"
+ * buffer: if more arrived since the last read, the newest are kept and the rest are
+ * counted in <code>getDropped</code>. With <code>setLatestOnly</code> a read only asks
+ * DataTurbine for the newest sample.
+ * 
+ * Matlab copies arrays passed to Java, so the arrays live here and are handed back
+ * by <code>getValues</code>, <code>getBytes</code> and <code>getTimes</code>. A Java
+ * caller can pass its own arrays to the constructor instead.
+ */
+public class TimeSeries {
+	protected double[] values;
+	protected byte[] bytes;
+	protected final double[] times;
+	protected int count = 0;
+	protected boolean isBytes = false;
+	// the time of the newest sample read so far
+	protected double cursor;
+	protected boolean latestOnly = false;
+	protected long dropped = 0;
+
+	/**
+	 * Makes a series that starts with data published after now.
+	 * 
+	 * @param capacity the most samples one read returns
+	 */
+	public TimeSeries(int capacity) {
+		this(new double[capacity], new double[capacity]);
+	}
+
+	/**
+	 * Makes a series that fills the caller's arrays, which must be the same length,
+	 * and starts with data published after now.
+	 */
+	public TimeSeries(double[] values, double[] times) {
+		if(values.length != times.length || times.length == 0) {
+			throw new IllegalArgumentException("values and times must be the same, nonzero length");
+		}
+		this.values = values;
+		this.times = times;
+		this.cursor = System.currentTimeMillis()/1000.0;
+	}
+
+	/**
+	 * Like <code>TimeSeries(double[], double[])</code> for an int8 channel.
+	 */
+	public TimeSeries(byte[] bytes, double[] times) {
+		if(bytes.length != times.length || times.length == 0) {
+			throw new IllegalArgumentException("bytes and times must be the same, nonzero length");
+		}
+		this.bytes = bytes;
+		this.times = times;
+		this.cursor = System.currentTimeMillis()/1000.0;
+	}
+
+	/**
+	 * Copies the samples of one channel of a fetch into the arrays.
+	 * 
+	 * @param m the fetched map
+	 * @param index the channel's index in m, or -1 if the fetch had nothing for it
+	 * @param afterCursor true to skip samples no newer than the cursor, which DataTurbine
+	 * 		returns again because an "after" request includes its start time
+	 * @return the number of samples copied
+	 * @throws IllegalArgumentException if the channel holds neither numbers nor int8 bytes
+	 */
+	int fill(ChannelMap m, int index, boolean afterCursor) {
+		count = 0;
+		if(index < 0) {
+			return 0;
+		}
+		double[] t = m.GetTimes(index);
+		int start = 0;
+		if(afterCursor) {
+			while(start < t.length && t[start] <= cursor) {
+				start++;
+			}
+		}
+		int keep = Math.min(t.length - start, latestOnly ? 1 : times.length);
+		int from = t.length - keep;
+		dropped += from - start;
+		if(keep == 0) {
+			return 0;
+		}
+		int type = m.GetType(index);
+		isBytes = type == ChannelMap.TYPE_INT8;
+		switch(type) {
+			case ChannelMap.TYPE_FLOAT64:
+				System.arraycopy(m.GetDataAsFloat64(index), from, values(), 0, keep);
+				break;
+			case ChannelMap.TYPE_FLOAT32:
+				float[] f = m.GetDataAsFloat32(index);
+				for(int i = 0; i < keep; i++) {
+					values()[i] = f[from + i];
+				}
+				break;
+			case ChannelMap.TYPE_INT64:
+				long[] l = m.GetDataAsInt64(index);
+				for(int i = 0; i < keep; i++) {
+					values()[i] = l[from + i];
+				}
+				break;
+			case ChannelMap.TYPE_INT32:
+				int[] n = m.GetDataAsInt32(index);
+				for(int i = 0; i < keep; i++) {
+					values()[i] = n[from + i];
+				}
+				break;
+			case ChannelMap.TYPE_INT16:
+				short[] s = m.GetDataAsInt16(index);
+				for(int i = 0; i < keep; i++) {
+					values()[i] = s[from + i];
+				}
+				break;
+			case ChannelMap.TYPE_INT8:
+				System.arraycopy(m.GetDataAsInt8(index), from, bytes(), 0, keep);
+				break;
+			default:
+				throw new IllegalArgumentException(m.GetName(index) + " is not a numeric channel");
+		}
+		System.arraycopy(t, from, times, 0, keep);
+		cursor = t[t.length-1];
+		count = keep;
+		return keep;
+	}
+
+	// the other array is only made if the channel turns out to need it
+	private double[] values() {
+		if(values == null) {
+			values = new double[times.length];
+		}
+		return values;
+	}
+
+	private byte[] bytes() {
+		if(bytes == null) {
+			bytes = new byte[times.length];
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of samples the last read put in the arrays
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the values of a numeric channel. Only the first <code>getCount</code> are from the last read.
+	 */
+	public double[] getValues() {
+		return values();
+	}
+
+	/**
+	 * @return the bytes of an int8 channel. Only the first <code>getCount</code> are from the last read.
+	 */
+	public byte[] getBytes() {
+		return bytes();
+	}
+
+	/**
+	 * @return the time of each sample in seconds since the epoch. Only the first
+	 * 		<code>getCount</code> are from the last read.
+	 */
+	public double[] getTimes() {
+		return times;
+	}
+
+	/**
+	 * @return true if the last read was from an int8 channel and filled the bytes
+	 */
+	public boolean isBytes() {
+		return isBytes;
+	}
+
+	public int capacity() {
+		return times.length;
+	}
+
+	/**
+	 * @return the time of the newest sample read so far, in seconds since the epoch
+	 */
+	public double getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Moves the cursor, for example to 0 to read everything DataTurbine still has.
+	 * 
+	 * @param cursor the next read returns samples newer than this, in seconds since the epoch
+	 */
+	public void setCursor(double cursor) {
+		this.cursor = cursor;
+	}
+
+	public boolean isLatestOnly() {
+		return latestOnly;
+	}
+
+	/**
+	 * @param latestOnly true to have each read return only the newest sample, if it
+	 * 		is newer than the cursor, without DataTurbine sending the backlog
+	 */
+	public void setLatestOnly(boolean latestOnly) {
+		this.latestOnly = latestOnly;
+	}
+
+	/**
+	 * @return the number of samples skipped because more arrived between reads than fit
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,45 @@
+package edu.scu.engr.rsl.matlab;
+
+import com.mathworks.jmi.Matlab;
+
+/**
+ * The <code>MatlabEngine</code> of the Matlab that this JVM is running in, through
+ * the undocumented <code>com.mathworks.jmi.Matlab</code> API.
+ * 
+ */
+public class JmiEngine implements MatlabEngine {
+	
+	/**
+	 * The hook to Matlab resources, only needed to echo an eval to the console. 
+	 * Made on the interpreter thread the first time it is needed.
+	 */
+	private Matlab m_matlab;
+	
+	public void whenReady(Runnable v_task) {
+		Matlab.whenMatlabReady(v_task);
+	}
+	
+	public Object feval(String v_function, Object[] v_args, boolean v_consoleOutput) throws Exception {
+		if(v_consoleOutput) { return Matlab.mtFevalConsoleOutput(v_function, v_args, 0); }
+		return Matlab.mtFeval(v_function, v_args, 0);
+	}
+	
+	public void eval(String v_expression, boolean v_consoleOutput) throws Exception {
+		if(v_consoleOutput) {
+			if(m_matlab == null) { m_matlab = new Matlab(); }
+			m_matlab.evalConsoleOutput(v_expression);
+		}
+		else { Matlab.mtEval(v_expression); }
+	}
+	
+	public boolean isAvailable() {
+		return isMatlabAvailable();
+	}
+	
+	/**
+	 * @return true if this JVM is Matlab's and Matlab is available for use.
+	 */
+	public static boolean isMatlabAvailable() {
+		return Matlab.isMatlabAvailable();
+	}
+}
@@ -1,6 +1,14 @@
 package edu.scu.engr.rsl.matlab;
 
-import com.mathworks.jmi.Matlab;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
  * The <code>MatlabBridge</code> class provides methods for using objects to 
@@ -12,6 +20,22 @@ import com.mathworks.jmi.Matlab;
  * The main purpose of the <code>MatlabBridge</code> is to execute Matlab functions 
  * without the need for the data to be 
  * 
+ * Calls are queued and run in order by a single dispatcher that Matlab runs
+ * through <code>whenMatlabReady</code> whenever there is something queued, so no
+ * thread is created per call. Every call gets its own <code>CompletableFuture</code>
+ * with its result, so concurrent callers never see each other's output. The queue
+ * is bounded; a call made while it is full fails with a
+ * <code>RejectedExecutionException</code> and is counted in <code>getRejectedCalls</code>.
+ * 
+ * For calls at a high rate, like one per telemetry packet, a <code>Batch</code> 
+ * takes many calls into the queue as one entry that Matlab runs in a single 
+ * <code>whenMatlabReady</code> callback, and <code>fevalLatest</code> folds a call 
+ * into one to the same function that is still queued, so only the newest 
+ * arguments are run.
+ * 
+ * The calls are run by a <code>MatlabEngine</code>, which is Matlab itself unless
+ * another engine, like a <code>SimulatedEngine</code>, is given to the constructor.
+ * 
  * <code>Matlab</code> member functions of interest: 
  * <br>feval(String,Object[]) throws InterruptedException,MatlabException
  * <br>whenMatlabReady(Runnable)
@@ -22,41 +46,68 @@ import com.mathworks.jmi.Matlab;
  * @since JDK1.6
  * @since Matlab 2009a
  * @see edu.scu.engr.rsl.matlab.MatlabController
- *
+ * 
  */
 public class MatlabBridge {
 	
 	/**
-	 * The hook to Matlab resources. 
+	 * The number of calls that can wait for Matlab before more are rejected, unless
+	 * another capacity is given to the constructor.
 	 */
-	private Matlab m_matlab;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
 	
 	/**
-	 * The <code>Object</code> that is returned with the execution of the function or expression.
+	 * The most calls the dispatcher runs each time Matlab is ready, so a long queue
+	 * does not keep Matlab from its own work.
 	 */
-	private Object m_outputObject;
+	protected static final int CALLS_PER_DISPATCH = 64;
 	
 	/**
-	 * A flag denoting whether the output from the function execution is set. 
+	 * The hook to Matlab resources. 
 	 */
-	private boolean m_isOutputSet; 
+	private final MatlabEngine m_engine;
 	
 	/**
 	 * A flag denoting whether the output, if any, from functions or expressions are printed to the console. 
-	 * This flag is used by the <code>ExecutionProcess</code> Thread to determine 
+	 * This flag is used by the <code>ExecutionProcess</code> to determine
 	 * what <code>Matlab</code> function to use to execute functions or expressions. 
 	 */
-	private boolean m_showConsoleOutput;
+	private volatile boolean m_showConsoleOutput;
+	
+	/**
+	 * The calls waiting for Matlab, in the order they were made.
+	 */
+	private final ArrayBlockingQueue<ExecutionProcess> m_queue;
+	
+	/**
+	 * Set while the dispatcher is waiting for Matlab or running, so it is only handed
+	 * to Matlab once however many calls are queued.
+	 */
+	private final AtomicBoolean m_dispatchScheduled = new AtomicBoolean();
+	
+	/**
+	 * The result of the most recent function call, for <code>getFunctionOutput</code>.
+	 */
+	private volatile CompletableFuture<Object> m_lastFunction;
+	
+	private final AtomicLong m_submittedCalls = new AtomicLong();
+	private final AtomicLong m_completedCalls = new AtomicLong();
+	private final AtomicLong m_failedCalls = new AtomicLong();
+	private final AtomicLong m_rejectedCalls = new AtomicLong();
+	private final AtomicLong m_coalescedCalls = new AtomicLong();
+	
+	/**
+	 * The queued <code>fevalLatest</code> call of each function that has not started yet.
+	 * Also the lock for changing the arguments of those calls.
+	 */
+	private final HashMap<String, ExecutionProcess> m_coalesced = new HashMap<String, ExecutionProcess>();
 	
 	/**
 	 * Creates a <code>MatlabBridge</code> and sets the 'eval' statement to be 
 	 * echoed on the command-line. 
 	 */
 	public MatlabBridge() {
-		m_matlab = new Matlab();
-		m_outputObject = new String("N/A");
-		m_isOutputSet = false;
-		m_showConsoleOutput = true;
+		this(true);
 	}
 	
 	/**
@@ -65,10 +116,29 @@ public class MatlabBridge {
 	 * @param v_showConsoleOutput True is the echo is desired, false if otherwise. 
 	 */
 	public MatlabBridge(boolean v_showConsoleOutput) {
-		m_matlab = new Matlab();
-		m_outputObject = new String("N/A");
-		m_isOutputSet = false;
+		this(v_showConsoleOutput, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Creates a <code>MatlabBridge</code> that queues at most the given number of calls.
+	 * @param v_showConsoleOutput True is the echo is desired, false if otherwise. 
+	 * @param v_queueCapacity The most calls that can wait for Matlab at once.
+	 */
+	public MatlabBridge(boolean v_showConsoleOutput, int v_queueCapacity) {
+		this(new JmiEngine(), v_showConsoleOutput, v_queueCapacity);
+	}
+	
+	/**
+	 * Creates a <code>MatlabBridge</code> that runs calls on the given engine.
+	 * @param v_engine The engine to run calls on.
+	 * @param v_showConsoleOutput True is the echo is desired, false if otherwise. 
+	 * @param v_queueCapacity The most calls that can wait for Matlab at once.
+	 */
+	public MatlabBridge(MatlabEngine v_engine, boolean v_showConsoleOutput, int v_queueCapacity) {
+		m_engine = v_engine;
 		m_showConsoleOutput = v_showConsoleOutput;
+		m_queue = new ArrayBlockingQueue<ExecutionProcess>(v_queueCapacity);
+		m_lastFunction = CompletableFuture.completedFuture((Object) "N/A");
 	}
 	
 	/**
@@ -76,67 +146,115 @@ public class MatlabBridge {
 	 * @param v_expression The expression to be executed. 
 	 */
 	public void eval(final String v_expression) {
-		class EvalThread extends Thread {
-			public void run() {
-				try { 
-					synchronized(m_matlab) {
-						executeExpression(v_expression);
-					}
-				}catch(InterruptedException ie) { ie.printStackTrace(); } 
-			}
-		}
-		EvalThread evalThread = new EvalThread(); 
-		evalThread.start();
+		evalAsync(v_expression);
 	}
-
+	
+	/**
+	 * Queues the specified expression.
+	 * @param v_expression The expression to be executed. 
+	 * @return A future that completes with null once Matlab has run the expression, or
+	 * 			exceptionally if it failed or was rejected.
+	 */
+	public CompletableFuture<Object> evalAsync(String v_expression) {
+		return submit(new ExecutionProcess(v_expression, null, false));
+	}
+	
 	/**
 	 * Executes the specified function without locking up the Matlab resources. 
-	 * While a return value may be expected from the function the member field, 
-	 * <code>m_outputObject</code>, which can be accessed via the <code>getFunctionOutput</code> 
-	 * method serves as the means for the using Objects to get the output. 
+	 * While a return value may be expected from the function the output of the
+	 * most recent call can be accessed via the <code>getFunctionOutput</code>
+	 * method. Use <code>fevalAsync</code> to get the output of this particular call.
 	 * @param v_function The function to be executed. 
 	 * @param v_args The arguments as expected by the Matlab function.
 	 */
 	public void feval(final String v_function, final Object[] v_args) {
-		class EvalThread extends Thread {
-			public void run() {
-				try {
-					synchronized(m_matlab) {
-						executeFunction(v_function, v_args);
-					}
-				}catch(InterruptedException ie) { ie.printStackTrace(); }
+		fevalAsync(v_function, v_args);
+	}
+	
+	/**
+	 * Queues the specified function.
+	 * @param v_function The function to be executed. 
+	 * @param v_args The arguments as expected by the Matlab function.
+	 * @return A future that completes with the output of the function, or
+	 * 			exceptionally if it failed or was rejected.
+	 */
+	public CompletableFuture<Object> fevalAsync(String v_function, Object[] v_args) {
+		CompletableFuture<Object> result = submit(new ExecutionProcess(v_function, v_args, true));
+		m_lastFunction = result;
+		return result;
+	}
+	
+	/**
+	 * Queues the specified function unless a call to it made with this method is
+	 * still waiting, in which case that call is given these arguments instead. 
+	 * This is for functions where only the newest arguments matter, like pushing the
+	 * latest position, so a burst of calls costs Matlab one call.
+	 * @param v_function The function to be executed. 
+	 * @param v_args The arguments as expected by the Matlab function.
+	 * @return A future that completes with the output of the call that ran with 
+	 * 			these or newer arguments, or exceptionally if it failed or was rejected.
+	 */
+	public CompletableFuture<Object> fevalLatest(String v_function, Object[] v_args) {
+		CompletableFuture<Object> result;
+		synchronized(m_coalesced) {
+			ExecutionProcess v_pending = m_coalesced.get(v_function);
+			if(v_pending != null) {
+				v_pending.m_args = v_args;
+				m_coalescedCalls.incrementAndGet();
+				// a future of its own, so one caller completing or cancelling it can't affect the others
+				result = v_pending.m_result.thenApply(Function.<Object>identity());
+				m_lastFunction = result;
+				return result;
+			}
+			ExecutionProcess v_process = new ExecutionProcess(v_function, v_args, true);
+			v_process.m_coalesceKey = v_function;
+			m_coalesced.put(v_function, v_process);
+			result = submit(v_process);
+			if(result.isCompletedExceptionally()) {
+				m_coalesced.remove(v_function);
 			}
 		}
-		//create an evaluation Thread
-		EvalThread evalThread = new EvalThread();
-		evalThread.start();
+		m_lastFunction = result;
+		return result;
+	}
+	
+	/**
+	 * @return A new, empty <code>Batch</code> of calls for this bridge.
+	 */
+	public Batch batch() {
+		return new Batch();
 	}
 	
 	/**
-	 * Returns the output, if any, from the execution of the most recent function. 
-	 * This function attempts to lock the monitor of the member field which is set 
-	 * with the call to execute a Matlab function. 
+	 * Returns the output, if any, from the execution of the most recent function,
+	 * waiting for it to finish if it has not yet.
 	 * @return The output Object from the last function call made by the <code>MatlabBridge</code> 
-	 * 			Object. 
+	 * 			Object, or null if it failed.
 	 */
 	public Object getFunctionOutput() {
-		synchronized(m_outputObject) {
-			if(m_isOutputSet) { return m_outputObject; }
-			else {
-				try { 
-					m_outputObject.wait();
-				}catch(InterruptedException ie) { ie.printStackTrace(); }
-				return m_outputObject;
-			}
-		}
+		try {
+			return m_lastFunction.get();
+		}catch(InterruptedException ie) {
+			ie.printStackTrace();
+			Thread.currentThread().interrupt();
+		}catch(ExecutionException ee) { ee.printStackTrace(); }
+		return null;
 	}
 	
 	/**
-	 * Returns whether Matlab is available for use. 
+	 * Returns whether the engine this bridge runs calls on can be used. 
+	 * @return true if the engine is available. 
+	 */
+	public boolean isEngineAvailable() {
+		return m_engine.isAvailable();
+	}
+	
+	/**
+	 * Returns whether Matlab is available for use in this JVM. 
 	 * @return true if Matlab is available. 
 	 */
 	public static boolean isMatlabAvailable() {
-		return Matlab.isMatlabAvailable();
+		return JmiEngine.isMatlabAvailable();
 	}
 	
 	/**
@@ -149,55 +267,157 @@ public class MatlabBridge {
 	}
 	
 	/**
-	 * Models the built-in 'feval' Matlab function that is designated for executing 
-	 * functions. 
-	 * @param v_functionName The name of the function to be executed.
-	 * @param v_args The arguments expected and/or used by the specified function.
-	 * @throws InterruptedException If the execution of the function cannot be completed as expected.
+	 * @return The number of calls accepted into the queue.
 	 */
-	protected void executeFunction(String v_functionName,Object[] v_args) throws InterruptedException {
-		m_isOutputSet = false;
-		m_outputObject = "N/A";
-		Matlab.whenMatlabReady(new ExecutionProcess(v_functionName,v_args,true));
+	public long getSubmittedCalls() {
+		return m_submittedCalls.get();
 	}
 	
+	/**
+	 * @return The number of calls Matlab ran successfully.
+	 */
+	public long getCompletedCalls() {
+		return m_completedCalls.get();
+	}
 	
+	/**
+	 * @return The number of calls that threw an exception in Matlab.
+	 */
+	public long getFailedCalls() {
+		return m_failedCalls.get();
+	}
 	
 	/**
-	 * Models the built-in 'eval' Matlab function that is designated for executing 
-	 * Strings as an expression or statement. 
-	 * @param v_expression The expression that is to be executed. 
-	 * @throws InterruptedException If the execution of the expression cannot be completed as expected. 
+	 * @return The number of calls turned away because the queue was full.
 	 */
-	protected void executeExpression(String v_expression) throws InterruptedException {
-		m_isOutputSet = false;
-		m_outputObject = "N/A";
-		Matlab.whenMatlabReady(new ExecutionProcess(v_expression,null,false));
+	public long getRejectedCalls() {
+		return m_rejectedCalls.get();
 	}
-		
+	
+	/**
+	 * @return The number of <code>fevalLatest</code> calls folded into one that was already queued.
+	 */
+	public long getCoalescedCalls() {
+		return m_coalescedCalls.get();
+	}
+	
+	/**
+	 * @return The number of entries waiting for Matlab, where a batch is one entry.
+	 */
+	public int getQueuedCalls() {
+		return m_queue.size();
+	}
+	
+	/**
+	 * Queues a call and makes sure the dispatcher will run.
+	 * @param v_process The call to queue.
+	 * @return The future of the call.
+	 */
+	protected CompletableFuture<Object> submit(ExecutionProcess v_process) {
+		if(!m_queue.offer(v_process)) {
+			m_rejectedCalls.addAndGet(v_process.calls());
+			v_process.fail(new RejectedExecutionException(
+					"MatlabBridge queue is full with " + m_queue.size() + " entries"));
+			return v_process.m_result;
+		}
+		m_submittedCalls.addAndGet(v_process.calls());
+		scheduleDispatch();
+		return v_process.m_result;
+	}
+	
+	/**
+	 * Hands the dispatcher to Matlab unless it is already waiting or running.
+	 */
+	private void scheduleDispatch() {
+		if(m_dispatchScheduled.compareAndSet(false, true)) {
+			try {
+				dispatch(m_dispatcher);
+			}catch(RuntimeException re) {
+				// Matlab would not take it, so nothing queued now will ever run
+				m_dispatchScheduled.set(false);
+				ExecutionProcess v_process;
+				while((v_process = m_queue.poll()) != null) {
+					m_failedCalls.addAndGet(v_process.calls());
+					v_process.fail(re);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Asks the engine to run the dispatcher when it is ready.
+	 * @param v_dispatcher The <code>Runnable</code> that runs the queued calls.
+	 */
+	protected void dispatch(Runnable v_dispatcher) {
+		m_engine.whenReady(v_dispatcher);
+	}
+	
+	/**
+	 * Runs queued entries in order, at most <code>CALLS_PER_DISPATCH</code> of them, and
+	 * hands itself back to Matlab if more are left.
+	 */
+	private final Runnable m_dispatcher = new Runnable() {
+		public void run() {
+			for(int i = 0; i < CALLS_PER_DISPATCH; i++) {
+				ExecutionProcess v_process = m_queue.poll();
+				if(v_process == null) { break; }
+				v_process.run();
+			}
+			m_dispatchScheduled.set(false);
+			// a call queued after the last poll saw the dispatcher still scheduled
+			if(!m_queue.isEmpty()) { scheduleDispatch(); }
+		}
+	};
+	
 	/**
-	 * The <code>ExecutionProcess</code> inner-class is designed to execute commands 
-	 * requested by using objects. Due to the fact that Matlab is a single-threaded 
-	 * mechanism, a separate thread must be used to execute functions and expressions. 
-	 *
+	 * Models the built-in 'feval' and 'eval' Matlab functions.
+	 * @param v_process The function or expression to run.
+	 * @return The output of a function, or null for an expression.
+	 * @throws Exception If Matlab could not run the function or expression.
+	 */
+	protected Object execute(ExecutionProcess v_process) throws Exception {
+		if(v_process.m_execFunction) {
+			return m_engine.feval(v_process.m_command, v_process.m_args, m_showConsoleOutput);
+		}
+		m_engine.eval(v_process.m_command, m_showConsoleOutput);
+		return null;
+	}
+	
+	/**
+	 * The <code>ExecutionProcess</code> inner-class holds a command requested by
+	 * using objects until the dispatcher runs it. Due to the fact that Matlab is a
+	 * single-threaded mechanism, functions and expressions are run one at a time
+	 * by the dispatcher.
+	 * 
 	 */
 	protected class ExecutionProcess implements Runnable {
-		
+
 		/**
 		 * The name of the function or the expression to be executed. 
 		 */
 		protected String 	m_command;
-		
+
 		/**
 		 * The input arguments of the function or expression to be executed. 
 		 */
 		protected Object[] 	m_args;
-		
+
 		/**
 		 * A flag signifying the use of the 'feval' or 'eval' Matlab function.
 		 */
 		protected boolean	m_execFunction;
+
+		/**
+		 * Completed with the output once the command has run.
+		 */
+		protected final CompletableFuture<Object> m_result = new CompletableFuture<Object>();
 		
+		/**
+		 * The function name a <code>fevalLatest</code> call is listed under until it 
+		 * starts, null for other calls.
+		 */
+		protected String	m_coalesceKey;
+
 		/**
 		 * Creates a new <code>ExecutionProcess</code> Object with the specified 
 		 * function/expression, input arguments, and flag noting whether to use 
@@ -215,33 +435,138 @@ public class MatlabBridge {
 
 		/**
 		 * Implements the <code>Runnable</code> <code>run</code> method. The function 
-		 * or expression is executed then the calling function requiring the output 
-		 * Object is notified. 
+		 * or expression is executed and its future is completed with the output.
 		 */
 		public void run() {
-			synchronized(m_outputObject) {
-				Object v_refObj = m_outputObject;	//use this reference to notify the calling function of completion
-				if(m_execFunction) {
-					try { 
-						synchronized(m_matlab) {
-							if(m_showConsoleOutput) { m_outputObject = Matlab.mtFevalConsoleOutput(m_command, m_args, 0); } 
-							else { m_outputObject = Matlab.mtFeval(m_command, m_args,0); }
-							m_isOutputSet = true;
-						}
-					} catch(Exception e) {}
-					v_refObj.notifyAll();
-				}
-				else {
-					try {
-						synchronized(m_matlab) {
-							if(m_showConsoleOutput) { m_matlab.evalConsoleOutput(m_command); }
-							else { Matlab.mtEval(m_command); }
-							v_refObj.notifyAll();
-						}
-					} catch(Exception e) {}
+			if(m_coalesceKey != null) {
+				// from here on no newer arguments can be swapped in
+				synchronized(m_coalesced) {
+					m_coalesced.remove(m_coalesceKey);
 				}
 			}
+			try {
+				Object v_output = execute(this);
+				m_completedCalls.incrementAndGet();
+				m_result.complete(v_output);
+			} catch(Exception e) {
+				m_failedCalls.incrementAndGet();
+				m_result.completeExceptionally(e);
+			}
 		}
 
+		
+		/**
+		 * @return The number of calls this entry in the queue stands for.
+		 */
+		protected int calls() {
+			return 1;
+		}
+		
+		/**
+		 * Completes the future of every call this entry stands for with an exception.
+		 * @param v_cause Why the calls will never run.
+		 */
+		protected void fail(Throwable v_cause) {
+			m_result.completeExceptionally(v_cause);
+		}
+
+	}
+	
+	/**
+	 * A <code>Batch</code> collects calls that go into the queue together and are 
+	 * run one after another in a single <code>whenMatlabReady</code> callback. A 
+	 * batch is meant to be filled by one thread and submitted once.
+	 * 
+	 */
+	public class Batch {
+		
+		/**
+		 * The calls in the order they were added.
+		 */
+		protected final ArrayList<ExecutionProcess> m_calls = new ArrayList<ExecutionProcess>();
+		
+		/**
+		 * Adds a function call to the batch.
+		 * @param v_function The function to be executed. 
+		 * @param v_args The arguments as expected by the Matlab function.
+		 * @return A future that completes with the output of the function once the 
+		 * 			batch has run, or exceptionally if it failed or was rejected.
+		 */
+		public CompletableFuture<Object> feval(String v_function, Object[] v_args) {
+			return add(new ExecutionProcess(v_function, v_args, true));
+		}
+		
+		/**
+		 * Adds an expression to the batch.
+		 * @param v_expression The expression to be executed. 
+		 * @return A future that completes with null once the batch has run it.
+		 */
+		public CompletableFuture<Object> eval(String v_expression) {
+			return add(new ExecutionProcess(v_expression, null, false));
+		}
+		
+		/**
+		 * @return The number of calls in the batch.
+		 */
+		public int size() {
+			return m_calls.size();
+		}
+		
+		/**
+		 * Queues every call in the batch as one entry. If the queue is full, every 
+		 * call fails with a <code>RejectedExecutionException</code>.
+		 * @return true if the batch was queued.
+		 */
+		public boolean submit() {
+			if(m_calls.isEmpty()) { return true; }
+			BatchProcess v_process = new BatchProcess(m_calls.toArray(new ExecutionProcess[m_calls.size()]));
+			m_calls.clear();
+			return !MatlabBridge.this.submit(v_process).isCompletedExceptionally();
+		}
+		
+		private CompletableFuture<Object> add(ExecutionProcess v_process) {
+			m_calls.add(v_process);
+			if(v_process.m_execFunction) { m_lastFunction = v_process.m_result; }
+			return v_process.m_result;
+		}
+	}
+	
+	/**
+	 * The entry a submitted <code>Batch</code> takes in the queue. Its own future 
+	 * completes once every call in it has run.
+	 * 
+	 */
+	protected class BatchProcess extends ExecutionProcess {
+		
+		/**
+		 * The calls of the batch in order.
+		 */
+		protected final ExecutionProcess[] m_calls;
+		
+		public BatchProcess(ExecutionProcess[] v_calls) {
+			super("batch", null, false);
+			m_calls = v_calls;
+		}
+		
+		/**
+		 * Runs every call of the batch. A call that fails does not stop the rest.
+		 */
+		public void run() {
+			for(ExecutionProcess v_process : m_calls) {
+				v_process.run();
+			}
+			m_result.complete(null);
+		}
+		
+		protected int calls() {
+			return m_calls.length;
+		}
+		
+		protected void fail(Throwable v_cause) {
+			for(ExecutionProcess v_process : m_calls) {
+				v_process.fail(v_cause);
+			}
+			super.fail(v_cause);
+		}
 	}
 }
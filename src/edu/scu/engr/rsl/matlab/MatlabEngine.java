@@ -0,0 +1,46 @@
+package edu.scu.engr.rsl.matlab;
+
+/**
+ * What <code>MatlabBridge</code> needs from Matlab: a single interpreter thread to
+ * hand work to, and feval and eval to run on it.
+ * 
+ * <code>JmiEngine</code> is the real thing, only usable inside Matlab's JVM.
+ * <code>SimulatedEngine</code> stands in for it anywhere else, so the bridge can be
+ * tested, loaded and benchmarked without Matlab.
+ * 
+ * @see edu.scu.engr.rsl.matlab.MatlabBridge
+ */
+public interface MatlabEngine {
+	
+	/**
+	 * Runs the <code>Runnable</code> on the interpreter thread once it is free.
+	 * Returns without waiting for it.
+	 * @param v_task The work to run.
+	 */
+	void whenReady(Runnable v_task);
+	
+	/**
+	 * Calls a function. Only call this from a <code>Runnable</code> passed to 
+	 * <code>whenReady</code>.
+	 * @param v_function The name of the function.
+	 * @param v_args The arguments of the function.
+	 * @param v_consoleOutput True to print the output to the console.
+	 * @return The output of the function.
+	 * @throws Exception If the function could not be run or failed.
+	 */
+	Object feval(String v_function, Object[] v_args, boolean v_consoleOutput) throws Exception;
+	
+	/**
+	 * Evaluates an expression. Only call this from a <code>Runnable</code> passed to 
+	 * <code>whenReady</code>.
+	 * @param v_expression The expression.
+	 * @param v_consoleOutput True to print the output to the console.
+	 * @throws Exception If the expression could not be run or failed.
+	 */
+	void eval(String v_expression, boolean v_consoleOutput) throws Exception;
+	
+	/**
+	 * @return true if calls can be run.
+	 */
+	boolean isAvailable();
+}
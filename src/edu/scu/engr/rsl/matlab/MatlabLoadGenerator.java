@@ -0,0 +1,134 @@
+package edu.scu.engr.rsl.matlab;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives a <code>MatlabBridge</code> on a <code>SimulatedEngine</code> from several
+ * threads and reports feval throughput and latency, so the cost of the bridge's
+ * queueing can be measured without Matlab.
+ * 
+ * Each thread keeps up to a window of calls outstanding, made one at a time with
+ * <code>fevalAsync</code>, in batches with <code>batch</code>, or coalesced with 
+ * <code>fevalLatest</code>. Latency is from making a call to its future completing.
+ * 
+ * The result is printed as one line of key=value pairs so runs can be compared by
+ * scripts.
+ * 
+ */
+public class MatlabLoadGenerator {
+	
+	/**
+	 * @param args [feval|batch|latest] [threads] [calls per thread] [call microseconds] 
+	 * 			[handoff microseconds] [batch size] [window]
+	 */
+	public static void main(String[] args) throws Exception {
+		final String v_mode = args.length > 0 ? args[0] : "feval";
+		int v_threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int v_calls = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		long v_callNanos = args.length > 3 ? (long) (Double.parseDouble(args[3]) * 1000) : 0;
+		long v_handoffNanos = args.length > 4 ? (long) (Double.parseDouble(args[4]) * 1000) : 0;
+		final int v_batchSize = args.length > 5 ? Integer.parseInt(args[5]) : 32;
+		final int v_window = args.length > 6 ? Integer.parseInt(args[6]) : 64;
+		if(!v_mode.equals("feval") && !v_mode.equals("batch") && !v_mode.equals("latest")) {
+			throw new IllegalArgumentException("mode must be feval, batch or latest");
+		}
+		
+		SimulatedEngine v_engine = new SimulatedEngine(v_callNanos, v_handoffNanos);
+		final MatlabBridge v_bridge = new MatlabBridge(v_engine, false, v_threads * v_window);
+		// warm up
+		for(int i = 0; i < 20000; i++) {
+			v_bridge.fevalAsync("warmup", new Object[] {i}).get();
+		}
+		long v_handoffsBefore = v_engine.getHandoffs();
+		
+		final long[][] v_latencies = new long[v_threads][v_calls];
+		Thread[] v_workers = new Thread[v_threads];
+		long v_start = System.nanoTime();
+		for(int t = 0; t < v_threads; t++) {
+			final int v_thread = t;
+			v_workers[t] = new Thread("load " + t) {
+				public void run() {
+					try {
+						load(v_bridge, v_mode, "f" + v_thread, v_latencies[v_thread], v_batchSize, v_window);
+					}catch(InterruptedException ie) { ie.printStackTrace(); }
+				}
+			};
+			v_workers[t].start();
+		}
+		for(Thread v_worker : v_workers) {
+			v_worker.join();
+		}
+		double v_elapsed = (System.nanoTime() - v_start) / 1e9;
+		v_engine.shutdown();
+		
+		long[] v_all = new long[v_threads * v_calls];
+		int v_count = 0;
+		for(long[] v_thread : v_latencies) {
+			for(long v_latency : v_thread) {
+				// rejected and failed calls are left at -1
+				if(v_latency >= 0) { v_all[v_count++] = v_latency; }
+			}
+		}
+		Arrays.sort(v_all, 0, v_count);
+		System.out.println("benchmark=matlab-bridge"
+				+ " mode=" + v_mode
+				+ " threads=" + v_threads
+				+ " calls=" + (long) v_threads * v_calls
+				+ " callMicros=" + v_callNanos / 1000.0
+				+ " handoffMicros=" + v_handoffNanos / 1000.0
+				+ " seconds=" + String.format("%.2f", v_elapsed)
+				+ " callsPerSecond=" + String.format("%.0f", v_threads * v_calls / v_elapsed)
+				+ " p50Micros=" + percentile(v_all, v_count, 0.50)
+				+ " p90Micros=" + percentile(v_all, v_count, 0.90)
+				+ " p99Micros=" + percentile(v_all, v_count, 0.99)
+				+ " p999Micros=" + percentile(v_all, v_count, 0.999)
+				+ " maxMicros=" + percentile(v_all, v_count, 1)
+				+ " handoffs=" + (v_engine.getHandoffs() - v_handoffsBefore)
+				+ " engineCalls=" + v_engine.getCalls()
+				+ " coalesced=" + v_bridge.getCoalescedCalls()
+				+ " rejected=" + v_bridge.getRejectedCalls()
+				+ " failed=" + v_bridge.getFailedCalls());
+	}
+	
+	/**
+	 * Makes one thread's calls, never with more than <code>v_window</code> outstanding.
+	 */
+	private static void load(MatlabBridge v_bridge, String v_mode, String v_function, final long[] v_latencies, int v_batchSize, int v_window) throws InterruptedException {
+		final Semaphore v_outstanding = new Semaphore(v_window);
+		MatlabBridge.Batch v_batch = v_bridge.batch();
+		for(int i = 0; i < v_latencies.length; i++) {
+			v_outstanding.acquire();
+			final int v_index = i;
+			final long v_start = System.nanoTime();
+			Object[] v_args = new Object[] {i};
+			CompletableFuture<Object> v_result;
+			if(v_mode.equals("batch")) {
+				v_result = v_batch.feval(v_function, v_args);
+			} else if(v_mode.equals("latest")) {
+				v_result = v_bridge.fevalLatest(v_function, v_args);
+			} else {
+				v_result = v_bridge.fevalAsync(v_function, v_args);
+			}
+			v_result.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object v_output, Throwable v_failure) {
+					v_latencies[v_index] = v_failure == null ? System.nanoTime() - v_start : -1;
+					v_outstanding.release();
+				}
+			});
+			if(v_batch.size() >= Math.min(v_batchSize, v_window) || i == v_latencies.length-1) {
+				v_batch.submit();
+			}
+		}
+		// wait for the last calls
+		v_outstanding.acquire(v_window);
+	}
+	
+	private static String percentile(long[] v_sorted, int v_count, double v_fraction) {
+		if(v_count == 0) { return "0"; }
+		int v_index = (int) Math.min(v_count - 1, Math.ceil(v_fraction * v_count) - 1);
+		return String.format("%.1f", v_sorted[Math.max(v_index, 0)] / 1000.0);
+	}
+}
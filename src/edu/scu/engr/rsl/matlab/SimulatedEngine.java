@@ -0,0 +1,160 @@
+package edu.scu.engr.rsl.matlab;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>MatlabEngine</code> that stands in for Matlab without it, for testing
+ * and benchmarking <code>MatlabBridge</code>.
+ * 
+ * Like Matlab it has one interpreter thread, here a single threaded executor, and
+ * runs what is handed to it in order. Each handoff and each call can be made to 
+ * take a fixed time, which is spent spinning so it is the same every run. A call to
+ * a function registered with <code>register</code> runs that Java code; any other
+ * function echoes its argument back, or all of them if there are several.
+ * 
+ */
+public class SimulatedEngine implements MatlabEngine {
+	
+	/**
+	 * Java code standing in for a Matlab function.
+	 */
+	public interface Function {
+		Object call(Object[] v_args) throws Exception;
+	}
+	
+	private final ExecutorService m_interpreter;
+	private volatile Thread m_interpreterThread;
+	private final ConcurrentHashMap<String, Function> m_functions = new ConcurrentHashMap<String, Function>();
+	private volatile long m_callNanos, m_handoffNanos;
+	private final AtomicLong m_handoffs = new AtomicLong();
+	private final AtomicLong m_calls = new AtomicLong();
+	
+	/**
+	 * Creates an engine whose calls and handoffs take no time.
+	 */
+	public SimulatedEngine() {
+		this(0, 0);
+	}
+	
+	/**
+	 * @param v_callNanos How long every feval and eval takes.
+	 * @param v_handoffNanos How long it takes the interpreter to pick up a 
+	 * 			<code>Runnable</code> passed to <code>whenReady</code>.
+	 */
+	public SimulatedEngine(long v_callNanos, long v_handoffNanos) {
+		m_callNanos = v_callNanos;
+		m_handoffNanos = v_handoffNanos;
+		m_interpreter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable v_runnable) {
+				Thread v_thread = new Thread(v_runnable, "simulated Matlab");
+				v_thread.setDaemon(true);
+				m_interpreterThread = v_thread;
+				return v_thread;
+			}
+		});
+	}
+	
+	/**
+	 * Makes calls to a function run Java code instead of echoing.
+	 * @param v_function The name of the function.
+	 * @param v_code What the function does.
+	 */
+	public void register(String v_function, Function v_code) {
+		m_functions.put(v_function, v_code);
+	}
+	
+	public void whenReady(final Runnable v_task) {
+		m_handoffs.incrementAndGet();
+		m_interpreter.execute(new Runnable() {
+			public void run() {
+				spin(m_handoffNanos);
+				v_task.run();
+			}
+		});
+	}
+	
+	public Object feval(String v_function, Object[] v_args, boolean v_consoleOutput) throws Exception {
+		checkThread();
+		m_calls.incrementAndGet();
+		spin(m_callNanos);
+		Function v_code = m_functions.get(v_function);
+		Object v_output;
+		if(v_code != null) { v_output = v_code.call(v_args); }
+		else if(v_args == null || v_args.length == 0) { v_output = null; }
+		else { v_output = v_args.length == 1 ? v_args[0] : v_args; }
+		if(v_consoleOutput) { System.out.println(v_function + " = " + v_output); }
+		return v_output;
+	}
+	
+	/**
+	 * Runs the function registered under the expression, if there is one, with no
+	 * arguments. Anything else does nothing but take the call time.
+	 */
+	public void eval(String v_expression, boolean v_consoleOutput) throws Exception {
+		checkThread();
+		m_calls.incrementAndGet();
+		spin(m_callNanos);
+		Function v_code = m_functions.get(v_expression);
+		if(v_code != null) { v_code.call(new Object[0]); }
+		if(v_consoleOutput) { System.out.println(v_expression); }
+	}
+	
+	public boolean isAvailable() {
+		return !m_interpreter.isShutdown();
+	}
+	
+	/**
+	 * Stops the interpreter thread once what has been handed to it is done.
+	 */
+	public void shutdown() {
+		m_interpreter.shutdown();
+	}
+	
+	public void setCallNanos(long v_callNanos) {
+		m_callNanos = v_callNanos;
+	}
+	
+	public void setHandoffNanos(long v_handoffNanos) {
+		m_handoffNanos = v_handoffNanos;
+	}
+	
+	/**
+	 * @return The number of times work was handed to the interpreter.
+	 */
+	public long getHandoffs() {
+		return m_handoffs.get();
+	}
+	
+	/**
+	 * @return The number of feval and eval calls run.
+	 */
+	public long getCalls() {
+		return m_calls.get();
+	}
+	
+	/**
+	 * Like Matlab, calls are only allowed on the interpreter thread.
+	 */
+	private void checkThread() {
+		if(Thread.currentThread() != m_interpreterThread) {
+			throw new IllegalStateException("Matlab calls must be made on the interpreter thread");
+		}
+	}
+	
+	/**
+	 * Spins rather than sleeps, since sleeping is not accurate for short times.
+	 */
+	private static void spin(long v_nanos) {
+		if(v_nanos <= 0) { return; }
+		long v_end = System.nanoTime() + v_nanos;
+		while(System.nanoTime() < v_end) {
+			// waiting
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package edu.scu.engr.rsl.mavlink;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Measures how fast <code>MAVLinkFramer</code> gets through telemetry, fed in
+ * pieces of random size the way a serial port or socket hands it over.
+ * 
+ * With a file argument the file is replayed. It can be a raw capture of the serial
+ * stream or a Mission Planner .tlog, whose timestamps the framer skips over like 
+ * any other noise. Without one, a mix of common Pixhawk messages in v1 and v2 is
+ * generated with a little line noise in it.
+ * 
+ * The result is printed as one line of key=value pairs so runs can be compared by
+ * scripts.
+ */
+public class FramerBenchmark {
+	/**
+	 * @param args [capture file] [seconds]
+	 */
+	public static void main(String[] args) throws IOException {
+		byte[] stream = args.length > 0 && !args[0].equals("-") ? Files.readAllBytes(Paths.get(args[0])) : generate(4 << 20, new Random(1));
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+		
+		// piece sizes like what available() returns on a busy port
+		Random random = new Random(2);
+		int[] pieces = new int[4096];
+		for(int i = 0; i < pieces.length; i++) {
+			pieces[i] = 1 + random.nextInt(256);
+		}
+		
+		MAVLinkFramer framer = new MAVLinkFramer();
+		// warm up
+		run(framer, stream, pieces);
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		long packetsBefore = framer.getPackets();
+		long bytes = 0, checksum = 0;
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while(System.nanoTime() < end) {
+			checksum += run(framer, stream, pieces);
+			bytes += stream.length;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+		long packets = framer.getPackets() - packetsBefore;
+		
+		System.out.println("benchmark=mavlink-framer"
+				+ " streamBytes=" + stream.length
+				+ " seconds=" + String.format("%.2f", elapsed)
+				+ " MBps=" + String.format("%.1f", bytes / elapsed / 1e6)
+				+ " packetsPerSecond=" + String.format("%.0f", packets / elapsed)
+				+ " crcErrors=" + framer.getCrcErrors()
+				+ " unknownMessages=" + framer.getUnknownMessages()
+				+ " discardedBytes=" + framer.getDiscardedBytes()
+				+ " allocatedBytes=" + allocated
+				+ " checksum=" + checksum);
+	}
+	
+	// feeds the whole stream through the framer once and returns something that depends on every packet
+	protected static long run(MAVLinkFramer framer, byte[] stream, int[] pieces) {
+		long sum = 0;
+		int off = 0, piece = 0;
+		while(off < stream.length) {
+			int len = Math.min(pieces[piece++ & (pieces.length - 1)], stream.length - off);
+			framer.feed(stream, off, len);
+			while(framer.next()) {
+				sum += framer.getMessageId() + framer.getPacketLength();
+			}
+			off += len;
+		}
+		return sum;
+	}
+	
+	/**
+	 * Makes a telemetry stream like a Pixhawk sends: heartbeats, system status,
+	 * attitude, position and raw IMU, in both versions, with random bytes of line
+	 * noise now and then.
+	 */
+	protected static byte[] generate(int size, Random random) {
+		// message ID and payload length of the messages to send
+		int[][] messages = {{0, 9}, {1, 31}, {30, 28}, {33, 28}, {27, 26}, {24, 30}};
+		MAVLinkWriter v1 = new MAVLinkWriter(1, 1, false);
+		MAVLinkWriter v2 = new MAVLinkWriter(1, 1, true);
+		byte[] stream = new byte[size];
+		byte[] payload = new byte[255];
+		int off = 0;
+		while(off < size - MAVLinkFramer.MAX_PACKET - 8) {
+			int[] m = messages[random.nextInt(messages.length)];
+			random.nextBytes(payload);
+			off += (random.nextBoolean() ? v1 : v2).write(m[0], payload, 0, m[1], stream, off);
+			if(random.nextInt(100) == 0) {
+				for(int i = random.nextInt(8); i >= 0; i--) {
+					stream[off++] = (byte) random.nextInt();
+				}
+			}
+		}
+		return java.util.Arrays.copyOf(stream, off);
+	}
+}
@@ -0,0 +1,70 @@
+package edu.scu.engr.rsl.mavlink;
+
+/**
+ * The CRC MAVLink puts at the end of every packet: CRC-16/MCRF4XX (the X.25 
+ * polynomial) over everything after the start byte, followed by a per-message 
+ * CRC_EXTRA byte derived from the message's definition.
+ * 
+ * The CRC_EXTRA table covers the message IDs 0 to 255 of the common message set
+ * that the Pixhawk firmware speaks. A 0 in it means the message isn't in that set,
+ * like ArduPilot's AHRS, and packets with those IDs or larger ones can not be checked.
+ */
+public class MAVLinkCRC {
+	public static final int INITIAL = 0xffff;
+	
+	private static final int[] CRC_EXTRA = {
+		50, 124, 137, 0, 237, 217, 104, 119, 0, 0, 0, 89, 0, 0, 0, 0,
+		0, 0, 0, 0, 214, 159, 220, 168, 24, 23, 170, 144, 67, 115, 39, 246,
+		185, 104, 237, 244, 222, 212, 9, 254, 230, 28, 28, 132, 221, 232, 11, 153,
+		41, 39, 78, 196, 0, 0, 15, 3, 0, 0, 0, 0, 0, 167, 183, 119,
+		191, 118, 148, 21, 0, 243, 124, 0, 0, 38, 20, 158, 152, 143, 0, 0,
+		0, 106, 49, 22, 143, 140, 5, 150, 0, 231, 183, 63, 54, 47, 0, 0,
+		0, 0, 0, 0, 175, 102, 158, 208, 56, 93, 138, 108, 32, 185, 84, 34,
+		174, 124, 237, 4, 76, 128, 56, 116, 134, 237, 203, 250, 87, 203, 220, 25,
+		226, 46, 29, 223, 85, 6, 229, 203, 1, 195, 109, 168, 181, 47, 72, 131,
+		127, 0, 103, 154, 178, 200, 111, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 163, 105, 151, 35, 150, 0, 0, 0, 0, 0,
+		0, 90, 104, 85, 95, 130, 184, 81, 8, 204, 49, 170, 44, 83, 46, 0
+	};
+	
+	/**
+	 * Adds one byte to a running CRC.
+	 * 
+	 * @param b the byte, only the low 8 bits are used
+	 * @param crc the CRC so far
+	 * @return the new CRC
+	 */
+	public static int accumulate(int b, int crc) {
+		int tmp = (b ^ crc) & 0xff;
+		tmp ^= (tmp << 4) & 0xff;
+		return ((crc >> 8) ^ (tmp << 8) ^ (tmp << 3) ^ (tmp >> 4)) & 0xffff;
+	}
+	
+	/**
+	 * Adds a run of bytes to a running CRC.
+	 */
+	public static int accumulate(byte[] data, int off, int len, int crc) {
+		for(int i = off; i < off + len; i++) {
+			crc = accumulate(data[i], crc);
+		}
+		return crc;
+	}
+	
+	/**
+	 * @return true if the CRC_EXTRA of the message is known
+	 */
+	public static boolean isKnown(int msgId) {
+		return msgId >= 0 && msgId < CRC_EXTRA.length && CRC_EXTRA[msgId] != 0;
+	}
+	
+	/**
+	 * @return the CRC_EXTRA byte of the message. Only valid if <code>isKnown(msgId)</code>.
+	 */
+	public static int crcExtra(int msgId) {
+		return CRC_EXTRA[msgId];
+	}
+}
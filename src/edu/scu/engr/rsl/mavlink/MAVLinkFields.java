@@ -0,0 +1,248 @@
+package edu.scu.engr.rsl.mavlink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Where the numeric fields of MAVLink messages are in a payload, so a field can be
+ * read straight out of a packet without unpacking the whole message into an object.
+ * 
+ * The layouts are the wire order of the common message set, which sorts fields by
+ * size, and cover the messages that have no array fields. A message is looked up by
+ * ID and a field by the name in the message definition, like GLOBAL_POSITION_INT.lat.
+ * Values are not scaled, so lat is still in degrees * 1E7.
+ */
+public class MAVLinkFields {
+	public static final int INT8 = 0, UINT8 = 1, INT16 = 2, UINT16 = 3, INT32 = 4, UINT32 = 5,
+			INT64 = 6, UINT64 = 7, FLOAT = 8, DOUBLE = 9;
+	private static final int[] SIZES = {1, 1, 2, 2, 4, 4, 8, 8, 4, 8};
+	private static final String[] TYPE_NAMES = {"i8", "u8", "i16", "u16", "i32", "u32", "i64", "u64", "f32", "f64"};
+	
+	/**
+	 * One field of a message.
+	 */
+	public static class Field {
+		public final int messageId;
+		public final String name;
+		public final int type;
+		// from the start of the payload
+		public final int offset;
+		
+		Field(int messageId, String name, int type, int offset) {
+			this.messageId = messageId;
+			this.name = name;
+			this.type = type;
+			this.offset = offset;
+		}
+		
+		/**
+		 * @return the size of the field in bytes
+		 */
+		public int size() {
+			return SIZES[type];
+		}
+		
+		/**
+		 * Reads the field out of a payload. MAVLink v2 trims zeros off the end of a
+		 * payload, so bytes past <code>len</code> count as zero.
+		 * 
+		 * @param payload the array holding the payload, usually a whole packet
+		 * @param off where the payload starts in the array
+		 * @param len the length of the payload
+		 * @return the value of the field
+		 */
+		public double get(byte[] payload, int off, int len) {
+			int size = SIZES[type];
+			long bits = 0;
+			for(int i = size-1; i >= 0; i--) {
+				int at = offset + i;
+				bits = bits << 8 | (at < len ? payload[off + at] & 0xff : 0);
+			}
+			switch(type) {
+				case INT8: return (byte) bits;
+				case INT16: return (short) bits;
+				case INT32: return (int) bits;
+				case UINT64: return bits >= 0 ? bits : (bits >>> 1) * 2.0 + (bits & 1);
+				case FLOAT: return Float.intBitsToFloat((int) bits);
+				case DOUBLE: return Double.longBitsToDouble(bits);
+				default: return bits;
+			}
+		}
+		
+		/**
+		 * @return MESSAGE.field, which is also the name of the field's decoded channel
+		 */
+		@Override
+		public String toString() {
+			return MAVLinkMessages.name(messageId) + "." + name;
+		}
+	}
+	
+	private static final Field[][] FIELDS = new Field[MAVLinkMessages.COUNT][];
+	
+	static {
+		define(0, "custom_mode:u32 type:u8 autopilot:u8 base_mode:u8 system_status:u8 mavlink_version:u8");
+		define(1, "onboard_control_sensors_present:u32 onboard_control_sensors_enabled:u32 onboard_control_sensors_health:u32 load:u16 voltage_battery:u16 current_battery:i16 drop_rate_comm:u16 errors_comm:u16 errors_count1:u16 errors_count2:u16 errors_count3:u16 errors_count4:u16 battery_remaining:i8");
+		define(2, "time_unix_usec:u64 time_boot_ms:u32");
+		define(4, "time_usec:u64 seq:u32 target_system:u8 target_component:u8");
+		define(6, "gcs_system_id:u8 control_request:u8 ack:u8");
+		define(11, "custom_mode:u32 target_system:u8 base_mode:u8");
+		define(21, "target_system:u8 target_component:u8");
+		define(24, "time_usec:u64 lat:i32 lon:i32 alt:i32 eph:u16 epv:u16 vel:u16 cog:u16 fix_type:u8 satellites_visible:u8");
+		define(26, "time_boot_ms:u32 xacc:i16 yacc:i16 zacc:i16 xgyro:i16 ygyro:i16 zgyro:i16 xmag:i16 ymag:i16 zmag:i16");
+		define(27, "time_usec:u64 xacc:i16 yacc:i16 zacc:i16 xgyro:i16 ygyro:i16 zgyro:i16 xmag:i16 ymag:i16 zmag:i16");
+		define(28, "time_usec:u64 press_abs:i16 press_diff1:i16 press_diff2:i16 temperature:i16");
+		define(29, "time_boot_ms:u32 press_abs:f32 press_diff:f32 temperature:i16");
+		define(30, "time_boot_ms:u32 roll:f32 pitch:f32 yaw:f32 rollspeed:f32 pitchspeed:f32 yawspeed:f32");
+		define(31, "time_boot_ms:u32 q1:f32 q2:f32 q3:f32 q4:f32 rollspeed:f32 pitchspeed:f32 yawspeed:f32");
+		define(32, "time_boot_ms:u32 x:f32 y:f32 z:f32 vx:f32 vy:f32 vz:f32");
+		define(33, "time_boot_ms:u32 lat:i32 lon:i32 alt:i32 relative_alt:i32 vx:i16 vy:i16 vz:i16 hdg:u16");
+		define(34, "time_boot_ms:u32 chan1_scaled:i16 chan2_scaled:i16 chan3_scaled:i16 chan4_scaled:i16 chan5_scaled:i16 chan6_scaled:i16 chan7_scaled:i16 chan8_scaled:i16 port:u8 rssi:u8");
+		define(35, "time_boot_ms:u32 chan1_raw:u16 chan2_raw:u16 chan3_raw:u16 chan4_raw:u16 chan5_raw:u16 chan6_raw:u16 chan7_raw:u16 chan8_raw:u16 port:u8 rssi:u8");
+		define(36, "time_usec:u32 servo1_raw:u16 servo2_raw:u16 servo3_raw:u16 servo4_raw:u16 servo5_raw:u16 servo6_raw:u16 servo7_raw:u16 servo8_raw:u16 port:u8");
+		define(37, "start_index:i16 end_index:i16 target_system:u8 target_component:u8");
+		define(38, "start_index:i16 end_index:i16 target_system:u8 target_component:u8");
+		define(39, "param1:f32 param2:f32 param3:f32 param4:f32 x:f32 y:f32 z:f32 seq:u16 command:u16 target_system:u8 target_component:u8 frame:u8 current:u8 autocontinue:u8");
+		define(40, "seq:u16 target_system:u8 target_component:u8");
+		define(41, "seq:u16 target_system:u8 target_component:u8");
+		define(42, "seq:u16");
+		define(43, "target_system:u8 target_component:u8");
+		define(44, "count:u16 target_system:u8 target_component:u8");
+		define(45, "target_system:u8 target_component:u8");
+		define(46, "seq:u16");
+		define(47, "target_system:u8 target_component:u8 type:u8");
+		define(48, "latitude:i32 longitude:i32 altitude:i32 target_system:u8");
+		define(49, "latitude:i32 longitude:i32 altitude:i32");
+		define(51, "seq:u16 target_system:u8 target_component:u8");
+		define(54, "p1x:f32 p1y:f32 p1z:f32 p2x:f32 p2y:f32 p2z:f32 target_system:u8 target_component:u8 frame:u8");
+		define(55, "p1x:f32 p1y:f32 p1z:f32 p2x:f32 p2y:f32 p2z:f32 frame:u8");
+		define(62, "nav_roll:f32 nav_pitch:f32 alt_error:f32 aspd_error:f32 xtrack_error:f32 nav_bearing:i16 target_bearing:i16 wp_dist:u16");
+		define(65, "time_boot_ms:u32 chan1_raw:u16 chan2_raw:u16 chan3_raw:u16 chan4_raw:u16 chan5_raw:u16 chan6_raw:u16 chan7_raw:u16 chan8_raw:u16 chan9_raw:u16 chan10_raw:u16 chan11_raw:u16 chan12_raw:u16 chan13_raw:u16 chan14_raw:u16 chan15_raw:u16 chan16_raw:u16 chan17_raw:u16 chan18_raw:u16 chancount:u8 rssi:u8");
+		define(66, "req_message_rate:u16 target_system:u8 target_component:u8 req_stream_id:u8 start_stop:u8");
+		define(67, "message_rate:u16 stream_id:u8 on_off:u8");
+		define(69, "x:i16 y:i16 z:i16 r:i16 buttons:u16 target:u8");
+		define(70, "chan1_raw:u16 chan2_raw:u16 chan3_raw:u16 chan4_raw:u16 chan5_raw:u16 chan6_raw:u16 chan7_raw:u16 chan8_raw:u16 target_system:u8 target_component:u8");
+		define(73, "param1:f32 param2:f32 param3:f32 param4:f32 x:i32 y:i32 z:f32 seq:u16 command:u16 target_system:u8 target_component:u8 frame:u8 current:u8 autocontinue:u8");
+		define(74, "airspeed:f32 groundspeed:f32 alt:f32 climb:f32 heading:i16 throttle:u16");
+		define(75, "param1:f32 param2:f32 param3:f32 param4:f32 x:i32 y:i32 z:f32 command:u16 target_system:u8 target_component:u8 frame:u8 current:u8 autocontinue:u8");
+		define(76, "param1:f32 param2:f32 param3:f32 param4:f32 param5:f32 param6:f32 param7:f32 command:u16 target_system:u8 target_component:u8 confirmation:u8");
+		define(77, "command:u16 result:u8");
+		define(81, "time_boot_ms:u32 roll:f32 pitch:f32 yaw:f32 thrust:f32 mode_switch:u8 manual_override_switch:u8");
+		define(84, "time_boot_ms:u32 x:f32 y:f32 z:f32 vx:f32 vy:f32 vz:f32 afx:f32 afy:f32 afz:f32 yaw:f32 yaw_rate:f32 type_mask:u16 target_system:u8 target_component:u8 coordinate_frame:u8");
+		define(85, "time_boot_ms:u32 x:f32 y:f32 z:f32 vx:f32 vy:f32 vz:f32 afx:f32 afy:f32 afz:f32 yaw:f32 yaw_rate:f32 type_mask:u16 coordinate_frame:u8");
+		define(86, "time_boot_ms:u32 lat_int:i32 lon_int:i32 alt:f32 vx:f32 vy:f32 vz:f32 afx:f32 afy:f32 afz:f32 yaw:f32 yaw_rate:f32 type_mask:u16 target_system:u8 target_component:u8 coordinate_frame:u8");
+		define(87, "time_boot_ms:u32 lat_int:i32 lon_int:i32 alt:f32 vx:f32 vy:f32 vz:f32 afx:f32 afy:f32 afz:f32 yaw:f32 yaw_rate:f32 type_mask:u16 coordinate_frame:u8");
+		define(89, "time_boot_ms:u32 x:f32 y:f32 z:f32 roll:f32 pitch:f32 yaw:f32");
+		define(90, "time_usec:u64 roll:f32 pitch:f32 yaw:f32 rollspeed:f32 pitchspeed:f32 yawspeed:f32 lat:i32 lon:i32 alt:i32 vx:i16 vy:i16 vz:i16 xacc:i16 yacc:i16 zacc:i16");
+		define(91, "time_usec:u64 roll_ailerons:f32 pitch_elevator:f32 yaw_rudder:f32 throttle:f32 aux1:f32 aux2:f32 aux3:f32 aux4:f32 mode:u8 nav_mode:u8");
+		define(92, "time_usec:u64 chan1_raw:u16 chan2_raw:u16 chan3_raw:u16 chan4_raw:u16 chan5_raw:u16 chan6_raw:u16 chan7_raw:u16 chan8_raw:u16 chan9_raw:u16 chan10_raw:u16 chan11_raw:u16 chan12_raw:u16 rssi:u8");
+		define(100, "time_usec:u64 flow_comp_m_x:f32 flow_comp_m_y:f32 ground_distance:f32 flow_x:i16 flow_y:i16 sensor_id:u8 quality:u8");
+		define(101, "usec:u64 x:f32 y:f32 z:f32 roll:f32 pitch:f32 yaw:f32");
+		define(102, "usec:u64 x:f32 y:f32 z:f32 roll:f32 pitch:f32 yaw:f32");
+		define(103, "usec:u64 x:f32 y:f32 z:f32");
+		define(104, "usec:u64 x:f32 y:f32 z:f32 roll:f32 pitch:f32 yaw:f32");
+		define(105, "time_usec:u64 xacc:f32 yacc:f32 zacc:f32 xgyro:f32 ygyro:f32 zgyro:f32 xmag:f32 ymag:f32 zmag:f32 abs_pressure:f32 diff_pressure:f32 pressure_alt:f32 temperature:f32 fields_updated:u16");
+		define(106, "time_usec:u64 integration_time_us:u32 integrated_x:f32 integrated_y:f32 integrated_xgyro:f32 integrated_ygyro:f32 integrated_zgyro:f32 time_delta_distance_us:u32 distance:f32 temperature:i16 sensor_id:u8 quality:u8");
+		define(107, "time_usec:u64 xacc:f32 yacc:f32 zacc:f32 xgyro:f32 ygyro:f32 zgyro:f32 xmag:f32 ymag:f32 zmag:f32 abs_pressure:f32 diff_pressure:f32 pressure_alt:f32 temperature:f32 fields_updated:u32");
+		define(108, "q1:f32 q2:f32 q3:f32 q4:f32 roll:f32 pitch:f32 yaw:f32 xacc:f32 yacc:f32 zacc:f32 xgyro:f32 ygyro:f32 zgyro:f32 lat:f32 lon:f32 alt:f32 std_dev_horz:f32 std_dev_vert:f32 vn:f32 ve:f32 vd:f32");
+		define(109, "rxerrors:u16 fixed:u16 rssi:u8 remrssi:u8 txbuf:u8 noise:u8 remnoise:u8");
+		define(111, "tc1:i64 ts1:i64");
+		define(112, "time_usec:u64 seq:u32");
+		define(113, "time_usec:u64 lat:i32 lon:i32 alt:i32 eph:u16 epv:u16 vel:u16 vn:i16 ve:i16 vd:i16 cog:u16 fix_type:u8 satellites_visible:u8");
+		define(114, "time_usec:u64 integration_time_us:u32 integrated_x:f32 integrated_y:f32 integrated_xgyro:f32 integrated_ygyro:f32 integrated_zgyro:f32 time_delta_distance_us:u32 distance:f32 temperature:i16 sensor_id:u8 quality:u8");
+		define(116, "time_boot_ms:u32 xacc:i16 yacc:i16 zacc:i16 xgyro:i16 ygyro:i16 zgyro:i16 xmag:i16 ymag:i16 zmag:i16");
+		define(117, "start:u16 end:u16 target_system:u8 target_component:u8");
+		define(118, "time_utc:u32 size:u32 id:u16 num_logs:u16 last_log_num:u16");
+		define(119, "ofs:u32 count:u32 id:u16 target_system:u8 target_component:u8");
+		define(121, "target_system:u8 target_component:u8");
+		define(122, "target_system:u8 target_component:u8");
+		define(124, "time_usec:u64 lat:i32 lon:i32 alt:i32 dgps_age:u32 eph:u16 epv:u16 vel:u16 cog:u16 fix_type:u8 satellites_visible:u8 dgps_numch:u8");
+		define(125, "Vcc:u16 Vservo:u16 flags:u16");
+		define(127, "time_last_baseline_ms:u32 tow:u32 baseline_a_mm:i32 baseline_b_mm:i32 baseline_c_mm:i32 accuracy:u32 iar_num_hypotheses:i32 wn:u16 rtk_receiver_id:u8 rtk_health:u8 rtk_rate:u8 nsats:u8 baseline_coords_type:u8");
+		define(128, "time_last_baseline_ms:u32 tow:u32 baseline_a_mm:i32 baseline_b_mm:i32 baseline_c_mm:i32 accuracy:u32 iar_num_hypotheses:i32 wn:u16 rtk_receiver_id:u8 rtk_health:u8 rtk_rate:u8 nsats:u8 baseline_coords_type:u8");
+		define(129, "time_boot_ms:u32 xacc:i16 yacc:i16 zacc:i16 xgyro:i16 ygyro:i16 zgyro:i16 xmag:i16 ymag:i16 zmag:i16");
+		define(130, "size:u32 width:u16 height:u16 packets:u16 type:u8 payload:u8 jpg_quality:u8");
+		define(132, "time_boot_ms:u32 min_distance:u16 max_distance:u16 current_distance:u16 type:u8 id:u8 orientation:u8 covariance:u8");
+		define(133, "mask:u64 lat:i32 lon:i32 grid_spacing:u16");
+		define(135, "lat:i32 lon:i32");
+		define(136, "lat:i32 lon:i32 terrain_height:f32 current_height:f32 spacing:u16 pending:u16 loaded:u16");
+		define(137, "time_boot_ms:u32 press_abs:f32 press_diff:f32 temperature:i16");
+		define(141, "time_usec:u64 altitude_monotonic:f32 altitude_amsl:f32 altitude_local:f32 altitude_relative:f32 altitude_terrain:f32 bottom_clearance:f32");
+		define(143, "time_boot_ms:u32 press_abs:f32 press_diff:f32 temperature:i16");
+		define(149, "time_usec:u64 angle_x:f32 angle_y:f32 distance:f32 size_x:f32 size_y:f32 target_num:u8 frame:u8");
+		define(230, "time_usec:u64 vel_ratio:f32 pos_horiz_ratio:f32 pos_vert_ratio:f32 mag_ratio:f32 hagl_ratio:f32 tas_ratio:f32 pos_horiz_accuracy:f32 pos_vert_accuracy:f32 flags:u16");
+		define(231, "time_usec:u64 wind_x:f32 wind_y:f32 wind_z:f32 var_horiz:f32 var_vert:f32 wind_alt:f32 horiz_accuracy:f32 vert_accuracy:f32");
+		define(232, "time_usec:u64 time_week_ms:u32 lat:i32 lon:i32 alt:f32 hdop:f32 vdop:f32 vn:f32 ve:f32 vd:f32 speed_accuracy:f32 horiz_accuracy:f32 vert_accuracy:f32 ignore_flags:u16 time_week:u16 gps_id:u8 fix_type:u8 satellites_visible:u8");
+		define(234, "custom_mode:u32 latitude:i32 longitude:i32 roll:i16 pitch:i16 heading:u16 heading_sp:i16 altitude_amsl:i16 altitude_sp:i16 wp_distance:u16 base_mode:u8 landed_state:u8 throttle:i8 airspeed:u8 airspeed_sp:u8 groundspeed:u8 climb_rate:i8 gps_nsat:u8 gps_fix_type:u8 battery_remaining:u8 temperature:i8 temperature_air:i8 failsafe:u8 wp_num:u8");
+		define(241, "time_usec:u64 vibration_x:f32 vibration_y:f32 vibration_z:f32 clipping_0:u32 clipping_1:u32 clipping_2:u32");
+		define(244, "interval_us:i32 message_id:u16");
+		define(245, "vtol_state:u8 landed_state:u8");
+		define(247, "id:u32 time_to_minimum_delta:f32 altitude_minimum_delta:f32 horizontal_minimum_delta:f32 src:u8 action:u8 threat_level:u8");
+		define(254, "time_boot_ms:u32 value:f32 ind:u8");
+	}
+	
+	/**
+	 * @param layout the fields in wire order, each one name:type
+	 */
+	private static void define(int messageId, String layout) {
+		String[] parts = layout.split(" ");
+		Field[] fields = new Field[parts.length];
+		int offset = 0;
+		for(int i = 0; i < parts.length; i++) {
+			int colon = parts[i].indexOf(':');
+			int type = Arrays.asList(TYPE_NAMES).indexOf(parts[i].substring(colon+1));
+			fields[i] = new Field(messageId, parts[i].substring(0, colon), type, offset);
+			offset += SIZES[type];
+		}
+		FIELDS[messageId] = fields;
+	}
+	
+	/**
+	 * @return the fields of a message in wire order, or null if its layout is not known
+	 */
+	public static Field[] fields(int messageId) {
+		if(messageId < 0 || messageId >= FIELDS.length || FIELDS[messageId] == null) {
+			return null;
+		}
+		return FIELDS[messageId].clone();
+	}
+	
+	/**
+	 * Looks up fields by name.
+	 * 
+	 * @param spec a comma separated list of MESSAGE.field, or MESSAGE for all of a
+	 * 		message's fields, like GLOBAL_POSITION_INT.lat,GLOBAL_POSITION_INT.lon,ATTITUDE
+	 * @return the fields in the order given
+	 * @throws IllegalArgumentException if a message or field is unknown
+	 */
+	public static Field[] parse(String spec) {
+		ArrayList<Field> found = new ArrayList<Field>();
+		for(String part : spec.split(",")) {
+			part = part.trim();
+			int dot = part.indexOf('.');
+			int id = MAVLinkMessages.id(dot < 0 ? part : part.substring(0, dot));
+			Field[] fields = FIELDS[id];
+			if(fields == null) {
+				throw new IllegalArgumentException("The fields of " + MAVLinkMessages.name(id) + " are not known");
+			}
+			if(dot < 0) {
+				for(Field f : fields) {
+					found.add(f);
+				}
+				continue;
+			}
+			String name = part.substring(dot+1);
+			Field match = null;
+			for(Field f : fields) {
+				if(f.name.equals(name)) {
+					match = f;
+				}
+			}
+			if(match == null) {
+				throw new IllegalArgumentException(MAVLinkMessages.name(id) + " has no field " + name);
+			}
+			found.add(match);
+		}
+		return found.toArray(new Field[found.size()]);
+	}
+}
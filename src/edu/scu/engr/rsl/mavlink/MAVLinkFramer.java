@@ -0,0 +1,331 @@
+package edu.scu.engr.rsl.mavlink;
+
+/**
+ * Finds whole MAVLink v1 and v2 packets in a byte stream that arrives in pieces
+ * of any size.
+ * 
+ * Data is handed over with <code>feed</code> and packets are pulled out with
+ * <code>next</code>, which copies bytes into the packet buffer only until a packet
+ * is complete, so a packet split across two reads comes out whole and nothing is
+ * allocated. A packet is only returned if its CRC checks out. When it doesn't, the
+ * framer starts looking for a start byte one byte after the bad one, so a real
+ * packet hidden behind a false start byte is not lost.
+ * 
+ * A packet whose message has no known CRC_EXTRA, like one from a dialect such as
+ * ArduPilot's, can't be checked. It is still returned, framed by the length in its
+ * header, so traffic the framer doesn't know is passed on rather than lost, and
+ * <code>isChecked</code> tells the two apart. Such a packet is only taken if the
+ * byte after it is a start byte or the end of what has been fed, and otherwise the
+ * framer looks one byte further on as for a CRC error, so a false start byte can't
+ * swallow the packets behind it.
+ * 
+ * With <code>setPassUnframed</code>, bytes that aren't part of a packet are returned
+ * too instead of being skipped, in runs of at most <code>MAX_PACKET</code> with the
+ * message ID <code>UNFRAMED</code>, so a stream that isn't all MAVLink comes out whole.
+ * 
+ * <pre>
+ * framer.feed(data, 0, length);
+ * while(framer.next()) {
+ *     use(framer.getPacket(), framer.getPacketLength(), framer.getMessageId());
+ * }
+ * </pre>
+ * 
+ * A framer is not thread safe. The packet buffer is reused by the next call to
+ * <code>next</code>.
+ */
+public class MAVLinkFramer {
+	public static final int STX_V1 = 0xfe;
+	public static final int STX_V2 = 0xfd;
+	public static final int HEADER_V1 = 6;
+	public static final int HEADER_V2 = 10;
+	public static final int SIGNATURE_LENGTH = 13;
+	public static final int INCOMPAT_SIGNED = 0x01;
+	// v2 header, the largest payload, the CRC and a signature
+	public static final int MAX_PACKET = HEADER_V2 + 255 + 2 + SIGNATURE_LENGTH;
+	// the message ID of a run of bytes that aren't a packet
+	public static final int UNFRAMED = -1;
+
+	protected final byte[] packet = new byte[MAX_PACKET];
+	// bytes of the packet being assembled
+	protected int count = 0;
+	// the length of the completed packet in packet, or 0 if there isn't one
+	protected int packetLength = 0;
+	protected int messageId;
+	protected boolean checked;
+	protected boolean passUnframed = false;
+
+	protected byte[] input;
+	protected int inputOff, inputEnd;
+
+	protected long packets = 0, crcErrors = 0, unknownMessages = 0, discardedBytes = 0;
+
+	/**
+	 * Hands the framer the next piece of the stream. Anything left over from the
+	 * previous piece should have been drained with <code>next</code> first. The
+	 * array is read from until <code>next</code> returns false, so it must not change
+	 * until then.
+	 */
+	public void feed(byte[] data, int off, int len) {
+		input = data;
+		inputOff = off;
+		inputEnd = off + len;
+	}
+
+	/**
+	 * Looks for the next whole packet in what has been fed so far.
+	 * 
+	 * @return true if a packet is ready in <code>getPacket</code>, false if more data is needed
+	 */
+	public boolean next() {
+		if(packetLength > 0) {
+			// drop the packet returned last time
+			shift(packetLength);
+			packetLength = 0;
+		}
+		while(true) {
+			if(count == 0) {
+				if(passUnframed && takeUnframed()) {
+					return true;
+				}
+				if(!skipToStart()) {
+					return false;
+				}
+			}
+			int stx = packet[0] & 0xff;
+			int header = stx == STX_V2 ? HEADER_V2 : HEADER_V1;
+			if(!fill(header)) {
+				return false;
+			}
+			int payload = packet[1] & 0xff;
+			int total = header + payload + 2;
+			if(stx == STX_V2 && (packet[2] & INCOMPAT_SIGNED) != 0) {
+				total += SIGNATURE_LENGTH;
+			}
+			if(!fill(total)) {
+				return false;
+			}
+			int id = stx == STX_V2
+					? (packet[7] & 0xff) | (packet[8] & 0xff) << 8 | (packet[9] & 0xff) << 16
+					: packet[5] & 0xff;
+			if(!MAVLinkCRC.isKnown(id)) {
+				// nothing to check it by, so only trust its length if another packet
+				// starts right after it
+				if(inputOff < inputEnd && !isStart(input[inputOff])) {
+					if(resync()) {
+						return true;
+					}
+					continue;
+				}
+				unknownMessages++;
+				checked = false;
+				messageId = id;
+				packetLength = total;
+				return true;
+			}
+			int crc = MAVLinkCRC.accumulate(packet, 1, header - 1 + payload, MAVLinkCRC.INITIAL);
+			crc = MAVLinkCRC.accumulate(MAVLinkCRC.crcExtra(id), crc);
+			int sent = (packet[header + payload] & 0xff) | (packet[header + payload + 1] & 0xff) << 8;
+			if(crc != sent) {
+				crcErrors++;
+				if(resync()) {
+					return true;
+				}
+				continue;
+			}
+			packets++;
+			checked = true;
+			messageId = id;
+			packetLength = total;
+			return true;
+		}
+	}
+
+	/**
+	 * @param passUnframed true to return bytes that aren't part of a packet from 
+	 * 		<code>next</code> rather than skip them
+	 */
+	public void setPassUnframed(boolean passUnframed) {
+		this.passUnframed = passUnframed;
+	}
+
+	/**
+	 * @return the buffer holding the packet found by <code>next</code>, starting at index 0
+	 */
+	public byte[] getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return the length of the packet found by <code>next</code>, including the header, CRC and any signature
+	 */
+	public int getPacketLength() {
+		return packetLength;
+	}
+
+	/**
+	 * @return the message ID of the packet found by <code>next</code>, or <code>UNFRAMED</code>
+	 * 		if it is a run of bytes that aren't a packet
+	 */
+	public int getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return true if the CRC of the packet found by <code>next</code> was checked,
+	 * 		false if its message is unknown and it was framed by its length alone
+	 */
+	public boolean isChecked() {
+		return checked;
+	}
+
+	/**
+	 * @return the offset of the payload in the packet found by <code>next</code>
+	 */
+	public int getPayloadOffset() {
+		return (packet[0] & 0xff) == STX_V2 ? HEADER_V2 : HEADER_V1;
+	}
+
+	/**
+	 * @return the length of the payload in the packet found by <code>next</code>. MAVLink v2
+	 * 		trims trailing zeros from payloads, so this can be shorter than the message.
+	 */
+	public int getPayloadLength() {
+		return packet[1] & 0xff;
+	}
+
+	/**
+	 * @return the number of bytes of a partial packet held until more data arrives
+	 */
+	public int getBufferedBytes() {
+		return packetLength > 0 ? count - packetLength : count;
+	}
+
+	/**
+	 * Forgets any partial packet, for when the stream is restarted.
+	 */
+	public void reset() {
+		count = 0;
+		packetLength = 0;
+		input = null;
+		inputOff = inputEnd = 0;
+	}
+
+	/**
+	 * @return the number of packets whose CRC checked out
+	 */
+	public long getPackets() {
+		return packets;
+	}
+
+	public long getCrcErrors() {
+		return crcErrors;
+	}
+
+	/**
+	 * @return the number of packets passed on unchecked because their message ID has no known CRC_EXTRA
+	 */
+	public long getUnknownMessages() {
+		return unknownMessages;
+	}
+
+	/**
+	 * @return the number of bytes that weren't part of a packet, whether they were skipped or passed on
+	 */
+	public long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	/**
+	 * Skips input up to the next start byte and takes the start byte.
+	 * 
+	 * @return false if the input ran out first
+	 */
+	protected boolean skipToStart() {
+		int i = inputOff;
+		while(i < inputEnd && !isStart(input[i])) {
+			i++;
+		}
+		discardedBytes += i - inputOff;
+		inputOff = i;
+		if(i == inputEnd) {
+			return false;
+		}
+		packet[count++] = input[inputOff++];
+		return true;
+	}
+
+	/**
+	 * Takes the input up to the next start byte as an unframed run. Only call this
+	 * with nothing in the packet buffer.
+	 * 
+	 * @return true if there were any bytes before a start byte
+	 */
+	protected boolean takeUnframed() {
+		int i = inputOff;
+		int end = Math.min(inputEnd, inputOff + MAX_PACKET);
+		while(i < end && !isStart(input[i])) {
+			i++;
+		}
+		if(i == inputOff) {
+			return false;
+		}
+		fill(i - inputOff);
+		discardedBytes += count;
+		unframed(count);
+		return true;
+	}
+
+	protected void unframed(int length) {
+		checked = false;
+		messageId = UNFRAMED;
+		packetLength = length;
+	}
+
+	/**
+	 * Copies input into the packet until it holds <code>length</code> bytes.
+	 * 
+	 * @return false if the input ran out first
+	 */
+	protected boolean fill(int length) {
+		int n = Math.min(length - count, inputEnd - inputOff);
+		if(n > 0) {
+			System.arraycopy(input, inputOff, packet, count, n);
+			inputOff += n;
+			count += n;
+		}
+		return count >= length;
+	}
+
+	/**
+	 * Drops the bad start byte and moves the bytes after it to the front, up to the
+	 * next start byte among them. When unframed bytes are passed on, they are 
+	 * returned as a run instead.
+	 * 
+	 * @return true if the bytes are returned as an unframed run
+	 */
+	protected boolean resync() {
+		int next = 1;
+		while(next < count && !isStart(packet[next])) {
+			next++;
+		}
+		discardedBytes += next;
+		if(passUnframed) {
+			unframed(next);
+			return true;
+		}
+		shift(next);
+		return false;
+	}
+
+	protected static boolean isStart(byte b) {
+		int v = b & 0xff;
+		return v == STX_V1 || v == STX_V2;
+	}
+
+	protected void shift(int n) {
+		count -= n;
+		if(count > 0) {
+			System.arraycopy(packet, n, packet, 0, count);
+		}
+	}
+}
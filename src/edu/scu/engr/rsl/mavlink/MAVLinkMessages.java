@@ -0,0 +1,206 @@
+package edu.scu.engr.rsl.mavlink;
+
+import java.util.HashMap;
+
+/**
+ * The names of the MAVLink messages whose IDs <code>MAVLinkCRC</code> knows, so 
+ * messages can be named in options and channel names instead of by number. Only
+ * messages with a known CRC_EXTRA can be looked up, by name or by number.
+ * 
+ * The names are the ones in the message definitions, like GLOBAL_POSITION_INT.
+ */
+public class MAVLinkMessages {
+	/**
+	 * One more than the largest message ID with a name.
+	 */
+	public static final int COUNT = 256;
+	
+	private static final String[] NAMES = new String[COUNT];
+	private static final HashMap<String, Integer> IDS = new HashMap<String, Integer>();
+	
+	static {
+		NAMES[0] = "HEARTBEAT";
+		NAMES[1] = "SYS_STATUS";
+		NAMES[2] = "SYSTEM_TIME";
+		NAMES[4] = "PING";
+		NAMES[5] = "CHANGE_OPERATOR_CONTROL";
+		NAMES[6] = "CHANGE_OPERATOR_CONTROL_ACK";
+		NAMES[7] = "AUTH_KEY";
+		NAMES[11] = "SET_MODE";
+		NAMES[20] = "PARAM_REQUEST_READ";
+		NAMES[21] = "PARAM_REQUEST_LIST";
+		NAMES[22] = "PARAM_VALUE";
+		NAMES[23] = "PARAM_SET";
+		NAMES[24] = "GPS_RAW_INT";
+		NAMES[25] = "GPS_STATUS";
+		NAMES[26] = "SCALED_IMU";
+		NAMES[27] = "RAW_IMU";
+		NAMES[28] = "RAW_PRESSURE";
+		NAMES[29] = "SCALED_PRESSURE";
+		NAMES[30] = "ATTITUDE";
+		NAMES[31] = "ATTITUDE_QUATERNION";
+		NAMES[32] = "LOCAL_POSITION_NED";
+		NAMES[33] = "GLOBAL_POSITION_INT";
+		NAMES[34] = "RC_CHANNELS_SCALED";
+		NAMES[35] = "RC_CHANNELS_RAW";
+		NAMES[36] = "SERVO_OUTPUT_RAW";
+		NAMES[37] = "MISSION_REQUEST_PARTIAL_LIST";
+		NAMES[38] = "MISSION_WRITE_PARTIAL_LIST";
+		NAMES[39] = "MISSION_ITEM";
+		NAMES[40] = "MISSION_REQUEST";
+		NAMES[41] = "MISSION_SET_CURRENT";
+		NAMES[42] = "MISSION_CURRENT";
+		NAMES[43] = "MISSION_REQUEST_LIST";
+		NAMES[44] = "MISSION_COUNT";
+		NAMES[45] = "MISSION_CLEAR_ALL";
+		NAMES[46] = "MISSION_ITEM_REACHED";
+		NAMES[47] = "MISSION_ACK";
+		NAMES[48] = "SET_GPS_GLOBAL_ORIGIN";
+		NAMES[49] = "GPS_GLOBAL_ORIGIN";
+		NAMES[50] = "PARAM_MAP_RC";
+		NAMES[51] = "MISSION_REQUEST_INT";
+		NAMES[54] = "SAFETY_SET_ALLOWED_AREA";
+		NAMES[55] = "SAFETY_ALLOWED_AREA";
+		NAMES[61] = "ATTITUDE_QUATERNION_COV";
+		NAMES[62] = "NAV_CONTROLLER_OUTPUT";
+		NAMES[63] = "GLOBAL_POSITION_INT_COV";
+		NAMES[64] = "LOCAL_POSITION_NED_COV";
+		NAMES[65] = "RC_CHANNELS";
+		NAMES[66] = "REQUEST_DATA_STREAM";
+		NAMES[67] = "DATA_STREAM";
+		NAMES[69] = "MANUAL_CONTROL";
+		NAMES[70] = "RC_CHANNELS_OVERRIDE";
+		NAMES[73] = "MISSION_ITEM_INT";
+		NAMES[74] = "VFR_HUD";
+		NAMES[75] = "COMMAND_INT";
+		NAMES[76] = "COMMAND_LONG";
+		NAMES[77] = "COMMAND_ACK";
+		NAMES[81] = "MANUAL_SETPOINT";
+		NAMES[82] = "SET_ATTITUDE_TARGET";
+		NAMES[83] = "ATTITUDE_TARGET";
+		NAMES[84] = "SET_POSITION_TARGET_LOCAL_NED";
+		NAMES[85] = "POSITION_TARGET_LOCAL_NED";
+		NAMES[86] = "SET_POSITION_TARGET_GLOBAL_INT";
+		NAMES[87] = "POSITION_TARGET_GLOBAL_INT";
+		NAMES[89] = "LOCAL_POSITION_NED_SYSTEM_GLOBAL_OFFSET";
+		NAMES[90] = "HIL_STATE";
+		NAMES[91] = "HIL_CONTROLS";
+		NAMES[92] = "HIL_RC_INPUTS_RAW";
+		NAMES[93] = "HIL_ACTUATOR_CONTROLS";
+		NAMES[100] = "OPTICAL_FLOW";
+		NAMES[101] = "GLOBAL_VISION_POSITION_ESTIMATE";
+		NAMES[102] = "VISION_POSITION_ESTIMATE";
+		NAMES[103] = "VISION_SPEED_ESTIMATE";
+		NAMES[104] = "VICON_POSITION_ESTIMATE";
+		NAMES[105] = "HIGHRES_IMU";
+		NAMES[106] = "OPTICAL_FLOW_RAD";
+		NAMES[107] = "HIL_SENSOR";
+		NAMES[108] = "SIM_STATE";
+		NAMES[109] = "RADIO_STATUS";
+		NAMES[110] = "FILE_TRANSFER_PROTOCOL";
+		NAMES[111] = "TIMESYNC";
+		NAMES[112] = "CAMERA_TRIGGER";
+		NAMES[113] = "HIL_GPS";
+		NAMES[114] = "HIL_OPTICAL_FLOW";
+		NAMES[115] = "HIL_STATE_QUATERNION";
+		NAMES[116] = "SCALED_IMU2";
+		NAMES[117] = "LOG_REQUEST_LIST";
+		NAMES[118] = "LOG_ENTRY";
+		NAMES[119] = "LOG_REQUEST_DATA";
+		NAMES[120] = "LOG_DATA";
+		NAMES[121] = "LOG_ERASE";
+		NAMES[122] = "LOG_REQUEST_END";
+		NAMES[123] = "GPS_INJECT_DATA";
+		NAMES[124] = "GPS2_RAW";
+		NAMES[125] = "POWER_STATUS";
+		NAMES[126] = "SERIAL_CONTROL";
+		NAMES[127] = "GPS_RTK";
+		NAMES[128] = "GPS2_RTK";
+		NAMES[129] = "SCALED_IMU3";
+		NAMES[130] = "DATA_TRANSMISSION_HANDSHAKE";
+		NAMES[131] = "ENCAPSULATED_DATA";
+		NAMES[132] = "DISTANCE_SENSOR";
+		NAMES[133] = "TERRAIN_REQUEST";
+		NAMES[134] = "TERRAIN_DATA";
+		NAMES[135] = "TERRAIN_CHECK";
+		NAMES[136] = "TERRAIN_REPORT";
+		NAMES[137] = "SCALED_PRESSURE2";
+		NAMES[138] = "ATT_POS_MOCAP";
+		NAMES[139] = "SET_ACTUATOR_CONTROL_TARGET";
+		NAMES[140] = "ACTUATOR_CONTROL_TARGET";
+		NAMES[141] = "ALTITUDE";
+		NAMES[142] = "RESOURCE_REQUEST";
+		NAMES[143] = "SCALED_PRESSURE3";
+		NAMES[144] = "FOLLOW_TARGET";
+		NAMES[146] = "CONTROL_SYSTEM_STATE";
+		NAMES[147] = "BATTERY_STATUS";
+		NAMES[148] = "AUTOPILOT_VERSION";
+		NAMES[149] = "LANDING_TARGET";
+		NAMES[150] = "SENSOR_OFFSETS";
+		NAMES[230] = "ESTIMATOR_STATUS";
+		NAMES[231] = "WIND_COV";
+		NAMES[232] = "GPS_INPUT";
+		NAMES[233] = "GPS_RTCM_DATA";
+		NAMES[234] = "HIGH_LATENCY";
+		NAMES[241] = "VIBRATION";
+		NAMES[242] = "HOME_POSITION";
+		NAMES[243] = "SET_HOME_POSITION";
+		NAMES[244] = "MESSAGE_INTERVAL";
+		NAMES[245] = "EXTENDED_SYS_STATE";
+		NAMES[246] = "ADSB_VEHICLE";
+		NAMES[247] = "COLLISION";
+		NAMES[248] = "V2_EXTENSION";
+		NAMES[249] = "MEMORY_VECT";
+		NAMES[250] = "DEBUG_VECT";
+		NAMES[251] = "NAMED_VALUE_FLOAT";
+		NAMES[252] = "NAMED_VALUE_INT";
+		NAMES[253] = "STATUSTEXT";
+		NAMES[254] = "DEBUG";
+		for(int id = 0; id < COUNT; id++) {
+			if(NAMES[id] != null) {
+				IDS.put(NAMES[id], id);
+			}
+		}
+	}
+	
+	/**
+	 * @return the name of the message, or MSG_ followed by the ID if it has no name
+	 */
+	public static String name(int id) {
+		if(isNamed(id)) {
+			return NAMES[id];
+		}
+		return "MSG_" + id;
+	}
+	
+	/**
+	 * @return true if the message ID has a name in the message definitions
+	 */
+	public static boolean isNamed(int id) {
+		return id >= 0 && id < COUNT && NAMES[id] != null;
+	}
+	
+	/**
+	 * Looks up a message by name or by number.
+	 * 
+	 * @param nameOrId a name like GLOBAL_POSITION_INT, in any case, or a message ID like 33
+	 * @return the message ID
+	 * @throws IllegalArgumentException if there is no such message
+	 */
+	public static int id(String nameOrId) {
+		String s = nameOrId.trim();
+		Integer id = IDS.get(s.toUpperCase());
+		if(id != null && MAVLinkCRC.isKnown(id)) {
+			return id;
+		}
+		try {
+			int n = Integer.parseInt(s);
+			if(MAVLinkCRC.isKnown(n)) {
+				return n;
+			}
+		} catch(NumberFormatException e) {
+			// not a number either
+		}
+		throw new IllegalArgumentException("Unknown MAVLink message " + nameOrId);
+	}
+}
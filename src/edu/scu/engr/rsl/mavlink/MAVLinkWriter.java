@@ -0,0 +1,62 @@
+package edu.scu.engr.rsl.mavlink;
+
+/**
+ * Builds MAVLink v1 and v2 packets around a payload, for sending to a vehicle
+ * or for making test and replay streams.
+ */
+public class MAVLinkWriter {
+	protected final int sysId, compId;
+	protected final boolean v2;
+	protected int sequence = 0;
+	
+	/**
+	 * @param sysId the system ID to put in every packet
+	 * @param compId the component ID to put in every packet
+	 * @param v2 true to write MAVLink v2 packets, false for v1
+	 */
+	public MAVLinkWriter(int sysId, int compId, boolean v2) {
+		this.sysId = sysId;
+		this.compId = compId;
+		this.v2 = v2;
+	}
+	
+	/**
+	 * Writes one packet. v2 packets are not signed and their payloads are not trimmed.
+	 * 
+	 * @param msgId the message ID, which must be below 256 for v1
+	 * @param payload the message fields in wire order
+	 * @param dst where the packet is written, which needs room for
+	 * 		<code>MAVLinkFramer.MAX_PACKET</code> bytes
+	 * @return the length of the packet
+	 * @throws IllegalArgumentException if the message can not be written with this version
+	 */
+	public int write(int msgId, byte[] payload, int payloadOff, int payloadLen, byte[] dst, int off) {
+		if(payloadLen > 255 || (!v2 && msgId > 255) || !MAVLinkCRC.isKnown(msgId)) {
+			throw new IllegalArgumentException("Can not write message " + msgId + " with a " + payloadLen + " byte payload");
+		}
+		int i = off;
+		dst[i++] = (byte) (v2 ? MAVLinkFramer.STX_V2 : MAVLinkFramer.STX_V1);
+		dst[i++] = (byte) payloadLen;
+		if(v2) {
+			// no incompatible or compatible flags
+			dst[i++] = 0;
+			dst[i++] = 0;
+		}
+		dst[i++] = (byte) sequence;
+		dst[i++] = (byte) sysId;
+		dst[i++] = (byte) compId;
+		dst[i++] = (byte) msgId;
+		if(v2) {
+			dst[i++] = (byte) (msgId >> 8);
+			dst[i++] = (byte) (msgId >> 16);
+		}
+		System.arraycopy(payload, payloadOff, dst, i, payloadLen);
+		i += payloadLen;
+		int crc = MAVLinkCRC.accumulate(dst, off + 1, i - off - 1, MAVLinkCRC.INITIAL);
+		crc = MAVLinkCRC.accumulate(MAVLinkCRC.crcExtra(msgId), crc);
+		dst[i++] = (byte) crc;
+		dst[i++] = (byte) (crc >> 8);
+		sequence = (sequence + 1) & 0xff;
+		return i - off;
+	}
+}
@@ -0,0 +1,54 @@
+package edu.scu.engr.rsl.util;
+
+/**
+ * Keeps released <code>byte[]</code>s around by length so they can be handed out 
+ * again. This is for APIs, like DataTurbine's <code>PutDataAsInt8</code>, that 
+ * only take a whole array and hold on to it until some later call, so a slice of 
+ * a larger buffer can not be used.
+ * 
+ * Arrays longer than <code>maxLength</code> are never cached.
+ */
+public class ArrayCache {
+	private final int maxLength, depth;
+	private final byte[][][] stacks;
+	private final int[] sizes;
+	
+	/**
+	 * @param maxLength the longest array that will be cached
+	 * @param depth how many arrays of each length to keep
+	 */
+	public ArrayCache(int maxLength, int depth) {
+		this.maxLength = maxLength;
+		this.depth = depth;
+		this.stacks = new byte[maxLength+1][][];
+		this.sizes = new int[maxLength+1];
+	}
+	
+	/**
+	 * @return an array of exactly <code>length</code> bytes whose contents are undefined
+	 */
+	public synchronized byte[] take(int length) {
+		if(length <= maxLength && sizes[length] > 0) {
+			byte[] a = stacks[length][--sizes[length]];
+			stacks[length][sizes[length]] = null;
+			return a;
+		}
+		return new byte[length];
+	}
+	
+	/**
+	 * Hands an array back. The caller must not use it afterwards.
+	 */
+	public synchronized void give(byte[] array) {
+		int length = array.length;
+		if(length > maxLength) {
+			return;
+		}
+		if(stacks[length] == null) {
+			stacks[length] = new byte[depth][];
+		}
+		if(sizes[length] < depth) {
+			stacks[length][sizes[length]++] = array;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package edu.scu.engr.rsl.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spaces out reconnect attempts. The delay doubles after every failed attempt up
+ * to a ceiling, and each delay is picked at random between half the current delay
+ * and the whole of it, so bridges that lost the same server don't all come back
+ * at the same moment.
+ * 
+ * Not thread safe, each reconnecting loop keeps its own.
+ */
+public class Backoff {
+	protected final long initialMillis, maxMillis;
+	protected int attempts = 0;
+	
+	/**
+	 * @param initialMillis the delay before the first retry
+	 * @param maxMillis the most the delay grows to
+	 */
+	public Backoff(long initialMillis, long maxMillis) {
+		if(initialMillis < 1 || maxMillis < initialMillis) {
+			throw new IllegalArgumentException("need 0 < initialMillis <= maxMillis");
+		}
+		this.initialMillis = initialMillis;
+		this.maxMillis = maxMillis;
+	}
+	
+	/**
+	 * Counts a failed attempt.
+	 * 
+	 * @return milliseconds to wait before the next attempt
+	 */
+	public long nextDelay() {
+		long ceiling = maxMillis;
+		// compared this way round so the doubling can't overflow
+		if(attempts < 63 && initialMillis <= maxMillis >> attempts) {
+			ceiling = initialMillis << attempts;
+		}
+		attempts++;
+		long half = ceiling/2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+	
+	/**
+	 * Waits out the next delay.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void sleep() throws InterruptedException {
+		Thread.sleep(nextDelay());
+	}
+	
+	/**
+	 * Starts over from the initial delay, after a successful attempt.
+	 */
+	public void reset() {
+		attempts = 0;
+	}
+	
+	/**
+	 * @return the number of failed attempts since the last reset
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+}
@@ -0,0 +1,80 @@
+package edu.scu.engr.rsl.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed-size, reusable <code>Slab</code>s.
+ * 
+ * The pool starts with a few slabs. If it runs dry a new slab is allocated 
+ * rather than making the caller wait, and the slab is kept when it is released 
+ * as long as the pool holds fewer than its maximum. Once the process has warmed
+ * up and the pool holds as many slabs as are ever in flight at once, acquiring 
+ * and releasing does not allocate, and a quiet connection never pays for more
+ * slabs than it has needed.
+ * 
+ * Slabs are backed by heap arrays because the DataTurbine API only accepts 
+ * <code>byte[]</code>.
+ */
+public class BufferPool {
+	private final int slabSize;
+	private final ArrayBlockingQueue<Slab> free;
+	private final AtomicLong allocations = new AtomicLong();
+	
+	/**
+	 * @param slabSize the number of bytes in each slab
+	 * @param slabCount the most slabs the pool will keep
+	 */
+	public BufferPool(int slabSize, int slabCount) {
+		this(slabSize, Math.min(slabCount, 8), slabCount);
+	}
+	
+	/**
+	 * @param slabSize the number of bytes in each slab
+	 * @param initialCount the number of slabs to allocate up front
+	 * @param slabCount the most slabs the pool will keep
+	 */
+	public BufferPool(int slabSize, int initialCount, int slabCount) {
+		this.slabSize = slabSize;
+		this.free = new ArrayBlockingQueue<Slab>(slabCount);
+		for(int i = 0; i < initialCount; i++) {
+			free.offer(new Slab(this, slabSize));
+		}
+	}
+	
+	/**
+	 * @return an empty slab, allocating one only if the pool is empty
+	 */
+	public Slab acquire() {
+		Slab s = free.poll();
+		if(s == null) {
+			allocations.incrementAndGet();
+			s = new Slab(this, slabSize);
+		}
+		return s;
+	}
+	
+	void release(Slab s) {
+		// if the pool is already full the slab is left for the garbage collector
+		free.offer(s);
+	}
+	
+	public int getSlabSize() {
+		return slabSize;
+	}
+	
+	/**
+	 * @return the number of slabs sitting in the pool
+	 */
+	public int available() {
+		return free.size();
+	}
+	
+	/**
+	 * @return how many times the pool ran dry and had to allocate a slab. If this 
+	 * 		keeps growing after warming up the pool is too small for the load.
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+}
@@ -0,0 +1,195 @@
+package edu.scu.engr.rsl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring of bytes for exactly one producer thread and one consumer thread.
+ * 
+ * The producer never waits: whatever does not fit is dropped and counted, which is
+ * what a device callback that must return quickly needs. The consumer can wait for
+ * data with <code>awaitData</code>, and the producer wakes it when it adds some.
+ * 
+ * Head and tail are ever increasing byte counts, masked into the array, so full and
+ * empty are never confused. Each side keeps a cached copy of the other side's count
+ * and only reads the shared one when the cached copy says it has to.
+ */
+public class ByteRing {
+	protected final byte[] buffer;
+	protected final int mask;
+	// the count of bytes read, only written by the consumer
+	protected final AtomicLong head = new AtomicLong();
+	// the count of bytes written, only written by the producer
+	protected final AtomicLong tail = new AtomicLong();
+	// the producer's last look at head and the consumer's last look at tail
+	protected long cachedHead = 0, cachedTail = 0;
+	protected volatile Thread waiter;
+	// only written by the producer
+	protected volatile long droppedBytes = 0, overruns = 0;
+
+	/**
+	 * @param capacity the size of the ring in bytes, rounded up to a power of two
+	 */
+	public ByteRing(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) {
+			size <<= 1;
+		}
+		buffer = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds as much of the bytes as fits. Only call this from the producer thread.
+	 * 
+	 * @return the number of bytes added. The rest were dropped.
+	 */
+	public int write(byte[] src, int off, int len) {
+		long t = tail.get();
+		int free = free(t, len);
+		int n = Math.min(free, len);
+		if(n < len) {
+			overruns++;
+			droppedBytes += len - n;
+		}
+		if(n == 0) {
+			return 0;
+		}
+		int start = (int) (t & mask);
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(src, off, buffer, start, first);
+		System.arraycopy(src, off + first, buffer, 0, n - first);
+		publish(t + n);
+		return n;
+	}
+
+	/**
+	 * Reads from a stream straight into the ring, without an intermediate array.
+	 * Reads at most up to the end of the array, so a caller that wants
+	 * <code>max</code> bytes may have to call this twice. Only call this from the
+	 * producer thread.
+	 * 
+	 * @param in the stream to read
+	 * @param max the most bytes to read
+	 * @return the number of bytes read, 0 if the ring is full, or -1 at the end of the stream
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream in, int max) throws IOException {
+		long t = tail.get();
+		int start = (int) (t & mask);
+		int n = Math.min(Math.min(max, free(t, max)), buffer.length - start);
+		if(n == 0) {
+			return 0;
+		}
+		int readBytes = in.read(buffer, start, n);
+		if(readBytes > 0) {
+			publish(t + readBytes);
+		}
+		return readBytes;
+	}
+
+	/**
+	 * Counts bytes the producer had to throw away because the ring was full, for
+	 * producers that drop data without offering it to the ring.
+	 */
+	public void dropped(int len) {
+		overruns++;
+		droppedBytes += len;
+	}
+
+	/**
+	 * Takes up to <code>len</code> bytes out of the ring. Only call this from the
+	 * consumer thread.
+	 * 
+	 * @return the number of bytes taken, which is 0 if the ring is empty
+	 */
+	public int read(byte[] dst, int off, int len) {
+		long h = head.get();
+		if(cachedTail - h < len) {
+			cachedTail = tail.get();
+		}
+		int n = (int) Math.min(len, cachedTail - h);
+		if(n == 0) {
+			return 0;
+		}
+		int start = (int) (h & mask);
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(buffer, start, dst, off, first);
+		System.arraycopy(buffer, 0, dst, off + first, n - first);
+		head.lazySet(h + n);
+		return n;
+	}
+
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for the ring to hold something.
+	 * Only call this from the consumer thread. Returns early if the thread is interrupted.
+	 * 
+	 * @return true if there is data to read
+	 */
+	public boolean awaitData(long timeout) {
+		if(available() > 0) {
+			return true;
+		}
+		waiter = Thread.currentThread();
+		try {
+			// the producer may have added data before it could see the waiter
+			if(available() > 0) {
+				return true;
+			}
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+			return available() > 0;
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * @return the number of bytes waiting to be read
+	 */
+	public int available() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return the number of bytes dropped because the ring was full
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * @return the number of writes that did not completely fit
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	// how much room the producer has, only looking at head if the cached copy says there isn't enough
+	private int free(long t, int wanted) {
+		int free = buffer.length - (int) (t - cachedHead);
+		if(free < wanted) {
+			cachedHead = head.get();
+			free = buffer.length - (int) (t - cachedHead);
+		}
+		return free;
+	}
+
+	private void publish(long newTail) {
+		// a full volatile write so the producer can't miss a consumer that is about to park
+		tail.set(newTail);
+		Thread w = waiter;
+		if(w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+}
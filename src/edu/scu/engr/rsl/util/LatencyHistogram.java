@@ -0,0 +1,116 @@
+package edu.scu.engr.rsl.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets that are exact below 32 and then split every power
+ * of two into 16 steps, so any value is off by at most 1/16th, the same idea as
+ * HdrHistogram with a fixed precision. Every value a long can hold has a bucket, so
+ * nothing is clamped.
+ * 
+ * Recording is a few arithmetic operations and atomic increments and never
+ * allocates, so it can be done on every frame. Any number of threads can record
+ * at once. Reading the percentiles while values are being recorded gives an answer
+ * that is off by at most the values recorded meanwhile.
+ */
+public class LatencyHistogram {
+	protected static final int SUB_BITS = 4;
+	protected static final int SUB = 1 << SUB_BITS;
+	// exact buckets for 0 to 2*SUB-1, then SUB for each power of two up to 2^62
+	public static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	protected final LongAdder count = new LongAdder(), sum = new LongAdder();
+	protected final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value a duration, usually in nanoseconds. Negative values count as 0.
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		long m = max.get();
+		while(value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * @return the index of the bucket holding <code>value</code>
+	 */
+	public static int bucket(long value) {
+		if(value < 2*SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift*SUB + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the largest value that goes in a bucket
+	 */
+	public static long highestInBucket(int bucket) {
+		if(bucket < 2*SUB) {
+			return bucket;
+		}
+		int shift = bucket/SUB - 1;
+		long top = bucket - shift*SUB;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param fraction between 0 and 1, like 0.99 for the 99th percentile
+	 * @return a value at least as big as that fraction of the recorded values and
+	 * 		within 1/16th of it, or 0 if nothing has been recorded
+	 */
+	public long percentile(double fraction) {
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if(total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(highestInBucket(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Forgets everything recorded so far. Values recorded while this runs may be
+	 * partly forgotten.
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
@@ -0,0 +1,153 @@
+package edu.scu.engr.rsl.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring of timestamped lines for any number of producer threads
+ * and exactly one consumer thread.
+ * 
+ * A producer claims the next slot by moving the tail forward, fills the slot and then
+ * marks it ready, so lines come out in the order their slots were claimed. Each slot
+ * has a sequence number that says whose turn it is: a producer may fill slot
+ * <code>i</code> when its sequence is the tail it claimed, and the consumer may take
+ * it when the sequence is one more than that.
+ * 
+ * Like <code>ByteRing</code>, the consumer can wait with <code>awaitData</code> and a
+ * producer wakes it when it adds a line.
+ */
+public class LineRing {
+	protected final String[] lines;
+	protected final long[] times;
+	protected final AtomicLongArray sequences;
+	protected final int mask;
+	// the count of lines read, only written by the consumer
+	protected final AtomicLong head = new AtomicLong();
+	// the count of slots claimed by producers
+	protected final AtomicLong tail = new AtomicLong();
+	protected volatile Thread waiter;
+	// the time of the line last taken, only touched by the consumer
+	protected long lastTime;
+
+	/**
+	 * @param capacity the most lines the ring holds, rounded up to a power of two
+	 */
+	public LineRing(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) {
+			size <<= 1;
+		}
+		lines = new String[size];
+		times = new long[size];
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds a line if there is room. Safe to call from any thread.
+	 * 
+	 * @param line the line
+	 * @param time when the line was made, in milliseconds since the epoch
+	 * @return false if the ring was full
+	 */
+	public boolean offer(String line, long time) {
+		long t = tail.get();
+		while(true) {
+			int slot = (int) (t & mask);
+			long s = sequences.get(slot);
+			if(s == t) {
+				if(tail.compareAndSet(t, t + 1)) {
+					lines[slot] = line;
+					times[slot] = time;
+					// a full volatile write so the producer can't miss a consumer that is about to park
+					sequences.set(slot, t + 1);
+					Thread w = waiter;
+					if(w != null) {
+						LockSupport.unpark(w);
+					}
+					return true;
+				}
+				t = tail.get();
+			} else if(s < t) {
+				// the consumer hasn't taken the line a lap ago yet
+				return false;
+			} else {
+				// another producer claimed this slot first
+				t = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the oldest line has been filled and can be taken with
+	 * 		<code>poll</code>. Only call this from the consumer thread.
+	 */
+	public boolean ready() {
+		long h = head.get();
+		return sequences.get((int) (h & mask)) == h + 1;
+	}
+
+	/**
+	 * Takes the oldest line. Only call this from the consumer thread, after
+	 * <code>ready</code> returned true. The line's time is returned by
+	 * <code>lastTime</code> until the next poll.
+	 */
+	public String poll() {
+		long h = head.get();
+		int slot = (int) (h & mask);
+		String line = lines[slot];
+		lastTime = times[slot];
+		lines[slot] = null;
+		sequences.lazySet(slot, h + lines.length);
+		head.lazySet(h + 1);
+		return line;
+	}
+
+	/**
+	 * @return the time of the line returned by the last <code>poll</code>
+	 */
+	public long lastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * Waits up to <code>timeout</code> nanoseconds for a line to be ready. Only call
+	 * this from the consumer thread. Returns early if the thread is interrupted or
+	 * unparked.
+	 * 
+	 * @return true if a line can be taken
+	 */
+	public boolean awaitData(long timeout) {
+		if(ready()) {
+			return true;
+		}
+		waiter = Thread.currentThread();
+		try {
+			if(ready()) {
+				return true;
+			}
+			LockSupport.parkNanos(this, timeout);
+			return ready();
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * @return the number of lines claimed but not yet taken
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return lines.length;
+	}
+}
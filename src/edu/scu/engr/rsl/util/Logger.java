@@ -6,30 +6,93 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Logs to standard out and, at log level 3 and up, to a file.
+ * 
+ * Lines for the file are put in a bounded <code>LineRing</code> and written by one
+ * writer thread, so logging never does file I/O on the caller's thread and lines
+ * are written in the order they were logged. The writer takes everything waiting
+ * in the ring at once and flushes when <code>flushSize</code> characters are
+ * waiting or the oldest unflushed line is <code>flushMillis</code> old, so a burst
+ * of lines costs one flush instead of one each.
+ * 
+ * When the ring is full a caller waits for room, or with <code>setBlockWhenFull(false)</code>
+ * the line is dropped and counted in <code>getDroppedLines</code>. <code>endLogger</code>
+ * writes everything logged before it was called and closes the file.
+ */
 public class Logger {
 	public static String logFilePrefix = "java_logger";
-	private static BufferedWriter w;
 	private static DateTimeFormatter loggerFormat = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss"), fileNameFormat = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
 	private static LocalDateTime now = LocalDateTime.now();
 	private static File logFile = new File(logFilePrefix+fileNameFormat.format(now)+".log");
-	private static boolean fileOpened = false;
-	private static LinkedList<Thread> threads = new LinkedList<Thread>();
+	
+	private static int capacity = 8192;
+	private static boolean blockWhenFull = true;
+	private static int flushSize = 8192;
+	private static long flushMillis = 200;
+	// the ring and writer thread of the open log, or null until the first line is written
+	private static volatile LineRing ring;
+	private static volatile Thread writer;
+	private static volatile boolean ending = false;
+	private static final AtomicLong droppedLines = new AtomicLong(), writtenLines = new AtomicLong();
 	
 	public static void setLogLocation(String logLocation) {
 		logFile = new File(logLocation);
 	}
 	
-	private static void setupFile() throws IOException {
+	/**
+	 * @param lines the most lines waiting to be written. Takes effect when the file is next opened.
+	 */
+	public static void setCapacity(int lines) {
+		capacity = lines;
+	}
+	
+	/**
+	 * @param block true to make a caller wait when the ring is full, false to drop its line
+	 */
+	public static void setBlockWhenFull(boolean block) {
+		blockWhenFull = block;
+	}
+	
+	/**
+	 * @param chars flush once this many characters have been written since the last flush
+	 */
+	public static void setFlushSize(int chars) {
+		flushSize = chars;
+	}
+	
+	/**
+	 * @param millis flush once the oldest unflushed line is this old
+	 */
+	public static void setFlushMillis(long millis) {
+		flushMillis = millis;
+	}
+	
+	/**
+	 * @return the number of lines dropped because the ring was full or the file could not be written
+	 */
+	public static long getDroppedLines() {
+		return droppedLines.get();
+	}
+	
+	public static long getWrittenLines() {
+		return writtenLines.get();
+	}
+	
+	private static BufferedWriter setupFile() throws IOException {
 		if(!logFile.exists()) {
 			logFile.createNewFile();
 		}
 		FileWriter fw = new FileWriter(logFile, true);
-		w = new BufferedWriter(fw);
+		return new BufferedWriter(fw);
 	}
 	
 	public static void log(String s, int logLevel) {
@@ -48,44 +111,137 @@ public class Logger {
 	}
 	
 	private static void writeToFile(final String s) {
-		if(!fileOpened) {
+		long time = System.currentTimeMillis();
+		LineRing r = ring;
+		if(r == null) {
+			r = start();
+		}
+		while(!r.offer(s, time)) {
+			Thread t = writer;
+			if(!blockWhenFull || t == null || !t.isAlive()) {
+				droppedLines.incrementAndGet();
+				return;
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+	}
+	
+	private static synchronized LineRing start() {
+		if(ring == null) {
+			final LineRing r = new LineRing(capacity);
+			BufferedWriter w = null;
 			try {
-				setupFile();
+				w = setupFile();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			fileOpened = true;
+			final BufferedWriter fileWriter = w;
+			ending = false;
+			writer = new Thread("Logger") {
+				@Override 
+				public void run() {
+					writeLines(r, fileWriter);
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+			ring = r;
 		}
-		Thread t = new Thread() {
-			LocalDateTime now = LocalDateTime.now();
-			
-			private synchronized void writeToFile() {
+		return ring;
+	}
+	
+	/**
+	 * The writer thread's loop. Runs until <code>endLogger</code> is called and the
+	 * ring is empty.
+	 * 
+	 * @param w the file, or null if it could not be opened, in which case lines are dropped
+	 */
+	private static void writeLines(LineRing r, BufferedWriter w) {
+		long second = -1;
+		String stamp = "";
+		int unflushed = 0;
+		long oldest = 0;
+		while(true) {
+			// read before draining so every line logged before endLogger is written
+			boolean closing = ending;
+			while(r.ready()) {
+				String s = r.poll();
+				if(w == null) {
+					droppedLines.incrementAndGet();
+					continue;
+				}
+				long time = r.lastTime();
+				if(time / 1000 != second) {
+					second = time / 1000;
+					stamp = loggerFormat.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault())) + "| ";
+				}
 				try {
-					w.write(loggerFormat.format(now)+"| " + s + "\n");
-					w.flush();
+					w.write(stamp);
+					w.write(s);
+					w.write('\n');
+					writtenLines.incrementAndGet();
+					if(unflushed == 0) {
+						oldest = System.nanoTime();
+					}
+					unflushed += stamp.length() + s.length() + 1;
+					if(unflushed >= flushSize) {
+						w.flush();
+						unflushed = 0;
+					}
 				} catch (IOException e) {
 					e.printStackTrace();
+					w = close(w);
+					// what was buffered went with the file, and there is nothing left to flush
+					unflushed = 0;
+				}
+			}
+			long wait = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+			if(unflushed > 0) {
+				wait -= System.nanoTime() - oldest;
+				if(wait <= 0 || closing) {
+					try {
+						w.flush();
+					} catch (IOException e) {
+						e.printStackTrace();
+						w = close(w);
+					}
+					unflushed = 0;
+					wait = TimeUnit.MILLISECONDS.toNanos(flushMillis);
 				}
 			}
-			
-			@Override 
-			public void run() {
-				writeToFile();
+			if(closing && r.size() == 0) {
+				close(w);
+				return;
 			}
-		};
-		threads.add(t);
-		t.start();
+			r.awaitData(closing ? TimeUnit.MICROSECONDS.toNanos(100) : wait);
+		}
 	}
 	
-	public static void endLogger() throws IOException, InterruptedException {
-		Iterator<Thread> threadIter = threads.iterator();
-		while(threadIter.hasNext()) {
-			Thread t = threadIter.next();
-			if(t.isAlive()) {
-				t.interrupt();
-				t.join(500);
+	private static BufferedWriter close(BufferedWriter w) {
+		if(w != null) {
+			try {
+				w.close();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
-		w.close();
+		return null;
+	}
+	
+	/**
+	 * Writes every line logged before this was called, closes the file and stops the
+	 * writer thread. Logging to the file again opens it again.
+	 */
+	public static synchronized void endLogger() throws IOException, InterruptedException {
+		Thread t = writer;
+		if(t == null) {
+			return;
+		}
+		// new lines wait in start for the next file to open
+		ring = null;
+		ending = true;
+		LockSupport.unpark(t);
+		t.join();
+		writer = null;
 	}
-}
\ No newline at end of file
+}
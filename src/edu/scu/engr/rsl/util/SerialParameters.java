@@ -215,4 +215,29 @@ public class SerialParameters
   {
     return parity;
   }
+
+  /**
+   * Gets the most bytes per second the line can carry, counting the start,
+   * parity and stop bits sent with every byte.
+   * 
+   * @return Bytes per second at the current settings.
+   */
+  public long getBytesPerSecond()
+  {
+    // counted in half bits because of 1.5 stop bits
+    int halfBits = 2 * (1 + databits + (parity == SerialPort.PARITY_NONE ? 0 : 1));
+    switch (stopbits)
+    {
+      case SerialPort.STOPBITS_2:
+        halfBits += 4;
+        break;
+      case SerialPort.STOPBITS_1_5:
+        halfBits += 3;
+        break;
+      default:
+        halfBits += 2;
+        break;
+    }
+    return 2L * baudRate / halfBits;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package edu.scu.engr.rsl.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size chunk of memory handed out by a <code>BufferPool</code>.
+ * The <code>length</code> field says how much of <code>data</code> is in use.
+ * A slab must be released exactly once when whoever holds it is done with it,
+ * after which it must not be touched again.
+ */
+public class Slab {
+	public final byte[] data;
+	// a view of data for NIO, made once so channel reads and writes don't allocate
+	public final ByteBuffer buffer;
+	public int length;
+	// when the data arrived, in seconds since the epoch as DataTurbine expects
+	public double time;
+	// when the data arrived by System.nanoTime, for measuring how long it took to publish
+	public long arrivalNanos;
+	private final BufferPool pool;
+	
+	Slab(BufferPool pool, int size) {
+		this.pool = pool;
+		this.data = new byte[size];
+		this.buffer = ByteBuffer.wrap(data);
+	}
+	
+	/**
+	 * Copies <code>len</code> bytes into the start of this slab and sets the length.
+	 * 
+	 * @return this slab
+	 */
+	public Slab fill(byte[] src, int off, int len) {
+		System.arraycopy(src, off, data, 0, len);
+		length = len;
+		return this;
+	}
+	
+	/**
+	 * @return <code>buffer</code> set up to cover the bytes in use, ready to be written from
+	 */
+	public ByteBuffer contents() {
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
+	
+	/**
+	 * @return the number of bytes this slab can hold
+	 */
+	public int capacity() {
+		return data.length;
+	}
+	
+	/**
+	 * Returns this slab to the pool it came from.
+	 */
+	public void release() {
+		length = 0;
+		pool.release(this);
+	}
+}
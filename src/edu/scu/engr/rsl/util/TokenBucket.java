@@ -0,0 +1,103 @@
+package edu.scu.engr.rsl.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast bytes are sent. Tokens, one a byte, come in at a steady rate and
+ * collect up to a burst, and sending takes them out. A send larger than the burst
+ * only waits for a full bucket and leaves it in debt, so a frame bigger than the
+ * burst is never stuck, and what follows it waits for the debt to be paid off.
+ * 
+ * Tokens are kept in byte-nanoseconds so no fraction of a byte is lost to rounding
+ * at low rates.
+ * 
+ * Not thread safe, each writer keeps its own.
+ */
+public class TokenBucket {
+	protected static final long NANOS = TimeUnit.SECONDS.toNanos(1);
+	protected final long rate;
+	protected final long burst;
+	// bytes times NANOS, negative while in debt
+	protected long tokens;
+	protected long lastNanos;
+	protected long waitedNanos = 0;
+
+	/**
+	 * Starts with a full bucket.
+	 * 
+	 * @param rate bytes per second
+	 * @param burst the most bytes that can be sent at once without waiting
+	 */
+	public TokenBucket(long rate, long burst) {
+		if(rate < 1 || burst < 1) {
+			throw new IllegalArgumentException("rate and burst must be positive");
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst * NANOS;
+		this.lastNanos = System.nanoTime();
+	}
+
+	protected void refill(long now) {
+		long elapsed = now - lastNanos;
+		lastNanos = now;
+		// capped so a long idle spell can't overflow the product
+		long added = Math.min(elapsed, (burst * NANOS - tokens) / rate + 1) * rate;
+		tokens = Math.min(burst * NANOS, tokens + added);
+	}
+
+	/**
+	 * @return nanoseconds until <code>bytes</code> could be sent, 0 if they can be now
+	 */
+	public long delayNanos(int bytes) {
+		refill(System.nanoTime());
+		long needed = Math.min(bytes, burst) * NANOS;
+		if(tokens >= needed) {
+			return 0;
+		}
+		return (needed - tokens + rate - 1) / rate;
+	}
+
+	/**
+	 * Takes the tokens for <code>bytes</code> if they are there.
+	 * 
+	 * @return true if the bytes can be sent now
+	 */
+	public boolean tryAcquire(int bytes) {
+		if(delayNanos(bytes) > 0) {
+			return false;
+		}
+		tokens -= bytes * NANOS;
+		return true;
+	}
+
+	/**
+	 * Waits until <code>bytes</code> can be sent and takes their tokens.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void acquire(int bytes) throws InterruptedException {
+		long delay;
+		while((delay = delayNanos(bytes)) > 0) {
+			waitedNanos += delay;
+			TimeUnit.NANOSECONDS.sleep(delay);
+		}
+		tokens -= bytes * NANOS;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public long getBurst() {
+		return burst;
+	}
+
+	/**
+	 * @return the total nanoseconds <code>acquire</code> has waited, a measure of how
+	 * 		much the bucket has held back
+	 */
+	public long getWaitedNanos() {
+		return waitedNanos;
+	}
+}